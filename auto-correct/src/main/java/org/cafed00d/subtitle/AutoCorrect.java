@@ -16,8 +16,11 @@
 package org.cafed00d.subtitle;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -78,11 +81,141 @@ import org.apache.commons.logging.LogFactory;
  * the file is the same as the autocorrect.properties file and contains only
  * unique entries. The base name is the same as for the SRT file.</td>
  * </tr>
+ * <tr>
+ * <th>j &lt;n&gt;</th>
+ * <td>Processes up to <code>n</code> files at once, each on its own thread.
+ * The default is 1, which processes the files one after the other, or one
+ * file per processor with the <code>t</code> option. The number
+ * may follow the letter directly (<code>-j8</code>) or be given as the next
+ * argument (<code>-j 8</code>).</td>
+ * </tr>
+ * <tr>
+ * <th>p &lt;n&gt;</th>
+ * <td>Processes the files in a pipeline of read, correct and write stages
+ * joined by bounded queues, with <code>n</code> threads for each of the read
+ * and write stages. The <code>j</code> option sets the number of threads for
+ * the correct stage. The throughput of each stage is displayed at the
+ * end.</td>
+ * </tr>
+ * <tr>
+ * <th>w &lt;workers&gt;</th>
+ * <td>Spreads the files across worker processes, see {@link ShardCoordinator}.
+ * <code>workers</code> is either the number of workers to start on this
+ * machine, or a comma separated list of <code>[host:]port</code> addresses of
+ * workers already running. Workers are started with <code>java
+ * org.cafed00d.subtitle.ShardWorker [port]</code>. With the <code>a</code>
+ * option, the corrections of all files are also merged into
+ * <code>autocorrect.log</code> in the current directory.</td>
+ * </tr>
+ * <tr>
+ * <th>r &lt;journal&gt;</th>
+ * <td>Keeps a journal of the files processed in the given file. If the batch
+ * is run again with the same journal, the files already completed are skipped
+ * and any file that was interrupted part way through is restored from its
+ * backup and processed again. See {@link Journal}.</td>
+ * </tr>
+ * <tr>
+ * <th>i</th>
+ * <td>Incremental mode: keeps a manifest of the files corrected in each
+ * directory and skips the files that have not changed since, as long as the
+ * dictionary has not changed either. See {@link Manifest}.</td>
+ * </tr>
+ * <tr>
+ * <th>g &lt;manifest&gt;</th>
+ * <td>Incremental mode using a single global manifest file instead of one per
+ * directory.</td>
+ * </tr>
+ * <tr>
+ * <th>d</th>
+ * <td>Corrects each distinct file only once: a file with the same contents as
+ * one already corrected in this run gets the same result without being
+ * corrected again. See {@link DedupeCache}.</td>
+ * </tr>
+ * <tr>
+ * <th>k &lt;dir&gt;</th>
+ * <td>Same as the <code>d</code> option, but also keeps the results in the
+ * given directory so that later runs can reuse them.</td>
+ * </tr>
+ * <tr>
+ * <th>e &lt;engine&gt;</th>
+ * <td>Selects the engine that corrects the words: <code>legacy</code> (the
+ * default), which applies the rules one after the other, or
+ * <code>single</code>, which applies them all in a single scan of each word.
+ * Both make the same corrections. See {@link Engine}.</td>
+ * </tr>
+ * <tr>
+ * <th>m &lt;model&gt;</th>
+ * <td>Uses a word frequency model, built from clean subtitles, to choose
+ * between spellings of a word that differ only in I's and l's. See
+ * {@link FrequencyModel}.</td>
+ * </tr>
+ * <tr>
+ * <th>o &lt;words&gt;</th>
+ * <td>After the other corrections, replaces words misread as
+ * <code>rn</code>/<code>m</code>, <code>0</code>/<code>O</code> or
+ * <code>1</code>/<code>l</code> with the known word from the given word list.
+ * See {@link ConfusionIndex}.</td>
+ * </tr>
+ * <tr>
+ * <th>u</th>
+ * <td>Patches each file in place, writing only the bytes that changed, and
+ * keeps a <code>*.undo</code> log of the bytes it overwrote instead of a
+ * <code>*.bak</code> copy. A file with nothing to correct is not written.
+ * The {@link Patcher} class undoes the changes.</td>
+ * </tr>
+ * <tr>
+ * <th>n</th>
+ * <td>Same as the <code>u</code> option, but keeps no undo log.</td>
+ * </tr>
+ * <tr>
+ * <th>b</th>
+ * <td>Treats the files as UTF-8 and corrects their bytes directly, decoding
+ * only the lines that may change.</td>
+ * </tr>
+ * <tr>
+ * <th>f &lt;n&gt;</th>
+ * <td>Collects n kilobytes of output before each write to a file (default
+ * 256). See {@link OutputWriter}.</td>
+ * </tr>
+ * <tr>
+ * <th>x</th>
+ * <td>Collects the output in direct buffers.</td>
+ * </tr>
+ * <tr>
+ * <th>c &lt;backup&gt;</th>
+ * <td>Selects how the original of each file is kept: <code>rename</code> (the
+ * default) to <code>*.bak</code>, <code>link</code> as a hard link
+ * <code>*.bak</code>, <code>gzip</code> compressed to <code>*.bak.gz</code>,
+ * or <code>none</code>. See {@link Backup}.</td>
+ * </tr>
+ * <tr>
+ * <th>s &lt;n&gt;</th>
+ * <td>Forces the corrected files to disk n files at a time (default 64), or
+ * never with 0, moving each into place only once it is on disk and then
+ * syncing their directories. See {@link SyncBatch}.</td>
+ * </tr>
+ * <tr>
+ * <th>t</th>
+ * <td>Only checks the files: each file that needs corrections is listed with
+ * the number it needs, and nothing is written. Unless the <code>j</code>
+ * option says otherwise, one file is checked per processor. The exit code is
+ * 0 if no file needs corrections, 1 if any does and 2 if any could not be
+ * checked, including files that could not be found or read.</td>
+ * </tr>
  * </table>
  * <p>
  * The utility accepts one of more <code>*.srt</code> files and processes each
- * once. It first backs up the <code>*.srt</code> file as <code>*.bak</code> and
- * then creates a new <code>.srt</code> file the corrected text.
+ * once. It writes the corrected text to a temporary file, backs up the
+ * <code>*.srt</code> file as <code>*.bak</code> and then moves the temporary
+ * file into its place, so that an interrupted run never leaves half a
+ * file.
+ * <p>
+ * Instead of a file you can also pass a directory, which is searched
+ * recursively for <code>*.srt</code> files, a glob such as
+ * <code>movies/*.srt</code>, <code>@&lt;listfile&gt;</code> to read the files
+ * from a list, or <code>-</code> to read the list from standard input. See
+ * {@link FileFinder} for the details. The files are found as they are needed,
+ * so processing starts right away even for a very large library.
  * <p>
  * <b>Example</b>
  * 
@@ -103,6 +236,13 @@ import org.apache.commons.logging.LogFactory;
  * directory. Also outputs additional information to the command window while
  * processing the file and generates the <code>TopHat.log</code> and
  * <code>Casablanca.log</code> files in the current directory.
+ * 
+ * <pre>
+ * autocorrect -j 8 d:/movies @extras.txt
+ * </pre>
+ * <p>
+ * Auto-corrects every <code>.srt</code> file under <code>d:/movies</code> and
+ * every file named in <code>extras.txt</code>, eight files at a time.
  */
 public class AutoCorrect {
 
@@ -128,9 +268,120 @@ public class AutoCorrect {
   private boolean generateLog = false;
 
   /**
-   * The files to process.
+   * The number of files to process at once, or 0 for the default: 1, or one
+   * per processor when only checking. Set by the <code>-j</code> option.
+   */
+  private int threadCount = 0;
+
+  /**
+   * The number of threads for each of the read and write stages of a
+   * pipeline, or 0 to not use one. Set by the <code>-p</code> option.
+   */
+  private int ioThreadCount = 0;
+
+  /**
+   * The worker processes to spread the files across, or null. Set by the
+   * <code>-w</code> option.
+   */
+  private String workers;
+
+  /**
+   * The journal file, or null for none. Set by the <code>-r</code> option.
+   */
+  private String journalFile;
+
+  /**
+   * If true, skips files that are unchanged since they were last corrected.
+   * Set if <code>-i</code> or <code>-g</code> option passed.
+   */
+  private boolean incremental = false;
+
+  /**
+   * The global manifest file, or null to keep one per directory. Set by the
+   * <code>-g</code> option.
+   */
+  private String manifestFile;
+
+  /**
+   * If true, corrects each distinct file only once. Set if <code>-d</code> or
+   * <code>-k</code> option passed.
+   */
+  private boolean dedupe = false;
+
+  /**
+   * The directory to keep the results of correcting files in, or null to keep
+   * them only for this run. Set by the <code>-k</code> option.
+   */
+  private String cacheDirectory;
+
+  /**
+   * The engine that corrects the words. Set by the <code>-e</code> option.
+   */
+  private Engine engine = Engine.LEGACY;
+
+  /**
+   * The word frequency model file, or null for none. Set by the
+   * <code>-m</code> option.
+   */
+  private String modelFile;
+
+  /**
+   * The word list for correcting other OCR confusions, or null for none. Set
+   * by the <code>-o</code> option.
+   */
+  private String wordsFile;
+
+  /**
+   * If true, patches the files in place. Set if <code>-u</code> or
+   * <code>-n</code> option passed.
+   */
+  private boolean inPlace = false;
+
+  /**
+   * If true, keeps an undo log for the files patched in place. Cleared by the
+   * <code>-n</code> option.
+   */
+  private boolean undoLog = true;
+
+  /**
+   * If true, the files are UTF-8 and their bytes are corrected directly. Set
+   * by the <code>-b</code> option.
+   */
+  private boolean utf8 = false;
+
+  /**
+   * The number of bytes of output collected before each write. Set by the
+   * <code>-f</code> option.
+   */
+  private int flushSize = OutputWriter.DEFAULT_FLUSH_SIZE;
+
+  /**
+   * If true, the output is collected in direct buffers. Set by the
+   * <code>-x</code> option.
+   */
+  private boolean direct = false;
+
+  /**
+   * How the original of each file is kept. Set by the <code>-c</code>
+   * option.
    */
-  private ArrayList<File> files = new ArrayList<File>();
+  private Backup backup = Backup.RENAME;
+
+  /**
+   * The number of files forced to disk at once, or 0 for never. Set by the
+   * <code>-s</code> option.
+   */
+  private int syncSize = SyncBatch.DEFAULT_SIZE;
+
+  /**
+   * If true, only checks the files. Set by the <code>-t</code> option.
+   */
+  private boolean checkOnly = false;
+
+  /**
+   * The file arguments to process: files, directories, globs and lists.
+   */
+  private ArrayList<String> inputs = new ArrayList<String>();
 
   /**
    * Main body of program.
@@ -142,7 +393,10 @@ public class AutoCorrect {
   public static void main(String[] args) {
     AutoCorrect ac = new AutoCorrect();
     if (ac.validate(args)) {
-      ac.process();
+      Statistics totals = ac.process();
+      if (ac.checkOnly) {
+        System.exit(exitCode(totals));
+      }
     } else {
       displayUsage();
     }
@@ -152,40 +406,63 @@ public class AutoCorrect {
    * Displays usage instructions to the user.
    */
   private static void displayUsage() {
-    Reporter.INSTANCE.displayMessage("Usage: autocorrect [-aqv] srt-file(s)");
+    Reporter.INSTANCE.displayMessage("Usage: autocorrect [-abdinqtuvx] [-c backup] [-e engine] [-f kb] [-g manifest] [-k dir] [-m model] [-o words] [-j n] [-p n] [-w workers] [-r journal] [-s n] srt-file(s)");
     Reporter.INSTANCE.displayMessage("Where:");
     Reporter.INSTANCE.displayMessage("  -a  Generate autocorrect.log file");
+    Reporter.INSTANCE.displayMessage("  -j  Process n files at once (default 1)");
+    Reporter.INSTANCE.displayMessage("  -p  Pipeline with n read and n write threads, -j correct threads");
+    Reporter.INSTANCE.displayMessage("  -w  Start n worker processes, or use workers at [host:]port,...");
+    Reporter.INSTANCE.displayMessage("  -r  Resume using the journal file, skipping completed files");
+    Reporter.INSTANCE.displayMessage("  -i  Skip files unchanged since last run (manifest per directory)");
+    Reporter.INSTANCE.displayMessage("  -g  Skip files unchanged since last run (global manifest file)");
+    Reporter.INSTANCE.displayMessage("  -d  Correct identical files only once");
+    Reporter.INSTANCE.displayMessage("  -k  Correct identical files only once, caching results in dir");
+    Reporter.INSTANCE.displayMessage("  -e  Word engine: legacy (default) or single (one pass per word)");
+    Reporter.INSTANCE.displayMessage("  -m  Choose between I/l spellings using a word frequency model");
+    Reporter.INSTANCE.displayMessage("  -o  Correct rn/m, 0/O and 1/l misreadings using a word list");
+    Reporter.INSTANCE.displayMessage("  -u  Patch files in place, keeping an undo log instead of a backup");
+    Reporter.INSTANCE.displayMessage("  -n  Patch files in place, keeping no backup at all");
+    Reporter.INSTANCE.displayMessage("  -b  Files are UTF-8: correct their bytes, decoding only lines that may change");
+    Reporter.INSTANCE.displayMessage("  -f  Write output in blocks of n KB (default 256)");
+    Reporter.INSTANCE.displayMessage("  -x  Collect output in direct buffers");
+    Reporter.INSTANCE.displayMessage("  -c  Keep originals: rename (default), link, gzip or none");
+    Reporter.INSTANCE.displayMessage("  -s  Force files to disk and sync directories n files at a time (default 64, 0 for never)");
+    Reporter.INSTANCE.displayMessage("  -t  Only check files: list those needing corrections, write nothing");
     Reporter.INSTANCE.displayMessage("  -q  Run in quite mode: suppress all output");
     Reporter.INSTANCE.displayMessage("  -v  Run in verbose mode: output additonal info");
     Reporter.INSTANCE.displayMessage("  str-file(s)  One of more subtitle files, space separated");
+    Reporter.INSTANCE.displayMessage("               A directory is searched for *.srt files");
+    Reporter.INSTANCE.displayMessage("               @file reads the files from a list, - from stdin");
   }
 
   /**
    * Validates the arguments that were passed. Examines the command options to
-   * see which ones were selected. Verifies that a file was passed and that it
-   * is writable.
+   * see which ones were selected and gathers the file arguments. The files are
+   * checked when they are processed, see {@link FileFinder}.
    * <p>
    * This method does not care what order the options and files appear. Every
-   * argument that starts with a dash (-) must contains only valid option
-   * letters, and any other arguments must be writable files.
+   * argument that starts with a dash (-), other than a lone dash, must
+   * contains only valid option letters, and any other arguments name the files
+   * to process. An option that
+   * takes a value uses the rest of its argument, or the next argument if
+   * nothing follows the option letter.
    * 
    * @param args
    *          The arguments that were passed to the utility.
    * @return True if the arguments are acceptable. False if an invalid option
-   *         was passed (thereby allowing -? to be passed to get the usage) or
-   *         no writable file given.
+   *         was passed (thereby allowing -? to be passed to get the usage).
    */
   private boolean validate(String[] args) {
     boolean result = true;
-    if (args.length > 0) {
-      for (String arg : args) {
-        if (arg.startsWith("-")) {
-          if (!validateOptions(arg)) {
-            result = false;
-          }
-        } else if (!validateFile(arg)) {
+    LinkedList<String> remaining = new LinkedList<String>(Arrays.asList(args));
+    while (!remaining.isEmpty()) {
+      String arg = remaining.removeFirst();
+      if (arg.startsWith("-") && arg.length() > 1) {
+        if (!validateOptions(arg, remaining)) {
           result = false;
         }
+      } else {
+        inputs.add(arg);
       }
     }
 
@@ -204,17 +481,20 @@ public class AutoCorrect {
    * 
    * @param arg
    *          An argument containing options to validate.
+   * @param remaining
+   *          The arguments that follow <code>arg</code>. An option that takes
+   *          a value may remove its value from the front of this list.
    * @return True iff the options are acceptable.
    */
-  private boolean validateOptions(String arg) {
+  private boolean validateOptions(String arg, LinkedList<String> remaining) {
     log.debug("options=" + arg);
     boolean result = true;
     if (arg.length() == 0) {
       result = false;
       Reporter.INSTANCE.displayError("no options given in argument " + arg);
     } else {
-      char[] chars = arg.toCharArray();
-      for (char c : chars) {
+      for (int inx = 1; inx < arg.length(); inx++) {
+        char c = arg.charAt(inx);
         switch (c) {
           case 'a':
           case 'A':
@@ -234,6 +514,187 @@ public class AutoCorrect {
             log.debug("found quiet option");
             break;
 
+          case 'j':
+          case 'J':
+            String value = optionValue(arg, inx, remaining);
+            inx = arg.length();
+            threadCount = parseCount(c, value);
+            if (threadCount < 1) {
+              result = false;
+            }
+            log.debug("found thread count option: " + value);
+            break;
+
+          case 'p':
+          case 'P':
+            value = optionValue(arg, inx, remaining);
+            inx = arg.length();
+            ioThreadCount = parseCount(c, value);
+            if (ioThreadCount < 1) {
+              result = false;
+            }
+            log.debug("found pipeline option: " + value);
+            break;
+
+          case 'w':
+          case 'W':
+            workers = optionValue(arg, inx, remaining);
+            inx = arg.length();
+            if (!ShardCoordinator.isValid(workers)) {
+              Reporter.INSTANCE.displayError("option " + c + " requires a number or [host:]port list, found: " + workers);
+              result = false;
+            }
+            log.debug("found workers option: " + workers);
+            break;
+
+          case 'r':
+          case 'R':
+            journalFile = optionValue(arg, inx, remaining);
+            inx = arg.length();
+            if (journalFile == null) {
+              Reporter.INSTANCE.displayError("option " + c + " requires a journal file");
+              result = false;
+            }
+            log.debug("found journal option: " + journalFile);
+            break;
+
+          case 'i':
+          case 'I':
+            incremental = true;
+            log.debug("found incremental option");
+            break;
+
+          case 'g':
+          case 'G':
+            manifestFile = optionValue(arg, inx, remaining);
+            inx = arg.length();
+            incremental = true;
+            if (manifestFile == null) {
+              Reporter.INSTANCE.displayError("option " + c + " requires a manifest file");
+              result = false;
+            }
+            log.debug("found global manifest option: " + manifestFile);
+            break;
+
+          case 'u':
+          case 'U':
+            inPlace = true;
+            log.debug("found in place option");
+            break;
+
+          case 'n':
+          case 'N':
+            inPlace = true;
+            undoLog = false;
+            log.debug("found in place without undo log option");
+            break;
+
+          case 'f':
+          case 'F':
+            value = optionValue(arg, inx, remaining);
+            inx = arg.length();
+            flushSize = Math.min(parseCount(c, value), 1024 * 1024) * 1024;
+            if (flushSize < 1) {
+              result = false;
+            }
+            log.debug("found flush size option: " + value);
+            break;
+
+          case 'x':
+          case 'X':
+            direct = true;
+            log.debug("found direct buffers option");
+            break;
+
+          case 'c':
+          case 'C':
+            value = optionValue(arg, inx, remaining);
+            inx = arg.length();
+            try {
+              backup = Backup.valueOf(String.valueOf(value).toUpperCase());
+            } catch (IllegalArgumentException e) {
+              Reporter.INSTANCE.displayError("option " + c + " requires rename, link, gzip or none, found: " + value);
+              result = false;
+            }
+            log.debug("found backup option: " + value);
+            break;
+
+          case 's':
+          case 'S':
+            value = optionValue(arg, inx, remaining);
+            inx = arg.length();
+            syncSize = "0".equals(value) ? 0 : parseCount(c, value);
+            if (syncSize < 1 && !"0".equals(value)) {
+              result = false;
+            }
+            log.debug("found sync batch option: " + value);
+            break;
+
+          case 't':
+          case 'T':
+            checkOnly = true;
+            log.debug("found check option");
+            break;
+
+          case 'b':
+          case 'B':
+            utf8 = true;
+            log.debug("found UTF-8 option");
+            break;
+
+          case 'd':
+          case 'D':
+            dedupe = true;
+            log.debug("found dedupe option");
+            break;
+
+          case 'k':
+          case 'K':
+            cacheDirectory = optionValue(arg, inx, remaining);
+            inx = arg.length();
+            dedupe = true;
+            if (cacheDirectory == null) {
+              Reporter.INSTANCE.displayError("option " + c + " requires a cache directory");
+              result = false;
+            }
+            log.debug("found cache directory option: " + cacheDirectory);
+            break;
+
+          case 'e':
+          case 'E':
+            value = optionValue(arg, inx, remaining);
+            inx = arg.length();
+            try {
+              engine = Engine.valueOf(String.valueOf(value).toUpperCase());
+            } catch (IllegalArgumentException e) {
+              Reporter.INSTANCE.displayError("option " + c + " requires legacy or single, found: " + value);
+              result = false;
+            }
+            log.debug("found engine option: " + value);
+            break;
+
+          case 'm':
+          case 'M':
+            modelFile = optionValue(arg, inx, remaining);
+            inx = arg.length();
+            if (modelFile == null) {
+              Reporter.INSTANCE.displayError("option " + c + " requires a model file");
+              result = false;
+            }
+            log.debug("found model option: " + modelFile);
+            break;
+
+          case 'o':
+          case 'O':
+            wordsFile = optionValue(arg, inx, remaining);
+            inx = arg.length();
+            if (wordsFile == null) {
+              Reporter.INSTANCE.displayError("option " + c + " requires a word list");
+              result = false;
+            }
+            log.debug("found word list option: " + wordsFile);
+            break;
+
           default:
             Reporter.INSTANCE.displayError("unknown option " + c + " in argument " + arg);
             result = false;
@@ -245,39 +706,169 @@ public class AutoCorrect {
   }
 
   /**
-   * Validates the file given.
+   * Gets the value for an option that requires one. The value is the rest of
+   * the argument after the option letter or, if nothing follows the letter,
+   * the next argument.
    * 
    * @param arg
-   *          An argument containing a file name to validate.
-   * @return True iff the named file exists and is writable.
-   */
-  private boolean validateFile(String arg) {
-    boolean result = false;
-    File file = new File(arg).getAbsoluteFile();
-    if (file.exists()) {
-      if (file.isFile()) {
-        if (file.canWrite()) {
-          files.add(file);
-          result = true;
-        } else {
-          Reporter.INSTANCE.displayError("file is not writeable: " + file.getAbsolutePath());
-        }
-      } else {
-        Reporter.INSTANCE.displayError("cannot convert a directory: " + file.getAbsolutePath());
-      }
-    } else {
-      Reporter.INSTANCE.displayError("no such file: " + file.getAbsolutePath());
+   *          The argument containing the option.
+   * @param inx
+   *          The index of the option letter in <code>arg</code>.
+   * @param remaining
+   *          The arguments that follow <code>arg</code>.
+   * @return The value, or null if none was given.
+   */
+  private String optionValue(String arg, int inx, LinkedList<String> remaining) {
+    String result = null;
+    if (inx + 1 < arg.length()) {
+      result = arg.substring(inx + 1);
+    } else if (!remaining.isEmpty()) {
+      result = remaining.removeFirst();
+    }
+    return result;
+  }
+
+  /**
+   * Parses the value of an option that must be a positive number.
+   * 
+   * @param option
+   *          The option letter, used in error messages.
+   * @param value
+   *          The value to parse, may be null.
+   * @return The number, or 0 if the value is not a positive number.
+   */
+  private int parseCount(char option, String value) {
+    int result = 0;
+    try {
+      result = Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      log.debug(e.getMessage(), e);
+    }
+    if (result < 1) {
+      Reporter.INSTANCE.displayError("option " + option + " requires a positive number, found: " + value);
+      result = 0;
     }
     return result;
   }
 
   /**
    * Processes the SRT files.
+   * 
+   * @return The totals for all of the files, or null if the batch could not
+   *         be set up.
    */
-  private void process() {
-    for (File file : files) {
-      FileProcessor fp = new FileProcessor(file, generateLog);
-      fp.process();
+  private Statistics process() {
+    OutputWriter.configure(flushSize, direct);
+    SyncBatch.configure(syncSize);
+    int threads = threadCount;
+    if (threads == 0) {
+      threads = checkOnly ? Runtime.getRuntime().availableProcessors() : 1;
+    }
+    BatchProcessor batch = new BatchProcessor(threads, generateLog);
+    batch.setPipeline(ioThreadCount);
+    batch.setWorkers(workers);
+    batch.setEngine(engine);
+    batch.setInPlace(inPlace, undoLog);
+    batch.setUtf8(utf8);
+    batch.setBackup(backup);
+    batch.setCheckOnly(checkOnly);
+    if (modelFile != null) {
+      try {
+        batch.setModel(FrequencyModel.open(new File(modelFile)));
+      } catch (IOException e) {
+        Reporter.INSTANCE.displayError("Unable to open model " + modelFile, e);
+        return null;
+      }
+    }
+    if (wordsFile != null) {
+      try {
+        batch.setConfusions(ConfusionIndex.open(new File(wordsFile)));
+      } catch (IOException e) {
+        Reporter.INSTANCE.displayError("Unable to open word list " + wordsFile, e);
+        return null;
+      }
     }
+    Journal journal = null;
+    if (journalFile != null) {
+      try {
+        journal = new Journal(new File(journalFile));
+      } catch (IOException e) {
+        Reporter.INSTANCE.displayError("Unable to open journal " + journalFile, e);
+        return null;
+      }
+      batch.setJournal(journal);
+    }
+    Manifest manifest = null;
+    if (incremental) {
+      manifest = new Manifest(manifestFile == null ? null : new File(manifestFile));
+      batch.setManifest(manifest);
+    }
+    if (dedupe) {
+      batch.setCache(new DedupeCache(cacheDirectory == null ? null : new File(cacheDirectory)));
+    }
+    Statistics totals;
+    try {
+      FileFinder finder = new FileFinder(inputs);
+      finder.setCheckOnly(checkOnly);
+      totals = batch.process(finder);
+      Statistics rejected = new Statistics();
+      for (int i = 0; i < finder.getRejectedCount(); i++) {
+        rejected.addFile(true);
+      }
+      totals.add(rejected);
+      if (totals.getFileCount() + totals.getSkippedCount() > 1) {
+        reportTotals(totals);
+      }
+    } finally {
+      SyncBatch.flush();
+      if (manifest != null) {
+        manifest.save();
+      }
+      if (journal != null) {
+        journal.close();
+      }
+    }
+    return totals;
+  }
+
+  /**
+   * Displays the statistics for all of the files that were processed.
+   * 
+   * @param totals
+   *          The totals to display.
+   */
+  private void reportTotals(Statistics totals) {
+    Reporter.INSTANCE.displayMessages("Totals",
+                                      "# Files: " + totals.getFileCount(),
+                                      "# Failed: " + totals.getFailedCount(),
+                                      "# Skipped: " + totals.getSkippedCount(),
+                                      "# Lines: " + totals.getLineCount(),
+                                      "# Words: " + totals.getWordCount(),
+                                      "# Corrections: " + totals.getCorrectedCount());
+    Reporter.INSTANCE.displayVerboseMessage(FileProcessor.filterMessage(totals));
+    Reporter.INSTANCE.displayVerboseMessage(FileProcessor.cacheMessage(totals));
+    Reporter.INSTANCE.displayVerboseMessage(FileProcessor.decodeMessage(totals));
+    if (checkOnly) {
+      Reporter.INSTANCE.displayMessage("# Files needing corrections: " + totals.getNeedsCorrectionCount());
+    }
+  }
+
+  /**
+   * Gets the exit code for a run that only checked the files.
+   * 
+   * @param totals
+   *          The totals for all of the files, or null if the batch could not
+   *          be set up.
+   * @return 0 if no file needs corrections, 1 if any does, or 2 if any could
+   *         not be checked.
+   */
+  static int exitCode(Statistics totals) {
+    int result = 0;
+    if (totals == null || totals.getFailedCount() > 0) {
+      result = 2;
+    } else if (totals.getNeedsCorrectionCount() > 0) {
+      result = 1;
+    }
+    return result;
   }
 }
@@ -0,0 +1,238 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The ways the original of a file can be kept before the corrected file is
+ * moved into its place, see {@link FileProcessor#setBackup(Backup)}. Each
+ * strategy saves the original under its own extension, see
+ * {@link #getExtension()}, after any earlier backup has been deleted.
+ */
+public enum Backup {
+  /**
+   * Keeps no backup.
+   */
+  NONE(null) {
+    @Override
+    void save(File file, File backupFile) {
+    }
+  },
+
+  /**
+   * Renames the original to <code>*.bak</code>. Until the corrected file is
+   * moved in, there is no file under the original name.
+   */
+  RENAME(".bak") {
+    @Override
+    void save(File file, File backupFile) throws IOException {
+      if (!file.renameTo(backupFile)) {
+        throw new IOException("Unable to rename file " + file.getAbsolutePath() + " to " + backupFile.getAbsolutePath());
+      }
+    }
+  },
+
+  /**
+   * Links the original as <code>*.bak</code>, so that the original name
+   * always refers to a whole file and the contents are not copied. Where the
+   * file system has no hard links, the original is copied instead.
+   */
+  LINK(".bak") {
+    @Override
+    void save(File file, File backupFile) throws IOException {
+      try {
+        Files.createLink(backupFile.toPath(), file.toPath());
+      } catch (UnsupportedOperationException e) {
+        copy(file, backupFile);
+      } catch (IOException e) {
+        log.debug("unable to link, copying instead: " + e.getMessage(), e);
+        copy(file, backupFile);
+      }
+    }
+  },
+
+  /**
+   * Compresses the original to <code>*.bak.gz</code>, which takes a fraction
+   * of the space of a copy.
+   */
+  GZIP(".bak.gz") {
+    @Override
+    void save(File file, File backupFile) throws IOException {
+      InputStream in = new FileInputStream(file);
+      try {
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(backupFile), BUFFER_SIZE);
+        try {
+          transfer(in, out);
+        } finally {
+          out.close();
+        }
+      } finally {
+        in.close();
+      }
+    }
+  };
+
+  /**
+   * Logger for this class.
+   */
+  private static final Log log = LogFactory.getLog(Backup.class);
+
+  /**
+   * The size of the buffers used to copy files.
+   */
+  static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * The extension of the backup, or null if none is kept.
+   */
+  private final String extension;
+
+  /**
+   * Constructor.
+   * 
+   * @param extension
+   *          The extension of the backup, or null if none is kept.
+   */
+  private Backup(String extension) {
+    this.extension = extension;
+  }
+
+  /**
+   * Gets the extension that replaces that of the file to name its backup.
+   * 
+   * @return The extension, or null if no backup is kept.
+   */
+  public String getExtension() {
+    return extension;
+  }
+
+  /**
+   * Saves the original of a file.
+   * 
+   * @param file
+   *          The file.
+   * @param backupFile
+   *          The backup to create, which does not exist.
+   * @throws IOException
+   *           The backup could not be created.
+   */
+  abstract void save(File file, File backupFile) throws IOException;
+
+  /**
+   * Moves a file into the place of another in one step, so that the target
+   * always names either the whole of the old file or the whole of the new.
+   * Only where the file system cannot move a file in one step is it moved in
+   * two, with a warning, as the target may then be missing for a moment.
+   * 
+   * @param source
+   *          The file to move.
+   * @param target
+   *          The file to replace, which need not exist.
+   * @throws IOException
+   *           The file could not be moved.
+   */
+  static void replace(File source, File target) throws IOException {
+    try {
+      Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      log.warn("unable to move atomically, replacing " + target.getAbsolutePath() + " in two steps: " + e.getMessage());
+      Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Uncompresses a backup made by {@link #GZIP}.
+   * 
+   * @param backupFile
+   *          The compressed backup.
+   * @param file
+   *          The file to write.
+   * @throws IOException
+   *           The backup could not be read or the file written.
+   */
+  static void uncompress(File backupFile, File file) throws IOException {
+    InputStream in = new GZIPInputStream(new FileInputStream(backupFile), BUFFER_SIZE);
+    try {
+      OutputStream out = new FileOutputStream(file);
+      try {
+        transfer(in, out);
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Copies a file.
+   * 
+   * @param file
+   *          The file to copy.
+   * @param copy
+   *          The copy to create.
+   * @throws IOException
+   *           The file could not be copied.
+   */
+  private static void copy(File file, File copy) throws IOException {
+    InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+    try {
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(copy), BUFFER_SIZE);
+      try {
+        transfer(in, out);
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Copies the rest of a stream to another.
+   * 
+   * @param in
+   *          The stream to copy.
+   * @param out
+   *          The stream to copy to.
+   * @throws IOException
+   *           A stream could not be read or written.
+   */
+  private static void transfer(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    int count;
+    while ((count = in.read(buffer)) > 0) {
+      out.write(buffer, 0, count);
+    }
+  }
+}
@@ -0,0 +1,603 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs a {@link FileProcessor} for each file in a batch, either on the calling
+ * thread or spread across a pool of worker threads.
+ * <p>
+ * Each file is handled by its own {@link FileProcessor}, so the only state
+ * shared between the workers is the batch {@link Statistics}. The number of
+ * files waiting for a worker is limited to twice the number of workers, which
+ * keeps the memory used by a batch flat no matter how many files it contains.
+ * <p>
+ * Alternatively the files can be run through a {@link Pipeline}, which splits
+ * the work on each file into read, correct and write stages, or spread across
+ * worker processes by a {@link ShardCoordinator}.
+ * <p>
+ * Whichever way the files are run, each one is checked by
+ * {@link #accept(File)} before it is handed out, {@link #starting(File)} is
+ * called right before it is backed up and {@link #completed(File, Statistics)}
+ * once it is done. These are where a {@link Journal} and a {@link Manifest}
+ * are kept. A file is only done once it is in place on disk: its processor
+ * tells the batch itself, as a corrected file waits for the rest of its
+ * {@link SyncBatch} to be moved into place, and the batch commits whatever is
+ * left before it returns.
+ */
+public class BatchProcessor {
+
+  /**
+   * Logger for this class.
+   */
+  private static final Log log = LogFactory.getLog(BatchProcessor.class);
+
+  /**
+   * The number of files to process at once.
+   */
+  private int threadCount;
+
+  /**
+   * If true, generates an corrections log file for each file.
+   */
+  private boolean generateLog;
+
+  /**
+   * The number of threads for each of the read and write stages of a
+   * {@link Pipeline}, or 0 to not use a pipeline.
+   */
+  private int ioThreadCount;
+
+  /**
+   * The worker processes to spread the files across, or null to process the
+   * files in this process. See {@link ShardCoordinator}.
+   */
+  private String workers;
+
+  /**
+   * Records the progress of the batch so that it can be resumed, or null.
+   */
+  private Journal journal;
+
+  /**
+   * Records the files corrected so that unchanged files can be skipped, or
+   * null.
+   */
+  private Manifest manifest;
+
+  /**
+   * The results of files already corrected, or null to correct every file.
+   */
+  private DedupeCache cache;
+
+  /**
+   * The engine that corrects the words.
+   */
+  private Engine engine = Engine.LEGACY;
+
+  /**
+   * The word frequency model, or null for none.
+   */
+  private FrequencyModel model;
+
+  /**
+   * The index that corrects other OCR confusions, or null for none.
+   */
+  private ConfusionIndex confusions;
+
+  /**
+   * If true, patch the files in place rather than rewrite them.
+   */
+  private boolean inPlace = false;
+
+  /**
+   * If true, keep an undo log for each file patched in place.
+   */
+  private boolean undoLog = true;
+
+  /**
+   * If true, the files are UTF-8 and their bytes are corrected directly.
+   */
+  private boolean utf8 = false;
+
+  /**
+   * How the original of each file is kept.
+   */
+  private Backup backup = Backup.RENAME;
+
+  /**
+   * If true, the files are only checked, and nothing is written.
+   */
+  private boolean checkOnly = false;
+
+  /**
+   * The totals for all of the files processed.
+   */
+  private Statistics totals = new Statistics();
+
+  /**
+   * Constructor.
+   * 
+   * @param threadCount
+   *          The number of files to process at once. A value of 1 processes
+   *          the files one after the other on the calling thread.
+   * @param generateLog
+   *          If true, generate a log file listing changed words for each file.
+   */
+  public BatchProcessor(int threadCount, boolean generateLog) {
+    this.threadCount = Math.max(1, threadCount);
+    this.generateLog = generateLog;
+  }
+
+  /**
+   * Runs the files through a {@link Pipeline}. The thread count given to the
+   * constructor is then used for the correct stage.
+   * 
+   * @param ioThreadCount
+   *          The number of threads for each of the read and write stages, or 0
+   *          to process each file in one go.
+   */
+  public void setPipeline(int ioThreadCount) {
+    this.ioThreadCount = ioThreadCount;
+  }
+
+  /**
+   * Spreads the files across worker processes. See {@link ShardCoordinator}.
+   * 
+   * @param workers
+   *          Either the number of workers to start, or a comma separated list
+   *          of <code>[host:]port</code> addresses of running workers. Null to
+   *          process the files in this process.
+   */
+  public void setWorkers(String workers) {
+    this.workers = workers;
+  }
+
+  /**
+   * Keeps a journal of the files processed. Files the journal shows as
+   * completed are skipped.
+   * 
+   * @param journal
+   *          The journal, or null for none.
+   */
+  public void setJournal(Journal journal) {
+    this.journal = journal;
+  }
+
+  /**
+   * Keeps a manifest of the files corrected. Files the manifest shows as
+   * unchanged are skipped.
+   * 
+   * @param manifest
+   *          The manifest, or null for none.
+   */
+  public void setManifest(Manifest manifest) {
+    this.manifest = manifest;
+    if (manifest != null) {
+      manifest.setModel(model);
+      manifest.setConfusions(confusions);
+    }
+  }
+
+  /**
+   * Corrects each distinct file only once, reusing the result for files with
+   * the same contents. Not used by worker processes.
+   * 
+   * @param cache
+   *          The cache of results, or null to correct every file.
+   */
+  public void setCache(DedupeCache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Sets the engine that corrects the words, including in worker processes.
+   * 
+   * @param engine
+   *          The engine.
+   */
+  public void setEngine(Engine engine) {
+    this.engine = engine;
+  }
+
+  /**
+   * Sets the word frequency model, including for worker processes, see
+   * {@link FileProcessor#setModel(FrequencyModel)}.
+   * 
+   * @param model
+   *          The model, or null for none.
+   */
+  public void setModel(FrequencyModel model) {
+    this.model = model;
+    if (manifest != null) {
+      manifest.setModel(model);
+    }
+  }
+
+  /**
+   * Sets the index that corrects other OCR confusions in every file,
+   * including for worker processes, see
+   * {@link FileProcessor#setConfusions(ConfusionIndex)}.
+   * 
+   * @param confusions
+   *          The index, or null for none.
+   */
+  public void setConfusions(ConfusionIndex confusions) {
+    this.confusions = confusions;
+    if (manifest != null) {
+      manifest.setConfusions(confusions);
+    }
+  }
+
+  /**
+   * Sets whether to patch the files in place, see
+   * {@link FileProcessor#setInPlace(boolean)} and
+   * {@link FileProcessor#setUndoLog(boolean)}.
+   * 
+   * @param inPlace
+   *          True to patch the files in place.
+   * @param undoLog
+   *          True to keep an undo log for each file patched.
+   */
+  public void setInPlace(boolean inPlace, boolean undoLog) {
+    this.inPlace = inPlace;
+    this.undoLog = undoLog;
+  }
+
+  /**
+   * Sets whether the files are UTF-8, see
+   * {@link FileProcessor#setUtf8(boolean)}.
+   * 
+   * @param utf8
+   *          True if the files are UTF-8.
+   */
+  public void setUtf8(boolean utf8) {
+    this.utf8 = utf8;
+  }
+
+  /**
+   * Sets how the original of each file is kept, see
+   * {@link FileProcessor#setBackup(Backup)}.
+   * 
+   * @param backup
+   *          The backup strategy.
+   */
+  public void setBackup(Backup backup) {
+    this.backup = backup;
+  }
+
+  /**
+   * Sets whether to only check the files, see
+   * {@link FileProcessor#setCheckOnly(boolean)}. Each file that needs
+   * corrections is reported with the number it needs. Neither the manifest
+   * nor the journal is updated, as the files are left uncorrected; files the
+   * journal already records as completed are still skipped.
+   * 
+   * @param checkOnly
+   *          True to only check the files.
+   */
+  public void setCheckOnly(boolean checkOnly) {
+    this.checkOnly = checkOnly;
+  }
+
+  /**
+   * Processes the files, returning once all of them are done.
+   * 
+   * @param files
+   *          The files to process.
+   * @return The totals for all of the files.
+   */
+  public Statistics process(Iterable<File> files) {
+    files = new Accepted(files);
+    if (workers != null) {
+      ShardCoordinator coordinator = new ShardCoordinator(this, workers, generateLog, engine);
+      coordinator.setModel(model);
+      coordinator.setConfusions(confusions);
+      coordinator.setInPlace(inPlace, undoLog);
+      coordinator.setUtf8(utf8);
+      coordinator.setBackup(backup);
+      coordinator.setCheckOnly(checkOnly);
+      coordinator.process(files);
+    } else if (ioThreadCount > 0) {
+      new Pipeline(this, ioThreadCount, threadCount).process(files);
+    } else if (threadCount == 1) {
+      for (File file : files) {
+        processFile(file);
+      }
+    } else {
+      processInParallel(files);
+    }
+    SyncBatch.flush();
+    return totals;
+  }
+
+  /**
+   * Hands the files to a pool of worker threads. The calling thread blocks
+   * whenever the workers fall behind.
+   * 
+   * @param files
+   *          The files to process.
+   */
+  private void processInParallel(Iterable<File> files) {
+    Reporter.INSTANCE.displayVerboseMessage("Processing files with " + threadCount + " threads");
+    ExecutorService pool = Executors.newFixedThreadPool(threadCount, new WorkerThreadFactory());
+    final Semaphore pending = new Semaphore(threadCount * 2);
+    try {
+      for (final File file : files) {
+        pending.acquireUninterruptibly();
+        pool.execute(new Runnable() {
+          public void run() {
+            try {
+              processFile(file);
+            } finally {
+              pending.release();
+            }
+          }
+        });
+      }
+    } finally {
+      pool.shutdown();
+      awaitTermination(pool);
+    }
+  }
+
+  /**
+   * Waits for the workers to finish the files they were given.
+   * 
+   * @param pool
+   *          The worker pool, already shut down.
+   */
+  private void awaitTermination(ExecutorService pool) {
+    try {
+      while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+        log.debug("waiting for workers to finish");
+      }
+    } catch (InterruptedException e) {
+      Reporter.INSTANCE.displayError("Interrupted while waiting for files to be processed");
+      pool.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Processes a single file and adds its statistics to the totals. Errors are
+   * reported rather than thrown so that one bad file does not stop the batch.
+   * 
+   * @param file
+   *          The file to process.
+   */
+  private void processFile(File file) {
+    FileProcessor fp = processorFor(file);
+    starting(file);
+    try {
+      fp.process();
+    } catch (RuntimeException e) {
+      Reporter.INSTANCE.displayError("Unexpected error while processing file " + file.getAbsolutePath(), e);
+      fp.abandon();
+    }
+  }
+
+  /**
+   * Creates the processor for a file in the batch and makes the file part of
+   * the batch, so that {@link #completed(File, Statistics)} is called once it
+   * is done.
+   * 
+   * @param file
+   *          The file to process.
+   * @return The processor for the file.
+   */
+  FileProcessor processorFor(File file) {
+    FileProcessor result = createProcessor(file);
+    result.setBatch(this);
+    return result;
+  }
+
+  /**
+   * Creates the processor for a file in the batch.
+   * 
+   * @param file
+   *          The file to process.
+   * @return The processor for the file.
+   */
+  FileProcessor createProcessor(File file) {
+    FileProcessor result = new FileProcessor(file, generateLog);
+    result.setCache(cache);
+    result.setEngine(engine);
+    result.setModel(model);
+    result.setConfusions(confusions);
+    result.setInPlace(inPlace);
+    result.setUndoLog(undoLog);
+    result.setUtf8(utf8);
+    result.setBackup(backup);
+    result.setCheckOnly(checkOnly);
+    return result;
+  }
+
+  /**
+   * Determines if a file needs processing. Files that do not are counted as
+   * skipped. Called on the thread that reads the files.
+   * 
+   * @param file
+   *          The file.
+   * @return True to process the file.
+   */
+  private boolean accept(File file) {
+    boolean result = true;
+    if (journal != null) {
+      if (journal.isCompleted(file)) {
+        log.debug("skipping completed file: " + file.getAbsolutePath());
+        result = false;
+      } else if (!checkOnly) {
+        journal.recover(file);
+      }
+    }
+    if (result && manifest != null && manifest.isUnchanged(file)) {
+      log.debug("skipping unchanged file: " + file.getAbsolutePath());
+      result = false;
+    }
+    if (!result) {
+      Statistics statistics = new Statistics();
+      statistics.addSkipped();
+      totals.add(statistics);
+    }
+    return result;
+  }
+
+  /**
+   * Records that a file is about to be backed up and corrected. May be called
+   * from any thread.
+   * 
+   * @param file
+   *          The file.
+   */
+  void starting(File file) {
+    if (journal != null && !checkOnly) {
+      journal.started(file);
+    }
+  }
+
+  /**
+   * Records a file that is done, whether or not it was processed successfully.
+   * May be called from any thread.
+   * 
+   * @param file
+   *          The file.
+   * @param statistics
+   *          The statistics for the file.
+   */
+  void completed(File file, Statistics statistics) {
+    totals.add(statistics);
+    if (statistics.getFailedCount() == 0) {
+      if (checkOnly) {
+        reportCheck(file, statistics);
+      } else {
+        if (manifest != null) {
+          manifest.record(file);
+        }
+        if (journal != null) {
+          journal.completed(file);
+        }
+      }
+    }
+    if (manifest != null) {
+      manifest.finished(file);
+    }
+  }
+
+  /**
+   * Reports the number of corrections a file that was only checked needs.
+   * Files that need none are only reported in verbose mode.
+   * 
+   * @param file
+   *          The file.
+   * @param statistics
+   *          The statistics for the file.
+   */
+  private void reportCheck(File file, Statistics statistics) {
+    long count = statistics.getCorrectedCount();
+    if (count > 0) {
+      Reporter.INSTANCE.displayMessage(file.getAbsolutePath() + ": " + count + " corrections needed");
+    } else {
+      Reporter.INSTANCE.displayVerboseMessage(file.getAbsolutePath() + ": no corrections needed");
+    }
+  }
+
+  /**
+   * Filters the files in a batch through {@link BatchProcessor#accept(File)}.
+   */
+  private class Accepted implements Iterable<File> {
+
+    /**
+     * The files to filter.
+     */
+    private Iterable<File> files;
+
+    /**
+     * Constructor.
+     * 
+     * @param files
+     *          The files to filter.
+     */
+    Accepted(Iterable<File> files) {
+      this.files = files;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Iterator<File> iterator() {
+      final Iterator<File> iterator = files.iterator();
+      return new Iterator<File>() {
+        private File next;
+
+        public boolean hasNext() {
+          while (next == null && iterator.hasNext()) {
+            File file = iterator.next();
+            if (accept(file)) {
+              next = file;
+            }
+          }
+          return next != null;
+        }
+
+        public File next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          File result = next;
+          next = null;
+          return result;
+        }
+
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+  }
+
+  /**
+   * Names the worker threads so that they can be told apart in the log.
+   */
+  private static class WorkerThreadFactory implements ThreadFactory {
+
+    /**
+     * The number of threads created so far.
+     */
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * {@inheritDoc}
+     */
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "worker-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
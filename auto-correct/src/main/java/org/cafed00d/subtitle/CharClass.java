@@ -0,0 +1,170 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+/**
+ * Classifies characters for the word rules. Characters up to 255 (ASCII and
+ * Latin-1, which covers nearly all subtitle text) are looked up in a table
+ * built once from the {@link Character} methods, so the answers are the same
+ * as calling those methods; other characters fall back to them.
+ */
+public final class CharClass {
+
+  /**
+   * Flag: a letter, see {@link Character#isLetter(char)}.
+   */
+  private static final int LETTER = 0x01;
+
+  /**
+   * Flag: an upper case letter, see {@link Character#isUpperCase(char)}.
+   */
+  private static final int UPPER = 0x02;
+
+  /**
+   * Flag: an English vowel.
+   */
+  private static final int VOWEL = 0x04;
+
+  /**
+   * Flag: an English consonant.
+   */
+  private static final int CONSONANT = 0x08;
+
+  /**
+   * Flag: a character that is part of a word, either a letter or an
+   * apostrophe.
+   */
+  private static final int WORD = 0x10;
+
+  /**
+   * Flag: a letter the OCR confuses, upper case I or lower case l.
+   */
+  private static final int CONFUSABLE = 0x20;
+
+  /**
+   * The English vowels.
+   */
+  private static final String VOWELS = "aeiouAEIOU";
+
+  /**
+   * The English consonants.
+   */
+  private static final String CONSONANTS = "bcdfghjklmnpqrstvwxyzBCDFGHJKLMNPQRSTVWXYZ";
+
+  /**
+   * The flags for each character up to 255.
+   */
+  private static final byte[] TABLE = new byte[256];
+
+  static {
+    for (char ch = 0; ch < TABLE.length; ch++) {
+      int flags = 0;
+      if (Character.isLetter(ch)) {
+        flags |= LETTER | WORD;
+      }
+      if (Character.isUpperCase(ch)) {
+        flags |= UPPER;
+      }
+      if (VOWELS.indexOf(ch) > -1) {
+        flags |= VOWEL;
+      }
+      if (CONSONANTS.indexOf(ch) > -1) {
+        flags |= CONSONANT;
+      }
+      if (ch == '\'') {
+        flags |= WORD;
+      }
+      if (ch == 'I' || ch == 'l') {
+        flags |= CONFUSABLE;
+      }
+      TABLE[ch] = (byte) flags;
+    }
+  }
+
+  /**
+   * Not instantiated.
+   */
+  private CharClass() {
+  }
+
+  /**
+   * Determines if the given character is a letter.
+   * 
+   * @param ch
+   *          The given character.
+   * @return True iff letter
+   */
+  public static boolean isLetter(char ch) {
+    return ch < 256 ? (TABLE[ch] & LETTER) != 0 : Character.isLetter(ch);
+  }
+
+  /**
+   * Determines if the given character is an upper case letter.
+   * 
+   * @param ch
+   *          The given character.
+   * @return True iff upper case
+   */
+  public static boolean isUpperCase(char ch) {
+    return ch < 256 ? (TABLE[ch] & UPPER) != 0 : Character.isUpperCase(ch);
+  }
+
+  /**
+   * Determines if the given character is part of a word: a letter or an
+   * apostrophe.
+   * 
+   * @param ch
+   *          The given character.
+   * @return True iff part of a word
+   */
+  public static boolean isWord(char ch) {
+    return ch < 256 ? (TABLE[ch] & WORD) != 0 : Character.isLetter(ch);
+  }
+
+  /**
+   * Determines if the given character is an English vowel.
+   * 
+   * @param ch
+   *          The given character.
+   * @return True iff vowel
+   */
+  public static boolean isVowel(char ch) {
+    return ch < 256 && (TABLE[ch] & VOWEL) != 0;
+  }
+
+  /**
+   * Determines if the given character is an English consonant.
+   * 
+   * @param ch
+   *          The given character.
+   * @return True iff consonant
+   */
+  public static boolean isConsonant(char ch) {
+    return ch < 256 && (TABLE[ch] & CONSONANT) != 0;
+  }
+
+  /**
+   * Determines if the given character is one the OCR confuses: upper case I or
+   * lower case l.
+   * 
+   * @param ch
+   *          The given character.
+   * @return True iff I or l
+   */
+  public static boolean isConfusable(char ch) {
+    return ch < 256 && (TABLE[ch] & CONFUSABLE) != 0;
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Only checks the file: it is read and corrected as usual, but nothing is
+ * written, so that the statistics tell how many corrections the file needs.
+ * A cached result is used but not stored.
+ * <p>
+ * In one go the file is read sequentially through a large buffer and the
+ * corrected text discarded as it is made.
+ */
+final class CheckStrategy extends OutputStrategy {
+
+  /**
+   * Logger for this class.
+   */
+  private static final Log log = LogFactory.getLog(CheckStrategy.class);
+
+  /**
+   * Discards the corrected bytes.
+   */
+  private static final OutputStream DISCARD = new OutputStream() {
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+    }
+  };
+
+  /**
+   * The contents read by {@link #read()}, or null if the file has a cached
+   * result.
+   */
+  private StagedContents contents;
+
+  /**
+   * Constructor.
+   * 
+   * @param processor
+   *          The processor of the file.
+   */
+  CheckStrategy(FileProcessor processor) {
+    super(processor);
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.OutputStrategy#start()
+   */
+  @Override
+  void start() {
+    log.info("checking file: " + processor.getFile().getAbsolutePath());
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.OutputStrategy#process()
+   */
+  @Override
+  void process() throws IOException {
+    if (processor.isUtf8()) {
+      byte[] bytes = DedupeCache.readBytes(processor.getFile());
+      processor.lookUp(bytes);
+      if (processor.getCached() == null) {
+        processor.correctBytes(ByteBuffer.wrap(bytes), DISCARD);
+      }
+    } else {
+      LineReader in = processor.openInput();
+      try {
+        String line = null;
+        int lineCount = 0;
+        while (processor.getCached() == null && (line = in.readLine()) != null) {
+          lineCount++;
+          processor.correctLine(line, lineCount);
+        }
+      } finally {
+        processor.getStatistics().addDecodeTime(in.getReadNanos());
+        in.close();
+      }
+    }
+    if (processor.getCached() != null) {
+      processor.useCached();
+    }
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.OutputStrategy#read()
+   */
+  @Override
+  void read() throws IOException {
+    contents = StagedContents.read(processor);
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.OutputStrategy#correct()
+   */
+  @Override
+  void correct() {
+    if (contents != null) {
+      contents.correct(processor);
+    }
+  }
+
+  /**
+   * Writes nothing, but takes the statistics of a cached result.
+   * 
+   * @see org.cafed00d.subtitle.OutputStrategy#write()
+   */
+  @Override
+  void write() {
+    if (contents == null) {
+      processor.useCached();
+    }
+    contents = null;
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.OutputStrategy#discard()
+   */
+  @Override
+  void discard() {
+    contents = null;
+  }
+
+  /**
+   * Counts the file as needing corrections if it does, rather than report
+   * it; it is reported by the {@link BatchProcessor}.
+   * 
+   * @see org.cafed00d.subtitle.OutputStrategy#finish()
+   */
+  @Override
+  void finish() {
+    if (processor.getStatistics().getCorrectedCount() > 0) {
+      processor.getStatistics().addNeedsCorrection();
+    }
+  }
+}
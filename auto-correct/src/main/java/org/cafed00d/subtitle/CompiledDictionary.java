@@ -0,0 +1,519 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A dictionary compiled from <code>autocorrect.properties</code> into a binary
+ * file that is memory-mapped and searched in place. Nothing is parsed or
+ * copied onto the heap when it is opened, so opening it takes the same time
+ * however many entries it has.
+ * <p>
+ * The file is compiled by running this class:
+ * 
+ * <pre>
+ * java org.cafed00d.subtitle.CompiledDictionary autocorrect.properties autocorrect.dict
+ * </pre>
+ * <p>
+ * or by building with the <code>compile-dictionary</code> profile, which adds
+ * <code>autocorrect.dict</code> to the distribution. See {@link Dictionary}
+ * for how it is found at run time.
+ * <p>
+ * The file holds, in this order, all numbers big-endian:
+ * <ol>
+ * <li>A header of {@link #HEADER_SIZE} bytes: the {@link #MAGIC} number, the
+ * number of entries, the number of hash slots, the offset of the trigger
+ * characters in the strings, the dictionary version as 32 ASCII characters,
+ * and the number of phrases.</li>
+ * <li>The hash index: one int per slot holding the entry number plus one, or
+ * 0 for an empty slot. Slots are probed linearly from the hash of the word,
+ * see {@link WordTable#hash(CharSequence, int, int)}.</li>
+ * <li>The entries, sorted by key: the hash of the key, and the offsets of the
+ * key and of the value in the strings, as three ints.</li>
+ * <li>The entry numbers of the phrases, see {@link PhraseMatcher#isPhrase(String)},
+ * as ints.</li>
+ * <li>The strings, as UTF-16 characters, each preceded by its length as one
+ * character.</li>
+ * </ol>
+ */
+public final class CompiledDictionary implements WordIndex {
+
+  /**
+   * Identifies the file format: "ACD" and the format version.
+   */
+  static final int MAGIC = 0x41434402;
+
+  /**
+   * The size of the header in bytes.
+   */
+  static final int HEADER_SIZE = 64;
+
+  /**
+   * The position of the number of entries in the header.
+   */
+  private static final int COUNT = 4;
+
+  /**
+   * The position of the number of slots in the header.
+   */
+  private static final int SLOTS = 8;
+
+  /**
+   * The position of the trigger characters' offset in the header.
+   */
+  private static final int TRIGGERS = 12;
+
+  /**
+   * The position of the dictionary version in the header.
+   */
+  private static final int VERSION = 16;
+
+  /**
+   * The length of the dictionary version.
+   */
+  private static final int VERSION_LENGTH = 32;
+
+  /**
+   * The position of the number of phrases in the header.
+   */
+  private static final int PHRASES = 48;
+
+  /**
+   * The size of an entry in bytes.
+   */
+  private static final int ENTRY_SIZE = 12;
+
+  /**
+   * The contents of the file. Only read with absolute positions, so that any
+   * number of threads can share it.
+   */
+  private final ByteBuffer buffer;
+
+  /**
+   * The number of entries.
+   */
+  private final int count;
+
+  /**
+   * The mask giving a slot from a hash.
+   */
+  private final int mask;
+
+  /**
+   * The position of the entries.
+   */
+  private final int entries;
+
+  /**
+   * The number of phrases.
+   */
+  private final int phraseCount;
+
+  /**
+   * The position of the phrases.
+   */
+  private final int phrases;
+
+  /**
+   * The position of the strings.
+   */
+  private final int strings;
+
+  /**
+   * Constructor.
+   * 
+   * @param buffer
+   *          The contents of a compiled dictionary file.
+   * @throws IOException
+   *           The contents are not a compiled dictionary.
+   */
+  CompiledDictionary(ByteBuffer buffer) throws IOException {
+    this.buffer = buffer;
+    if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+      throw new IOException("Not a compiled dictionary");
+    }
+    count = buffer.getInt(COUNT);
+    int slots = buffer.getInt(SLOTS);
+    mask = slots - 1;
+    phraseCount = buffer.getInt(PHRASES);
+    entries = HEADER_SIZE + slots * 4;
+    phrases = entries + count * ENTRY_SIZE;
+    strings = phrases + phraseCount * 4;
+  }
+
+  /**
+   * Opens a compiled dictionary. A file is memory-mapped; anything else, such
+   * as an entry in a JAR file, is read into memory.
+   * 
+   * @param url
+   *          The location of the compiled dictionary.
+   * @return The dictionary.
+   * @throws IOException
+   *           The dictionary could not be read.
+   */
+  public static CompiledDictionary open(URL url) throws IOException {
+    ByteBuffer buffer;
+    File file = toFile(url);
+    if (file != null) {
+      RandomAccessFile in = new RandomAccessFile(file, "r");
+      try {
+        buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+      } finally {
+        in.close();
+      }
+    } else {
+      InputStream in = url.openStream();
+      try {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] chunk = new byte[64 * 1024];
+        int length;
+        while ((length = in.read(chunk)) > 0) {
+          bytes.write(chunk, 0, length);
+        }
+        buffer = ByteBuffer.wrap(bytes.toByteArray());
+      } finally {
+        in.close();
+      }
+    }
+    return new CompiledDictionary(buffer);
+  }
+
+  /**
+   * Gets the file a URL refers to.
+   * 
+   * @param url
+   *          The URL.
+   * @return The file, or null if the URL does not refer to a file.
+   */
+  static File toFile(URL url) {
+    File result = null;
+    if (url != null && "file".equals(url.getProtocol())) {
+      try {
+        result = new File(url.toURI());
+      } catch (URISyntaxException e) {
+        result = new File(url.getPath());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Gets the version of the dictionary the file was compiled from, see
+   * {@link Dictionary#getVersion()}.
+   * 
+   * @return The version.
+   */
+  public String getVersion() {
+    char[] result = new char[VERSION_LENGTH];
+    for (int i = 0; i < VERSION_LENGTH; i++) {
+      result[i] = (char) buffer.get(VERSION + i);
+    }
+    return new String(result);
+  }
+
+  /**
+   * Gets the characters that trigger the {@link LineFilter}, see
+   * {@link LineFilter#triggersFor(Iterable)}.
+   * 
+   * @return The trigger characters.
+   */
+  public String getTriggers() {
+    return getString(buffer.getInt(TRIGGERS));
+  }
+
+  /**
+   * Gets the phrases in the dictionary, without looking at the other entries.
+   * 
+   * @return The phrases and their corrections.
+   */
+  public SortedMap<String, String> getPhrases() {
+    SortedMap<String, String> result = new TreeMap<String, String>();
+    for (int i = 0; i < phraseCount; i++) {
+      int entry = buffer.getInt(phrases + i * 4);
+      result.put(getKey(entry), getValue(entry));
+    }
+    return result;
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.WordIndex#find(java.lang.CharSequence, int, int)
+   */
+  public int find(CharSequence text, int first, int after) {
+    int result = -1;
+    int hash = WordTable.hash(text, first, after);
+    int slot = hash & mask;
+    int entry;
+    while (result < 0 && (entry = buffer.getInt(HEADER_SIZE + slot * 4) - 1) >= 0) {
+      int position = entries + entry * ENTRY_SIZE;
+      if (buffer.getInt(position) == hash && matches(buffer.getInt(position + 4), text, first, after)) {
+        result = entry;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return result;
+  }
+
+  /**
+   * Compares a string with a word.
+   * 
+   * @param offset
+   *          The offset of the string.
+   * @param text
+   *          The text containing the word.
+   * @param first
+   *          The index of the first letter of the word.
+   * @param after
+   *          The index after the last letter of the word.
+   * @return True iff the string is the word.
+   */
+  private boolean matches(int offset, CharSequence text, int first, int after) {
+    int position = strings + offset * 2;
+    boolean result = buffer.getChar(position) == after - first;
+    for (int i = first; result && i < after; i++) {
+      position += 2;
+      result = buffer.getChar(position) == text.charAt(i);
+    }
+    return result;
+  }
+
+  /**
+   * Reads a string.
+   * 
+   * @param offset
+   *          The offset of the string.
+   * @return The string.
+   */
+  private String getString(int offset) {
+    int position = strings + offset * 2;
+    char[] result = new char[buffer.getChar(position)];
+    for (int i = 0; i < result.length; i++) {
+      position += 2;
+      result[i] = buffer.getChar(position);
+    }
+    return new String(result);
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.WordIndex#getKey(int)
+   */
+  public String getKey(int entry) {
+    return getString(buffer.getInt(entries + entry * ENTRY_SIZE + 4));
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.WordIndex#getValue(int)
+   */
+  public String getValue(int entry) {
+    return getString(buffer.getInt(entries + entry * ENTRY_SIZE + 8));
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.WordIndex#getValueLength(int)
+   */
+  public int getValueLength(int entry) {
+    return buffer.getChar(strings + buffer.getInt(entries + entry * ENTRY_SIZE + 8) * 2);
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.WordIndex#size()
+   */
+  public int size() {
+    return count;
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.WordIndex#getEntries()
+   */
+  public SortedMap<String, String> getEntries() {
+    SortedMap<String, String> result = new TreeMap<String, String>();
+    for (int entry = 0; entry < count; entry++) {
+      result.put(getKey(entry), getValue(entry));
+    }
+    return result;
+  }
+
+  /**
+   * Reads the entries of a properties file, sorted by key.
+   * 
+   * @param in
+   *          The properties file.
+   * @return The entries.
+   * @throws IOException
+   *           The file could not be read.
+   */
+  public static SortedMap<String, String> readProperties(InputStream in) throws IOException {
+    Properties properties = new Properties();
+    try {
+      properties.load(in);
+    } finally {
+      in.close();
+    }
+    SortedMap<String, String> result = new TreeMap<String, String>();
+    for (String key : properties.stringPropertyNames()) {
+      result.put(key, properties.getProperty(key));
+    }
+    return result;
+  }
+
+  /**
+   * Writes a compiled dictionary. It is written to a temporary file in the
+   * same directory that is then moved into place, so that a process that has
+   * the old file mapped keeps reading the old contents, and one that opens
+   * the file never sees it half written.
+   * 
+   * @param entries
+   *          The entries, sorted by key.
+   * @param file
+   *          The file to write.
+   * @throws IOException
+   *           The file could not be written.
+   */
+  public static void write(SortedMap<String, String> entries, File file) throws IOException {
+    int count = entries.size();
+    int slots = 16;
+    while (slots < count * 2) {
+      slots <<= 1;
+    }
+
+    /*
+     * Lay out the strings, and fill in the hash index.
+     */
+    StringBuilder strings = new StringBuilder();
+    int[] index = new int[slots];
+    int[] hashes = new int[count];
+    int[] keyOffsets = new int[count];
+    int[] valueOffsets = new int[count];
+    ArrayList<String> misspellings = new ArrayList<String>();
+    ArrayList<Integer> phrases = new ArrayList<Integer>();
+    int entry = 0;
+    for (Map.Entry<String, String> e : entries.entrySet()) {
+      String key = e.getKey();
+      hashes[entry] = WordTable.hash(key, 0, key.length());
+      keyOffsets[entry] = addString(strings, key);
+      valueOffsets[entry] = addString(strings, e.getValue());
+      if (!e.getValue().isEmpty()) {
+        misspellings.add(key);
+      }
+      if (PhraseMatcher.isPhrase(key)) {
+        phrases.add(entry);
+      }
+      int slot = hashes[entry] & (slots - 1);
+      while (index[slot] != 0) {
+        slot = (slot + 1) & (slots - 1);
+      }
+      index[slot] = entry + 1;
+      entry++;
+    }
+    int triggers = addString(strings, LineFilter.triggersFor(misspellings));
+
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Unable to create " + parent);
+    }
+    File tempFile = File.createTempFile(file.getName(), ".tmp", parent);
+    boolean written = false;
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(count);
+      out.writeInt(slots);
+      out.writeInt(triggers);
+      out.writeBytes(ContentHash.of(entries));
+      out.writeInt(phrases.size());
+      for (int i = PHRASES + 4; i < HEADER_SIZE; i++) {
+        out.writeByte(0);
+      }
+      for (int slot : index) {
+        out.writeInt(slot);
+      }
+      for (int i = 0; i < count; i++) {
+        out.writeInt(hashes[i]);
+        out.writeInt(keyOffsets[i]);
+        out.writeInt(valueOffsets[i]);
+      }
+      for (int phrase : phrases) {
+        out.writeInt(phrase);
+      }
+      out.writeChars(strings.toString());
+      out.close();
+      Backup.replace(tempFile, file);
+      written = true;
+    } finally {
+      out.close();
+      if (!written) {
+        tempFile.delete();
+      }
+    }
+  }
+
+  /**
+   * Adds a string to the strings.
+   * 
+   * @param strings
+   *          The strings.
+   * @param string
+   *          The string to add.
+   * @return The offset of the string.
+   */
+  private static int addString(StringBuilder strings, String string) {
+    if (string.length() > Character.MAX_VALUE) {
+      throw new IllegalArgumentException("Entry too long: " + string.substring(0, 40) + "...");
+    }
+    int result = strings.length();
+    strings.append((char) string.length());
+    strings.append(string);
+    return result;
+  }
+
+  /**
+   * Compiles a properties file.
+   * 
+   * @param args
+   *          The properties file and the compiled dictionary file to write.
+   */
+  public static void main(String[] args) {
+    if (args.length != 2) {
+      System.err.println("Usage: CompiledDictionary autocorrect.properties autocorrect.dict");
+      System.exit(1);
+    }
+    try {
+      SortedMap<String, String> entries = readProperties(new FileInputStream(args[0]));
+      write(entries, new File(args[1]));
+      System.out.println("Compiled " + entries.size() + " entries into " + args[1]);
+    } catch (IOException e) {
+      System.err.println("ERROR: " + e.getLocalizedMessage());
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,690 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Corrects the OCR confusions the word rules cannot: <code>rn</code> read as
+ * <code>m</code> (and the reverse), <code>0</code> as <code>O</code> and
+ * <code>1</code> or <code>|</code> as <code>l</code>, using a list of known
+ * words.
+ * <p>
+ * Generating every confusion variant of each token and looking each one up
+ * would cost up to 2<sup>n</sup> lookups per token. Instead each known word
+ * is indexed, when the list is loaded, under its confusion key: the word with
+ * every confusable spelling replaced by one canonical spelling, see
+ * {@link #keyOf(CharSequence, int, int)}. All the variants of a word share
+ * its key, and a known word is found under its own key too, so a token
+ * usually costs a single lookup that both finds that it is not a known word
+ * and finds the known words it could be a misreading of. The keys are kept in
+ * an open addressing table, like a {@link WordTable}, and looked up directly
+ * on the token's range of the line, so that no string is made for a token
+ * unless it is corrected. A token is only replaced when exactly one known
+ * word has its key, or when a {@link FrequencyModel} picks the most frequent
+ * of several.
+ * <p>
+ * Only tokens that hold a confusion are looked up at all, see
+ * {@link #isSuspicious(CharSequence, int, int)}.
+ * <p>
+ * The word list is a UTF-8 text file with one word per line; anything after
+ * the word on the same line, such as a count, and lines starting with
+ * <code>#</code> are ignored. Case does not matter.
+ */
+public final class ConfusionIndex {
+
+  /**
+   * The encoding of word lists.
+   */
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * Flag for a token holding a character always taken for a confusion.
+   */
+  private static final int CONFUSED = 1;
+
+  /**
+   * Flag for a token holding an upper case I after its first character.
+   */
+  private static final int UPPER_I = 2;
+
+  /**
+   * Flag for a token holding a lower case l.
+   */
+  private static final int LOWER_L = 4;
+
+  /**
+   * Flag for a token holding an upper case letter after its first character.
+   */
+  private static final int UPPER = 8;
+
+  /**
+   * Flag for a token holding a lower case letter.
+   */
+  private static final int LOWER = 16;
+
+  /**
+   * The indexes already loaded, by the absolute path of their word lists.
+   */
+  private static final ConcurrentMap<File, ConfusionIndex> indexes = new ConcurrentHashMap<File, ConfusionIndex>();
+
+  /**
+   * The file the word list was read from.
+   */
+  private final File file;
+
+  /**
+   * The hash of the word list.
+   */
+  private final String version;
+
+  /**
+   * The confusion keys, by slot. Null for an empty slot.
+   */
+  private final String[] keys;
+
+  /**
+   * The known words, in lower case, with each key, by slot.
+   */
+  private final String[][] candidates;
+
+  /**
+   * The hash of each key, by slot.
+   */
+  private final int[] hashes;
+
+  /**
+   * The mask giving a slot from a hash.
+   */
+  private final int mask;
+
+  /**
+   * The number of known words.
+   */
+  private final int size;
+
+  /**
+   * Constructor.
+   * 
+   * @param file
+   *          The file the word list was read from.
+   * @param version
+   *          The hash of the word list.
+   * @param words
+   *          The known words.
+   */
+  ConfusionIndex(File file, String version, Iterable<String> words) {
+    this.file = file;
+    this.version = version;
+    Set<String> known = new HashSet<String>();
+    Map<String, String[]> byKey = new HashMap<String, String[]>();
+    for (String word : words) {
+      word = word.toLowerCase();
+      if (known.add(word)) {
+        String key = keyOf(word, 0, word.length());
+        String[] existing = byKey.get(key);
+        if (existing == null) {
+          byKey.put(key, new String[] { word });
+        } else {
+          String[] both = new String[existing.length + 1];
+          System.arraycopy(existing, 0, both, 0, existing.length);
+          both[existing.length] = word;
+          byKey.put(key, both);
+        }
+      }
+    }
+    int capacity = 16;
+    while (capacity < byKey.size() * 2) {
+      capacity <<= 1;
+    }
+    keys = new String[capacity];
+    candidates = new String[capacity][];
+    hashes = new int[capacity];
+    mask = capacity - 1;
+    size = known.size();
+    for (Map.Entry<String, String[]> entry : byKey.entrySet()) {
+      String key = entry.getKey();
+      int hash = WordTable.hash(key, 0, key.length());
+      int slot = hash & mask;
+      while (keys[slot] != null) {
+        slot = (slot + 1) & mask;
+      }
+      keys[slot] = key;
+      candidates[slot] = entry.getValue();
+      hashes[slot] = hash;
+    }
+  }
+
+  /**
+   * Opens an index, or gets the one already opened from the same word list.
+   * 
+   * @param file
+   *          The word list.
+   * @return The index.
+   * @throws IOException
+   *           The word list could not be read.
+   */
+  public static ConfusionIndex open(File file) throws IOException {
+    file = file.getAbsoluteFile();
+    ConfusionIndex result = indexes.get(file);
+    if (result == null) {
+      result = new ConfusionIndex(file, ContentHash.of(file), readWords(file));
+      ConfusionIndex existing = indexes.putIfAbsent(file, result);
+      if (existing != null) {
+        result = existing;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Reads a word list, in UTF-8.
+   * 
+   * @param file
+   *          The word list.
+   * @return The words.
+   * @throws IOException
+   *           The file could not be read.
+   */
+  private static Set<String> readWords(File file) throws IOException {
+    Set<String> result = new HashSet<String>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        line = line.trim();
+        if (line.length() > 0 && line.charAt(0) != '#') {
+          result.add(line.split("\\s", 2)[0]);
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return result;
+  }
+
+  /**
+   * Gets the file the word list was read from.
+   * 
+   * @return The absolute path of the file.
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Gets the version of the index, which changes whenever the word list does.
+   * 
+   * @return The hash of the word list.
+   */
+  public String getVersion() {
+    return version;
+  }
+
+  /**
+   * Gets the number of known words.
+   * 
+   * @return The number of words.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Computes the confusion key of a word: in lower case, with <code>0</code>
+   * replaced by <code>o</code>, <code>1</code>, <code>|</code> and
+   * <code>I</code> by <code>l</code>, and <code>rn</code> by <code>m</code>.
+   * The upper case I is replaced before the word is put in lower case, so a
+   * lower case i is not confused with l.
+   * 
+   * @param text
+   *          The text containing the word.
+   * @param first
+   *          The index of the first character of the word.
+   * @param after
+   *          The index after the last character of the word.
+   * @return The key.
+   */
+  static String keyOf(CharSequence text, int first, int after) {
+    StringBuilder result = new StringBuilder(after - first);
+    for (int i = first; i < after; i++) {
+      char ch = canonical(text.charAt(i));
+      if (ch == 'r' && i + 1 < after && canonical(text.charAt(i + 1)) == 'n') {
+        ch = 'm';
+        i++;
+      }
+      result.append(ch);
+    }
+    return result.toString();
+  }
+
+  /**
+   * Finds the slot of the key of a word, without making the key.
+   * 
+   * @param text
+   *          The text containing the word.
+   * @param first
+   *          The index of the first character of the word.
+   * @param after
+   *          The index after the last character of the word.
+   * @param lower
+   *          True to put the word in lower case before taking its key, so that
+   *          an upper case I is not confused with l.
+   * @return The slot, or -1 if no known word has the key.
+   */
+  private int find(CharSequence text, int first, int after, boolean lower) {
+    int hash = 0;
+    for (int i = first; i < after; i++) {
+      char ch = canonical(text, i, after, lower);
+      if (ch == 'm' && Character.toLowerCase(text.charAt(i)) == 'r') {
+        i++;
+      }
+      hash = 31 * hash + ch;
+    }
+    hash ^= hash >>> 16;
+    int slot = hash & mask;
+    while (keys[slot] != null && (hashes[slot] != hash || !matchesKey(keys[slot], text, first, after, lower))) {
+      slot = (slot + 1) & mask;
+    }
+    return keys[slot] == null ? -1 : slot;
+  }
+
+  /**
+   * Compares a key with the key of a word.
+   * 
+   * @param key
+   *          The key.
+   * @param text
+   *          The text containing the word.
+   * @param first
+   *          The index of the first character of the word.
+   * @param after
+   *          The index after the last character of the word.
+   * @param lower
+   *          True to put the word in lower case before taking its key.
+   * @return True iff the word has the key.
+   */
+  private static boolean matchesKey(String key, CharSequence text, int first, int after, boolean lower) {
+    int k = 0;
+    boolean result = true;
+    for (int i = first; result && i < after; i++, k++) {
+      char ch = canonical(text, i, after, lower);
+      if (ch == 'm' && Character.toLowerCase(text.charAt(i)) == 'r') {
+        i++;
+      }
+      result = k < key.length() && key.charAt(k) == ch;
+    }
+    return result && k == key.length();
+  }
+
+  /**
+   * Gets the canonical spelling of the character at an index of a word,
+   * reading <code>rn</code> as <code>m</code>, see
+   * {@link #keyOf(CharSequence, int, int)}.
+   * 
+   * @param text
+   *          The text containing the word.
+   * @param i
+   *          The index of the character.
+   * @param after
+   *          The index after the last character of the word.
+   * @param lower
+   *          True to put the word in lower case first.
+   * @return The canonical character; <code>m</code> for an <code>rn</code>
+   *         pair, whose <code>n</code> the caller must then skip.
+   */
+  private static char canonical(CharSequence text, int i, int after, boolean lower) {
+    char ch = text.charAt(i);
+    ch = canonical(lower ? Character.toLowerCase(ch) : ch);
+    if (ch == 'r' && i + 1 < after) {
+      char next = text.charAt(i + 1);
+      if (canonical(lower ? Character.toLowerCase(next) : next) == 'n') {
+        ch = 'm';
+      }
+    }
+    return ch;
+  }
+
+  /**
+   * Gets the canonical spelling of a character, see
+   * {@link #keyOf(CharSequence, int, int)}.
+   * 
+   * @param ch
+   *          The character.
+   * @return The canonical character.
+   */
+  private static char canonical(char ch) {
+    char result;
+    switch (ch) {
+    case '0':
+      result = 'o';
+      break;
+    case '1':
+    case '|':
+    case 'I':
+      result = 'l';
+      break;
+    default:
+      result = Character.toLowerCase(ch);
+    }
+    return result;
+  }
+
+  /**
+   * Determines if a character can be part of a token: a letter, an
+   * apostrophe, or a character a letter is misread as.
+   * 
+   * @param ch
+   *          The character.
+   * @return True if it can be part of a token.
+   */
+  private static boolean isToken(char ch) {
+    return CharClass.isWord(ch) || ch == '0' || ch == '1' || ch == '|';
+  }
+
+  /**
+   * Finds the end of the token starting at a character.
+   * 
+   * @param line
+   *          The line.
+   * @param first
+   *          The index of the first character of the token.
+   * @return The index after the last character of the token, or
+   *         <code>first</code> if no token starts there.
+   */
+  static int tokenEnd(CharSequence line, int first) {
+    int result = first;
+    int length = line.length();
+    while (result < length && isToken(line.charAt(result))) {
+      result++;
+    }
+    return result;
+  }
+
+  /**
+   * Determines if a token could be a misreading: if it holds a
+   * <code>0</code>, <code>1</code> or <code>|</code>, an <code>rn</code> or
+   * an <code>m</code>, which are read for each other, an upper case I after
+   * the first letter of a token with lower case letters, or a lower case l in
+   * a token with upper case letters after the first. An I or l in a token of
+   * its own case, or capitalized, is taken as it is, so most words are never
+   * looked up.
+   * 
+   * @param line
+   *          The line containing the token.
+   * @param first
+   *          The index of the first character of the token.
+   * @param after
+   *          The index after the last character of the token.
+   * @return True if the token could be a misreading.
+   */
+  static boolean isSuspicious(CharSequence line, int first, int after) {
+    int flags = 0;
+    for (int i = first; i < after; i++) {
+      flags |= flags(line.charAt(i), i + 1 < after ? line.charAt(i + 1) : ' ', i == first);
+    }
+    return isSuspicious(flags);
+  }
+
+  /**
+   * Determines if a line of UTF-8 bytes holds a token that could be a
+   * misreading, see {@link #isSuspicious(CharSequence, int, int)}, so that a
+   * line that does not need not be decoded. The bytes of a multibyte
+   * character are taken as part of the token around them, which at worst
+   * finds a line suspicious that is not.
+   * 
+   * @param line
+   *          The buffer containing the line.
+   * @param first
+   *          The index of the first byte of the line.
+   * @param after
+   *          The index after the last byte of the line.
+   * @return True if a token could be a misreading.
+   */
+  static boolean isSuspicious(ByteBuffer line, int first, int after) {
+    boolean result = false;
+    int flags = 0;
+    int start = first;
+    for (int i = first; !result && i < after; i++) {
+      char ch = (char) (line.get(i) & 0xFF);
+      if (ch < 0x80 && !isToken(ch)) {
+        result = isSuspicious(flags);
+        flags = 0;
+        start = i + 1;
+      } else if (ch < 0x80) {
+        flags |= flags(ch, i + 1 < after ? (char) (line.get(i + 1) & 0xFF) : ' ', i == start);
+      }
+    }
+    return result || isSuspicious(flags);
+  }
+
+  /**
+   * Gets the flags a character of a token adds to those of the token.
+   * 
+   * @param ch
+   *          The character.
+   * @param next
+   *          The character after it.
+   * @param leading
+   *          True for the first character of the token, whose case does not
+   *          count.
+   * @return The flags.
+   */
+  private static int flags(char ch, char next, boolean leading) {
+    int result;
+    if (ch == '0' || ch == '1' || ch == '|' || ch == 'm' || ch == 'r' && next == 'n') {
+      result = CONFUSED;
+    } else if (leading && CharClass.isUpperCase(ch)) {
+      result = 0;
+    } else if (ch == 'I') {
+      result = UPPER_I | UPPER;
+    } else if (ch == 'l') {
+      result = LOWER_L | LOWER;
+    } else if (CharClass.isUpperCase(ch)) {
+      result = UPPER;
+    } else if (CharClass.isLetter(ch)) {
+      result = LOWER;
+    } else {
+      result = 0;
+    }
+    return result;
+  }
+
+  /**
+   * Determines if the flags of a token make it suspicious.
+   * 
+   * @param flags
+   *          The flags of the characters of the token.
+   * @return True if the token could be a misreading.
+   */
+  private static boolean isSuspicious(int flags) {
+    return (flags & CONFUSED) != 0 || (flags & UPPER_I) != 0 && (flags & LOWER) != 0
+        || (flags & LOWER_L) != 0 && (flags & UPPER) != 0;
+  }
+
+  /**
+   * Finds the known word that a token is a misreading of.
+   * 
+   * @param token
+   *          The token.
+   * @param model
+   *          The model that picks between several known words, or null to
+   *          leave such tokens alone.
+   * @return The known word, in the case of the token, or null if the token
+   *         is a known word, is not a misreading of one, or could be a
+   *         misreading of several.
+   */
+  public String correct(String token, FrequencyModel model) {
+    return correct(token, 0, token.length(), model);
+  }
+
+  /**
+   * Finds the known word that a token within a line is a misreading of,
+   * without making a string for the token unless it is one.
+   * 
+   * @param line
+   *          The line containing the token.
+   * @param first
+   *          The index of the first character of the token.
+   * @param after
+   *          The index after the last character of the token.
+   * @param model
+   *          The model that picks between several known words, or null to
+   *          leave such tokens alone.
+   * @return The known word, in the case of the token, or null if the token
+   *         is a known word, is not a misreading of one, or could be a
+   *         misreading of several.
+   */
+  public String correct(CharSequence line, int first, int after, FrequencyModel model) {
+    String result = null;
+    int slot = hasLetter(line, first, after) ? find(line, first, after, false) : -1;
+    if (slot >= 0 && !isKnown(line, first, after, slot)) {
+      String[] found = candidates[slot];
+      String best = null;
+      if (found != null && found.length == 1) {
+        best = found[0];
+      } else if (found != null && model != null) {
+        int bestFrequency = 0;
+        for (String candidate : found) {
+          int frequency = model.frequency(candidate, 0, candidate.length());
+          if (frequency > bestFrequency) {
+            best = candidate;
+            bestFrequency = frequency;
+          }
+        }
+      }
+      if (best != null) {
+        result = matchCase(best, line.subSequence(first, after).toString());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Determines if a token is a known word. A known word is found with the
+   * other words of its key, which is the token's key unless the token has an
+   * upper case I, the only character whose key changes with its case.
+   * 
+   * @param line
+   *          The line containing the token.
+   * @param first
+   *          The index of the first character of the token.
+   * @param after
+   *          The index after the last character of the token.
+   * @param slot
+   *          The slot of the token's key.
+   * @return True if the token, in lower case, is a known word.
+   */
+  private boolean isKnown(CharSequence line, int first, int after, int slot) {
+    for (int i = first; i < after; i++) {
+      if (line.charAt(i) == 'I') {
+        slot = find(line, first, after, true);
+        break;
+      }
+    }
+    boolean result = false;
+    if (slot >= 0) {
+      for (String word : candidates[slot]) {
+        result |= equalsLowerCase(word, line, first, after);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Compares a word in lower case with a token.
+   * 
+   * @param word
+   *          The word, in lower case.
+   * @param line
+   *          The line containing the token.
+   * @param first
+   *          The index of the first character of the token.
+   * @param after
+   *          The index after the last character of the token.
+   * @return True if the token in lower case is the word.
+   */
+  private static boolean equalsLowerCase(String word, CharSequence line, int first, int after) {
+    boolean result = word.length() == after - first;
+    for (int i = 0; result && i < word.length(); i++) {
+      result = word.charAt(i) == Character.toLowerCase(line.charAt(first + i));
+    }
+    return result;
+  }
+
+  /**
+   * Determines if a token contains a letter, so that numbers are left alone.
+   * 
+   * @param line
+   *          The line containing the token.
+   * @param first
+   *          The index of the first character of the token.
+   * @param after
+   *          The index after the last character of the token.
+   * @return True if it contains a letter.
+   */
+  private static boolean hasLetter(CharSequence line, int first, int after) {
+    boolean result = false;
+    for (int i = first; !result && i < after; i++) {
+      result = CharClass.isLetter(line.charAt(i));
+    }
+    return result;
+  }
+
+  /**
+   * Puts a known word in the case of the token it replaces: upper case if all
+   * of the letters of a token longer than one character are, capitalized if its first character is,
+   * otherwise lower case.
+   * 
+   * @param word
+   *          The known word, in lower case.
+   * @param token
+   *          The token.
+   * @return The word in the token's case.
+   */
+  static String matchCase(String word, String token) {
+    int letters = 0;
+    int upper = 0;
+    for (int i = 0; i < token.length(); i++) {
+      char ch = token.charAt(i);
+      if (CharClass.isLetter(ch)) {
+        letters++;
+        if (CharClass.isUpperCase(ch)) {
+          upper++;
+        }
+      }
+    }
+    String result = word;
+    if (token.length() > 1 && upper == letters) {
+      result = word.toUpperCase();
+    } else if (CharClass.isUpperCase(token.charAt(0)) && word.length() > 0) {
+      result = Character.toUpperCase(word.charAt(0)) + word.substring(1);
+    }
+    return result;
+  }
+}
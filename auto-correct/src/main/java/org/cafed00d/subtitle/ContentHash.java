@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Computes the hashes used to tell whether the contents of a file, or of the
+ * dictionary, have changed. The hash is an MD5 digest written as 32
+ * hexadecimal digits.
+ */
+public final class ContentHash {
+
+  /**
+   * The digest algorithm.
+   */
+  private static final String ALGORITHM = "MD5";
+
+  /**
+   * The size of the buffer used to read files.
+   */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * The hexadecimal digits.
+   */
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  /**
+   * Not instantiated.
+   */
+  private ContentHash() {
+  }
+
+  /**
+   * Creates a new digest.
+   * 
+   * @return The digest.
+   */
+  public static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(ALGORITHM + " is not supported by this JVM", e);
+    }
+  }
+
+  /**
+   * Hashes the contents of a file.
+   * 
+   * @param file
+   *          The file to hash.
+   * @return The hash.
+   * @throws IOException
+   *           The file could not be read.
+   */
+  public static String of(File file) throws IOException {
+    MessageDigest digest = newDigest();
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int count;
+      while ((count = in.read(buffer)) > 0) {
+        digest.update(buffer, 0, count);
+      }
+    } finally {
+      in.close();
+    }
+    return toHex(digest.digest());
+  }
+
+  /**
+   * Hashes the entries of a dictionary, in key order so that the layout of the
+   * file they came from does not matter.
+   * 
+   * @param entries
+   *          The entries.
+   * @return The hash.
+   */
+  public static String of(SortedMap<String, String> entries) {
+    MessageDigest digest = newDigest();
+    try {
+      for (Map.Entry<String, String> entry : entries.entrySet()) {
+        digest.update((entry.getKey() + "=" + entry.getValue() + "\n").getBytes("UTF-8"));
+      }
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+    return toHex(digest.digest());
+  }
+
+  /**
+   * Writes a digest as hexadecimal digits.
+   * 
+   * @param digest
+   *          The digest.
+   * @return The hexadecimal text.
+   */
+  public static String toHex(byte[] digest) {
+    char[] result = new char[digest.length * 2];
+    for (int i = 0; i < digest.length; i++) {
+      result[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+      result[i * 2 + 1] = HEX[digest[i] & 0xf];
+    }
+    return new String(result);
+  }
+}
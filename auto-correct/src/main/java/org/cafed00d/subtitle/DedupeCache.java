@@ -0,0 +1,340 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Remembers the result of correcting a file by the hash of its contents, so
+ * that a byte-identical copy of a file already corrected is not corrected
+ * again. Instead the stored corrected bytes are written out, and the stored
+ * corrections and statistics are reused.
+ * <p>
+ * Results are kept in memory, most recently used first, up to
+ * {@link #MEMORY_LIMIT} bytes of corrected content. If a directory is given
+ * they are also stored there, which lets later runs reuse them: the corrected
+ * file as <code>&lt;key&gt;.srt</code> and its corrections as
+ * <code>&lt;key&gt;.log</code> in the same format as the corrections log,
+ * preceded by a comment line holding the statistics.
+ * <p>
+ * The key combines the content hash with the {@link Dictionary} version, so
+ * results made with a different dictionary are not reused.
+ */
+public class DedupeCache {
+
+  /**
+   * Logger for this class.
+   */
+  private static final Log log = LogFactory.getLog(DedupeCache.class);
+
+  /**
+   * The number of bytes of corrected content kept in memory.
+   */
+  static final long MEMORY_LIMIT = 64L * 1024 * 1024;
+
+  /**
+   * The directory the results are stored in, or null to keep them only in
+   * memory.
+   */
+  private File directory;
+
+  /**
+   * The results kept in memory, in least recently used order.
+   */
+  private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  /**
+   * The number of bytes of corrected content in {@link #entries}.
+   */
+  private long memoryUsed;
+
+  /**
+   * Constructor.
+   * 
+   * @param directory
+   *          The directory to store the results in, or null to keep them only
+   *          in memory. Created if it does not exist.
+   */
+  public DedupeCache(File directory) {
+    this.directory = directory;
+    if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+      Reporter.INSTANCE.displayError("Unable to create cache directory " + directory.getAbsolutePath());
+      this.directory = null;
+    }
+  }
+
+  /**
+   * Gets the key for a file's contents.
+   * 
+   * @param contentHash
+   *          The hash of the file's contents.
+   * @param dictionaryVersion
+   *          The version of the dictionary the file is corrected with.
+   * @return The key.
+   */
+  public String keyFor(String contentHash, String dictionaryVersion) {
+    return contentHash + "-" + dictionaryVersion.substring(0, 8);
+  }
+
+  /**
+   * Gets the stored result for a key.
+   * 
+   * @param key
+   *          The key, see {@link #keyFor(String, String)}.
+   * @return The result, or null if none is stored.
+   */
+  public Entry get(String key) {
+    Entry result;
+    synchronized (this) {
+      result = entries.get(key);
+    }
+    if (result == null && directory != null) {
+      result = load(key);
+      if (result != null) {
+        remember(key, result);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Stores the result for a key.
+   * 
+   * @param key
+   *          The key, see {@link #keyFor(String, String)}.
+   * @param entry
+   *          The result.
+   */
+  public void put(String key, Entry entry) {
+    remember(key, entry);
+    if (directory != null) {
+      try {
+        store(key, entry);
+      } catch (IOException e) {
+        Reporter.INSTANCE.displayError("Unable to store " + key + " in the cache", e);
+      }
+    }
+  }
+
+  /**
+   * Keeps a result in memory, dropping the least recently used results once
+   * the memory limit is reached.
+   * 
+   * @param key
+   *          The key.
+   * @param entry
+   *          The result.
+   */
+  private synchronized void remember(String key, Entry entry) {
+    Entry old = entries.put(key, entry);
+    if (old != null) {
+      memoryUsed -= old.content.length;
+    }
+    memoryUsed += entry.content.length;
+    Iterator<Entry> iterator = entries.values().iterator();
+    while (memoryUsed > MEMORY_LIMIT && iterator.hasNext()) {
+      memoryUsed -= iterator.next().content.length;
+      iterator.remove();
+    }
+  }
+
+  /**
+   * Reads a result from the cache directory.
+   * 
+   * @param key
+   *          The key.
+   * @return The result, or null if it is not stored or cannot be read.
+   */
+  private Entry load(String key) {
+    Entry result = null;
+    File content = new File(directory, key + ".srt");
+    File corrections = new File(directory, key + ".log");
+    if (content.isFile() && corrections.isFile()) {
+      try {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(corrections), "UTF-8"));
+        try {
+          String[] counts = in.readLine().substring(1).trim().split(" ");
+          result = new Entry(readBytes(content), new Statistics(Long.parseLong(counts[0]), Long.parseLong(counts[1]),
+              Long.parseLong(counts[2])), new TreeMap<String, String>());
+          String line;
+          while ((line = in.readLine()) != null) {
+            int inx = line.indexOf('=');
+            if (inx > 0) {
+              result.corrections.put(line.substring(0, inx), line.substring(inx + 1));
+            }
+          }
+        } finally {
+          in.close();
+        }
+      } catch (RuntimeException e) {
+        log.warn("ignoring damaged cache entry " + key, e);
+        result = null;
+      } catch (IOException e) {
+        log.warn("unable to read cache entry " + key, e);
+        result = null;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Writes a result to the cache directory. Each file is written under a
+   * temporary name and renamed, so that a reader never sees half a file.
+   * 
+   * @param key
+   *          The key.
+   * @param entry
+   *          The result.
+   * @throws IOException
+   *           The result could not be written.
+   */
+  private void store(String key, Entry entry) throws IOException {
+    File corrections = new File(directory, key + ".log");
+    if (corrections.exists()) {
+      return;
+    }
+    File content = new File(directory, key + ".srt");
+    File temp = new File(directory, key + ".srt." + Thread.currentThread().getId());
+    OutputStream out = new FileOutputStream(temp);
+    try {
+      out.write(entry.content);
+    } finally {
+      out.close();
+    }
+    if (!temp.renameTo(content)) {
+      temp.delete();
+    }
+    temp = new File(directory, key + ".log." + Thread.currentThread().getId());
+    PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+    try {
+      writer.print("# " + entry.statistics.getLineCount() + " " + entry.statistics.getWordCount() + " "
+          + entry.statistics.getCorrectedCount() + "\n");
+      for (Map.Entry<String, String> correction : entry.corrections.entrySet()) {
+        writer.print(correction.getKey() + "=" + correction.getValue() + "\n");
+      }
+    } finally {
+      writer.close();
+    }
+    if (!temp.renameTo(corrections)) {
+      temp.delete();
+    }
+  }
+
+  /**
+   * Reads the whole of a file.
+   * 
+   * @param file
+   *          The file to read.
+   * @return The contents of the file.
+   * @throws IOException
+   *           The file could not be read.
+   */
+  static byte[] readBytes(File file) throws IOException {
+    ByteArrayOutputStream result = new ByteArrayOutputStream((int) file.length());
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[64 * 1024];
+      int count;
+      while ((count = in.read(buffer)) > 0) {
+        result.write(buffer, 0, count);
+      }
+    } finally {
+      in.close();
+    }
+    return result.toByteArray();
+  }
+
+  /**
+   * The stored result of correcting a file.
+   */
+  public static class Entry {
+
+    /**
+     * The corrected contents of the file.
+     */
+    private byte[] content;
+
+    /**
+     * The line, word and correction counts for the file.
+     */
+    private Statistics statistics;
+
+    /**
+     * The corrections made to the file.
+     */
+    private Map<String, String> corrections;
+
+    /**
+     * Constructor.
+     * 
+     * @param content
+     *          The corrected contents of the file.
+     * @param statistics
+     *          The line, word and correction counts for the file.
+     * @param corrections
+     *          The corrections made to the file.
+     */
+    public Entry(byte[] content, Statistics statistics, Map<String, String> corrections) {
+      this.content = content;
+      this.statistics = statistics;
+      this.corrections = corrections;
+    }
+
+    /**
+     * Gets the corrected contents of the file.
+     * 
+     * @return the content
+     */
+    public final byte[] getContent() {
+      return content;
+    }
+
+    /**
+     * Gets the line, word and correction counts for the file.
+     * 
+     * @return the statistics
+     */
+    public final Statistics getStatistics() {
+      return statistics;
+    }
+
+    /**
+     * Gets the corrections made to the file.
+     * 
+     * @return the corrections
+     */
+    public final Map<String, String> getCorrections() {
+      return corrections;
+    }
+  }
+}
@@ -15,8 +15,14 @@
  */
 package org.cafed00d.subtitle;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.Properties;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -27,6 +33,24 @@ import org.apache.commons.logging.LogFactory;
  * <p>
  * Also handles exception cases where the general algorithms mistakenly assume
  * that a word is misspelled when it is not.
+ * <p>
+ * The contents are held in an immutable {@link DictionarySnapshot}. A file is
+ * corrected with the snapshot current when it started, see
+ * {@link #getSnapshot()}, so readers never lock. When the file the snapshot
+ * was loaded from changes on disk, a new snapshot is loaded and swapped in
+ * for the files started after that; the check is made at most once every
+ * {@link #CHECK_INTERVAL} milliseconds.
+ * <p>
+ * Each directory may add its own entries to the dictionary, or override
+ * those of its parents, see {@link #getSnapshot(File)}.
+ * <p>
+ * Keys that are more than one word are phrases, corrected across the whole
+ * line by a {@link PhraseMatcher} before the words are.
+ * <p>
+ * If an autocorrect.dict file, see {@link CompiledDictionary}, is found on the
+ * classpath it is memory-mapped and used instead of autocorrect.properties,
+ * so that startup does not depend on the size of the dictionary. It is
+ * ignored if it is older than an autocorrect.properties file it would hide.
  */
 public enum Dictionary {
   /**
@@ -40,78 +64,191 @@ public enum Dictionary {
   private static final Log log = LogFactory.getLog(Dictionary.class);
 
   /**
-   * Maps common incorrect spelling into correct spellings.
+   * The least time between checks for a changed dictionary, in milliseconds.
    */
-  private static Properties map;
+  static final long CHECK_INTERVAL = 2000;
 
-  static {
-    map = new Properties();
-    ClassLoader cl = Dictionary.class.getClassLoader();
+  /**
+   * The current snapshot.
+   */
+  private final AtomicReference<DictionarySnapshot> snapshot = new AtomicReference<DictionarySnapshot>(loadInitial());
+
+  /**
+   * The time after which the dictionary is next checked for changes.
+   */
+  private final AtomicLong nextCheck = new AtomicLong(System.currentTimeMillis() + CHECK_INTERVAL);
+
+  /**
+   * The dictionaries merged with the overlays of each directory.
+   */
+  private final DictionaryOverlays overlays = new DictionaryOverlays();
+
+  /**
+   * Loads the dictionary when the application starts. If it cannot be read,
+   * the error is reported and the dictionary is empty.
+   * 
+   * @return The snapshot.
+   */
+  private static DictionarySnapshot loadInitial() {
+    DictionarySnapshot result;
     try {
-      map.load(cl.getResourceAsStream("autocorrect.properties"));
-      // TODO: filter out invalid entries
+      result = load();
     } catch (IOException e) {
       Reporter.INSTANCE.displayError("Unable to load autocorrect.properties");
       log.warn(e.getMessage(), e);
+      result = DictionarySnapshot.fromEntries(new TreeMap<String, String>(), new File[0], new long[0]);
     }
+    return result;
   }
 
   /**
-   * Checks if the word is in the autocorrect file and if so corrects it in
-   * place in the line.
+   * Loads the dictionary from the classpath.
    * 
-   * @param line
-   *          The line containing the word. The word is correct in place.
-   * @param first
-   *          The index of the first letter of the word in <code>line</code>.
-   * @param after
-   *          The index after the last letter of the word in <code>line</code>.
-   * @return True if the word was corrected, false otherwise.
+   * @return The snapshot.
+   * @throws IOException
+   *           The dictionary could not be read.
    */
-  public boolean spellcheck(StringBuilder line, int first, int after) {
-    boolean result = false;
-    String word = line.substring(first, after);
-    String corrected = (String) map.get(word);
-    if (corrected != null) {
-      correct(line, first, corrected);
-      result = true;
+  private static DictionarySnapshot load() throws IOException {
+    DictionarySnapshot result = null;
+    ClassLoader cl = Dictionary.class.getClassLoader();
+    URL compiled = cl.getResource("autocorrect.dict");
+    URL properties = cl.getResource("autocorrect.properties");
+    File[] files = watchedFiles(compiled, properties);
+    long[] modified = new long[files.length];
+    for (int i = 0; i < files.length; i++) {
+      modified[i] = files[i].lastModified();
+    }
+    if (compiled != null && isCurrent(compiled, properties)) {
+      try {
+        CompiledDictionary dictionary = CompiledDictionary.open(compiled);
+        result = new DictionarySnapshot(dictionary, new PhraseMatcher(dictionary.getPhrases()),
+            dictionary.getVersion(), dictionary.getTriggers(), files, modified);
+        log.debug("Using compiled dictionary " + compiled);
+      } catch (IOException e) {
+        Reporter.INSTANCE.displayError("Unable to load autocorrect.dict, using autocorrect.properties");
+        log.warn(e.getMessage(), e);
+      }
+    }
+    if (result == null) {
+      if (properties == null) {
+        throw new IOException("autocorrect.properties not found on the classpath");
+      }
+      // TODO: filter out invalid entries
+      result = DictionarySnapshot.fromEntries(CompiledDictionary.readProperties(properties.openStream()), files, modified);
+    }
+    return result;
+  }
+
+  /**
+   * Gets the files the dictionary is read from, that is those of its locations
+   * that are files rather than, say, entries in a JAR file.
+   * 
+   * @param compiled
+   *          The location of autocorrect.dict, or null.
+   * @param properties
+   *          The location of autocorrect.properties, or null.
+   * @return The files.
+   */
+  private static File[] watchedFiles(URL compiled, URL properties) {
+    ArrayList<File> result = new ArrayList<File>(2);
+    for (URL url : new URL[] { compiled, properties }) {
+      File file = CompiledDictionary.toFile(url);
+      if (file != null) {
+        result.add(file);
+      }
+    }
+    return result.toArray(new File[result.size()]);
+  }
+
+  /**
+   * Checks if the compiled dictionary is at least as new as the properties
+   * file, when both are files.
+   * 
+   * @param compiled
+   *          The location of autocorrect.dict.
+   * @param properties
+   *          The location of autocorrect.properties, or null.
+   * @return False if the properties file has been changed since the dictionary
+   *         was compiled.
+   */
+  private static boolean isCurrent(URL compiled, URL properties) {
+    boolean result = true;
+    File compiledFile = CompiledDictionary.toFile(compiled);
+    File propertiesFile = CompiledDictionary.toFile(properties);
+    if (compiledFile != null && propertiesFile != null
+        && propertiesFile.lastModified() > compiledFile.lastModified()) {
+      log.warn("Ignoring " + compiledFile + ", it is older than " + propertiesFile);
+      result = false;
     }
     return result;
   }
 
   /**
-   * Corrects the word in place in <code>line</code>.
+   * Gets the current snapshot of the dictionary, first reloading it if it has
+   * changed on disk. Keep the snapshot for the whole of a file, so that the
+   * file is corrected with one version of the dictionary.
    * 
-   * @param line
-   *          The line containing the word to correct (updated by this method).
-   * @param first
-   *          The index of the first letter of the word.
-   * @param word
-   *          The correct spelling of the word. Used to replace the word in
-   *          <code>line</code>.
+   * @return The snapshot.
    */
-  private void correct(StringBuilder line, int first, String word) {
-    for (int i = 0; i < word.length(); i++) {
-      line.setCharAt(first + i, word.charAt(i));
+  public DictionarySnapshot getSnapshot() {
+    long now = System.currentTimeMillis();
+    long next = nextCheck.get();
+    if (now >= next && nextCheck.compareAndSet(next, now + CHECK_INTERVAL) && snapshot.get().isStale()) {
+      reload();
     }
+    return snapshot.get();
+  }
+
+  /**
+   * Gets the snapshot of the dictionary for the files in a directory: the
+   * current snapshot merged with any overlays in the directory and its
+   * parents, see {@link DictionaryOverlays}.
+   * 
+   * @param directory
+   *          The directory.
+   * @return The snapshot.
+   */
+  public DictionarySnapshot getSnapshot(File directory) {
+    return overlays.get(directory, getSnapshot());
   }
 
   /**
-   * Checks to see if this word is one that would be mistakenly labeled as a
-   * misspelling by the {@link WordProcessor} algorithms.
-   * <p>
-   * Exception cases are identified by having a property key but no value.
+   * Loads the dictionary again and swaps it in for the files started from now
+   * on. If it cannot be read, the error is reported and the current snapshot
+   * is kept.
    * 
-   * @param word
-   *          The word to check.
-   * @return True if is an exception case, false if not.
+   * @return True if the dictionary was reloaded.
    */
-  public boolean exceptionCase(String word) {
-    String value = map.getProperty(word);
-    boolean result = (value != null) && (value.isEmpty());
-    if (result) {
-      log.debug("Encountered exception case: " + word);
+  public boolean reload() {
+    boolean result = false;
+    try {
+      DictionarySnapshot loaded = load();
+      snapshot.set(loaded);
+      Reporter.INSTANCE.displayVerboseMessage("Reloaded dictionary, version " + loaded.getVersion() + " with "
+          + loaded.size() + " entries at " + new Date(loaded.getLoadTime()));
+      result = true;
+    } catch (Exception e) {
+      Reporter.INSTANCE.displayError("Unable to reload the dictionary, keeping version " + getVersion(), e);
     }
     return result;
   }
+
+  /**
+   * Gets the version of the current dictionary, see
+   * {@link DictionarySnapshot#getVersion()}.
+   * 
+   * @return The version.
+   */
+  public String getVersion() {
+    return snapshot.get().getVersion();
+  }
+
+  /**
+   * Gets the time the current dictionary was loaded.
+   * 
+   * @return The time, in milliseconds.
+   */
+  public long getLoadTime() {
+    return snapshot.get().getLoadTime();
+  }
 }
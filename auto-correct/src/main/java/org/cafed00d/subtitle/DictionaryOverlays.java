@@ -0,0 +1,285 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Merges the overlay dictionaries that apply to a directory with the global
+ * {@link Dictionary}. An overlay is an {@link #FILE_NAME} file in the
+ * directory of the SRT file or in any of its parents, typically holding the
+ * names and invented words of one series as exception cases. The nearer an
+ * overlay is to the file, the higher its precedence.
+ * <p>
+ * The entries of the overlays are merged into a small table put in front of
+ * the global dictionary, see {@link OverlayIndex}, so that the global
+ * dictionary is never copied and a word is still looked up with one probe of
+ * each. The merged {@link DictionarySnapshot} is shared by every directory
+ * with the same overlays, such as the season directories of one series, and
+ * made again when the global dictionary is reloaded or an overlay is added,
+ * changed or removed; overlays are checked for changes at most once every
+ * {@link Dictionary#CHECK_INTERVAL} milliseconds for each directory.
+ * <p>
+ * At most {@link #MAX_DIRECTORIES} directories and {@link #MAX_MERGED} merged
+ * dictionaries are remembered, the least recently used being forgotten, so
+ * that a large library does not hold a dictionary, with its
+ * {@link WordCache}, for every directory in it.
+ */
+public final class DictionaryOverlays {
+
+  /**
+   * Logger for this class.
+   */
+  private static final Log log = LogFactory.getLog(DictionaryOverlays.class);
+
+  /**
+   * The name of an overlay file.
+   */
+  public static final String FILE_NAME = "autocorrect.properties";
+
+  /**
+   * The most directories whose overlays are remembered.
+   */
+  static final int MAX_DIRECTORIES = 4096;
+
+  /**
+   * The most merged dictionaries kept.
+   */
+  static final int MAX_MERGED = 64;
+
+  /**
+   * The overlays of each directory seen lately.
+   */
+  private final Map<File, Layers> layers = new BoundedMap<File, Layers>(MAX_DIRECTORIES);
+
+  /**
+   * The merged dictionaries, by the overlays they were made from, see
+   * {@link Layers#key}.
+   */
+  private final Map<String, DictionarySnapshot> merged = new BoundedMap<String, DictionarySnapshot>(MAX_MERGED);
+
+  /**
+   * The global dictionary {@link #merged} was made from.
+   */
+  private DictionarySnapshot mergedGlobal;
+
+  /**
+   * Gets the dictionary for the files in a directory.
+   * 
+   * @param directory
+   *          The directory.
+   * @param global
+   *          The current global dictionary.
+   * @return The global dictionary merged with the overlays, or the global
+   *         dictionary itself if there are none.
+   */
+  public synchronized DictionarySnapshot get(File directory, DictionarySnapshot global) {
+    long now = System.currentTimeMillis();
+    if (mergedGlobal != global) {
+      merged.clear();
+      mergedGlobal = global;
+    }
+    Layers result = layers.get(directory);
+    if (result == null || result.global != global
+        || (now >= result.nextCheck && result.isStale(now))) {
+      result = new Layers(directory, global, now);
+      result.merged = merge(result);
+      layers.put(directory, result);
+    }
+    return result.merged;
+  }
+
+  /**
+   * Gets the dictionary for a set of overlays, merging them unless another
+   * directory with the same overlays already did.
+   * 
+   * @param layers
+   *          The overlays.
+   * @return The merged dictionary, or the global dictionary if there are no
+   *         overlays.
+   */
+  private DictionarySnapshot merge(Layers layers) {
+    DictionarySnapshot result = layers.global;
+    if (layers.key.length() > 0) {
+      result = merged.get(layers.key);
+      if (result == null) {
+        SortedMap<String, String> entries = new TreeMap<String, String>();
+        for (int i = 0; i < layers.files.length; i++) {
+          if (layers.modified[i] != 0) {
+            read(layers.files[i], entries);
+          }
+        }
+        result = layers.global.withOverlay(entries);
+        merged.put(layers.key, result);
+        log.info("merged overlays " + layers.key.replace('\n', ' ') + "dictionary version " + result.getVersion());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Reads an overlay into the entries, replacing any with the same keys. An
+   * overlay that cannot be read is reported and left out.
+   * 
+   * @param file
+   *          The overlay.
+   * @param entries
+   *          The entries.
+   */
+  private static void read(File file, SortedMap<String, String> entries) {
+    try {
+      for (Map.Entry<String, String> entry : CompiledDictionary.readProperties(new FileInputStream(file)).entrySet()) {
+        entries.put(entry.getKey(), entry.getValue());
+      }
+    } catch (IOException e) {
+      Reporter.INSTANCE.displayError("Unable to read dictionary overlay " + file.getAbsolutePath(), e);
+    }
+  }
+
+  /**
+   * The overlays that apply to one directory.
+   */
+  private static final class Layers {
+
+    /**
+     * The global dictionary the overlays are merged with.
+     */
+    private final DictionarySnapshot global;
+
+    /**
+     * The overlay files that may apply, whether or not they exist, nearest
+     * last.
+     */
+    private final File[] files;
+
+    /**
+     * The time each of {@link #files} was last modified, 0 if it did not
+     * exist.
+     */
+    private final long[] modified;
+
+    /**
+     * The path and time of each overlay that exists, one per line, nearest
+     * last; empty if there are none.
+     */
+    private final String key;
+
+    /**
+     * The merged dictionary.
+     */
+    private DictionarySnapshot merged;
+
+    /**
+     * The time after which the overlays are next checked for changes.
+     */
+    private long nextCheck;
+
+    /**
+     * Constructor. Finds the overlays.
+     * 
+     * @param directory
+     *          The directory.
+     * @param global
+     *          The global dictionary.
+     * @param now
+     *          The current time, in milliseconds.
+     */
+    Layers(File directory, DictionarySnapshot global, long now) {
+      this.global = global;
+      ArrayList<File> candidates = new ArrayList<File>();
+      for (File dir = directory.getAbsoluteFile(); dir != null; dir = dir.getParentFile()) {
+        candidates.add(0, new File(dir, FILE_NAME));
+      }
+      files = candidates.toArray(new File[candidates.size()]);
+      modified = new long[files.length];
+      StringBuilder buf = new StringBuilder();
+      for (int i = 0; i < files.length; i++) {
+        modified[i] = files[i].lastModified();
+        if (modified[i] != 0) {
+          buf.append(files[i].getPath()).append(' ').append(modified[i]).append('\n');
+        }
+      }
+      key = buf.toString();
+      nextCheck = now + Dictionary.CHECK_INTERVAL;
+    }
+
+    /**
+     * Checks if any of the overlays has been added, changed or removed.
+     * 
+     * @param now
+     *          The current time, in milliseconds.
+     * @return True if the dictionary must be made again.
+     */
+    boolean isStale(long now) {
+      boolean result = false;
+      for (int i = 0; !result && i < files.length; i++) {
+        result = files[i].lastModified() != modified[i];
+      }
+      nextCheck = now + Dictionary.CHECK_INTERVAL;
+      return result;
+    }
+  }
+
+  /**
+   * A map that forgets the least recently used entry once it holds too many.
+   * 
+   * @param <K>
+   *          The type of the keys.
+   * @param <V>
+   *          The type of the values.
+   */
+  private static final class BoundedMap<K, V> extends LinkedHashMap<K, V> {
+
+    /**
+     * For serialization.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The most entries kept.
+     */
+    private final int maxSize;
+
+    /**
+     * Constructor.
+     * 
+     * @param maxSize
+     *          The most entries kept.
+     */
+    BoundedMap(int maxSize) {
+      super(16, 0.75f, true);
+      this.maxSize = maxSize;
+    }
+
+    /**
+     * @see java.util.LinkedHashMap#removeEldestEntry(java.util.Map.Entry)
+     */
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+      return size() > maxSize;
+    }
+  }
+}
@@ -0,0 +1,367 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The contents of the {@link Dictionary} as loaded at one time. A snapshot is
+ * never changed once loaded, so any number of threads can read it without
+ * locking; when the dictionary is reloaded a new snapshot replaces it, and a
+ * reader that kept the old one can go on using it.
+ * <p>
+ * A word is looked up once, see {@link #find(CharSequence, int, int)}, and
+ * the entry found tells both whether the word is an exception case and how to
+ * correct it.
+ */
+public final class DictionarySnapshot {
+
+  /**
+   * Logger for this class.
+   */
+  private static final Log log = LogFactory.getLog(DictionarySnapshot.class);
+
+  /**
+   * The entries, for lookups.
+   */
+  private final WordIndex index;
+
+  /**
+   * The phrases, for correcting whole lines.
+   */
+  private final PhraseMatcher phrases;
+
+  /**
+   * The trigger characters of {@link #filter}.
+   */
+  private final String triggers;
+
+  /**
+   * The filter for lines this dictionary and the word rules cannot change.
+   */
+  private final LineFilter filter;
+
+  /**
+   * Identifies the contents of the dictionary, see {@link #getVersion()}.
+   */
+  private final String version;
+
+  /**
+   * The files the snapshot was loaded from, watched for changes.
+   */
+  private final File[] files;
+
+  /**
+   * The time each of {@link #files} was last modified when it was loaded.
+   */
+  private final long[] modified;
+
+  /**
+   * The time the snapshot was loaded, in milliseconds.
+   */
+  private final long loadTime = System.currentTimeMillis();
+
+  /**
+   * The corrections made with this dictionary, see {@link #getWordCache()}.
+   */
+  private final WordCache wordCache = new WordCache(WordCache.DEFAULT_CAPACITY);
+
+  /**
+   * The corrections made with this dictionary and each frequency model.
+   */
+  private final ConcurrentMap<FrequencyModel, WordCache> modelCaches = new ConcurrentHashMap<FrequencyModel, WordCache>();
+
+  /**
+   * Constructor.
+   * 
+   * @param index
+   *          The entries.
+   * @param phrases
+   *          The phrases among the entries.
+   * @param version
+   *          The hash of the entries.
+   * @param triggers
+   *          The trigger characters for the {@link LineFilter}.
+   * @param files
+   *          The files the entries were read from. Their times are recorded
+   *          before the caller reads them, so that a change made while they
+   *          are read is seen.
+   * @param modified
+   *          The time each file was last modified.
+   */
+  DictionarySnapshot(WordIndex index, PhraseMatcher phrases, String version, String triggers, File[] files, long[] modified) {
+    this.index = index;
+    this.phrases = phrases;
+    this.version = version;
+    this.triggers = triggers;
+    this.filter = new LineFilter(triggers);
+    this.files = files;
+    this.modified = modified;
+  }
+
+  /**
+   * Makes a snapshot from a map of entries, such as those read from a
+   * properties file.
+   * 
+   * @param entries
+   *          The entries.
+   * @param files
+   *          The files the entries were read from.
+   * @param modified
+   *          The time each file was last modified, before it was read.
+   * @return The snapshot.
+   */
+  static DictionarySnapshot fromEntries(SortedMap<String, String> entries, File[] files, long[] modified) {
+    ArrayList<String> misspellings = new ArrayList<String>();
+    for (Map.Entry<String, String> entry : entries.entrySet()) {
+      if (!entry.getValue().isEmpty()) {
+        misspellings.add(entry.getKey());
+      }
+    }
+    return new DictionarySnapshot(new WordTable(entries), new PhraseMatcher(entries), ContentHash.of(entries),
+        LineFilter.triggersFor(misspellings), files, modified);
+  }
+
+  /**
+   * Makes a snapshot that adds the entries of overlays to this one, replacing
+   * any with the same keys. The entries of this snapshot are looked up in
+   * place rather than copied, see {@link OverlayIndex}; only the phrases,
+   * usually few, are merged into a new {@link PhraseMatcher}.
+   * 
+   * @param overlay
+   *          The entries of the overlays.
+   * @return The snapshot.
+   */
+  DictionarySnapshot withOverlay(SortedMap<String, String> overlay) {
+    ArrayList<String> misspellings = new ArrayList<String>();
+    for (Map.Entry<String, String> entry : overlay.entrySet()) {
+      if (!entry.getValue().isEmpty()) {
+        misspellings.add(entry.getKey());
+      }
+    }
+    SortedMap<String, String> merged = phrases.getPhrases();
+    merged.putAll(overlay);
+    String versions = version + ContentHash.of(overlay);
+    return new DictionarySnapshot(new OverlayIndex(index, overlay), new PhraseMatcher(merged),
+        ContentHash.toHex(ContentHash.newDigest().digest(versions.getBytes(Charset.forName("UTF-8")))),
+        triggers + LineFilter.triggersFor(misspellings), new File[0], new long[0]);
+  }
+
+  /**
+   * Checks if any of the files the snapshot was loaded from has changed.
+   * 
+   * @return True if the snapshot should be reloaded.
+   */
+  boolean isStale() {
+    boolean result = false;
+    for (int i = 0; !result && i < files.length; i++) {
+      result = files[i].lastModified() != modified[i];
+    }
+    return result;
+  }
+
+  /**
+   * Gets the version of the dictionary: a hash of its entries. Files corrected
+   * with a different version may need correcting again.
+   * 
+   * @return The version.
+   */
+  public String getVersion() {
+    return version;
+  }
+
+  /**
+   * Gets the time the snapshot was loaded.
+   * 
+   * @return The time, in milliseconds.
+   */
+  public long getLoadTime() {
+    return loadTime;
+  }
+
+  /**
+   * Gets the number of entries in the dictionary.
+   * 
+   * @return The number of entries.
+   */
+  public int size() {
+    return index.size();
+  }
+
+  /**
+   * Gets all of the entries, see {@link WordIndex#getEntries()}.
+   * 
+   * @return The keys and their values.
+   */
+  public SortedMap<String, String> getEntries() {
+    return index.getEntries();
+  }
+
+  /**
+   * Gets the cache of the words corrected with this dictionary, shared by all
+   * of the files and threads that use it.
+   * 
+   * @param model
+   *          The frequency model the words are corrected with as well, or
+   *          null for none; the corrections differ, so each has its own cache.
+   * @return The cache.
+   */
+  public WordCache getWordCache(FrequencyModel model) {
+    WordCache result = wordCache;
+    if (model != null) {
+      result = modelCaches.get(model);
+      if (result == null) {
+        modelCaches.putIfAbsent(model, new WordCache(WordCache.DEFAULT_CAPACITY));
+        result = modelCaches.get(model);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Gets the filter for lines that this dictionary and the word rules cannot
+   * change.
+   * 
+   * @return The filter.
+   */
+  public LineFilter getLineFilter() {
+    return filter;
+  }
+
+  /**
+   * Corrects the phrases in a line in place, see {@link PhraseMatcher}.
+   * 
+   * @param line
+   *          The line to correct.
+   * @param corrections
+   *          Receives each phrase corrected, mapped to its correction, unless
+   *          already there. Null if not wanted.
+   * @return The number of phrases corrected.
+   */
+  public int correctPhrases(StringBuilder line, Map<String, String> corrections) {
+    return phrases.size() == 0 ? 0 : phrases.correct(line, corrections);
+  }
+
+  /**
+   * Looks up a word within a line, without creating a string for it.
+   * 
+   * @param line
+   *          The line containing the word.
+   * @param first
+   *          The index of the first letter of the word in <code>line</code>.
+   * @param after
+   *          The index after the last letter of the word in <code>line</code>.
+   * @return The entry for the word, to pass to {@link #isExceptionCase(int)}
+   *         and {@link #correct(StringBuilder, int, int)}, or -1 if the word
+   *         is not in the dictionary.
+   */
+  public int find(CharSequence line, int first, int after) {
+    return index.find(line, first, after);
+  }
+
+  /**
+   * Checks if an entry is an exception case, see {@link #exceptionCase(String)}.
+   * 
+   * @param entry
+   *          The entry returned by {@link #find(CharSequence, int, int)}, or
+   *          -1.
+   * @return True if is an exception case, false if not.
+   */
+  public boolean isExceptionCase(int entry) {
+    boolean result = entry >= 0 && index.getValueLength(entry) == 0;
+    if (result && log.isDebugEnabled()) {
+      log.debug("Encountered exception case: " + index.getKey(entry));
+    }
+    return result;
+  }
+
+  /**
+   * Corrects a word in place in the line using its entry.
+   * 
+   * @param line
+   *          The line containing the word. The word is correct in place.
+   * @param first
+   *          The index of the first letter of the word in <code>line</code>.
+   * @param entry
+   *          The entry for the word returned by
+   *          {@link #find(CharSequence, int, int)}, or -1.
+   * @return True if the word was corrected, false otherwise.
+   */
+  public boolean correct(StringBuilder line, int first, int entry) {
+    boolean result = false;
+    if (entry >= 0) {
+      correct(line, first, index.getValue(entry));
+      result = true;
+    }
+    return result;
+  }
+
+  /**
+   * Checks if the word is in the autocorrect file and if so corrects it in
+   * place in the line.
+   * 
+   * @param line
+   *          The line containing the word. The word is correct in place.
+   * @param first
+   *          The index of the first letter of the word in <code>line</code>.
+   * @param after
+   *          The index after the last letter of the word in <code>line</code>.
+   * @return True if the word was corrected, false otherwise.
+   */
+  public boolean spellcheck(StringBuilder line, int first, int after) {
+    return correct(line, first, find(line, first, after));
+  }
+
+  /**
+   * Corrects the word in place in <code>line</code>.
+   * 
+   * @param line
+   *          The line containing the word to correct (updated by this method).
+   * @param first
+   *          The index of the first letter of the word.
+   * @param word
+   *          The correct spelling of the word. Used to replace the word in
+   *          <code>line</code>.
+   */
+  private void correct(StringBuilder line, int first, String word) {
+    for (int i = 0; i < word.length(); i++) {
+      line.setCharAt(first + i, word.charAt(i));
+    }
+  }
+
+  /**
+   * Checks to see if this word is one that would be mistakenly labeled as a
+   * misspelling by the {@link WordProcessor} algorithms.
+   * <p>
+   * Exception cases are identified by having a property key but no value.
+   * 
+   * @param word
+   *          The word to check.
+   * @return True if is an exception case, false if not.
+   */
+  public boolean exceptionCase(String word) {
+    return isExceptionCase(find(word, 0, word.length()));
+  }
+}
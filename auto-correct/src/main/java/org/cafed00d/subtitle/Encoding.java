@@ -0,0 +1,385 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * The encoding of an SRT file, detected from its first bytes so that the file
+ * is read correctly and written back in the same encoding, byte order mark
+ * included.
+ * <p>
+ * A byte order mark settles the encoding: UTF-8, UTF-16LE or UTF-16BE.
+ * Otherwise the first {@link #BLOCK_SIZE} bytes are examined: many zero bytes
+ * at the even or odd positions mean UTF-16 without a mark, valid UTF-8
+ * sequences mean UTF-8, and anything else is taken for Windows-1252, the
+ * encoding SupRip writes on Windows, or ISO 8859-1 if the block has bytes
+ * Windows-1252 does not define. Plain ASCII gives no evidence about the bytes
+ * after the block, so it is taken for ISO 8859-1 too: that decodes every byte
+ * to a character of its own and writes it back unchanged, whatever the rest of
+ * the file turns out to hold.
+ * <p>
+ * Single byte encodings are decoded by a lookup table, see
+ * {@link #newReader(InputStream)}; the others by the platform's decoders.
+ */
+public final class Encoding {
+
+  /**
+   * The number of bytes examined when there is no byte order mark.
+   */
+  public static final int BLOCK_SIZE = 4096;
+
+  /**
+   * The UTF-8 byte order mark.
+   */
+  private static final byte[] UTF8_BOM = { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF };
+
+  /**
+   * The UTF-16 little-endian byte order mark.
+   */
+  private static final byte[] UTF16LE_BOM = { (byte) 0xFF, (byte) 0xFE };
+
+  /**
+   * The UTF-16 big-endian byte order mark.
+   */
+  private static final byte[] UTF16BE_BOM = { (byte) 0xFE, (byte) 0xFF };
+
+  /**
+   * The bytes Windows-1252 does not define.
+   */
+  private static final String UNDEFINED_1252 = "\u0081\u008D\u008F\u0090\u009D";
+
+  /**
+   * The encoding of the characters.
+   */
+  private final Charset charset;
+
+  /**
+   * The byte order mark, empty if there is none.
+   */
+  private final byte[] bom;
+
+  /**
+   * The character of each byte, for a single byte encoding; otherwise null.
+   */
+  private final char[] table;
+
+  /**
+   * Constructor.
+   * 
+   * @param charset
+   *          The encoding of the characters.
+   * @param bom
+   *          The byte order mark, empty if there is none.
+   */
+  Encoding(Charset charset, byte[] bom) {
+    this.charset = charset;
+    this.bom = bom;
+    table = tableFor(charset);
+  }
+
+  /**
+   * Builds the table of characters for a single byte encoding.
+   * 
+   * @param charset
+   *          The encoding.
+   * @return The character of each byte, or null if the encoding does not
+   *         decode every byte to one character.
+   */
+  private static char[] tableFor(Charset charset) {
+    char[] result = null;
+    if (charset.newEncoder().maxBytesPerChar() == 1) {
+      byte[] bytes = new byte[256];
+      for (int i = 0; i < bytes.length; i++) {
+        bytes[i] = (byte) i;
+      }
+      CharsetDecoder decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+      try {
+        CharBuffer chars = decoder.decode(ByteBuffer.wrap(bytes));
+        if (chars.remaining() == bytes.length) {
+          result = new char[bytes.length];
+          chars.get(result);
+        }
+      } catch (IOException e) {
+        result = null;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Detects the encoding of a stream, leaving the stream where it was.
+   * 
+   * @param in
+   *          The stream, which must support {@link InputStream#mark(int)}.
+   * @return The encoding.
+   * @throws IOException
+   *           The stream could not be read.
+   */
+  public static Encoding detect(InputStream in) throws IOException {
+    byte[] block = new byte[BLOCK_SIZE];
+    in.mark(BLOCK_SIZE);
+    int length = 0;
+    int count;
+    while (length < block.length && (count = in.read(block, length, block.length - length)) > 0) {
+      length += count;
+    }
+    in.reset();
+    return detect(block, length);
+  }
+
+  /**
+   * Detects the encoding of a file from its first bytes.
+   * 
+   * @param bytes
+   *          The contents of the file, or at least its first
+   *          {@link #BLOCK_SIZE} bytes.
+   * @param length
+   *          The number of bytes in <code>bytes</code>.
+   * @return The encoding.
+   */
+  public static Encoding detect(byte[] bytes, int length) {
+    Encoding result;
+    if (startsWith(bytes, length, UTF8_BOM)) {
+      result = new Encoding(Charset.forName("UTF-8"), UTF8_BOM);
+    } else if (startsWith(bytes, length, UTF16LE_BOM)) {
+      result = new Encoding(Charset.forName("UTF-16LE"), UTF16LE_BOM);
+    } else if (startsWith(bytes, length, UTF16BE_BOM)) {
+      result = new Encoding(Charset.forName("UTF-16BE"), UTF16BE_BOM);
+    } else {
+      result = new Encoding(guess(bytes, Math.min(length, BLOCK_SIZE)), new byte[0]);
+    }
+    return result;
+  }
+
+  /**
+   * Guesses the encoding of bytes without a byte order mark.
+   * 
+   * @param bytes
+   *          The bytes.
+   * @param length
+   *          The number of bytes to examine.
+   * @return The encoding.
+   */
+  private static Charset guess(byte[] bytes, int length) {
+    int evenZeros = 0;
+    int oddZeros = 0;
+    boolean ascii = true;
+    boolean utf8 = true;
+    boolean undefined = false;
+    int continuations = 0;
+    for (int i = 0; i < length; i++) {
+      int b = bytes[i] & 0xFF;
+      if (b == 0) {
+        if ((i & 1) == 0) {
+          evenZeros++;
+        } else {
+          oddZeros++;
+        }
+      }
+      if (b >= 0x80) {
+        ascii = false;
+        undefined |= UNDEFINED_1252.indexOf(b) >= 0;
+      }
+      if (continuations > 0) {
+        utf8 &= b >= 0x80 && b <= 0xBF;
+        continuations--;
+      } else if (b >= 0xC2 && b <= 0xDF) {
+        continuations = 1;
+      } else if (b >= 0xE0 && b <= 0xEF) {
+        continuations = 2;
+      } else if (b >= 0xF0 && b <= 0xF4) {
+        continuations = 3;
+      } else {
+        utf8 &= b < 0x80;
+      }
+    }
+    Charset result;
+    if (evenZeros + oddZeros > length / 4 && oddZeros > evenZeros * 2) {
+      result = Charset.forName("UTF-16LE");
+    } else if (evenZeros + oddZeros > length / 4 && evenZeros > oddZeros * 2) {
+      result = Charset.forName("UTF-16BE");
+    } else if (ascii) {
+      result = Charset.forName("ISO-8859-1");
+    } else if (utf8) {
+      result = Charset.forName("UTF-8");
+    } else if (!undefined && Charset.isSupported("windows-1252")) {
+      result = Charset.forName("windows-1252");
+    } else {
+      result = Charset.forName("ISO-8859-1");
+    }
+    return result;
+  }
+
+  /**
+   * Determines if bytes start with a byte order mark.
+   * 
+   * @param bytes
+   *          The bytes.
+   * @param length
+   *          The number of bytes.
+   * @param bom
+   *          The byte order mark.
+   * @return True if they do.
+   */
+  private static boolean startsWith(byte[] bytes, int length, byte[] bom) {
+    return length >= bom.length && Arrays.equals(Arrays.copyOf(bytes, bom.length), bom);
+  }
+
+  /**
+   * Gets the encoding of the characters.
+   * 
+   * @return The encoding.
+   */
+  public Charset getCharset() {
+    return charset;
+  }
+
+  /**
+   * Gets the byte order mark.
+   * 
+   * @return The byte order mark, empty if there is none.
+   */
+  public byte[] getBom() {
+    return bom.clone();
+  }
+
+  /**
+   * Determines if the encoding writes the ASCII characters, and so line
+   * terminators, as single bytes of the same value.
+   * 
+   * @return False for UTF-16.
+   */
+  public boolean isAsciiCompatible() {
+    return !charset.name().startsWith("UTF-16");
+  }
+
+  /**
+   * Opens a reader over a stream positioned at the start of the file. The
+   * byte order mark is skipped.
+   * 
+   * @param in
+   *          The stream.
+   * @return The reader.
+   * @throws IOException
+   *           The byte order mark could not be skipped.
+   */
+  public Reader newReader(InputStream in) throws IOException {
+    long skipped = 0;
+    while (skipped < bom.length) {
+      skipped += in.skip(bom.length - skipped);
+    }
+    Reader result;
+    if (table != null) {
+      result = new TableReader(in, table);
+    } else {
+      result = new InputStreamReader(in, charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE));
+    }
+    return result;
+  }
+
+  /**
+   * Creates a file to write lines to in this encoding, starting with the byte
+   * order mark.
+   * 
+   * @param file
+   *          The file to create.
+   * @return The writer for the file.
+   * @throws IOException
+   *           The file could not be created.
+   */
+  public OutputWriter newWriter(File file) throws IOException {
+    OutputWriter result = new OutputWriter(file, charset);
+    try {
+      result.write(bom);
+    } catch (IOException e) {
+      result.close();
+      throw e;
+    }
+    return result;
+  }
+
+  /**
+   * Describes the encoding, as shown in the statistics.
+   * 
+   * @return The name of the encoding, followed by "with BOM" if it has a byte
+   *         order mark.
+   */
+  @Override
+  public String toString() {
+    return bom.length == 0 ? charset.name() : charset.name() + " with BOM";
+  }
+
+  /**
+   * Decodes a single byte encoding by looking up each byte in a table.
+   */
+  private static final class TableReader extends Reader {
+
+    /**
+     * The stream to decode.
+     */
+    private final InputStream in;
+
+    /**
+     * The character of each byte.
+     */
+    private final char[] table;
+
+    /**
+     * The bytes read from the stream.
+     */
+    private final byte[] bytes = new byte[8192];
+
+    /**
+     * Constructor.
+     * 
+     * @param in
+     *          The stream to decode.
+     * @param table
+     *          The character of each byte.
+     */
+    TableReader(InputStream in, char[] table) {
+      this.in = in;
+      this.table = table;
+    }
+
+    @Override
+    public int read(char[] chars, int offset, int length) throws IOException {
+      int result = in.read(bytes, 0, Math.min(length, bytes.length));
+      for (int i = 0; i < result; i++) {
+        chars[offset + i] = table[bytes[i] & 0xFF];
+      }
+      return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
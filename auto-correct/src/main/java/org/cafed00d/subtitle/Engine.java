@@ -0,0 +1,69 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+/**
+ * The available {@link WordEngine} implementations. Each engine keeps one
+ * instance per thread, see {@link #get()}.
+ */
+public enum Engine {
+  /**
+   * Applies the rules one after the other, see {@link WordProcessor}.
+   */
+  LEGACY {
+    @Override
+    WordEngine create() {
+      return new WordProcessor();
+    }
+  },
+
+  /**
+   * Applies all of the rules in a single scan of the word, see
+   * {@link SinglePassWordProcessor}.
+   */
+  SINGLE {
+    @Override
+    WordEngine create() {
+      return new SinglePassWordProcessor();
+    }
+  };
+
+  /**
+   * The instance of the engine for each thread.
+   */
+  private final ThreadLocal<WordEngine> instances = new ThreadLocal<WordEngine>() {
+    @Override
+    protected WordEngine initialValue() {
+      return create();
+    }
+  };
+
+  /**
+   * Creates a new instance of the engine.
+   * 
+   * @return The new instance.
+   */
+  abstract WordEngine create();
+
+  /**
+   * Gets the instance of the engine for the calling thread.
+   * 
+   * @return The instance.
+   */
+  public WordEngine get() {
+    return instances.get();
+  }
+}
@@ -0,0 +1,464 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Turns the file arguments given to the utility into the SRT files to process.
+ * Each argument can be one of:
+ * <ul>
+ * <li>A file, which is processed whatever its extension.</li>
+ * <li>A directory, which is searched recursively for <code>*.srt</code>
+ * files.</li>
+ * <li>A glob such as <code>movies/*.srt</code>. The wildcards <code>*</code>
+ * and <code>?</code> may appear only in the last part of the path. Matching
+ * directories are searched as above.</li>
+ * <li><code>@&lt;listfile&gt;</code>, a text file that contains one argument
+ * per line. Blank lines and lines starting with # are ignored. Relative paths
+ * in the list are relative to the directory of the list file, so that a list
+ * can be kept next to the files it names.</li>
+ * <li><code>-</code>, which reads a list of arguments from standard input, one
+ * per line. Relative paths are relative to the working directory.</li>
+ * </ul>
+ * <p>
+ * The search is lazy: the iterator only reads a list file or directory when it
+ * runs out of files to return, so the first files are processed while the
+ * rest are still being found. Of the files, only the contents of one
+ * directory at a time, and the directories still to be searched, are held in
+ * memory. The canonical path of every directory searched is also kept, to
+ * avoid looping through symbolic links, so memory still grows with the number
+ * of directories in the library, though not with the number of files.
+ * <p>
+ * Files that do not exist or are not writable, or not readable when the files
+ * are only checked, are reported and skipped. So are arguments that find
+ * nothing to process: globs that match nothing and list files or directories
+ * that cannot be read. Each one is counted, see {@link #getRejectedCount()},
+ * so that the caller can count it as a failure.
+ */
+public class FileFinder implements Iterable<File> {
+
+  /**
+   * Logger for this class.
+   */
+  private static final Log log = LogFactory.getLog(FileFinder.class);
+
+  /**
+   * The extension of the files picked up when searching a directory.
+   */
+  private static final String EXTENSION = ".srt";
+
+  /**
+   * The prefix that identifies a list file argument.
+   */
+  private static final String LIST_PREFIX = "@";
+
+  /**
+   * The argument that reads a list of arguments from standard input.
+   */
+  private static final String STDIN = "-";
+
+  /**
+   * Accepts the entries of a directory that we are interested in: the
+   * subdirectories and the SRT files.
+   */
+  private static final FileFilter SRT_FILTER = new FileFilter() {
+    public boolean accept(File file) {
+      return file.isDirectory() || file.getName().toLowerCase().endsWith(EXTENSION);
+    }
+  };
+
+  /**
+   * The arguments to expand.
+   */
+  private List<String> arguments;
+
+  /**
+   * If true, the files are only checked, so they need only be readable.
+   */
+  private boolean checkOnly = false;
+
+  /**
+   * The number of files and arguments reported and skipped so far.
+   */
+  private volatile int rejectedCount;
+
+  /**
+   * Constructor.
+   * 
+   * @param arguments
+   *          The file arguments given to the utility.
+   */
+  public FileFinder(List<String> arguments) {
+    this.arguments = arguments;
+  }
+
+  /**
+   * Sets whether the files are only checked, in which case a file that can be
+   * read is accepted even if it cannot be written.
+   * 
+   * @param checkOnly
+   *          True if the files are only checked.
+   */
+  public void setCheckOnly(boolean checkOnly) {
+    this.checkOnly = checkOnly;
+  }
+
+  /**
+   * Gets the number of files and arguments that were reported and skipped,
+   * such as files that do not exist. Only complete once the files have all
+   * been found.
+   * 
+   * @return The number of files and arguments skipped.
+   */
+  public int getRejectedCount() {
+    return rejectedCount;
+  }
+
+  /**
+   * Reports a file or argument that is skipped, and counts it.
+   * 
+   * @param message
+   *          The error message.
+   * @param e
+   *          The cause of the error, or null.
+   */
+  private void reject(String message, Exception e) {
+    rejectedCount++;
+    if (e == null) {
+      Reporter.INSTANCE.displayError(message);
+    } else {
+      Reporter.INSTANCE.displayError(message, e);
+    }
+  }
+
+  /**
+   * Determines if an argument is a glob, i.e. contains a wildcard.
+   * 
+   * @param argument
+   *          The argument to check.
+   * @return True iff the argument contains a wildcard.
+   */
+  static boolean isGlob(String argument) {
+    return argument.indexOf('*') > -1 || argument.indexOf('?') > -1;
+  }
+
+  /**
+   * Converts a glob into the equivalent regular expression.
+   * 
+   * @param glob
+   *          The glob, which must not contain any path separators.
+   * @return The regular expression.
+   */
+  static Pattern globToPattern(String glob) {
+    StringBuilder regex = new StringBuilder();
+    int start = 0;
+    for (int i = 0; i < glob.length(); i++) {
+      char ch = glob.charAt(i);
+      if (ch == '*' || ch == '?') {
+        if (i > start) {
+          regex.append(Pattern.quote(glob.substring(start, i)));
+        }
+        regex.append(ch == '*' ? ".*" : ".");
+        start = i + 1;
+      }
+    }
+    if (start < glob.length()) {
+      regex.append(Pattern.quote(glob.substring(start)));
+    }
+    return Pattern.compile(regex.toString(), File.separatorChar == '\\' ? Pattern.CASE_INSENSITIVE : 0);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public Iterator<File> iterator() {
+    return new Finder();
+  }
+
+  /**
+   * Walks the arguments, list files and directories one step at a time.
+   */
+  private class Finder implements Iterator<File> {
+
+    /**
+     * The arguments not yet expanded.
+     */
+    private Iterator<String> remaining = arguments.iterator();
+
+    /**
+     * The list files being read. The top of the stack is the one currently
+     * being read.
+     */
+    private ArrayDeque<BufferedReader> lists = new ArrayDeque<BufferedReader>();
+
+    /**
+     * The directory that relative paths in each of {@link #lists} are relative
+     * to, in the same order; the working directory for standard input.
+     */
+    private ArrayDeque<File> listDirectories = new ArrayDeque<File>();
+
+    /**
+     * The files and directories found but not yet examined.
+     */
+    private ArrayDeque<File> pending = new ArrayDeque<File>();
+
+    /**
+     * The canonical paths of the directories already searched, used to avoid
+     * looping through symbolic links.
+     */
+    private Set<String> searched = new HashSet<String>();
+
+    /**
+     * The next file to return, or null if it has not been found yet.
+     */
+    private File next;
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean hasNext() {
+      while (next == null && findMore()) {
+        if (!pending.isEmpty()) {
+          examine(pending.pop());
+        }
+      }
+      return next != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public File next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      File result = next;
+      next = null;
+      return result;
+    }
+
+    /**
+     * Not supported.
+     */
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Ensures that there is something pending to examine by expanding the
+     * next line of a list file or the next argument.
+     * 
+     * @return False if there is nothing left to find.
+     */
+    private boolean findMore() {
+      while (pending.isEmpty() && (!lists.isEmpty() || remaining.hasNext())) {
+        if (!lists.isEmpty()) {
+          String line = readLine(lists.peek());
+          if (line == null) {
+            close(lists.pop());
+            listDirectories.pop();
+          } else {
+            line = line.trim();
+            if (line.length() > 0 && !line.startsWith("#")) {
+              expand(line, listDirectories.peek());
+            }
+          }
+        } else {
+          expand(remaining.next(), new File("").getAbsoluteFile());
+        }
+      }
+      return !pending.isEmpty();
+    }
+
+    /**
+     * Expands a single argument.
+     * 
+     * @param argument
+     *          The argument to expand.
+     * @param directory
+     *          The directory a relative path is relative to.
+     */
+    private void expand(String argument, File directory) {
+      log.debug("expanding: " + argument);
+      if (argument.equals(STDIN)) {
+        lists.push(new BufferedReader(new InputStreamReader(System.in)));
+        listDirectories.push(new File("").getAbsoluteFile());
+      } else if (argument.startsWith(LIST_PREFIX)) {
+        File listFile = resolve(argument.substring(LIST_PREFIX.length()), directory);
+        try {
+          lists.push(new BufferedReader(new FileReader(listFile)));
+          listDirectories.push(listFile.getParentFile());
+        } catch (IOException e) {
+          reject("Unable to read file list " + listFile.getAbsolutePath(), e);
+        }
+      } else if (isGlob(argument)) {
+        expandGlob(resolve(argument, directory));
+      } else {
+        pending.push(resolve(argument, directory));
+      }
+    }
+
+    /**
+     * Resolves a path against a directory, unless it is absolute.
+     * 
+     * @param path
+     *          The path.
+     * @param directory
+     *          The directory a relative path is relative to.
+     * @return The absolute file.
+     */
+    private File resolve(String path, File directory) {
+      File result = new File(path);
+      if (!result.isAbsolute()) {
+        result = new File(directory, path);
+      }
+      return result.getAbsoluteFile();
+    }
+
+    /**
+     * Expands a glob by matching its name against the entries in its parent
+     * directory.
+     * 
+     * @param glob
+     *          The glob to expand.
+     */
+    private void expandGlob(File glob) {
+      File dir = glob.getParentFile();
+      if (dir == null || isGlob(dir.getPath())) {
+        reject("wildcards are allowed only in the file name: " + glob.getPath(), null);
+      } else {
+        final Pattern pattern = globToPattern(glob.getName());
+        File[] matches = dir.listFiles(new FileFilter() {
+          public boolean accept(File file) {
+            return pattern.matcher(file.getName()).matches();
+          }
+        });
+        if (matches == null || matches.length == 0) {
+          reject("no files match: " + glob.getPath(), null);
+        } else {
+          pushAll(matches);
+        }
+      }
+    }
+
+    /**
+     * Examines a file. Directories are searched while files are checked to
+     * make sure they can be processed: read, and written too unless they are
+     * only checked.
+     * 
+     * @param file
+     *          The file or directory to examine.
+     */
+    private void examine(File file) {
+      if (file.isDirectory()) {
+        search(file);
+      } else if (!file.exists()) {
+        reject("no such file: " + file.getAbsolutePath(), null);
+      } else if (!file.canRead()) {
+        reject("file is not readable: " + file.getAbsolutePath(), null);
+      } else if (!checkOnly && !file.canWrite()) {
+        reject("file is not writeable: " + file.getAbsolutePath(), null);
+      } else {
+        next = file;
+      }
+    }
+
+    /**
+     * Adds the subdirectories and SRT files in a directory to the pending
+     * files.
+     * 
+     * @param dir
+     *          The directory to search.
+     */
+    private void search(File dir) {
+      try {
+        if (!searched.add(dir.getCanonicalPath())) {
+          log.debug("already searched: " + dir.getAbsolutePath());
+          return;
+        }
+      } catch (IOException e) {
+        log.warn(e.getMessage(), e);
+      }
+      File[] entries = dir.listFiles(SRT_FILTER);
+      if (entries == null) {
+        reject("unable to read directory: " + dir.getAbsolutePath(), null);
+      } else {
+        pushAll(entries);
+      }
+    }
+
+    /**
+     * Adds files to the pending files so that they are examined in name order.
+     * 
+     * @param files
+     *          The files to add.
+     */
+    private void pushAll(File[] files) {
+      Arrays.sort(files);
+      for (int i = files.length - 1; i >= 0; i--) {
+        pending.push(files[i]);
+      }
+    }
+
+    /**
+     * Reads the next line from a list file.
+     * 
+     * @param reader
+     *          The list file.
+     * @return The line, or null at the end of the list or on error.
+     */
+    private String readLine(BufferedReader reader) {
+      String result = null;
+      try {
+        result = reader.readLine();
+      } catch (IOException e) {
+        reject("Unable to read file list", e);
+      }
+      return result;
+    }
+
+    /**
+     * Closes a list file.
+     * 
+     * @param reader
+     *          The list file.
+     */
+    private void close(BufferedReader reader) {
+      try {
+        reader.close();
+      } catch (IOException e) {
+        log.warn(e.getMessage(), e);
+      }
+    }
+  }
+}
@@ -15,15 +15,24 @@
  */
 package org.cafed00d.subtitle;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 
@@ -32,6 +41,38 @@ import org.apache.commons.logging.LogFactory;
 
 /**
  * Processes a single SRT file, auto-correcting common OCR mistakes.
+ * <p>
+ * An instance holds the state for one file only and must be used by one thread
+ * at a time. Several instances may run concurrently, see
+ * {@link BatchProcessor}.
+ * <p>
+ * A file is either processed in one go by {@link #process()}, which streams
+ * the file a line at a time, or in three stages by {@link #read()},
+ * {@link #correct()} and {@link #write()}, which buffer the whole file so that
+ * each stage can be run by a different thread, see {@link Pipeline}.
+ * <p>
+ * If given a {@link DedupeCache}, a file whose contents have already been
+ * corrected is not corrected again: the cached result is written instead.
+ * <p>
+ * How the corrected file is written is up to an {@link OutputStrategy},
+ * picked when the file is started. By default the file is written again in
+ * full, to a temporary file that is moved into its place once complete, and
+ * the original is kept as the {@link Backup} strategy says, see
+ * {@link RewriteStrategy}. In place, see {@link #setInPlace(boolean)}, only
+ * the bytes that changed are written, and an undo log of the overwritten bytes
+ * takes the place of the backup, see {@link PatchStrategy}. This class does
+ * the corrections, keeps the statistics and counts the file, exactly once,
+ * as processed or failed.
+ * <p>
+ * For UTF-8 files, see {@link #setUtf8(boolean)}, the bytes are corrected
+ * directly: a line is only decoded if the {@link LineFilter} cannot prove
+ * from its bytes that it is unchanged, and the bytes of unchanged lines are
+ * copied through as they are, see {@link #correctBytes(ByteBuffer, OutputStream)}.
+ * <p>
+ * A file can also only be checked, see {@link #setCheckOnly(boolean)}: it is
+ * read and corrected as usual, but nothing is written, so that the
+ * statistics tell how many corrections the file needs, see
+ * {@link CheckStrategy}.
  */
 public class FileProcessor {
 
@@ -41,34 +82,71 @@ public class FileProcessor {
   private static final Log log = LogFactory.getLog(FileProcessor.class);
 
   /**
-   * If true, generates an corrections log file.
+   * The encoding of files whose bytes are corrected directly.
    */
-  private boolean generateLog = false;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * The encoding of lines that are not valid UTF-8, which keeps every byte.
+   */
+  private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+  /**
+   * The size of the buffer a file is read through.
+   */
+  static final int READ_BUFFER_SIZE = 256 * 1024;
 
   /**
-   * The file being processed.
+   * The coarsest resolution, in milliseconds, of file modification times,
+   * allowed for when comparing them with the clock.
    */
-  private File infile;
+  private static final long MTIME_RESOLUTION = 2000;
 
   /**
-   * The file containing the auto-corrections.
+   * The buffer each thread corrects lines in, reused for every line.
    */
-  private File outfile;
+  private static final ThreadLocal<StringBuilder> LINE_BUFFER = new ThreadLocal<StringBuilder>() {
+    @Override
+    protected StringBuilder initialValue() {
+      return new StringBuilder(256);
+    }
+  };
 
   /**
-   * Records the number of lines processed.
+   * The buffer each thread keeps the word being corrected in, as it was before
+   * it was corrected.
    */
-  private int lineCount;
+  private static final ThreadLocal<StringBuilder> ORIGINAL_WORD = new ThreadLocal<StringBuilder>() {
+    @Override
+    protected StringBuilder initialValue() {
+      return new StringBuilder(32);
+    }
+  };
 
   /**
-   * Records the number of words processed.
+   * If true, generates an corrections log file.
    */
-  private int wordCount;
+  private boolean generateLog = false;
 
   /**
-   * Records the number of words corrected.
+   * The SRT file to process, as given to the constructor.
    */
-  private int correctedCount;
+  private File file;
+
+  /**
+   * How the original of the file is kept.
+   */
+  private Backup backup = Backup.RENAME;
+
+  /**
+   * If true, the file is only checked, and nothing is written.
+   */
+  private boolean checkOnly = false;
+
+  /**
+   * Records the number of lines, words and corrections for this file.
+   */
+  private Statistics statistics = new Statistics();
 
   /**
    * If the user want a log of corrections, we'll keep track of the corrections
@@ -76,6 +154,101 @@ public class FileProcessor {
    */
   private TreeMap<String, String> correctedWords = new TreeMap<String, String>();
 
+  /**
+   * The encoding of the file, detected when it is read.
+   */
+  private Encoding encoding;
+
+  /**
+   * The results of files already corrected, or null to correct every file.
+   */
+  private DedupeCache cache;
+
+  /**
+   * The key for the contents of the file in {@link #cache}.
+   */
+  private String cacheKey;
+
+  /**
+   * The cached result for the contents of the file, or null if there was
+   * none.
+   */
+  private DedupeCache.Entry cached;
+
+  /**
+   * The engine that corrects the words.
+   */
+  private Engine engine = Engine.LEGACY;
+
+  /**
+   * The model that chooses between the I and l spellings of a word, or null.
+   */
+  private FrequencyModel model;
+
+  /**
+   * The index that corrects other OCR confusions, or null to leave them.
+   */
+  private ConfusionIndex confusions;
+
+  /**
+   * If true, patch the file in place rather than rewrite it.
+   */
+  private boolean inPlace = false;
+
+  /**
+   * If true, keep an undo log when patching the file in place.
+   */
+  private boolean undoLog = true;
+
+  /**
+   * If true, the file is UTF-8 and its bytes are corrected directly.
+   */
+  private boolean utf8 = false;
+
+  /**
+   * Decodes the lines of a UTF-8 file, reporting malformed input.
+   */
+  private CharsetDecoder decoder;
+
+  /**
+   * A buffer for copying the bytes of a memory-mapped file.
+   */
+  private byte[] scratch;
+
+  /**
+   * The dictionary the file is corrected with, including the overlays of its
+   * directory. Taken when the file is started so that the whole file is
+   * corrected with the same version.
+   */
+  private DictionarySnapshot dictionary;
+
+  /**
+   * How the corrected file is written, picked when the file is started.
+   */
+  private OutputStrategy strategy;
+
+  /**
+   * True between a successful {@link #read()} and the {@link #write()} that
+   * ends the stages.
+   */
+  private boolean staged = false;
+
+  /**
+   * True once the file has been counted as processed or failed.
+   */
+  private boolean counted = false;
+
+  /**
+   * True while the corrected file waits in the {@link SyncBatch} to be moved
+   * into place; it is counted once it is.
+   */
+  private boolean pending = false;
+
+  /**
+   * The batch the file is part of, told when the file is done, or null.
+   */
+  private BatchProcessor batch;
+
   /**
    * Constructor
    * 
@@ -86,42 +259,582 @@ public class FileProcessor {
    */
   public FileProcessor(File file, boolean generateLog) {
     this.generateLog = generateLog;
-    this.infile = file.getAbsoluteFile();
+    this.file = file.getAbsoluteFile();
+  }
+
+  /**
+   * Processes the file in one go, streaming it a line at a time where its
+   * {@link OutputStrategy} allows.
+   * 
+   * @return True if the file was processed, false if an error occurred.
+   */
+  public boolean process() {
+    boolean result = false;
+    start();
+    try {
+      strategy.process();
+      result = true;
+    } catch (IOException e) {
+      Reporter.INSTANCE.displayError("Error while processing file " + file.getAbsolutePath() + ": " + e.getMessage());
+      log.error(e.getMessage(), e);
+      strategy.discard();
+    }
+    strategy.finish();
+    count(result);
+    return result;
   }
 
   /**
-   * Processes the file by:
-   * <ol>
-   * <li>Backing up the file via a rename</li>
-   * <li>Recreating the file and copying the contents over</li>
-   * </ol>
+   * The first stage: reads the contents of the file into memory. If the
+   * contents cannot be read, the file is counted as failed; the other stages
+   * then do nothing.
+   * 
+   * @return True if the file was read, false if an error occurred.
    */
-  public void process() {
-    String fileName = infile.getAbsolutePath();
-    log.info("processing file: " + fileName);
-    String backupFileName = generateFileName(infile, ".bak");
-    log.info("backing up as: " + backupFileName);
-    File backupFile = new File(backupFileName);
-    if (backupFile.exists()) {
-      backupFile.delete();
+  public boolean read() {
+    start();
+    try {
+      strategy.read();
+      staged = true;
+    } catch (IOException e) {
+      Reporter.INSTANCE.displayError("Error while reading file " + file.getAbsolutePath(), e);
+      strategy.discard();
+      count(false);
     }
-    if (!infile.renameTo(new File(backupFileName))) {
-      Reporter.INSTANCE.displayError("Unable to rename file " + fileName + " to " + backupFileName);
+    return staged;
+  }
+
+  /**
+   * The second stage: corrects the contents read by {@link #read()}.
+   */
+  public void correct() {
+    if (staged) {
+      strategy.correct();
+    }
+  }
+
+  /**
+   * The final stage: writes the corrected contents to the file, the
+   * corrections log if requested, and reports the statistics.
+   * 
+   * @return True if the file was processed, false if an error occurred in
+   *         any of the stages.
+   */
+  public boolean write() {
+    boolean result = false;
+    if (staged) {
+      staged = false;
+      try {
+        strategy.write();
+        result = true;
+      } catch (IOException e) {
+        Reporter.INSTANCE.displayError("Error while writing file " + file.getAbsolutePath(), e);
+        strategy.discard();
+      }
+      strategy.finish();
+    }
+    count(result);
+    return result;
+  }
+
+  /**
+   * Starts processing the file: takes the dictionary to correct it with and
+   * picks how it is written.
+   */
+  private void start() {
+    dictionary = Dictionary.INSTANCE.getSnapshot(file.getParentFile());
+    if (checkOnly) {
+      strategy = new CheckStrategy(this);
+    } else if (inPlace) {
+      strategy = new PatchStrategy(this, undoLog);
+    } else {
+      strategy = new RewriteStrategy(this, backup);
+    }
+    strategy.start();
+  }
+
+  /**
+   * Counts the file as processed or failed, unless it has already been
+   * counted or is waiting to be moved into place, and tells the batch it is
+   * done. Called from the thread that commits the {@link SyncBatch} as well as
+   * the one processing the file.
+   * 
+   * @param processed
+   *          True if the file was processed.
+   */
+  private void count(boolean processed) {
+    boolean done = false;
+    synchronized (this) {
+      if (!counted && !pending) {
+        counted = true;
+        statistics.addFile(!processed);
+        done = true;
+      }
+    }
+    if (done && batch != null) {
+      batch.completed(file, statistics);
+    }
+  }
+
+  /**
+   * Determines if the move of the corrected file into place can wait for the
+   * rest of its {@link SyncBatch}. It can in a batch, which is told when the
+   * file is done, as long as files are forced to disk at all.
+   * 
+   * @return True if the move can wait.
+   */
+  boolean isBatched() {
+    return batch != null && SyncBatch.getSize() > 0;
+  }
+
+  /**
+   * Hands the corrected file over to the {@link SyncBatch}, holding back the
+   * count until it is moved into place, see {@link #committed(boolean)}.
+   * 
+   * @param commit
+   *          The commit of the file.
+   */
+  void defer(SyncBatch.Commit commit) {
+    synchronized (this) {
+      pending = true;
+    }
+    SyncBatch.defer(commit);
+  }
+
+  /**
+   * Counts the file once the {@link SyncBatch} has moved it into place, or
+   * failed to.
+   * 
+   * @param moved
+   *          True if the file was moved into place.
+   */
+  void committed(boolean moved) {
+    synchronized (this) {
+      pending = false;
+    }
+    count(moved);
+  }
+
+  /**
+   * Gives up on the file after an unexpected error escaped one of the stages:
+   * whatever its strategy wrote is discarded and the file counted as failed,
+   * unless it was already counted. A file already handed over to the
+   * {@link SyncBatch} is left to it.
+   */
+  public void abandon() {
+    boolean handedOver;
+    synchronized (this) {
+      handedOver = pending;
+    }
+    if (strategy != null && !handedOver) {
+      strategy.discard();
+    }
+    staged = false;
+    count(false);
+  }
+
+  /**
+   * Opens the file for reading, in the encoding detected from its first
+   * bytes. If there is a cache, the whole file is read so that its contents
+   * can be hashed, and any cached result for them is looked up.
+   * 
+   * @return The reader for the file.
+   * @throws IOException
+   *           The file could not be read.
+   */
+  LineReader openInput() throws IOException {
+    LineReader result;
+    if (cache == null) {
+      InputStream in = new BufferedInputStream(new FileInputStream(file), READ_BUFFER_SIZE);
+      try {
+        encoding = Encoding.detect(in);
+      } catch (IOException e) {
+        in.close();
+        throw e;
+      }
+      statistics.setEncoding(encoding.toString());
+      result = new LineReader(encoding.newReader(in));
     } else {
-      Reporter.INSTANCE.displayMessage("Correcting " + fileName);
-      outfile = new File(fileName);
-      infile = new File(backupFileName);
+      byte[] contents = DedupeCache.readBytes(file);
+      lookUp(contents);
+      result = openContents(contents);
+    }
+    return result;
+  }
+
+  /**
+   * Opens the contents of the file, already in memory, for reading in the
+   * encoding detected from its first bytes.
+   * 
+   * @param contents
+   *          The contents of the file.
+   * @return The reader for the contents.
+   * @throws IOException
+   *           The byte order mark could not be skipped.
+   */
+  LineReader openContents(byte[] contents) throws IOException {
+    encoding = Encoding.detect(contents, contents.length);
+    statistics.setEncoding(encoding.toString());
+    return new LineReader(encoding.newReader(new ByteArrayInputStream(contents)));
+  }
+
+  /**
+   * Looks up the cached result for the contents of the file, if there is a
+   * cache.
+   * 
+   * @param contents
+   *          The contents of the file.
+   * @throws IOException
+   *           The key could not be computed.
+   */
+  void lookUp(byte[] contents) throws IOException {
+    if (cache != null) {
+      String version = versionOf(dictionary, model, confusions);
+      cacheKey = cache.keyFor(ContentHash.toHex(ContentHash.newDigest().digest(contents)), version);
+      cached = cache.get(cacheKey);
+    }
+  }
+
+  /**
+   * Gets the cached result for the contents of the file.
+   * 
+   * @return The result, or null if there is none.
+   */
+  DedupeCache.Entry getCached() {
+    return cached;
+  }
+
+  /**
+   * Determines if the bytes of the file are corrected directly.
+   * 
+   * @return True if the file is UTF-8.
+   */
+  boolean isUtf8() {
+    return utf8;
+  }
+
+  /**
+   * Gets the encoding of the file, detected when it was opened.
+   * 
+   * @return The encoding.
+   */
+  Encoding getEncoding() {
+    return encoding;
+  }
+
+  /**
+   * Gets the version of everything the corrections made to a file depend on:
+   * the dictionary with its overlays, and the frequency model and word list
+   * if there are any.
+   * 
+   * @param dictionary
+   *          The dictionary the file is corrected with.
+   * @param model
+   *          The frequency model, or null for none.
+   * @param confusions
+   *          The word list, or null for none.
+   * @return The version; that of the dictionary alone if there is neither a
+   *         model nor a word list.
+   */
+  static String versionOf(DictionarySnapshot dictionary, FrequencyModel model, ConfusionIndex confusions) {
+    String result = dictionary.getVersion();
+    if (model != null || confusions != null) {
+      String versions = result + (model == null ? "" : model.getVersion())
+          + (confusions == null ? "" : confusions.getVersion());
+      result = ContentHash.toHex(ContentHash.newDigest().digest(versions.getBytes(UTF_8)));
+    }
+    return result;
+  }
+
+  /**
+   * Takes the statistics and corrections of the file from its cached result,
+   * in place of correcting it.
+   */
+  void useCached() {
+    log.info("using cached result: " + cacheKey);
+    statistics.add(cached.getStatistics());
+    correctedWords.putAll(cached.getCorrections());
+  }
+
+  /**
+   * Stores the result of correcting the file in the cache, if there is one.
+   * Failing to do so is not an error for this file.
+   * 
+   * @param written
+   *          The file the corrected contents were written to.
+   */
+  void storeInCache(File written) {
+    if (cache != null) {
       try {
-        copyContents();
-      } catch (Exception e) {
-        Reporter.INSTANCE.displayError("Error while processing file " + fileName + ": " + e.getMessage());
-        log.error(e.getMessage(), e);
+        cache.put(cacheKey, new DedupeCache.Entry(DedupeCache.readBytes(written), new Statistics(
+            statistics.getLineCount(), statistics.getWordCount(), statistics.getCorrectedCount()),
+            new TreeMap<String, String>(correctedWords)));
+      } catch (IOException e) {
+        log.warn("unable to cache the result for " + file.getAbsolutePath(), e);
       }
-      reportStatistics();
-      if (generateLog) {
-        reportCorrections();
+    }
+  }
+
+  /**
+   * Reports the statistics and, if requested, writes the corrections log once
+   * the file has been written.
+   */
+  void report() {
+    reportStatistics();
+    if (generateLog) {
+      reportCorrections();
+    }
+  }
+
+  /**
+   * Sets the cache of results for files already corrected.
+   * 
+   * @param cache
+   *          The cache, or null to correct every file.
+   */
+  public final void setCache(DedupeCache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Sets the engine that corrects the words.
+   * 
+   * @param engine
+   *          The engine.
+   */
+  public final void setEngine(Engine engine) {
+    this.engine = engine;
+  }
+
+  /**
+   * Sets the word frequency model that chooses between the spellings of a
+   * word that differ in I's and l's, see
+   * {@link FrequencyModel#choose(StringBuilder, int, int, String)}. Exception cases
+   * in the dictionary are left to the rules.
+   * 
+   * @param model
+   *          The model, or null for none.
+   */
+  public final void setModel(FrequencyModel model) {
+    this.model = model;
+  }
+
+  /**
+   * Turns the correction of OCR confusions the word rules cannot correct on
+   * or off for this file, see {@link ConfusionIndex}. The confusions are
+   * corrected after the rules, and a choice between several known words is
+   * left to the frequency model, see {@link #setModel(FrequencyModel)}.
+   * 
+   * @param confusions
+   *          The index of known words, or null to turn it off.
+   */
+  public final void setConfusions(ConfusionIndex confusions) {
+    this.confusions = confusions;
+  }
+
+  /**
+   * Sets whether the file is UTF-8, or ASCII, so that its bytes can be
+   * corrected directly rather than decoded and encoded again with the
+   * platform's encoding. A line that is not valid UTF-8 is decoded as ISO
+   * 8859-1 instead, so its bytes are kept as they were. The line terminators
+   * are kept as they were too.
+   * 
+   * @param utf8
+   *          True if the file is UTF-8.
+   */
+  public final void setUtf8(boolean utf8) {
+    this.utf8 = utf8;
+  }
+
+  /**
+   * Sets whether to patch the file in place, writing only the bytes that
+   * changed, rather than back it up and rewrite it.
+   * 
+   * @param inPlace
+   *          True to patch the file in place.
+   */
+  public final void setInPlace(boolean inPlace) {
+    this.inPlace = inPlace;
+  }
+
+  /**
+   * Sets whether to keep an undo log of the bytes overwritten when patching
+   * the file in place, see {@link #undoFileFor(File)}.
+   * 
+   * @param undoLog
+   *          True to keep the undo log, false to keep no backup at all.
+   */
+  public final void setUndoLog(boolean undoLog) {
+    this.undoLog = undoLog;
+  }
+
+  /**
+   * Sets whether to only check the file: it is corrected as usual, but
+   * neither the file, a backup nor a corrections log is written, and a
+   * cached result is used but not stored. The statistics count the
+   * corrections the file needs, and count the file as needing corrections if
+   * there are any, see {@link Statistics#getNeedsCorrectionCount()}.
+   * 
+   * @param checkOnly
+   *          True to only check the file.
+   */
+  public final void setCheckOnly(boolean checkOnly) {
+    this.checkOnly = checkOnly;
+  }
+
+  /**
+   * Sets how the original of the file is kept when it is written again in
+   * full. Not used when the file is patched in place.
+   * 
+   * @param backup
+   *          The backup strategy.
+   */
+  public final void setBackup(Backup backup) {
+    this.backup = backup;
+  }
+
+  /**
+   * Makes the file part of a batch, which is told once the file is done, see
+   * {@link BatchProcessor#completed(File, Statistics)}. A corrected file then
+   * waits for the rest of its {@link SyncBatch} to be moved into place, so
+   * the batch may be told after the processing methods return.
+   * 
+   * @param batch
+   *          The batch.
+   */
+  final void setBatch(BatchProcessor batch) {
+    this.batch = batch;
+  }
+
+  /**
+   * Gets the undo log kept when a file is patched in place.
+   * 
+   * @param file
+   *          The SRT file.
+   * @return The undo log, <code>*.undo</code> next to the file.
+   */
+  public static File undoFileFor(File file) {
+    return new File(generateFileName(file.getAbsoluteFile(), ".undo"));
+  }
+
+  /**
+   * Gets the backup kept of a file by a backup strategy.
+   * 
+   * @param file
+   *          The SRT file.
+   * @param backup
+   *          The backup strategy.
+   * @return The backup next to the file, or null if the strategy keeps none.
+   */
+  public static File backupFileFor(File file, Backup backup) {
+    String extension = backup.getExtension();
+    return extension == null ? null : new File(generateFileName(file.getAbsoluteFile(), extension));
+  }
+
+  /**
+   * Gets the temporary file the corrected contents of a file are written to
+   * before they are moved into its place.
+   * 
+   * @param file
+   *          The SRT file.
+   * @return The temporary file, <code>*.srt.tmp</code> next to the file.
+   */
+  static File tempFileFor(File file) {
+    return new File(file.getAbsolutePath() + ".tmp");
+  }
+
+  /**
+   * Gets the SRT file this processor works on.
+   * 
+   * @return The absolute SRT file.
+   */
+  public final File getFile() {
+    return file;
+  }
+
+  /**
+   * Gets the corrections made to the file, mapping each misspelled word to its
+   * correction. Only recorded if a corrections log was requested or there is a
+   * cache.
+   * 
+   * @return The corrections, sorted by misspelled word.
+   */
+  public final Map<String, String> getCorrections() {
+    return Collections.unmodifiableMap(correctedWords);
+  }
+
+  /**
+   * Puts the original of a file back if processing it was interrupted part
+   * way through, leaving it incomplete. A temporary file left behind is
+   * deleted.
+   * <p>
+   * The corrected contents are written to a temporary file and only then
+   * moved over the file, so the file itself is only ever incomplete when it
+   * is missing: the original was renamed to its backup but the temporary file
+   * was not yet moved into its place. The backup is then restored, provided
+   * the temporary file was written at or after the given time; the backup
+   * itself keeps the time of the original. A file that exists is left alone,
+   * whatever backup lies next to it, except that a file patched in place is
+   * undone if its undo log was written at or after the given time, as a
+   * partly applied patch cannot be told from a complete one.
+   * 
+   * @param file
+   *          The SRT file.
+   * @param since
+   *          The time, in milliseconds, at which processing of the file
+   *          started; 0 if not known.
+   * @return True if the original file was restored.
+   */
+  public static boolean recover(File file, long since) {
+    boolean result = false;
+    long after = since - MTIME_RESOLUTION;
+    File tempFile = tempFileFor(file);
+    boolean incomplete = !file.exists() && tempFile.exists() && tempFile.lastModified() >= after;
+    if (tempFile.exists() && !tempFile.delete()) {
+      log.warn("unable to delete " + tempFile.getAbsolutePath());
+    }
+    File backupFile = backupFileFor(file, Backup.RENAME);
+    if (incomplete && backupFile.exists()) {
+      log.info("restoring interrupted file: " + file.getAbsolutePath());
+      file.delete();
+      result = backupFile.renameTo(file);
+      if (!result) {
+        Reporter.INSTANCE.displayError("Unable to restore " + file.getAbsolutePath() + " from " + backupFile.getAbsolutePath());
+      }
+    }
+    File compressedFile = backupFileFor(file, Backup.GZIP);
+    if (!result && incomplete && compressedFile.exists()) {
+      log.info("uncompressing interrupted file: " + file.getAbsolutePath());
+      try {
+        Backup.uncompress(compressedFile, tempFile);
+        Backup.replace(tempFile, file);
+        result = true;
+      } catch (IOException e) {
+        tempFile.delete();
+        Reporter.INSTANCE.displayError("Unable to restore " + file.getAbsolutePath() + " from " + compressedFile.getAbsolutePath(), e);
+      }
+    }
+    File undoFile = undoFileFor(file);
+    if (!result && undoFile.exists() && file.exists() && undoFile.lastModified() >= after) {
+      log.info("undoing interrupted file: " + file.getAbsolutePath());
+      try {
+        Patcher.undo(file, undoFile);
+        result = true;
+      } catch (IOException e) {
+        Reporter.INSTANCE.displayError("Unable to restore " + file.getAbsolutePath() + " from " + undoFile.getAbsolutePath(), e);
       }
     }
+    return result;
+  }
+
+  /**
+   * Gets the statistics gathered for the file. Valid only after
+   * {@link #process()} has been called.
+   * 
+   * @return The statistics for the file.
+   */
+  public final Statistics getStatistics() {
+    return statistics;
   }
 
   /**
@@ -143,7 +856,7 @@ public class FileProcessor {
    *          The file for which to generate a name.
    * @return The generate absolute path name.
    */
-  private String generateFileName(File file, String extension) {
+  private static String generateFileName(File file, String extension) {
     StringBuilder backupName = new StringBuilder(file.getName());
     int inx = backupName.toString().lastIndexOf('.');
     if (inx > 0) {
@@ -155,88 +868,342 @@ public class FileProcessor {
   }
 
   /**
-   * Copies the contents from the backup file to the newly-created file with the
-   * original file's name one line at a time. Calls {@link #processLine(String)}
-   * for each line.
+   * Corrects the lines of a UTF-8 file without decoding those the
+   * {@link LineFilter} can prove unchanged from their bytes, which is most of
+   * them. The others are decoded, corrected by
+   * {@link #correctLine(String, int)} and, if changed, encoded again; all the
+   * other bytes, including the line terminators, are copied through in as few
+   * writes as possible. With OCR confusions to correct, a line the filter
+   * passes is still decoded if it holds a token that could be a confusion,
+   * see {@link ConfusionIndex#isSuspicious(ByteBuffer, int, int)}.
    * 
-   * @throws Exception
-   *           Something went wrong.
+   * @param in
+   *          The contents of the file.
+   * @param out
+   *          The stream to write the corrected contents to.
+   * @throws IOException
+   *           The corrected contents could not be written.
    */
-  private void copyContents() throws Exception {
-    PrintStream out = null;
-    BufferedReader in = null;
-    try {
-      out = new PrintStream(new FileOutputStream(outfile));
-      in = new BufferedReader(new FileReader(infile));
-      String line = null;
-      while ((line = in.readLine()) != null) {
-        lineCount++;
-        log.debug("***Line #" + lineCount + ": " + line);
+  void correctBytes(ByteBuffer in, OutputStream out) throws IOException {
+    LineFilter filter = dictionary.getLineFilter();
+    int length = in.limit();
+    int copied = 0;
+    int first = 0;
+    int lineNumber = 0;
+    while (first < length) {
+      int after = first;
+      byte b;
+      while (after < length && (b = in.get(after)) != '\n' && b != '\r') {
+        after++;
+      }
+      lineNumber++;
+      int words = filter.unchangedWordCount(in, first, after);
+      if (words >= 0 && (confusions == null || !ConfusionIndex.isSuspicious(in, first, after))) {
+        statistics.addLine();
+        statistics.addWords(words);
+        statistics.addFilteredLine();
+      } else {
+        Charset charset = UTF_8;
+        ByteBuffer bytes = in.duplicate();
+        bytes.limit(after).position(first);
+        String line;
+        if (decoder == null) {
+          decoder = UTF_8.newDecoder();
+        }
         try {
-          out.println(processLine(line));
-        } catch (Exception e) {
-          Reporter.INSTANCE.displayError("Error encountered processing line #"
-              + lineCount
-              + ", may be only partially corrected: "
-              + line);
-          log.error(e.getMessage(), e);
-          out.println(line);
+          line = decoder.decode(bytes).toString();
+        } catch (CharacterCodingException e) {
+          charset = ISO_8859_1;
+          bytes.limit(after).position(first);
+          line = charset.decode(bytes).toString();
+        }
+        String corrected = correctLine(line, lineNumber);
+        if (corrected != line) {
+          copy(in, copied, first, out);
+          out.write(corrected.getBytes(charset));
+          copied = after;
         }
       }
-    } finally {
-      if (out != null) {
-        out.close();
+      first = after;
+      if (first < length) {
+        first++;
+        if (in.get(after) == '\r' && first < length && in.get(first) == '\n') {
+          first++;
+        }
       }
-      if (in != null) {
-        in.close();
+    }
+    copy(in, copied, length, out);
+  }
+
+  /**
+   * Copies bytes from a buffer to a stream.
+   * 
+   * @param in
+   *          The buffer.
+   * @param first
+   *          The index of the first byte to copy.
+   * @param after
+   *          The index after the last byte to copy.
+   * @param out
+   *          The stream.
+   * @throws IOException
+   *           The bytes could not be written.
+   */
+  private void copy(ByteBuffer in, int first, int after, OutputStream out) throws IOException {
+    if (in.hasArray()) {
+      out.write(in.array(), in.arrayOffset() + first, after - first);
+    } else {
+      if (scratch == null) {
+        scratch = new byte[64 * 1024];
       }
+      ByteBuffer bytes = in.duplicate();
+      bytes.limit(after).position(first);
+      while (bytes.hasRemaining()) {
+        int count = Math.min(scratch.length, bytes.remaining());
+        bytes.get(scratch, 0, count);
+        out.write(scratch, 0, count);
+      }
+    }
+  }
+
+  /**
+   * Corrects a single line, counting it in the statistics. If something goes
+   * wrong the error is reported and the line is returned as it was.
+   * 
+   * @param line
+   *          The line of text to correct.
+   * @param lineNumber
+   *          The number of the line within the file, used in messages.
+   * @return The corrected line.
+   */
+  String correctLine(String line, int lineNumber) {
+    String result = line;
+    statistics.addLine();
+    if (log.isDebugEnabled()) {
+      log.debug("***Line #" + lineNumber + ": " + line);
     }
+    try {
+      result = processLine(line);
+    } catch (Exception e) {
+      Reporter.INSTANCE.displayError("Error encountered processing line #"
+          + lineNumber
+          + ", may be only partially corrected: "
+          + line);
+      log.error(e.getMessage(), e);
+    }
+    return result;
   }
 
   /**
    * Examines the line of text given looking for words. It recognizes that a
    * word is starting when it comes across a letter. Once it finds a letter, it
-   * passes control to {@link WordProcessor} which will extract the current word
-   * and determine if it can be corrected.
+   * passes control to the {@link WordEngine} which will extract the current
+   * word and determine if it can be corrected.
+   * <p>
+   * A line the {@link LineFilter} proves cannot change is returned as it is,
+   * see {@link #correctWords(String)} for the others. If turned on, the OCR
+   * confusions of every line are corrected afterwards, see
+   * {@link #correctConfusions(String)}.
    * 
    * @param line
    *          The line of text to process.
-   * @return The processed, corrected, line of text.
+   * @return The processed, corrected, line of text. The same instance as
+   *         <code>line</code> if nothing was corrected.
    */
   private String processLine(String line) {
-    StringBuilder result = new StringBuilder(line);
+    String result = line;
+    int words = dictionary.getLineFilter().unchangedWordCount(line);
+    if (words >= 0) {
+      statistics.addWords(words);
+      statistics.addFilteredLine();
+    } else {
+      result = correctWords(line);
+    }
+    if (confusions != null) {
+      result = correctConfusions(result);
+    }
+    return result;
+  }
+
+  /**
+   * Replaces each token of a line that is a misreading of a known word, see
+   * {@link ConfusionIndex#correct(CharSequence, int, int, FrequencyModel)}.
+   * Exception cases in the dictionary are left alone.
+   * 
+   * @param line
+   *          The line of text to correct.
+   * @return The corrected line of text. The same instance as
+   *         <code>line</code> if nothing was corrected.
+   */
+  private String correctConfusions(String line) {
+    StringBuilder result = null;
+    int last = 0;
+    for (int i = 0; i < line.length(); i++) {
+      int after = ConfusionIndex.tokenEnd(line, i);
+      String correction = null;
+      if (ConfusionIndex.isSuspicious(line, i, after)) {
+        correction = confusions.correct(line, i, after, model);
+      }
+      if (correction != null) {
+        String token = line.substring(i, after);
+        if (!dictionary.exceptionCase(token)) {
+          if (result == null) {
+            result = new StringBuilder(line.length());
+          }
+          result.append(line, last, i).append(correction);
+          last = after;
+          addCorrection(token, correction);
+        }
+      }
+      if (after > i) {
+        i = after;
+      }
+    }
+    return result == null ? line : result.append(line, last, line.length()).toString();
+  }
+
+  /**
+   * Corrects the phrases of a line, see
+   * {@link DictionarySnapshot#correctPhrases(StringBuilder, Map)}, and then
+   * each word. A word found in the dictionary's {@link WordCache} is
+   * corrected as it was before; only the others are given to the word engine,
+   * and then added to the cache. The line is corrected in a buffer and word
+   * engine reused by the thread, so a line with nothing to correct costs no
+   * allocation, and a word not yet cached costs only its cache entry.
+   * 
+   * @param line
+   *          The line of text to correct.
+   * @return The corrected line of text. The same instance as
+   *         <code>line</code> if nothing was corrected.
+   */
+  private String correctWords(String line) {
+    StringBuilder result = LINE_BUFFER.get();
+    result.setLength(0);
+    result.append(line);
+    WordEngine word = engine.get();
+    word.setDictionary(dictionary);
+    int phrases = dictionary.correctPhrases(result, generateLog || cache != null ? correctedWords : null);
+    boolean corrected = phrases > 0;
+    for (int i = 0; i < phrases; i++) {
+      statistics.addCorrection();
+    }
+    WordCache words = dictionary.getWordCache(model);
     for (int i = 0; i < result.length(); i++) {
-      if (Character.isLetter(result.charAt(i))) {
-        WordProcessor word = new WordProcessor(result, i);
-        i = word.process();
-        if (word.isCorrectionMade()) {
-          correctedCount++;
-          if (generateLog) {
-            if (!correctedWords.containsKey(word.getOriginalWord())) {
-              correctedWords.put(word.getOriginalWord(), word.getCorrectedWord());
+      if (CharClass.isLetter(result.charAt(i))) {
+        int after = WordCache.wordEnd(result, i);
+        WordCache.Entry known = words.get(result, i, after);
+        if (known != null) {
+          statistics.addCacheHit();
+          if (known.apply(result, i)) {
+            corrected = true;
+            addCorrection(known.getWord(), known.getCorrection());
+          }
+          i = after;
+        } else {
+          statistics.addCacheMiss();
+          int first = i;
+          StringBuilder original = ORIGINAL_WORD.get();
+          original.setLength(0);
+          original.append(result, first, after);
+          word.reset(result, first);
+          i = word.process();
+          String correction = word.isCorrectionMade() ? word.getCorrectedWord() : null;
+          if (model != null && !dictionary.isExceptionCase(dictionary.find(original, 0, original.length()))
+              && model.choose(result, first, i, original)) {
+            correction = result.substring(first, i);
+            if (correction.contentEquals(original)) {
+              correction = null;
             }
           }
+          if (correction != null) {
+            corrected = true;
+            addCorrection(word.getOriginalWord(), correction);
+          }
+          words.put(original, 0, original.length(), correction);
         }
-        wordCount++;
+        statistics.addWord();
+      }
+    }
+    return corrected ? result.toString() : line;
+  }
+
+  /**
+   * Counts a corrected word, and remembers it for the corrections log.
+   * 
+   * @param original
+   *          The word as it was.
+   * @param corrected
+   *          The corrected word.
+   */
+  private void addCorrection(String original, String corrected) {
+    statistics.addCorrection();
+    if (generateLog || cache != null) {
+      if (!correctedWords.containsKey(original)) {
+        correctedWords.put(original, corrected);
       }
     }
-    return result.toString();
   }
 
   /**
    * Display statistics for the file that was processed.
    */
   private void reportStatistics() {
-    Reporter.INSTANCE.displayMessage("# Lines: " + lineCount);
-    Reporter.INSTANCE.displayMessage("# Words: " + wordCount);
-    Reporter.INSTANCE.displayMessage("# Corrections: " + correctedCount);
+    Reporter.INSTANCE.displayMessages("Statistics for " + file.getAbsolutePath(),
+                                      "# Lines: " + statistics.getLineCount(),
+                                      "# Words: " + statistics.getWordCount(),
+                                      "# Corrections: " + statistics.getCorrectedCount());
+    Reporter.INSTANCE.displayVerboseMessage(filterMessage(statistics));
+    Reporter.INSTANCE.displayVerboseMessage(cacheMessage(statistics));
+    if (statistics.getEncoding() != null) {
+      Reporter.INSTANCE.displayVerboseMessage("# Encoding: " + statistics.getEncoding());
+      Reporter.INSTANCE.displayVerboseMessage(decodeMessage(statistics));
+    }
+  }
+
+  /**
+   * Formats the time spent reading and decoding files.
+   * 
+   * @param statistics
+   *          The statistics to report on.
+   * @return The message.
+   */
+  static String decodeMessage(Statistics statistics) {
+    return String.format("# Decoding: %.1f ms", statistics.getDecodeNanos() / 1000000.0);
+  }
+
+  /**
+   * Formats the number of lines the {@link LineFilter} passed unchanged, and
+   * their share of all of the lines.
+   * 
+   * @param statistics
+   *          The statistics to report on.
+   * @return The message.
+   */
+  static String filterMessage(Statistics statistics) {
+    long lines = statistics.getLineCount();
+    long filtered = statistics.getFilteredCount();
+    return String.format("# Lines skipped by prefilter: %d (%.1f%%)", filtered, lines == 0 ? 0.0 : filtered * 100.0 / lines);
+  }
+
+  /**
+   * Formats the number of words found in the {@link WordCache}, and their
+   * share of the words looked up.
+   * 
+   * @param statistics
+   *          The statistics to report on.
+   * @return The message.
+   */
+  static String cacheMessage(Statistics statistics) {
+    long hits = statistics.getCacheHitCount();
+    long lookups = hits + statistics.getCacheMissCount();
+    return String.format("# Word cache hits: %d of %d (%.1f%%)", hits, lookups, lookups == 0 ? 0.0 : hits * 100.0 / lookups);
   }
 
   /**
    * Generated the corrections log file.
    */
   private void reportCorrections() {
-    File corFile = new File(generateFileName(infile, ".log"));
+    File corFile = new File(generateFileName(file, ".log"));
     PrintStream out = null;
     try {
       out = new PrintStream(new FileOutputStream(corFile));
@@ -0,0 +1,440 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * How often words appear in a corpus of clean subtitles, used to choose
+ * between the spellings of a word that differ only in its I's and l's, see
+ * {@link #choose(StringBuilder, int, int, String)}. The rules guess from the shape
+ * of a word, which goes wrong for words such as "Ill"; the model knows which
+ * spelling is actually used.
+ * <p>
+ * The model is built by running this class over the corpus:
+ * 
+ * <pre>
+ * java org.cafed00d.subtitle.FrequencyModel words.model clean-subtitles/
+ * </pre>
+ * <p>
+ * and used with the <code>m</code> option of {@link AutoCorrect}.
+ * <p>
+ * The file is memory-mapped and searched in place, as is a
+ * {@link CompiledDictionary}, so loading it costs neither time nor heap. The
+ * words themselves are not kept: each slot of an open-addressing table holds
+ * a 32 bit fingerprint of the word and its count, quantized to one byte on a
+ * logarithmic scale. A word that is not in the model may, rarely, match the
+ * fingerprint of one that is; for choosing between spellings that does no
+ * harm. All numbers are big-endian:
+ * <ol>
+ * <li>A header of {@link #HEADER_SIZE} bytes: the {@link #MAGIC} number, the
+ * number of slots and the number of words.</li>
+ * <li>The fingerprints, one int per slot.</li>
+ * <li>The quantized counts, one byte per slot; 0 for an empty slot.</li>
+ * </ol>
+ */
+public final class FrequencyModel {
+
+  /**
+   * Identifies the file format: "AFM" and the format version.
+   */
+  static final int MAGIC = 0x41464D01;
+
+  /**
+   * The size of the header in bytes.
+   */
+  static final int HEADER_SIZE = 16;
+
+  /**
+   * The most I's and l's in a word for its spellings to be compared; a word
+   * with n of them has 2 to the n spellings.
+   */
+  private static final int MAX_CONFUSABLE = 4;
+
+  /**
+   * The models opened so far, by file, so that each is mapped only once.
+   */
+  private static final ConcurrentMap<File, FrequencyModel> models = new ConcurrentHashMap<File, FrequencyModel>();
+
+  /**
+   * The file the model was read from.
+   */
+  private final File file;
+
+  /**
+   * The hash of the file's contents.
+   */
+  private final String version;
+
+  /**
+   * The contents of the file. Only read with absolute positions, so that any
+   * number of threads can share it.
+   */
+  private final ByteBuffer buffer;
+
+  /**
+   * The mask giving a slot from a hash.
+   */
+  private final int mask;
+
+  /**
+   * The position of the counts.
+   */
+  private final int counts;
+
+  /**
+   * The number of words.
+   */
+  private final int size;
+
+  /**
+   * Constructor.
+   * 
+   * @param file
+   *          The file the model was read from.
+   * @param version
+   *          The hash of the file's contents.
+   * @param buffer
+   *          The contents of the file.
+   * @throws IOException
+   *           The contents are not a model.
+   */
+  FrequencyModel(File file, String version, ByteBuffer buffer) throws IOException {
+    if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+      throw new IOException("Not a word frequency model");
+    }
+    this.file = file;
+    this.version = version;
+    this.buffer = buffer;
+    int slots = buffer.getInt(4);
+    size = buffer.getInt(8);
+    mask = slots - 1;
+    counts = HEADER_SIZE + slots * 4;
+  }
+
+  /**
+   * Opens a model, or gets the one already opened from the same file.
+   * 
+   * @param file
+   *          The model file.
+   * @return The model.
+   * @throws IOException
+   *           The model could not be read.
+   */
+  public static FrequencyModel open(File file) throws IOException {
+    file = file.getAbsoluteFile();
+    FrequencyModel result = models.get(file);
+    if (result == null) {
+      RandomAccessFile in = new RandomAccessFile(file, "r");
+      try {
+        result = new FrequencyModel(file, ContentHash.of(file), in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length()));
+      } finally {
+        in.close();
+      }
+      FrequencyModel existing = models.putIfAbsent(file, result);
+      if (existing != null) {
+        result = existing;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Gets the file the model was read from.
+   * 
+   * @return The absolute path of the file.
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Gets the version of the model, which changes whenever the file does.
+   * 
+   * @return The hash of the file's contents.
+   */
+  public String getVersion() {
+    return version;
+  }
+
+  /**
+   * Gets the number of words in the model.
+   * 
+   * @return The number of words.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Computes the fingerprint of a word: a hash independent of
+   * {@link WordTable#hash(CharSequence, int, int)}, which picks the slot.
+   * 
+   * @param text
+   *          The text containing the word.
+   * @param first
+   *          The index of the first letter of the word.
+   * @param after
+   *          The index after the last letter of the word.
+   * @return The fingerprint.
+   */
+  private static int fingerprint(CharSequence text, int first, int after) {
+    int hash = 0x811C9DC5;
+    for (int i = first; i < after; i++) {
+      hash = (hash ^ text.charAt(i)) * 0x01000193;
+    }
+    return hash;
+  }
+
+  /**
+   * Quantizes a count to a byte: eight steps for each doubling.
+   * 
+   * @param count
+   *          The count, at least 1.
+   * @return The quantized count, from 1 to 255.
+   */
+  static int quantize(long count) {
+    double steps = Math.log(count) / Math.log(2) * 8;
+    return (int) Math.min(255, 1 + Math.floor(steps));
+  }
+
+  /**
+   * Gets how often a word appears.
+   * 
+   * @param text
+   *          The text containing the word.
+   * @param first
+   *          The index of the first letter of the word.
+   * @param after
+   *          The index after the last letter of the word.
+   * @return The quantized count of the word, larger for more frequent words,
+   *         or 0 if the word is not in the model.
+   */
+  public int frequency(CharSequence text, int first, int after) {
+    int result = 0;
+    int fingerprint = fingerprint(text, first, after);
+    int slot = WordTable.hash(text, first, after) & mask;
+    int count;
+    while (result == 0 && (count = buffer.get(counts + slot) & 0xFF) != 0) {
+      if (buffer.getInt(HEADER_SIZE + slot * 4) == fingerprint) {
+        result = count;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return result;
+  }
+
+  /**
+   * Replaces a corrected word with the most frequent of its spellings that
+   * differ only in I's and l's, if that is more frequent than the correction.
+   * Words changed in other ways, such as by the dictionary, and words with
+   * too many I's and l's, are left as they are.
+   * 
+   * @param line
+   *          The line containing the corrected word, updated in place.
+   * @param first
+   *          The index of the first letter of the word.
+   * @param after
+   *          The index after the last letter of the word.
+   * @param original
+   *          The word before it was corrected.
+   * @return True if the word was changed.
+   */
+  public boolean choose(StringBuilder line, int first, int after, CharSequence original) {
+    int[] positions = new int[MAX_CONFUSABLE];
+    int confusable = 0;
+    int current = 0;
+    boolean eligible = after - first == original.length();
+    for (int i = 0; eligible && i < original.length(); i++) {
+      char ch = original.charAt(i);
+      char now = line.charAt(first + i);
+      if (ch == 'I' || ch == 'l') {
+        eligible = confusable < MAX_CONFUSABLE && (now == 'I' || now == 'l');
+        if (eligible) {
+          if (now == 'I') {
+            current |= 1 << confusable;
+          }
+          positions[confusable++] = first + i;
+        }
+      } else {
+        eligible = ch == now;
+      }
+    }
+    boolean result = false;
+    if (eligible && confusable > 0) {
+      int best = current;
+      int bestFrequency = frequency(line, first, after);
+      for (int variant = 0; variant < 1 << confusable; variant++) {
+        if (variant != current) {
+          spell(line, positions, confusable, variant);
+          int frequency = frequency(line, first, after);
+          if (frequency > bestFrequency) {
+            best = variant;
+            bestFrequency = frequency;
+          }
+        }
+      }
+      spell(line, positions, confusable, best);
+      result = best != current;
+    }
+    return result;
+  }
+
+  /**
+   * Writes one spelling of a word into the line.
+   * 
+   * @param line
+   *          The line.
+   * @param positions
+   *          The indexes of the I's and l's of the word.
+   * @param count
+   *          The number of I's and l's.
+   * @param variant
+   *          The spelling: bit n set for an I at the nth position, clear for an
+   *          l.
+   */
+  private static void spell(StringBuilder line, int[] positions, int count, int variant) {
+    for (int i = 0; i < count; i++) {
+      line.setCharAt(positions[i], (variant & (1 << i)) != 0 ? 'I' : 'l');
+    }
+  }
+
+  /**
+   * Counts the words of an SRT file, as {@link FileProcessor} finds them,
+   * reading it in the {@link Encoding} detected from its first bytes.
+   * 
+   * @param file
+   *          The file.
+   * @param words
+   *          The count of each word, updated.
+   * @throws IOException
+   *           The file could not be read.
+   */
+  static void count(File file, Map<String, long[]> words) throws IOException {
+    InputStream stream = new BufferedInputStream(new FileInputStream(file));
+    BufferedReader in;
+    try {
+      in = new BufferedReader(Encoding.detect(stream).newReader(stream));
+    } catch (IOException e) {
+      stream.close();
+      throw e;
+    }
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        for (int i = 0; i < line.length(); i++) {
+          if (CharClass.isLetter(line.charAt(i))) {
+            int after = WordCache.wordEnd(line, i);
+            String word = line.substring(i, after);
+            long[] count = words.get(word);
+            if (count == null) {
+              words.put(word, new long[] { 1 });
+            } else {
+              count[0]++;
+            }
+            i = after;
+          }
+        }
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Writes a model.
+   * 
+   * @param words
+   *          The count of each word.
+   * @param file
+   *          The file to write.
+   * @throws IOException
+   *           The file could not be written.
+   */
+  static void write(Map<String, long[]> words, File file) throws IOException {
+    int slots = 16;
+    while (slots < words.size() * 4 / 3 + 1) {
+      slots <<= 1;
+    }
+    int[] fingerprints = new int[slots];
+    byte[] quantized = new byte[slots];
+    for (Map.Entry<String, long[]> entry : words.entrySet()) {
+      String word = entry.getKey();
+      int slot = WordTable.hash(word, 0, word.length()) & (slots - 1);
+      while (quantized[slot] != 0) {
+        slot = (slot + 1) & (slots - 1);
+      }
+      fingerprints[slot] = fingerprint(word, 0, word.length());
+      quantized[slot] = (byte) quantize(entry.getValue()[0]);
+    }
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(slots);
+      out.writeInt(words.size());
+      out.writeInt(0);
+      for (int fingerprint : fingerprints) {
+        out.writeInt(fingerprint);
+      }
+      out.write(quantized);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Builds a model from a corpus of clean subtitles.
+   * 
+   * @param args
+   *          The model file to write, followed by the SRT files of the corpus
+   *          in any of the forms accepted by {@link FileFinder}.
+   */
+  public static void main(String[] args) {
+    if (args.length < 2) {
+      System.err.println("Usage: FrequencyModel words.model srt-file(s)");
+      System.exit(1);
+    }
+    Map<String, long[]> words = new HashMap<String, long[]>();
+    int files = 0;
+    try {
+      for (File file : new FileFinder(Arrays.asList(args).subList(1, args.length))) {
+        count(file, words);
+        files++;
+      }
+      write(words, new File(args[0]));
+      System.out.println("Counted " + words.size() + " words in " + files + " files into " + args[0]);
+    } catch (IOException e) {
+      System.err.println("ERROR: " + e.getLocalizedMessage());
+      System.exit(1);
+    }
+  }
+}
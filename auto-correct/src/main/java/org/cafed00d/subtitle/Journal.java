@@ -0,0 +1,285 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * An append-only record of the files processed by a batch, used to resume a
+ * batch that was stopped part way through.
+ * <p>
+ * Each line of the journal is a record type followed by a space and the
+ * absolute path of a file:
+ * <ul>
+ * <li><code>S &lt;time&gt;</code> - the file is about to be corrected, at the
+ * given time in milliseconds.</li>
+ * <li><code>C</code> - the file was corrected successfully.</li>
+ * </ul>
+ * A file with a <code>C</code> record is skipped when the batch is run again.
+ * A file with an <code>S</code> record but no <code>C</code> record was
+ * interrupted; it is recovered, see {@link FileProcessor#recover(File, long)},
+ * before it is processed again, which only puts back the original if the
+ * file was left incomplete after the time in the record. An <code>S</code>
+ * record without a time, such as one cut short by a crash, is ignored.
+ * <p>
+ * Records are written through to the operating system as soon as they are
+ * made, which is enough to survive the JVM dying. They are only forced to
+ * disk every {@link #COMMIT_COUNT} completed files or
+ * {@link #COMMIT_INTERVAL} milliseconds, whichever comes first, so that a
+ * large batch does not pay for a disk sync per file. A power failure may lose
+ * the last few records, in which case those files are simply processed again.
+ */
+public class Journal {
+
+  /**
+   * Logger for this class.
+   */
+  private static final Log log = LogFactory.getLog(Journal.class);
+
+  /**
+   * The number of completed files after which the journal is forced to disk.
+   */
+  static final int COMMIT_COUNT = 100;
+
+  /**
+   * The time, in milliseconds, after which the journal is forced to disk.
+   */
+  static final long COMMIT_INTERVAL = 1000;
+
+  /**
+   * Record type: processing of a file started.
+   */
+  private static final char STARTED = 'S';
+
+  /**
+   * Record type: processing of a file completed.
+   */
+  private static final char COMPLETED = 'C';
+
+  /**
+   * The journal file.
+   */
+  private File file;
+
+  /**
+   * The stream used to append to the journal.
+   */
+  private FileOutputStream stream;
+
+  /**
+   * Writes the records to {@link #stream}.
+   */
+  private Writer out;
+
+  /**
+   * The paths of the files completed, by this or a previous run.
+   */
+  private HashSet<String> completed = new HashSet<String>();
+
+  /**
+   * The paths of the files started but not completed by a previous run,
+   * mapped to the time each was started.
+   */
+  private HashMap<String, Long> interrupted = new HashMap<String, Long>();
+
+  /**
+   * The number of files completed since the journal was last forced to disk.
+   */
+  private int uncommitted;
+
+  /**
+   * The time at which the journal was last forced to disk.
+   */
+  private long lastCommit = System.currentTimeMillis();
+
+  /**
+   * Opens a journal, reading the records left by previous runs.
+   * 
+   * @param file
+   *          The journal file. Created if it does not exist.
+   * @throws IOException
+   *           The journal could not be read or opened for writing.
+   */
+  public Journal(File file) throws IOException {
+    this.file = file.getAbsoluteFile();
+    if (this.file.exists()) {
+      load();
+    }
+    stream = new FileOutputStream(this.file, true);
+    out = new OutputStreamWriter(stream, "UTF-8");
+  }
+
+  /**
+   * Reads the existing records. A partly written last line is ignored.
+   * 
+   * @throws IOException
+   *           The journal could not be read.
+   */
+  private void load() throws IOException {
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        if (line.length() > 2 && line.charAt(1) == ' ') {
+          String path = line.substring(2);
+          if (line.charAt(0) == STARTED) {
+            int end = path.indexOf(' ');
+            if (end > 0 && isNumber(path.substring(0, end))) {
+              interrupted.put(path.substring(end + 1), Long.parseLong(path.substring(0, end)));
+            }
+          } else if (line.charAt(0) == COMPLETED) {
+            interrupted.remove(path);
+            completed.add(path);
+          }
+        }
+      }
+    } finally {
+      in.close();
+    }
+    log.info("journal " + file.getAbsolutePath() + ": " + completed.size() + " completed, "
+        + interrupted.size() + " interrupted");
+  }
+
+  /**
+   * Determines if the text of a record is a time.
+   * 
+   * @param text
+   *          The text.
+   * @return True if the text is all digits, and short enough to parse.
+   */
+  private static boolean isNumber(String text) {
+    boolean result = text.length() < 19;
+    for (int i = 0; result && i < text.length(); i++) {
+      result = Character.isDigit(text.charAt(i));
+    }
+    return result;
+  }
+
+  /**
+   * Determines if a file was already completed.
+   * 
+   * @param srtFile
+   *          The file.
+   * @return True if the file can be skipped.
+   */
+  public synchronized boolean isCompleted(File srtFile) {
+    return completed.contains(srtFile.getAbsolutePath());
+  }
+
+  /**
+   * Puts back the original of a file whose processing was interrupted by a
+   * previous run, if the file was left incomplete. Does nothing for other
+   * files.
+   * 
+   * @param srtFile
+   *          The file.
+   * @return True if the file was recovered.
+   */
+  public synchronized boolean recover(File srtFile) {
+    boolean result = false;
+    Long started = interrupted.remove(srtFile.getAbsolutePath());
+    if (started != null) {
+      result = FileProcessor.recover(srtFile, started);
+      if (result) {
+        Reporter.INSTANCE.displayMessage("Recovered interrupted file " + srtFile.getAbsolutePath());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Records that processing of a file is about to start.
+   * 
+   * @param srtFile
+   *          The file.
+   */
+  public synchronized void started(File srtFile) {
+    append(STARTED + " " + System.currentTimeMillis(), srtFile);
+  }
+
+  /**
+   * Records that a file was completed, forcing the journal to disk if enough
+   * files or time have gone by since it was last forced.
+   * 
+   * @param srtFile
+   *          The file.
+   */
+  public synchronized void completed(File srtFile) {
+    append(String.valueOf(COMPLETED), srtFile);
+    uncommitted++;
+    if (uncommitted >= COMMIT_COUNT || System.currentTimeMillis() - lastCommit >= COMMIT_INTERVAL) {
+      commit();
+    }
+  }
+
+  /**
+   * Forces the journal to disk and closes it.
+   */
+  public synchronized void close() {
+    commit();
+    try {
+      out.close();
+    } catch (IOException e) {
+      Reporter.INSTANCE.displayError("Unable to close journal " + file.getAbsolutePath(), e);
+    }
+  }
+
+  /**
+   * Appends a record and hands it to the operating system.
+   * 
+   * @param type
+   *          The record type, and any fields before the path.
+   * @param srtFile
+   *          The file.
+   */
+  private void append(String type, File srtFile) {
+    try {
+      out.write(type);
+      out.write(' ');
+      out.write(srtFile.getAbsolutePath());
+      out.write('\n');
+      out.flush();
+    } catch (IOException e) {
+      Reporter.INSTANCE.displayError("Unable to write journal " + file.getAbsolutePath(), e);
+    }
+  }
+
+  /**
+   * Forces the records written so far to disk.
+   */
+  private void commit() {
+    try {
+      out.flush();
+      stream.getFD().sync();
+    } catch (IOException e) {
+      Reporter.INSTANCE.displayError("Unable to sync journal " + file.getAbsolutePath(), e);
+    }
+    uncommitted = 0;
+    lastCommit = System.currentTimeMillis();
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.nio.ByteBuffer;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Proves that a line cannot be changed, so that it can be passed to the output
+ * without running the word rules over it. Most subtitle lines, and all of the
+ * index and timestamp lines, pass.
+ * <p>
+ * Every rule needs an upper case I or a lower case l in the word, and a
+ * dictionary correction needs a word that is a misspelling in the dictionary.
+ * So a line can change only if it contains an I, an l, or a letter of some
+ * misspelling that has neither. For each such misspelling its first letter
+ * is used, since a word starts with its first letter. These trigger
+ * characters are kept in a bit set covering all of the characters, so each
+ * character of the line costs one table lookup. Each
+ * {@link DictionarySnapshot} has its own filter.
+ * <p>
+ * While scanning, the words are counted the same way the line would be, so
+ * that the statistics do not depend on whether a line was filtered.
+ */
+public final class LineFilter {
+
+  /**
+   * One bit per character, set for the trigger characters.
+   */
+  private final long[] triggers = new long[(Character.MAX_VALUE + 1) >>> 6];
+
+  /**
+   * Constructor.
+   * 
+   * @param triggers
+   *          The trigger characters, see {@link #triggersFor(Iterable)}.
+   */
+  public LineFilter(String triggers) {
+    for (int i = 0; i < triggers.length(); i++) {
+      char ch = triggers.charAt(i);
+      this.triggers[ch >>> 6] |= 1L << ch;
+    }
+  }
+
+  /**
+   * Gets the trigger characters for a dictionary.
+   * 
+   * @param misspellings
+   *          The misspelled words the dictionary corrects.
+   * @return The trigger characters, each once, in ascending order.
+   */
+  public static String triggersFor(Iterable<String> misspellings) {
+    SortedSet<Character> result = new TreeSet<Character>();
+    result.add('I');
+    result.add('l');
+    for (String misspelling : misspellings) {
+      if (misspelling.indexOf('I') < 0 && misspelling.indexOf('l') < 0 && misspelling.length() > 0) {
+        result.add(misspelling.charAt(0));
+      }
+    }
+    StringBuilder buf = new StringBuilder(result.size());
+    for (Character ch : result) {
+      buf.append(ch.charValue());
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Determines if a character is a trigger.
+   * 
+   * @param ch
+   *          The character.
+   * @return True iff a word containing the character might be corrected.
+   */
+  private boolean isTrigger(char ch) {
+    return (triggers[ch >>> 6] & (1L << ch)) != 0;
+  }
+
+  /**
+   * Checks if a line cannot be changed by the word rules, counting its words
+   * if so. A word is a run of letters and apostrophes that contains a letter,
+   * as in {@link FileProcessor}.
+   * 
+   * @param line
+   *          The line to check.
+   * @return The number of words in the line if it cannot change, or -1 if it
+   *         might.
+   */
+  public int unchangedWordCount(String line) {
+    int result = 0;
+    boolean counted = false;
+    for (int i = 0, length = line.length(); i < length && result >= 0; i++) {
+      char ch = line.charAt(i);
+      if (isTrigger(ch)) {
+        result = -1;
+      } else if (!CharClass.isWord(ch)) {
+        counted = false;
+      } else if (!counted && CharClass.isLetter(ch)) {
+        result++;
+        counted = true;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Checks if a line of UTF-8 bytes cannot be changed by the word rules,
+   * counting its words if so, without decoding it. Only ASCII lines are
+   * checked; a line with any other character might change, as far as this
+   * method knows, and must be decoded and checked with
+   * {@link #unchangedWordCount(String)}.
+   * 
+   * @param bytes
+   *          The bytes containing the line.
+   * @param first
+   *          The index of the first byte of the line.
+   * @param after
+   *          The index after the last byte of the line.
+   * @return The number of words in the line if it is ASCII and cannot change,
+   *         or -1 if it might.
+   */
+  public int unchangedWordCount(ByteBuffer bytes, int first, int after) {
+    int result = 0;
+    boolean counted = false;
+    for (int i = first; i < after && result >= 0; i++) {
+      byte b = bytes.get(i);
+      char ch = (char) b;
+      if (b < 0 || isTrigger(ch)) {
+        result = -1;
+      } else if (!CharClass.isWord(ch)) {
+        counted = false;
+      } else if (!counted && CharClass.isLetter(ch)) {
+        result++;
+        counted = true;
+      }
+    }
+    return result;
+  }
+}
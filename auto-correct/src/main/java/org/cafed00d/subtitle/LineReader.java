@@ -0,0 +1,156 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads lines as {@link java.io.BufferedReader#readLine()} does, but also
+ * remembers how each line was terminated, so that it can be written back the
+ * same way, see {@link OutputWriter#writeLine(CharSequence, String)}.
+ */
+public final class LineReader {
+
+  /**
+   * The reader to read from.
+   */
+  private final Reader in;
+
+  /**
+   * The characters read but not yet returned.
+   */
+  private final char[] buffer = new char[8192];
+
+  /**
+   * The index of the next character to return.
+   */
+  private int position;
+
+  /**
+   * The number of characters in the buffer.
+   */
+  private int limit;
+
+  /**
+   * The terminator of the last line read.
+   */
+  private String terminator = "";
+
+  /**
+   * The time spent reading and decoding, in nanoseconds.
+   */
+  private long readNanos;
+
+  /**
+   * Constructor.
+   * 
+   * @param in
+   *          The reader to read from.
+   */
+  public LineReader(Reader in) {
+    this.in = in;
+  }
+
+  /**
+   * Reads the next line.
+   * 
+   * @return The line, without its terminator, or null at the end of the
+   *         input.
+   * @throws IOException
+   *           The input could not be read.
+   */
+  public String readLine() throws IOException {
+    StringBuilder line = null;
+    String result = null;
+    boolean found = false;
+    while (!found) {
+      if (position == limit && !fill()) {
+        terminator = "";
+        if (line != null) {
+          result = line.toString();
+        }
+        found = true;
+      } else {
+        int first = position;
+        while (position < limit && buffer[position] != '\n' && buffer[position] != '\r') {
+          position++;
+        }
+        if (position < limit) {
+          result = line == null ? new String(buffer, first, position - first) : line.append(buffer, first,
+              position - first).toString();
+          terminator = buffer[position++] == '\n' ? "\n" : "\r";
+          if (terminator.equals("\r") && (position < limit || fill()) && buffer[position] == '\n') {
+            position++;
+            terminator = "\r\n";
+          }
+          found = true;
+        } else {
+          if (line == null) {
+            line = new StringBuilder(80);
+          }
+          line.append(buffer, first, position - first);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Gets the terminator of the last line read.
+   * 
+   * @return <code>\r\n</code>, <code>\n</code> or <code>\r</code>, or an
+   *         empty string for a last line that had none.
+   */
+  public String getTerminator() {
+    return terminator;
+  }
+
+  /**
+   * Gets the time spent reading and decoding the input so far.
+   * 
+   * @return The time in nanoseconds.
+   */
+  public long getReadNanos() {
+    return readNanos;
+  }
+
+  /**
+   * Reads more characters once all in the buffer have been returned.
+   * 
+   * @return False at the end of the input.
+   * @throws IOException
+   *           The input could not be read.
+   */
+  private boolean fill() throws IOException {
+    long start = System.nanoTime();
+    int count = in.read(buffer, 0, buffer.length);
+    readNanos += System.nanoTime() - start;
+    position = 0;
+    limit = Math.max(count, 0);
+    return count > 0;
+  }
+
+  /**
+   * Closes the reader.
+   * 
+   * @throws IOException
+   *           The reader could not be closed.
+   */
+  public void close() throws IOException {
+    in.close();
+  }
+}
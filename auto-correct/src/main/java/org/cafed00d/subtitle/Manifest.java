@@ -0,0 +1,456 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Remembers the files that were corrected so that a later run can skip them if
+ * nothing has changed.
+ * <p>
+ * For each corrected file the manifest records the size, last modified time
+ * and content hash of the corrected file, and the version of the
+ * {@link Dictionary} used, with the overlays for its directory, combined with
+ * those of the frequency model and word list if there are any. A file is
+ * skipped without being opened if its size and time still match and none of
+ * these have changed. If only its time
+ * has changed, the file is read to compare the hash, and skipped if that still
+ * matches; it is never rewritten.
+ * <p>
+ * The manifest is either kept in one global file given by the user, with an
+ * entry per absolute path, or in a file named {@link #FILE_NAME} in each
+ * directory, with an entry per file name. Each line of a manifest holds the
+ * size, time, hash, dictionary version and name separated by tabs.
+ * <p>
+ * The manifests are read when first needed. A manifest per directory is
+ * written, and dropped from memory, as soon as the files of its directory
+ * that were looked at have all finished and the batch has moved on to
+ * another directory; see {@link #finished(File)}. So a crash loses the
+ * records of the directories in progress only, and memory does not grow with
+ * the library. The global manifest is written every {@link #SAVE_INTERVAL}
+ * milliseconds while it has new entries. Whatever is left is written by
+ * {@link #save()} at the end of the batch. Each manifest is written to a
+ * temporary file that is then moved into its place, so that it is never left
+ * half written.
+ */
+public class Manifest {
+
+  /**
+   * Logger for this class.
+   */
+  private static final Log log = LogFactory.getLog(Manifest.class);
+
+  /**
+   * The name of the manifest kept in each directory.
+   */
+  public static final String FILE_NAME = ".autocorrect-manifest";
+
+  /**
+   * The time, in milliseconds, after which the global manifest is written if
+   * it has new entries.
+   */
+  static final long SAVE_INTERVAL = 60000;
+
+  /**
+   * The global manifest file, or null to keep a manifest per directory.
+   */
+  private File globalFile;
+
+  /**
+   * The entries read or recorded so far, by manifest file.
+   */
+  private HashMap<File, Map<String, Entry>> manifests = new HashMap<File, Map<String, Entry>>();
+
+  /**
+   * The manifest files that have new entries.
+   */
+  private HashSet<File> dirty = new HashSet<File>();
+
+  /**
+   * The number of files of each manifest that were looked at and have not yet
+   * finished.
+   */
+  private HashMap<File, Integer> inProgress = new HashMap<File, Integer>();
+
+  /**
+   * The manifest of the file looked at last, which is kept in memory as more
+   * files of its directory are likely to follow.
+   */
+  private File current;
+
+  /**
+   * The time the global manifest was last written.
+   */
+  private long lastSave = System.currentTimeMillis();
+
+  /**
+   * The frequency model the files are corrected with, or null for none.
+   */
+  private FrequencyModel model;
+
+  /**
+   * The word list the files are corrected with, or null for none.
+   */
+  private ConfusionIndex confusions;
+
+  /**
+   * Constructor.
+   * 
+   * @param globalFile
+   *          The global manifest file, or null to keep a manifest in each
+   *          directory.
+   */
+  public Manifest(File globalFile) {
+    this.globalFile = globalFile == null ? null : globalFile.getAbsoluteFile();
+  }
+
+  /**
+   * Sets the frequency model the files are corrected with, see
+   * {@link FileProcessor#setModel(FrequencyModel)}. A file corrected with
+   * another model, or none, is corrected again.
+   * 
+   * @param model
+   *          The model, or null for none.
+   */
+  public void setModel(FrequencyModel model) {
+    this.model = model;
+  }
+
+  /**
+   * Sets the word list the files are corrected with, see
+   * {@link FileProcessor#setConfusions(ConfusionIndex)}. A file corrected with
+   * another word list, or none, is corrected again.
+   * 
+   * @param confusions
+   *          The word list, or null for none.
+   */
+  public void setConfusions(ConfusionIndex confusions) {
+    this.confusions = confusions;
+  }
+
+  /**
+   * Determines if a file is unchanged since it was last corrected. A file
+   * that is not must be passed to {@link #finished(File)} once it has been
+   * processed.
+   * 
+   * @param file
+   *          The SRT file.
+   * @return True if the file can be skipped.
+   */
+  public boolean isUnchanged(File file) {
+    boolean result = false;
+    File manifest = manifestFor(file);
+    Entry entry;
+    synchronized (this) {
+      if (!manifest.equals(current)) {
+        File previous = current;
+        current = manifest;
+        release(previous);
+      }
+      entry = entries(manifest).get(keyFor(file));
+    }
+    if (entry != null && entry.dictionaryVersion.equals(versionFor(file)) && entry.size == file.length()) {
+      long modified = file.lastModified();
+      if (entry.modified == modified) {
+        result = true;
+      } else {
+        try {
+          result = entry.hash.equals(ContentHash.of(file));
+        } catch (IOException e) {
+          log.warn(e.getMessage(), e);
+        }
+        if (result) {
+          log.debug("touched but unchanged: " + file.getAbsolutePath());
+          record(file, entry.hash);
+        }
+      }
+    }
+    if (!result) {
+      synchronized (this) {
+        Integer count = inProgress.get(manifest);
+        inProgress.put(manifest, count == null ? 1 : count + 1);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Records a file that was just corrected.
+   * 
+   * @param file
+   *          The SRT file.
+   */
+  public void record(File file) {
+    try {
+      record(file, ContentHash.of(file));
+    } catch (IOException e) {
+      Reporter.INSTANCE.displayError("Unable to add " + file.getAbsolutePath() + " to the manifest", e);
+    }
+  }
+
+  /**
+   * Notes that a file that was not unchanged has been processed, whether or
+   * not it was recorded. Once all of the files of a manifest that were
+   * looked at are finished and the batch has moved on to another manifest,
+   * the manifest is written if it has new entries and dropped from memory.
+   * 
+   * @param file
+   *          The SRT file.
+   */
+  public synchronized void finished(File file) {
+    File manifest = manifestFor(file);
+    Integer count = inProgress.get(manifest);
+    if (count != null && count > 1) {
+      inProgress.put(manifest, count - 1);
+    } else {
+      inProgress.remove(manifest);
+    }
+    if (!manifest.equals(current)) {
+      release(manifest);
+    } else if (globalFile != null && dirty.contains(manifest)
+        && System.currentTimeMillis() - lastSave >= SAVE_INTERVAL) {
+      save(manifest);
+    }
+  }
+
+  /**
+   * Writes a manifest per directory if it has new entries and drops it from
+   * memory, unless files of it are still being processed.
+   * 
+   * @param manifest
+   *          The manifest file, or null.
+   */
+  private void release(File manifest) {
+    if (manifest != null && globalFile == null && !inProgress.containsKey(manifest)) {
+      save(manifest);
+      manifests.remove(manifest);
+    }
+  }
+
+  /**
+   * Writes a manifest if it has new entries.
+   * 
+   * @param manifest
+   *          The manifest file.
+   */
+  private void save(File manifest) {
+    if (dirty.remove(manifest)) {
+      try {
+        write(manifest, manifests.get(manifest));
+      } catch (IOException e) {
+        Reporter.INSTANCE.displayError("Unable to write manifest " + manifest.getAbsolutePath(), e);
+      }
+      lastSave = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Writes the manifests that have new entries.
+   */
+  public synchronized void save() {
+    for (File manifest : new ArrayList<File>(dirty)) {
+      save(manifest);
+    }
+  }
+
+  /**
+   * Records the current state of a file.
+   * 
+   * @param file
+   *          The SRT file.
+   * @param hash
+   *          The hash of the file's contents.
+   */
+  private synchronized void record(File file, String hash) {
+    Entry entry = new Entry();
+    entry.size = file.length();
+    entry.modified = file.lastModified();
+    entry.hash = hash;
+    entry.dictionaryVersion = versionFor(file);
+    File manifest = manifestFor(file);
+    entries(manifest).put(keyFor(file), entry);
+    dirty.add(manifest);
+  }
+
+  /**
+   * Gets the version of what a file is corrected with, the same one the
+   * {@link DedupeCache} is keyed by.
+   * 
+   * @param file
+   *          The SRT file.
+   * @return The version.
+   */
+  private String versionFor(File file) {
+    DictionarySnapshot dictionary = Dictionary.INSTANCE.getSnapshot(file.getAbsoluteFile().getParentFile());
+    return FileProcessor.versionOf(dictionary, model, confusions);
+  }
+
+  /**
+   * Gets the manifest file that holds the entry for a file.
+   * 
+   * @param file
+   *          The SRT file.
+   * @return The manifest file.
+   */
+  private File manifestFor(File file) {
+    return globalFile != null ? globalFile : new File(file.getAbsoluteFile().getParentFile(), FILE_NAME);
+  }
+
+  /**
+   * Gets the key of the entry for a file.
+   * 
+   * @param file
+   *          The SRT file.
+   * @return The key.
+   */
+  private String keyFor(File file) {
+    return globalFile != null ? file.getAbsolutePath() : file.getName();
+  }
+
+  /**
+   * Gets the entries of a manifest, reading it if needed.
+   * 
+   * @param manifest
+   *          The manifest file.
+   * @return The entries.
+   */
+  private Map<String, Entry> entries(File manifest) {
+    Map<String, Entry> result = manifests.get(manifest);
+    if (result == null) {
+      result = new TreeMap<String, Entry>();
+      if (manifest.exists()) {
+        try {
+          read(manifest, result);
+        } catch (IOException e) {
+          Reporter.INSTANCE.displayError("Unable to read manifest " + manifest.getAbsolutePath(), e);
+        }
+      }
+      manifests.put(manifest, result);
+    }
+    return result;
+  }
+
+  /**
+   * Reads a manifest. Lines that cannot be parsed are ignored.
+   * 
+   * @param manifest
+   *          The manifest file.
+   * @param entries
+   *          Receives the entries.
+   * @throws IOException
+   *           The manifest could not be read.
+   */
+  private void read(File manifest, Map<String, Entry> entries) throws IOException {
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        String[] fields = line.split("\t", 5);
+        if (fields.length == 5) {
+          try {
+            Entry entry = new Entry();
+            entry.size = Long.parseLong(fields[0]);
+            entry.modified = Long.parseLong(fields[1]);
+            entry.hash = fields[2];
+            entry.dictionaryVersion = fields[3];
+            entries.put(fields[4], entry);
+          } catch (NumberFormatException e) {
+            log.debug("ignoring manifest line: " + line);
+          }
+        }
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Writes a manifest to a temporary file and moves it into place.
+   * 
+   * @param manifest
+   *          The manifest file.
+   * @param entries
+   *          The entries to write.
+   * @throws IOException
+   *           The manifest could not be written.
+   */
+  private void write(File manifest, Map<String, Entry> entries) throws IOException {
+    File tempFile = new File(manifest.getPath() + ".tmp");
+    boolean written = false;
+    PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+    try {
+      for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+        Entry entry = mapEntry.getValue();
+        out.print(entry.size + "\t" + entry.modified + "\t" + entry.hash + "\t" + entry.dictionaryVersion + "\t");
+        out.print(mapEntry.getKey());
+        out.print('\n');
+      }
+      out.close();
+      if (out.checkError()) {
+        throw new IOException("write failed");
+      }
+      Backup.replace(tempFile, manifest);
+      written = true;
+    } finally {
+      out.close();
+      if (!written && !tempFile.delete()) {
+        log.warn("unable to delete " + tempFile.getAbsolutePath());
+      }
+    }
+  }
+
+  /**
+   * The recorded state of a corrected file.
+   */
+  private static class Entry {
+
+    /**
+     * The size of the file.
+     */
+    private long size;
+
+    /**
+     * The last modified time of the file.
+     */
+    private long modified;
+
+    /**
+     * The hash of the file's contents.
+     */
+    private String hash;
+
+    /**
+     * The version of the dictionary, frequency model and word list used to
+     * correct the file.
+     */
+    private String dictionaryVersion;
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.io.IOException;
+
+/**
+ * How a {@link FileProcessor} gets the corrected contents of its file to
+ * where they belong: written again in full through a temporary file, see
+ * {@link RewriteStrategy}, patched in place, see {@link PatchStrategy}, or
+ * nowhere at all when the file is only checked, see {@link CheckStrategy}.
+ * <p>
+ * A strategy holds the state of one file for one of its output paths, and
+ * runs the file either in one go, {@link #process()}, or in the three stages
+ * of a {@link Pipeline}, {@link #read()}, {@link #correct()} and
+ * {@link #write()}. The corrections themselves, the cached results and the
+ * statistics are left to the processor; so is counting the file, which the
+ * strategies never do, so that each file is counted exactly once however its
+ * stages end.
+ */
+abstract class OutputStrategy {
+
+  /**
+   * The processor of the file.
+   */
+  protected final FileProcessor processor;
+
+  /**
+   * Constructor.
+   * 
+   * @param processor
+   *          The processor of the file.
+   */
+  OutputStrategy(FileProcessor processor) {
+    this.processor = processor;
+  }
+
+  /**
+   * Starts processing the file, before any of it is read.
+   */
+  abstract void start();
+
+  /**
+   * Processes the file in one go.
+   * 
+   * @throws IOException
+   *           The file could not be read or written.
+   */
+  abstract void process() throws IOException;
+
+  /**
+   * The first stage: reads the contents of the file into memory.
+   * 
+   * @throws IOException
+   *           The file could not be read.
+   */
+  abstract void read() throws IOException;
+
+  /**
+   * The second stage: corrects the contents read by {@link #read()}.
+   */
+  abstract void correct();
+
+  /**
+   * The final stage: writes the contents corrected by {@link #correct()}.
+   * 
+   * @throws IOException
+   *           The file could not be written.
+   */
+  abstract void write() throws IOException;
+
+  /**
+   * Cleans up after a failure, leaving the original file as it was.
+   */
+  abstract void discard();
+
+  /**
+   * Finishes the file once it has been written, or has failed to be, by
+   * reporting its statistics and writing its corrections log.
+   */
+  void finish() {
+    processor.report();
+  }
+}
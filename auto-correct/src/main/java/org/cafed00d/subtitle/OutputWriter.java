@@ -0,0 +1,314 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Writes a corrected file through large buffers, so that a file costs a few
+ * system calls rather than one per line, as a {@link java.io.PrintStream}
+ * over the bare file does.
+ * <p>
+ * The bytes are collected in chunks of {@link #CHUNK_SIZE} bytes, taken from
+ * a pool shared by all the threads, and written with one gathering write
+ * whenever the flush size is reached and when the file is closed. The flush
+ * size, and whether the chunks are direct buffers, are set for the whole
+ * process by {@link #configure(int, boolean)}.
+ * <p>
+ * Lines are written with the terminator they were read with, see
+ * {@link LineReader}. Characters the encoding cannot represent are replaced,
+ * as {@link java.io.PrintStream} does.
+ */
+public final class OutputWriter extends OutputStream {
+
+  /**
+   * The size of each chunk.
+   */
+  static final int CHUNK_SIZE = 64 * 1024;
+
+  /**
+   * The default flush size.
+   */
+  public static final int DEFAULT_FLUSH_SIZE = 256 * 1024;
+
+  /**
+   * The most chunks kept in the pool.
+   */
+  private static final int POOL_SIZE = 64;
+
+  /**
+   * The chunks not in use.
+   */
+  private static final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+  /**
+   * The number of bytes collected before they are written.
+   */
+  private static volatile int flushSize = DEFAULT_FLUSH_SIZE;
+
+  /**
+   * If true, the chunks are direct buffers.
+   */
+  private static volatile boolean direct = false;
+
+  /**
+   * The stream of the file.
+   */
+  private final FileOutputStream stream;
+
+  /**
+   * The channel of the file.
+   */
+  private final FileChannel channel;
+
+  /**
+   * The encoder for lines.
+   */
+  private final CharsetEncoder encoder;
+
+  /**
+   * The chunks collected since the last write.
+   */
+  private ByteBuffer[] chunks = new ByteBuffer[4];
+
+  /**
+   * The number of chunks collected.
+   */
+  private int count;
+
+  /**
+   * Constructor. Lines are written in the platform's encoding.
+   * 
+   * @param file
+   *          The file to create.
+   * @throws IOException
+   *           The file could not be created.
+   */
+  public OutputWriter(File file) throws IOException {
+    this(file, Charset.defaultCharset());
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param file
+   *          The file to create.
+   * @param charset
+   *          The encoding of the lines.
+   * @throws IOException
+   *           The file could not be created.
+   */
+  public OutputWriter(File file, Charset charset) throws IOException {
+    stream = new FileOutputStream(file);
+    channel = stream.getChannel();
+    encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  }
+
+  /**
+   * Sets how all writers buffer their output.
+   * 
+   * @param flushSize
+   *          The number of bytes collected before they are written, at least
+   *          one chunk.
+   * @param direct
+   *          True to collect them in direct buffers.
+   */
+  public static void configure(int flushSize, boolean direct) {
+    OutputWriter.flushSize = Math.max(flushSize, CHUNK_SIZE);
+    if (direct != OutputWriter.direct) {
+      OutputWriter.direct = direct;
+      pool.clear();
+    }
+  }
+
+  /**
+   * Gets the number of bytes collected before they are written.
+   * 
+   * @return The flush size.
+   */
+  public static int getFlushSize() {
+    return flushSize;
+  }
+
+  /**
+   * Determines if the chunks are direct buffers.
+   * 
+   * @return True if they are.
+   */
+  public static boolean isDirect() {
+    return direct;
+  }
+
+  /**
+   * Writes a line.
+   * 
+   * @param line
+   *          The line.
+   * @param terminator
+   *          The line's terminator.
+   * @throws IOException
+   *           The file could not be written.
+   */
+  public void writeLine(CharSequence line, String terminator) throws IOException {
+    encode(CharBuffer.wrap(line));
+    encode(CharBuffer.wrap(terminator));
+  }
+
+  /**
+   * Encodes characters into the chunks.
+   * 
+   * @param chars
+   *          The characters.
+   * @throws IOException
+   *           The file could not be written.
+   */
+  private void encode(CharBuffer chars) throws IOException {
+    CoderResult result = encoder.encode(chars, chunk(), false);
+    while (result.isOverflow()) {
+      result = encoder.encode(chars, next(), false);
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    chunk().put((byte) b);
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int length) throws IOException {
+    int written = 0;
+    while (written < length) {
+      ByteBuffer chunk = chunk();
+      int part = Math.min(chunk.remaining(), length - written);
+      chunk.put(bytes, offset + written, part);
+      written += part;
+    }
+  }
+
+  /**
+   * Gets the chunk to add to: the last one, if it has room.
+   * 
+   * @return The chunk.
+   * @throws IOException
+   *           The chunks collected could not be written.
+   */
+  private ByteBuffer chunk() throws IOException {
+    ByteBuffer result;
+    if (count > 0 && chunks[count - 1].hasRemaining()) {
+      result = chunks[count - 1];
+    } else {
+      result = next();
+    }
+    return result;
+  }
+
+  /**
+   * Starts a new chunk, first writing the chunks collected if they reach the
+   * flush size.
+   * 
+   * @return The new chunk.
+   * @throws IOException
+   *           The chunks collected could not be written.
+   */
+  private ByteBuffer next() throws IOException {
+    if ((long) count * CHUNK_SIZE >= flushSize) {
+      writeChunks();
+    }
+    ByteBuffer result = pool.poll();
+    if (result == null) {
+      result = direct ? ByteBuffer.allocateDirect(CHUNK_SIZE) : ByteBuffer.allocate(CHUNK_SIZE);
+    }
+    if (count == chunks.length) {
+      ByteBuffer[] bigger = new ByteBuffer[count * 2];
+      System.arraycopy(chunks, 0, bigger, 0, count);
+      chunks = bigger;
+    }
+    chunks[count++] = result;
+    return result;
+  }
+
+  /**
+   * Writes the chunks collected with one gathering write, and returns them to
+   * the pool.
+   * 
+   * @throws IOException
+   *           The chunks could not be written.
+   */
+  private void writeChunks() throws IOException {
+    long remaining = 0;
+    for (int i = 0; i < count; i++) {
+      chunks[i].flip();
+      remaining += chunks[i].remaining();
+    }
+    while (remaining > 0) {
+      remaining -= channel.write(chunks, 0, count);
+    }
+    release();
+  }
+
+  /**
+   * Returns the chunks collected to the pool.
+   */
+  private void release() {
+    for (int i = 0; i < count; i++) {
+      ByteBuffer chunk = chunks[i];
+      chunks[i] = null;
+      chunk.clear();
+      if (chunk.isDirect() == direct && pool.size() < POOL_SIZE) {
+        pool.offer(chunk);
+      }
+    }
+    count = 0;
+  }
+
+  /**
+   * Writes what is left and closes the file.
+   * 
+   * @throws IOException
+   *           The file could not be written.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      CharBuffer none = CharBuffer.allocate(0);
+      CoderResult result = encoder.encode(none, chunk(), true);
+      while (result.isOverflow()) {
+        result = encoder.encode(none, next(), true);
+      }
+      result = encoder.flush(chunk());
+      while (result.isOverflow()) {
+        result = encoder.flush(next());
+      }
+      writeChunks();
+    } finally {
+      release();
+      stream.close();
+    }
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * An index that puts the entries of dictionary overlays in front of another
+ * index, see {@link DictionaryOverlays}. The overlay entries, usually a few
+ * names and invented words, are kept in a {@link WordTable} of their own and
+ * looked up first; the other index is looked up in place, so the global
+ * dictionary is never copied, however many overlays there are.
+ * <p>
+ * Since it is never changed once built, any number of threads can read it
+ * without locking.
+ * <p>
+ * An entry of the overlays is identified by its slot times two plus one, and
+ * an entry of the other index by its own number times two.
+ */
+public final class OverlayIndex implements WordIndex {
+
+  /**
+   * The index the overlays are put in front of.
+   */
+  private final WordIndex base;
+
+  /**
+   * The entries of the overlays.
+   */
+  private final WordTable overlay;
+
+  /**
+   * The number of distinct keys.
+   */
+  private final int size;
+
+  /**
+   * Constructor.
+   * 
+   * @param base
+   *          The index the overlays are put in front of.
+   * @param entries
+   *          The entries of the overlays, which replace any with the same keys
+   *          in <code>base</code>.
+   */
+  public OverlayIndex(WordIndex base, Map<String, String> entries) {
+    this.base = base;
+    overlay = new WordTable(entries);
+    int added = 0;
+    for (String key : entries.keySet()) {
+      if (base.find(key, 0, key.length()) < 0) {
+        added++;
+      }
+    }
+    size = base.size() + added;
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.WordIndex#find(java.lang.CharSequence, int, int)
+   */
+  public int find(CharSequence text, int first, int after) {
+    int result = overlay.find(text, first, after);
+    if (result >= 0) {
+      result = (result << 1) | 1;
+    } else {
+      result = base.find(text, first, after);
+      if (result >= 0) {
+        result <<= 1;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.WordIndex#getKey(int)
+   */
+  public String getKey(int entry) {
+    return (entry & 1) != 0 ? overlay.getKey(entry >>> 1) : base.getKey(entry >>> 1);
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.WordIndex#getValue(int)
+   */
+  public String getValue(int entry) {
+    return (entry & 1) != 0 ? overlay.getValue(entry >>> 1) : base.getValue(entry >>> 1);
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.WordIndex#getValueLength(int)
+   */
+  public int getValueLength(int entry) {
+    return (entry & 1) != 0 ? overlay.getValueLength(entry >>> 1) : base.getValueLength(entry >>> 1);
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.WordIndex#size()
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.WordIndex#getEntries()
+   */
+  public SortedMap<String, String> getEntries() {
+    SortedMap<String, String> result = base.getEntries();
+    result.putAll(overlay.getEntries());
+    return result;
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Patches the corrections into the file in place, writing only the bytes that
+ * changed, with an undo log of the overwritten bytes in place of a backup,
+ * see {@link Patcher}. A file with nothing to correct is not written at all.
+ * <p>
+ * The file is always read whole, as its original bytes are needed to find
+ * what changed, so processing it in one go just runs the three stages in
+ * turn.
+ */
+final class PatchStrategy extends OutputStrategy {
+
+  /**
+   * Logger for this class.
+   */
+  private static final Log log = LogFactory.getLog(PatchStrategy.class);
+
+  /**
+   * If true, keep an undo log.
+   */
+  private final boolean undoLog;
+
+  /**
+   * The original contents of the file, once read.
+   */
+  private byte[] bytes;
+
+  /**
+   * The contents read by {@link #read()}, or null if the file has a cached
+   * result.
+   */
+  private StagedContents contents;
+
+  /**
+   * Constructor.
+   * 
+   * @param processor
+   *          The processor of the file.
+   * @param undoLog
+   *          True to keep an undo log, false to keep no backup at all.
+   */
+  PatchStrategy(FileProcessor processor, boolean undoLog) {
+    super(processor);
+    this.undoLog = undoLog;
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.OutputStrategy#start()
+   */
+  @Override
+  void start() {
+    log.info("processing file in place: " + processor.getFile().getAbsolutePath());
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.OutputStrategy#process()
+   */
+  @Override
+  void process() throws IOException {
+    read();
+    correct();
+    write();
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.OutputStrategy#read()
+   */
+  @Override
+  void read() throws IOException {
+    bytes = DedupeCache.readBytes(processor.getFile());
+    contents = StagedContents.of(processor, bytes);
+    Reporter.INSTANCE.displayMessage("Correcting " + processor.getFile().getAbsolutePath());
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.OutputStrategy#correct()
+   */
+  @Override
+  void correct() {
+    if (contents != null) {
+      contents.correct(processor);
+    }
+  }
+
+  /**
+   * Patches the corrected contents into the file, after writing the undo log
+   * if one is wanted. Nothing is written for a file that has nothing to
+   * correct; an undo log left by an earlier run is then kept, as it still
+   * applies.
+   * 
+   * @see org.cafed00d.subtitle.OutputStrategy#write()
+   */
+  @Override
+  void write() throws IOException {
+    File file = processor.getFile();
+    byte[] corrected;
+    if (contents == null) {
+      Reporter.INSTANCE.displayVerboseMessage("Same contents as a file already corrected: " + file.getAbsolutePath());
+      corrected = processor.getCached().getContent();
+      processor.useCached();
+    } else {
+      corrected = contents.toBytes();
+    }
+    Patcher patcher = new Patcher(bytes, corrected);
+    bytes = null;
+    if (!patcher.isEmpty()) {
+      File undoFile = FileProcessor.undoFileFor(file);
+      if (undoFile.exists() && !undoFile.delete()) {
+        throw new IOException("Unable to delete " + undoFile.getAbsolutePath());
+      }
+      if (undoLog) {
+        patcher.writeUndo(undoFile);
+      }
+      patcher.apply(file);
+      Reporter.INSTANCE.displayVerboseMessage("Patched " + patcher.getByteCount() + " bytes in "
+          + patcher.getPatchCount() + " places");
+    }
+    if (contents != null) {
+      contents = null;
+      processor.storeInCache(file);
+    }
+  }
+
+  /**
+   * Nothing to clean up: the file is only written by the patch itself, and
+   * an undo log left behind still applies.
+   * 
+   * @see org.cafed00d.subtitle.OutputStrategy#discard()
+   */
+  @Override
+  void discard() {
+    bytes = null;
+    contents = null;
+  }
+}
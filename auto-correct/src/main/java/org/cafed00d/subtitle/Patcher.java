@@ -0,0 +1,351 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Patches the corrections into a file in place, writing only the bytes that
+ * changed, and keeps an undo log of the bytes it overwrote in place of a full
+ * backup copy.
+ * <p>
+ * Almost every correction replaces characters without changing the length of
+ * the file, so the patches are the runs of differing bytes, with runs less
+ * than {@link #GAP} bytes apart merged into one write. Some do change it, such
+ * as a {@link ConfusionIndex} correction that reads "rn" as "m", and then
+ * everything from the first difference to the end would have to be rewritten.
+ * Rewriting the tail of a file in place is not safe, as an interruption would
+ * leave it half shifted, so such a file is instead written whole to a
+ * temporary file that is moved into its place, as when it is not patched.
+ * <p>
+ * The undo log is written, and forced to disk, before the file is patched.
+ * It holds the {@link #MAGIC} number and the original length of the file,
+ * followed by the offset, length and original bytes of each patch. Undoing
+ * only ever writes back original bytes, so an undo log cut short by an
+ * interruption can still be applied safely, whether or not the patches it
+ * covers were written.
+ */
+public final class Patcher {
+
+  /**
+   * The magic number at the start of an undo log.
+   */
+  static final int MAGIC = 0x41435501;
+
+  /**
+   * Runs of differing bytes this close together are written as one patch.
+   */
+  static final int GAP = 16;
+
+  /**
+   * The contents of the file before patching.
+   */
+  private final byte[] original;
+
+  /**
+   * The contents of the file after patching.
+   */
+  private final byte[] patched;
+
+  /**
+   * The offset and length of each patch. Patches past the end of the
+   * patched contents only truncate the file.
+   */
+  private final int[] patches;
+
+  /**
+   * The number of patches.
+   */
+  private final int count;
+
+  /**
+   * Constructor.
+   * 
+   * @param original
+   *          The contents of the file.
+   * @param patched
+   *          The contents the file should have.
+   */
+  public Patcher(byte[] original, byte[] patched) {
+    this.original = original;
+    this.patched = patched;
+    int[] found = new int[16];
+    int size = 0;
+    int common = Math.min(original.length, patched.length);
+    int i = 0;
+    while (i < common) {
+      if (original[i] == patched[i]) {
+        i++;
+      } else {
+        int first = i;
+        int last = i;
+        while (i < common && i - last <= GAP) {
+          if (original[i] != patched[i]) {
+            last = i;
+          }
+          i++;
+        }
+        found = add(found, size, first, last + 1 - first);
+        size += 2;
+      }
+    }
+    if (original.length != patched.length) {
+      int first = common;
+      if (size > 0 && found[size - 2] + found[size - 1] + GAP >= common) {
+        size -= 2;
+        first = found[size];
+      }
+      found = add(found, size, first, Math.max(original.length, patched.length) - first);
+      size += 2;
+    }
+    patches = found;
+    count = size / 2;
+  }
+
+  /**
+   * Adds a patch to an array of patches, growing it if it is full.
+   * 
+   * @param patches
+   *          The offset and length of each patch so far.
+   * @param size
+   *          The number of elements of <code>patches</code> in use.
+   * @param offset
+   *          The offset of the patch to add.
+   * @param length
+   *          The length of the patch to add.
+   * @return The array holding the patches.
+   */
+  private static int[] add(int[] patches, int size, int offset, int length) {
+    int[] result = patches;
+    if (size + 2 > result.length) {
+      result = new int[result.length * 2];
+      System.arraycopy(patches, 0, result, 0, size);
+    }
+    result[size] = offset;
+    result[size + 1] = length;
+    return result;
+  }
+
+  /**
+   * Determines if the contents are the same, so there is nothing to patch.
+   * 
+   * @return True if there are no patches.
+   */
+  public boolean isEmpty() {
+    return count == 0;
+  }
+
+  /**
+   * Gets the number of patches.
+   * 
+   * @return The number of patches.
+   */
+  public int getPatchCount() {
+    return count;
+  }
+
+  /**
+   * Gets the number of bytes the patches write.
+   * 
+   * @return The number of bytes.
+   */
+  public long getByteCount() {
+    long result = 0;
+    for (int i = 0; i < count; i++) {
+      result += written(i);
+    }
+    return result;
+  }
+
+  /**
+   * Gets the number of bytes of the patched contents a patch writes.
+   * 
+   * @param patch
+   *          The index of the patch.
+   * @return The number of bytes, 0 for a patch that only truncates.
+   */
+  private int written(int patch) {
+    int offset = patches[patch * 2];
+    return Math.max(0, Math.min(patches[patch * 2 + 1], patched.length - offset));
+  }
+
+  /**
+   * Writes the undo log: the bytes the patches overwrite.
+   * 
+   * @param undoFile
+   *          The file to write.
+   * @throws IOException
+   *           The log could not be written.
+   */
+  public void writeUndo(File undoFile) throws IOException {
+    FileOutputStream stream = new FileOutputStream(undoFile);
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+      out.writeInt(MAGIC);
+      out.writeLong(original.length);
+      for (int i = 0; i < count; i++) {
+        int offset = patches[i * 2];
+        int length = Math.max(0, Math.min(patches[i * 2 + 1], original.length - offset));
+        out.writeLong(offset);
+        out.writeInt(length);
+        out.write(original, offset, length);
+      }
+      out.flush();
+      stream.getFD().sync();
+    } finally {
+      stream.close();
+    }
+  }
+
+  /**
+   * Writes the patches to a file, or replaces it if they change its length.
+   * 
+   * @param file
+   *          The file, which must have the original contents.
+   * @throws IOException
+   *           The file could not be written.
+   */
+  public void apply(File file) throws IOException {
+    if (patched.length != original.length) {
+      replace(file);
+      return;
+    }
+    RandomAccessFile out = new RandomAccessFile(file, "rw");
+    try {
+      FileChannel channel = out.getChannel();
+      for (int i = 0; i < count; i++) {
+        int offset = patches[i * 2];
+        ByteBuffer buffer = ByteBuffer.wrap(patched, offset, written(i));
+        long position = offset;
+        while (buffer.hasRemaining()) {
+          position += channel.write(buffer, position);
+        }
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Writes the patched contents to a temporary file, forces it to disk and
+   * moves it into the place of the file.
+   * 
+   * @param file
+   *          The file.
+   * @throws IOException
+   *           The temporary file could not be written or moved.
+   */
+  private void replace(File file) throws IOException {
+    File tempFile = FileProcessor.tempFileFor(file);
+    try {
+      FileOutputStream out = new FileOutputStream(tempFile);
+      try {
+        out.write(patched);
+      } finally {
+        out.close();
+      }
+      SyncBatch.force(tempFile);
+      Backup.replace(tempFile, file);
+    } catch (IOException e) {
+      tempFile.delete();
+      throw e;
+    }
+    SyncBatch.add(file);
+  }
+
+  /**
+   * Puts back the bytes recorded in an undo log, and deletes the log.
+   * 
+   * @param file
+   *          The patched file.
+   * @param undoFile
+   *          The undo log.
+   * @throws IOException
+   *           The file could not be restored, or the log is not an undo log.
+   */
+  public static void undo(File file, File undoFile) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(undoFile)));
+    try {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not an undo log: " + undoFile.getAbsolutePath());
+      }
+      RandomAccessFile out = new RandomAccessFile(file, "rw");
+      try {
+        out.setLength(in.readLong());
+        try {
+          while (true) {
+            long offset = in.readLong();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            out.seek(offset);
+            out.write(bytes);
+          }
+        } catch (EOFException e) {
+          // the end of the log, or of as much as was written
+        }
+      } finally {
+        out.close();
+      }
+    } catch (EOFException e) {
+      // no header: nothing was patched
+    } finally {
+      in.close();
+    }
+    if (!undoFile.delete()) {
+      throw new IOException("Unable to delete " + undoFile.getAbsolutePath());
+    }
+  }
+
+  /**
+   * Undoes the corrections patched into SRT files, using their undo logs.
+   * 
+   * @param args
+   *          The SRT files, in any of the forms accepted by
+   *          {@link FileFinder}.
+   */
+  public static void main(String[] args) {
+    if (args.length == 0) {
+      System.err.println("Usage: Patcher srt-file(s)");
+      System.exit(1);
+    }
+    int errors = 0;
+    for (File file : new FileFinder(Arrays.asList(args))) {
+      File undoFile = FileProcessor.undoFileFor(file);
+      if (undoFile.exists()) {
+        try {
+          undo(file, undoFile);
+          System.out.println("Restored " + file.getAbsolutePath());
+        } catch (IOException e) {
+          System.err.println("ERROR: " + e.getLocalizedMessage());
+          errors++;
+        }
+      }
+    }
+    System.exit(errors == 0 ? 0 : 1);
+  }
+}
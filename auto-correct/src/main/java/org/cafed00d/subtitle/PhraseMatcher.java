@@ -0,0 +1,368 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Finds and corrects the phrases of the dictionary in a line, in a single scan
+ * of the line using an Aho-Corasick automaton. A phrase is a dictionary key
+ * that is not a single word, such as <code>I 'm</code>, so the
+ * {@link WordEngine} never sees it as a whole; see {@link #isPhrase(String)}.
+ * <p>
+ * A phrase only matches where it starts and ends on a word boundary. Where
+ * matches overlap, the one starting first wins, and of those the longest.
+ * As for words, a phrase and its correction must be the same length so that
+ * the line can be corrected in place; other phrases are ignored.
+ * <p>
+ * Since it is never changed once built, any number of threads can use it
+ * without locking.
+ */
+public final class PhraseMatcher {
+
+  /**
+   * Logger for this class.
+   */
+  private static final Log log = LogFactory.getLog(PhraseMatcher.class);
+
+  /**
+   * The phrases, by number.
+   */
+  private final String[] keys;
+
+  /**
+   * The correction of each phrase, by number.
+   */
+  private final String[] values;
+
+  /**
+   * The transitions of the automaton, keyed by the state in the high bits and
+   * the character in the low 16 bits. Zero for an empty slot, which can never
+   * be a key since nothing goes to the root.
+   */
+  private final long[] transitionKeys;
+
+  /**
+   * The state each transition goes to, by slot.
+   */
+  private final int[] transitionTargets;
+
+  /**
+   * The mask giving a slot in the transitions from a hash.
+   */
+  private final int mask;
+
+  /**
+   * The failure link of each state: the state for the longest proper suffix
+   * of its text that is also in the automaton.
+   */
+  private final int[] failure;
+
+  /**
+   * The phrase that ends at each state, or -1.
+   */
+  private final int[] phrase;
+
+  /**
+   * The next state along the failure links where a phrase ends, or 0.
+   */
+  private final int[] output;
+
+  /**
+   * The length of the longest phrase.
+   */
+  private final int maxLength;
+
+  /**
+   * Constructor.
+   * 
+   * @param phrases
+   *          The phrases and their corrections. Anything else in the map, such
+   *          as a single word, is ignored.
+   */
+  public PhraseMatcher(Map<String, String> phrases) {
+    ArrayList<String> keyList = new ArrayList<String>();
+    ArrayList<String> valueList = new ArrayList<String>();
+    for (Map.Entry<String, String> entry : phrases.entrySet()) {
+      String key = entry.getKey();
+      if (isPhrase(key)) {
+        if (entry.getValue().length() == key.length()) {
+          keyList.add(key);
+          valueList.add(entry.getValue());
+        } else {
+          log.warn("Ignoring phrase, its correction is not the same length: " + key);
+        }
+      }
+    }
+    keys = keyList.toArray(new String[keyList.size()]);
+    values = valueList.toArray(new String[valueList.size()]);
+
+    /*
+     * Build the trie, one map of children per state.
+     */
+    ArrayList<TreeMap<Character, Integer>> children = new ArrayList<TreeMap<Character, Integer>>();
+    children.add(new TreeMap<Character, Integer>());
+    ArrayList<Integer> phraseList = new ArrayList<Integer>();
+    phraseList.add(-1);
+    int longest = 0;
+    for (int p = 0; p < keys.length; p++) {
+      int state = 0;
+      for (int i = 0; i < keys[p].length(); i++) {
+        Integer next = children.get(state).get(keys[p].charAt(i));
+        if (next == null) {
+          next = children.size();
+          children.add(new TreeMap<Character, Integer>());
+          phraseList.add(-1);
+          children.get(state).put(keys[p].charAt(i), next);
+        }
+        state = next;
+      }
+      phraseList.set(state, p);
+      longest = Math.max(longest, keys[p].length());
+    }
+    maxLength = longest;
+    int states = children.size();
+
+    /*
+     * Lay out the transitions as a hash table at most half full.
+     */
+    int capacity = 16;
+    while (capacity < states * 2) {
+      capacity <<= 1;
+    }
+    transitionKeys = new long[capacity];
+    transitionTargets = new int[capacity];
+    mask = capacity - 1;
+    phrase = new int[states];
+    for (int state = 0; state < states; state++) {
+      phrase[state] = phraseList.get(state);
+      for (Map.Entry<Character, Integer> child : children.get(state).entrySet()) {
+        long key = transitionKey(state, child.getKey());
+        int slot = slot(key);
+        while (transitionKeys[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        transitionKeys[slot] = key;
+        transitionTargets[slot] = child.getValue();
+      }
+    }
+
+    /*
+     * Fill in the failure and output links breadth first, so that every
+     * shorter state is done before the states that depend on it.
+     */
+    failure = new int[states];
+    output = new int[states];
+    int[] queue = new int[states];
+    int head = 0;
+    int tail = 0;
+    for (int child : children.get(0).values()) {
+      queue[tail++] = child;
+    }
+    while (head < tail) {
+      int state = queue[head++];
+      for (Map.Entry<Character, Integer> child : children.get(state).entrySet()) {
+        int target = child.getValue();
+        failure[target] = step(failure[state], child.getKey());
+        int fallback = failure[target];
+        output[target] = phrase[fallback] >= 0 ? fallback : output[fallback];
+        queue[tail++] = target;
+      }
+    }
+  }
+
+  /**
+   * Checks if a dictionary key is a phrase: more than a single word, so
+   * containing a character that cannot be part of a word.
+   * 
+   * @param key
+   *          The key.
+   * @return True iff the key is a phrase.
+   */
+  public static boolean isPhrase(String key) {
+    boolean result = false;
+    for (int i = 0; !result && i < key.length(); i++) {
+      result = !CharClass.isWord(key.charAt(i));
+    }
+    return result;
+  }
+
+  /**
+   * Gets the key of a transition.
+   * 
+   * @param state
+   *          The state the transition is from.
+   * @param ch
+   *          The character the transition is on.
+   * @return The key.
+   */
+  private static long transitionKey(int state, char ch) {
+    return ((long) state << 16) | ch;
+  }
+
+  /**
+   * Gets the first slot to probe for a transition.
+   * 
+   * @param key
+   *          The key of the transition.
+   * @return The slot.
+   */
+  private int slot(long key) {
+    long hash = key * 0x9E3779B97F4A7C15L;
+    return (int) (hash >>> 32) & mask;
+  }
+
+  /**
+   * Gets the state a transition goes to.
+   * 
+   * @param state
+   *          The state the transition is from.
+   * @param ch
+   *          The character the transition is on.
+   * @return The state, or -1 if there is no such transition.
+   */
+  private int transition(int state, char ch) {
+    long key = transitionKey(state, ch);
+    int slot = slot(key);
+    while (transitionKeys[slot] != 0 && transitionKeys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return transitionKeys[slot] == 0 ? -1 : transitionTargets[slot];
+  }
+
+  /**
+   * Moves the automaton on by one character, following the failure links
+   * until there is a transition for it.
+   * 
+   * @param state
+   *          The current state.
+   * @param ch
+   *          The next character.
+   * @return The new state.
+   */
+  private int step(int state, char ch) {
+    int next = transition(state, ch);
+    while (next < 0 && state != 0) {
+      state = failure[state];
+      next = transition(state, ch);
+    }
+    return next < 0 ? 0 : next;
+  }
+
+  /**
+   * Gets the number of phrases.
+   * 
+   * @return The number of phrases.
+   */
+  public int size() {
+    return keys.length;
+  }
+
+  /**
+   * Gets the phrases and their corrections, so that more phrases can be added
+   * to them.
+   * 
+   * @return The phrases, mapped to their corrections.
+   */
+  public SortedMap<String, String> getPhrases() {
+    SortedMap<String, String> result = new TreeMap<String, String>();
+    for (int p = 0; p < keys.length; p++) {
+      result.put(keys[p], values[p]);
+    }
+    return result;
+  }
+
+  /**
+   * Corrects the phrases in a line, in place.
+   * 
+   * @param line
+   *          The line to correct.
+   * @param corrections
+   *          Receives each phrase corrected, mapped to its correction, unless
+   *          already there. Null if not wanted.
+   * @return The number of phrases corrected.
+   */
+  public int correct(StringBuilder line, Map<String, String> corrections) {
+    int result = 0;
+    int length = line.length();
+    int state = 0;
+    int bestStart = -1;
+    int best = -1;
+    for (int i = 0; i < length; i++) {
+      if (best >= 0 && i >= bestStart + maxLength) {
+        /*
+         * No match starting before or at the best one can still end, so
+         * correct it and start again after it.
+         */
+        correct(line, bestStart, best, corrections);
+        result++;
+        i = bestStart + keys[best].length();
+        state = 0;
+        best = -1;
+        if (i >= length) {
+          break;
+        }
+      }
+      state = step(state, line.charAt(i));
+      boolean boundary = i + 1 == length || !CharClass.isWord(line.charAt(i + 1));
+      for (int s = phrase[state] >= 0 ? state : output[state]; boundary && s != 0; s = output[s]) {
+        int p = phrase[s];
+        int start = i + 1 - keys[p].length();
+        if ((start == 0 || !CharClass.isWord(line.charAt(start - 1)))
+            && (best < 0 || start < bestStart || (start == bestStart && keys[p].length() > keys[best].length()))) {
+          bestStart = start;
+          best = p;
+        }
+      }
+    }
+    if (best >= 0) {
+      correct(line, bestStart, best, corrections);
+      result++;
+    }
+    return result;
+  }
+
+  /**
+   * Corrects one phrase in the line.
+   * 
+   * @param line
+   *          The line to correct.
+   * @param start
+   *          The index of the phrase in the line.
+   * @param p
+   *          The number of the phrase.
+   * @param corrections
+   *          Receives the phrase and its correction, or null.
+   */
+  private void correct(StringBuilder line, int start, int p, Map<String, String> corrections) {
+    String value = values[p];
+    for (int i = 0; i < value.length(); i++) {
+      line.setCharAt(start + i, value.charAt(i));
+    }
+    if (log.isDebugEnabled()) {
+      log.debug("=> fixed phrase: " + keys[p] + " -> " + value);
+    }
+    if (corrections != null && !corrections.containsKey(keys[p])) {
+      corrections.put(keys[p], value);
+    }
+  }
+}
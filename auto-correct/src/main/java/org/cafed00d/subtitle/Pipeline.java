@@ -0,0 +1,367 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Processes a batch of files in three stages, each with its own threads:
+ * <ol>
+ * <li><b>read</b> reads each file into memory,</li>
+ * <li><b>correct</b> runs the corrections over the lines in memory,</li>
+ * <li><b>write</b> writes the corrected file to a temporary file, keeps the
+ * original as its {@link Backup} and moves the corrected file into place,
+ * then writes its corrections log.</li>
+ * </ol>
+ * Each file tells the batch itself once it is done, see
+ * {@link FileProcessor#setBatch(BatchProcessor)}.
+ * The stages are joined by bounded queues, so disk I/O for one file overlaps
+ * with the corrections for another while the number of files held in memory
+ * never exceeds the capacity of the queues plus the files being worked on.
+ * <p>
+ * Once the batch is done, the throughput of each stage, how busy its threads
+ * were and how full its input queue was are displayed. A stage that is mostly
+ * busy while the others wait on their queues is the one that needs more
+ * threads.
+ */
+public class Pipeline {
+
+  /**
+   * Logger for this class.
+   */
+  private static final Log log = LogFactory.getLog(Pipeline.class);
+
+  /**
+   * Passed down the queues after the last file to tell the stages to stop.
+   */
+  private static final FileProcessor END_OF_BATCH = new FileProcessor(new File("end-of-batch"), false);
+
+  /**
+   * The batch that creates the file processors and collects their results.
+   */
+  private BatchProcessor batch;
+
+  /**
+   * The stages, in order.
+   */
+  private ArrayList<Stage> stages = new ArrayList<Stage>();
+
+  /**
+   * Constructor.
+   * 
+   * @param batch
+   *          The batch that creates the file processors and collects their
+   *          results.
+   * @param ioThreadCount
+   *          The number of threads for each of the read and write stages.
+   * @param correctThreadCount
+   *          The number of threads for the correct stage.
+   */
+  public Pipeline(final BatchProcessor batch, int ioThreadCount, int correctThreadCount) {
+    this.batch = batch;
+    BlockingQueue<FileProcessor> toRead = new ArrayBlockingQueue<FileProcessor>(ioThreadCount * 2);
+    BlockingQueue<FileProcessor> toCorrect = new ArrayBlockingQueue<FileProcessor>(correctThreadCount * 2);
+    BlockingQueue<FileProcessor> toWrite = new ArrayBlockingQueue<FileProcessor>(ioThreadCount * 2);
+    stages.add(new Stage("read", ioThreadCount, toRead, toCorrect) {
+      @Override
+      boolean handle(FileProcessor fp) {
+        batch.starting(fp.getFile());
+        return fp.read();
+      }
+    });
+    stages.add(new Stage("correct", correctThreadCount, toCorrect, toWrite) {
+      @Override
+      boolean handle(FileProcessor fp) {
+        fp.correct();
+        return true;
+      }
+    });
+    stages.add(new Stage("write", ioThreadCount, toWrite, null) {
+      @Override
+      boolean handle(FileProcessor fp) {
+        fp.write();
+        return false;
+      }
+    });
+  }
+
+  /**
+   * Processes the files, returning once all of them are done.
+   * 
+   * @param files
+   *          The files to process.
+   */
+  public void process(Iterable<File> files) {
+    long start = System.nanoTime();
+    for (Stage stage : stages) {
+      stage.start();
+    }
+    Stage first = stages.get(0);
+    try {
+      for (File file : files) {
+        first.input.put(batch.processorFor(file));
+      }
+      first.input.put(END_OF_BATCH);
+      for (Stage stage : stages) {
+        stage.join();
+      }
+    } catch (InterruptedException e) {
+      Reporter.INSTANCE.displayError("Interrupted while waiting for files to be processed");
+      for (Stage stage : stages) {
+        stage.interrupt();
+      }
+      Thread.currentThread().interrupt();
+    }
+    reportStages(System.nanoTime() - start);
+  }
+
+  /**
+   * Displays the throughput and queue occupancy of each stage.
+   * 
+   * @param elapsed
+   *          The time taken by the batch in nanoseconds.
+   */
+  private void reportStages(long elapsed) {
+    String[] messages = new String[stages.size() + 1];
+    messages[0] = String.format("Pipeline stages (%.1f s)", elapsed / 1e9);
+    for (int i = 0; i < stages.size(); i++) {
+      messages[i + 1] = stages.get(i).report(elapsed);
+    }
+    Reporter.INSTANCE.displayMessages(messages);
+  }
+
+  /**
+   * One stage of the pipeline: a set of threads that take files from an input
+   * queue, handle them, and pass them on to an output queue. A file whose
+   * handling throws is abandoned, which counts it as failed, so that it still
+   * reaches the totals and the journal.
+   */
+  private abstract class Stage implements Runnable {
+
+    /**
+     * The name of the stage, used for its threads and in the report.
+     */
+    private String name;
+
+    /**
+     * The threads running the stage.
+     */
+    private Thread[] threads;
+
+    /**
+     * The queue this stage takes files from.
+     */
+    private BlockingQueue<FileProcessor> input;
+
+    /**
+     * The queue this stage passes files on to, or null for the last stage.
+     */
+    private BlockingQueue<FileProcessor> output;
+
+    /**
+     * The number of threads still running. The last one to stop passes the
+     * end of the batch on to the next stage.
+     */
+    private AtomicInteger running;
+
+    /**
+     * The number of files handled.
+     */
+    private AtomicLong fileCount = new AtomicLong();
+
+    /**
+     * The time, in nanoseconds, spent handling files.
+     */
+    private AtomicLong busyTime = new AtomicLong();
+
+    /**
+     * The time, in nanoseconds, spent waiting for a file to arrive.
+     */
+    private AtomicLong starvedTime = new AtomicLong();
+
+    /**
+     * The time, in nanoseconds, spent waiting for room in the output queue.
+     */
+    private AtomicLong blockedTime = new AtomicLong();
+
+    /**
+     * The sum of the sizes of the input queue seen each time a file is taken.
+     */
+    private AtomicLong occupancy = new AtomicLong();
+
+    /**
+     * The number of times the size of the input queue was recorded.
+     */
+    private AtomicLong samples = new AtomicLong();
+
+    /**
+     * The largest size of the input queue seen.
+     */
+    private AtomicInteger maxOccupancy = new AtomicInteger();
+
+    /**
+     * Constructor.
+     * 
+     * @param name
+     *          The name of the stage.
+     * @param threadCount
+     *          The number of threads to run.
+     * @param input
+     *          The queue to take files from.
+     * @param output
+     *          The queue to pass files to, or null for the last stage.
+     */
+    Stage(String name, int threadCount, BlockingQueue<FileProcessor> input, BlockingQueue<FileProcessor> output) {
+      this.name = name;
+      this.input = input;
+      this.output = output;
+      this.threads = new Thread[threadCount];
+      this.running = new AtomicInteger(threadCount);
+      for (int i = 0; i < threadCount; i++) {
+        threads[i] = new Thread(this, name + "-" + (i + 1));
+      }
+    }
+
+    /**
+     * Handles a single file.
+     * 
+     * @param fp
+     *          The file to handle.
+     * @return True to pass the file on to the next stage.
+     */
+    abstract boolean handle(FileProcessor fp);
+
+    /**
+     * Starts the threads.
+     */
+    void start() {
+      for (Thread thread : threads) {
+        thread.start();
+      }
+    }
+
+    /**
+     * Waits for the threads to stop.
+     * 
+     * @throws InterruptedException
+     *           Interrupted while waiting.
+     */
+    void join() throws InterruptedException {
+      for (Thread thread : threads) {
+        thread.join();
+      }
+    }
+
+    /**
+     * Interrupts the threads.
+     */
+    void interrupt() {
+      for (Thread thread : threads) {
+        thread.interrupt();
+      }
+    }
+
+    /**
+     * Takes files from the input queue until the end of the batch is reached.
+     */
+    public void run() {
+      try {
+        FileProcessor fp = take();
+        while (fp != END_OF_BATCH) {
+          long start = System.nanoTime();
+          boolean passOn = false;
+          try {
+            passOn = handle(fp);
+          } catch (RuntimeException e) {
+            Reporter.INSTANCE.displayError("Unexpected error in " + name + " stage for file " + fp.getFile().getAbsolutePath(), e);
+            fp.abandon();
+          }
+          busyTime.addAndGet(System.nanoTime() - start);
+          fileCount.incrementAndGet();
+          if (passOn) {
+            start = System.nanoTime();
+            output.put(fp);
+            blockedTime.addAndGet(System.nanoTime() - start);
+          }
+          fp = take();
+        }
+
+        /*
+         * Leave the end marker for the other threads of this stage, and have
+         * the last one to stop pass it on.
+         */
+        input.put(END_OF_BATCH);
+        if (running.decrementAndGet() == 0 && output != null) {
+          output.put(END_OF_BATCH);
+        }
+      } catch (InterruptedException e) {
+        log.warn(name + " stage interrupted");
+      }
+    }
+
+    /**
+     * Takes the next file from the input queue, recording the queue size and
+     * the time spent waiting.
+     * 
+     * @return The next file.
+     * @throws InterruptedException
+     *           Interrupted while waiting.
+     */
+    private FileProcessor take() throws InterruptedException {
+      int size = input.size();
+      occupancy.addAndGet(size);
+      samples.incrementAndGet();
+      if (size > maxOccupancy.get()) {
+        maxOccupancy.set(size);
+      }
+      long start = System.nanoTime();
+      FileProcessor result = input.take();
+      starvedTime.addAndGet(System.nanoTime() - start);
+      return result;
+    }
+
+    /**
+     * Describes how the stage performed.
+     * 
+     * @param elapsed
+     *          The time taken by the batch in nanoseconds.
+     * @return The description.
+     */
+    String report(long elapsed) {
+      long files = fileCount.get();
+      double threadTime = (double) elapsed * threads.length;
+      return String.format("  %-7s %2d threads, %6d files, %8.1f files/s, busy %3.0f%%, starved %3.0f%%, blocked %3.0f%%, queue avg %.1f max %d of %d",
+                           name,
+                           threads.length,
+                           files,
+                           files * 1e9 / Math.max(1, elapsed),
+                           100 * busyTime.get() / threadTime,
+                           100 * starvedTime.get() / threadTime,
+                           100 * blockedTime.get() / threadTime,
+                           (double) occupancy.get() / Math.max(1, samples.get()),
+                           maxOccupancy.get(),
+                           input.size() + input.remainingCapacity());
+    }
+  }
+}
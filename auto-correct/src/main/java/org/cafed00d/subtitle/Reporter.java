@@ -21,6 +21,10 @@ import org.apache.commons.logging.LogFactory;
 /**
  * This singleton is responsible for all messages displayed to the user. It
  * handles the quiet and verbose flags, and also logs all messages.
+ * <p>
+ * Files may be processed by several threads at once, so the flags are volatile
+ * and messages that belong together are displayed as one block via
+ * {@link #displayMessages(String...)}.
  */
 public enum Reporter {
 
@@ -37,12 +41,12 @@ public enum Reporter {
   /**
    * True if the user want to see additional console output.
    */
-  private static boolean verbose;
+  private static volatile boolean verbose;
 
   /**
    * True if the user does not want to see any console output.
    */
-  private static boolean quiet;
+  private static volatile boolean quiet;
 
   /**
    * Sets the verbose and quiet flags.
@@ -55,7 +59,7 @@ public enum Reporter {
   public static final void setOptions(boolean verbose, boolean quiet) {
     Reporter.quiet = quiet;
     if (quiet) {
-      verbose = false;
+      Reporter.verbose = false;
     } else {
       Reporter.verbose = verbose;
     }
@@ -86,11 +90,33 @@ public enum Reporter {
    */
   public void displayVerboseMessage(String message) {
     log.info(message);
-    if (!verbose) {
+    if (verbose) {
       System.out.println(message);
     }
   }
 
+  /**
+   * Displays several messages to the user as a single block, so that the
+   * output of another thread does not end up in the middle of them.
+   * <p>
+   * Also logs the messages at the info level.
+   * 
+   * @param messages
+   *          The text of the messages, one per line.
+   */
+  public synchronized void displayMessages(String... messages) {
+    for (String message : messages) {
+      log.info(message);
+    }
+    if (!quiet) {
+      synchronized (System.out) {
+        for (String message : messages) {
+          System.out.println(message);
+        }
+      }
+    }
+  }
+
   /**
    * Write a single character to the console to denote progress. This is
    * considered to be verbose output.
@@ -103,7 +129,7 @@ public enum Reporter {
    *          "." is written to the console.
    */
   public void displayProgress(boolean major) {
-    if (!verbose) {
+    if (verbose) {
       System.out.print(major? '+' : '.');
     }
   }
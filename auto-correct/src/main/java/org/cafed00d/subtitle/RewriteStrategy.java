@@ -0,0 +1,290 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Writes the corrected file again in full, to a temporary file that is moved
+ * into its place once complete, so that a crash never leaves half a file. The
+ * original is kept as the {@link Backup} strategy says. The temporary file is
+ * forced to disk before it is moved and the directory synced after, see
+ * {@link SyncBatch}. In a {@link BatchProcessor} the move waits for the rest
+ * of its batch, so that the temporary files are all forced together; the file
+ * is only counted once it is in place.
+ * <p>
+ * In one go the file is streamed a line at a time, or for a UTF-8 file
+ * corrected as bytes, straight into the temporary file; in stages it is held
+ * in memory as {@link StagedContents}. A file with a cached result has that
+ * written instead.
+ */
+final class RewriteStrategy extends OutputStrategy {
+
+  /**
+   * Logger for this class.
+   */
+  private static final Log log = LogFactory.getLog(RewriteStrategy.class);
+
+  /**
+   * How the original of the file is kept.
+   */
+  private final Backup backup;
+
+  /**
+   * The temporary file the corrected contents are written to.
+   */
+  private final File tempFile;
+
+  /**
+   * The contents read by {@link #read()}, or null if the file has a cached
+   * result.
+   */
+  private StagedContents contents;
+
+  /**
+   * Constructor.
+   * 
+   * @param processor
+   *          The processor of the file.
+   * @param backup
+   *          How the original of the file is kept.
+   */
+  RewriteStrategy(FileProcessor processor, Backup backup) {
+    super(processor);
+    this.backup = backup;
+    this.tempFile = FileProcessor.tempFileFor(processor.getFile());
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.OutputStrategy#start()
+   */
+  @Override
+  void start() {
+    String fileName = processor.getFile().getAbsolutePath();
+    log.info("processing file: " + fileName);
+    Reporter.INSTANCE.displayMessage("Correcting " + fileName);
+  }
+
+  /**
+   * Copies the file to the temporary file, correcting it on the way, and
+   * moves it into place.
+   * 
+   * @see org.cafed00d.subtitle.OutputStrategy#process()
+   */
+  @Override
+  void process() throws IOException {
+    if (processor.isUtf8()) {
+      copyBytes();
+    } else {
+      LineReader in = processor.openInput();
+      if (processor.getCached() != null) {
+        in.close();
+        writeCached();
+      } else {
+        copyLines(in);
+        processor.storeInCache(tempFile);
+      }
+    }
+    commit();
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.OutputStrategy#read()
+   */
+  @Override
+  void read() throws IOException {
+    contents = StagedContents.read(processor);
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.OutputStrategy#correct()
+   */
+  @Override
+  void correct() {
+    if (contents != null) {
+      contents.correct(processor);
+    }
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.OutputStrategy#write()
+   */
+  @Override
+  void write() throws IOException {
+    if (contents == null) {
+      writeCached();
+    } else {
+      contents.writeTo(tempFile);
+      contents = null;
+      processor.storeInCache(tempFile);
+    }
+    commit();
+  }
+
+  /**
+   * Deletes the temporary file.
+   * 
+   * @see org.cafed00d.subtitle.OutputStrategy#discard()
+   */
+  @Override
+  void discard() {
+    contents = null;
+    if (tempFile.exists() && !tempFile.delete()) {
+      log.warn("unable to delete " + tempFile.getAbsolutePath());
+    }
+  }
+
+  /**
+   * Copies the contents from the file to the temporary file one line at a
+   * time, correcting each line.
+   * 
+   * @param in
+   *          The reader for the file, closed by this method.
+   * @throws IOException
+   *           The file could not be read, or the temporary file written.
+   */
+  private void copyLines(LineReader in) throws IOException {
+    OutputWriter out = null;
+    try {
+      out = processor.getEncoding().newWriter(tempFile);
+      String line = null;
+      int lineCount = 0;
+      while ((line = in.readLine()) != null) {
+        lineCount++;
+        out.writeLine(processor.correctLine(line, lineCount), in.getTerminator());
+      }
+    } finally {
+      processor.getStatistics().addDecodeTime(in.getReadNanos());
+      if (out != null) {
+        out.close();
+      }
+      in.close();
+    }
+  }
+
+  /**
+   * Corrects the bytes of the file into the temporary file, in place of
+   * {@link #copyLines(LineReader)}. The file is read whole rather than
+   * memory-mapped, as a mapped file cannot be replaced on Windows until the
+   * mapping is collected.
+   * 
+   * @throws IOException
+   *           The file could not be read, or the temporary file written.
+   */
+  private void copyBytes() throws IOException {
+    byte[] bytes = DedupeCache.readBytes(processor.getFile());
+    processor.lookUp(bytes);
+    if (processor.getCached() != null) {
+      writeCached();
+    } else {
+      OutputStream out = new OutputWriter(tempFile);
+      try {
+        processor.correctBytes(ByteBuffer.wrap(bytes), out);
+      } finally {
+        out.close();
+      }
+      processor.storeInCache(tempFile);
+    }
+  }
+
+  /**
+   * Writes the cached result for the file, in place of correcting it.
+   * 
+   * @throws IOException
+   *           The file could not be written.
+   */
+  private void writeCached() throws IOException {
+    Reporter.INSTANCE.displayVerboseMessage("Same contents as a file already corrected: "
+        + processor.getFile().getAbsolutePath());
+    OutputStream out = new FileOutputStream(tempFile);
+    try {
+      out.write(processor.getCached().getContent());
+    } finally {
+      out.close();
+    }
+    processor.useCached();
+  }
+
+  /**
+   * Forces the corrected contents to disk and moves them into the place of
+   * the file. In a batch this is handed over to the {@link SyncBatch} and done
+   * with the rest of the batch; an error is then reported when it happens and
+   * the file counted as failed.
+   * 
+   * @throws IOException
+   *           The contents could not be forced, the backup could not be made
+   *           or the file could not be moved.
+   */
+  private void commit() throws IOException {
+    final File file = processor.getFile();
+    if (processor.isBatched()) {
+      processor.defer(new SyncBatch.Commit(tempFile, file) {
+        @Override
+        void move() throws IOException {
+          moveIntoPlace();
+        }
+
+        @Override
+        void done(IOException error) {
+          if (error != null) {
+            Reporter.INSTANCE.displayError("Error while writing file " + file.getAbsolutePath(), error);
+            discard();
+          }
+          processor.committed(error == null);
+        }
+      });
+    } else {
+      SyncBatch.force(tempFile);
+      moveIntoPlace();
+      SyncBatch.add(file);
+    }
+  }
+
+  /**
+   * Moves the corrected contents into the place of the file, once the
+   * original has been kept as the {@link Backup} strategy says. If the move
+   * fails after the original was renamed, it is renamed back.
+   * 
+   * @throws IOException
+   *           The backup could not be made or the file could not be moved.
+   */
+  private void moveIntoPlace() throws IOException {
+    File file = processor.getFile();
+    File backupFile = FileProcessor.backupFileFor(file, backup);
+    if (backupFile != null) {
+      log.info("backing up as: " + backupFile.getAbsolutePath());
+      if (backupFile.exists() && !backupFile.delete()) {
+        throw new IOException("Unable to delete " + backupFile.getAbsolutePath());
+      }
+      backup.save(file, backupFile);
+    }
+    try {
+      Backup.replace(tempFile, file);
+    } catch (IOException e) {
+      if (!file.exists() && backupFile != null && !backupFile.renameTo(file)) {
+        Reporter.INSTANCE.displayError("Unable to rename file " + backupFile.getAbsolutePath() + " back to " + file.getAbsolutePath());
+      }
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,859 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Spreads a batch of files across several {@link ShardWorker} processes on the
+ * local machine.
+ * <p>
+ * The files are split into one shard per worker by the hash of their path, so
+ * a given file always goes to the same shard. Each worker is driven by its own
+ * thread, which sends the worker one file at a time and collects the file's
+ * statistics and corrections. Once the batch is done the statistics of all
+ * the workers are added up and, if a corrections log was requested, the
+ * corrections of all the files are merged into
+ * <code>autocorrect.log</code> in the current directory.
+ * <p>
+ * If a worker fails, its shards are handed to the live worker with the fewest
+ * shards. The file it was working on is restored from its backup if the
+ * worker got as far as replacing it, and is then sent to the new worker,
+ * unless it has already been sent to {@link #MAX_ATTEMPTS} workers that
+ * failed, in which case it is reported as failed. Once no workers are left the
+ * remaining files are reported as failed. A worker that does not answer
+ * within the timeout, see {@link #setTimeout(int)}, is treated as failed.
+ * <p>
+ * The workers are either started by the coordinator, as new JVMs using the
+ * same Java and class path, or are already running and are given as a list of
+ * <code>[host:]port</code> addresses.
+ */
+public class ShardCoordinator {
+
+  /**
+   * Logger for this class.
+   */
+  private static final Log log = LogFactory.getLog(ShardCoordinator.class);
+
+  /**
+   * The name of the merged corrections log.
+   */
+  private static final String MERGED_LOG = "autocorrect.log";
+
+  /**
+   * Put in a shard's queue after its last file.
+   */
+  private static final File END_OF_SHARD = new File("end-of-shard");
+
+  /**
+   * The default time to wait for a worker to connect or to answer for a file,
+   * in milliseconds.
+   */
+  static final int DEFAULT_TIMEOUT = 5 * 60 * 1000;
+
+  /**
+   * The number of workers a file is sent to before it is reported as failed.
+   * Every worker a file is sent to that fails is lost for the rest of the
+   * batch, so a file that crashes the worker is not tried on every one.
+   */
+  static final int MAX_ATTEMPTS = 2;
+
+  /**
+   * The batch that collects the results.
+   */
+  private BatchProcessor batch;
+
+  /**
+   * If true, the workers generate corrections logs and the coordinator merges
+   * them.
+   */
+  private boolean generateLog;
+
+  /**
+   * The time to wait for a worker to connect or to answer, in milliseconds.
+   */
+  private int timeout = DEFAULT_TIMEOUT;
+
+  /**
+   * The number of failed attempts for each file that was being processed by a
+   * worker that failed. Guarded by the coordinator.
+   */
+  private HashMap<File, Integer> attempts = new HashMap<File, Integer>();
+
+  /**
+   * The engine the workers correct the words with.
+   */
+  private Engine engine;
+
+  /**
+   * The word frequency model the workers use, or null for none.
+   */
+  private FrequencyModel model;
+
+  /**
+   * The index that corrects other OCR confusions, or null for none.
+   */
+  private ConfusionIndex confusions;
+
+  /**
+   * If true, the workers patch the files in place.
+   */
+  private boolean inPlace = false;
+
+  /**
+   * If true, the workers keep an undo log for each file patched in place.
+   */
+  private boolean undoLog = true;
+
+  /**
+   * If true, the files are UTF-8 and the workers correct their bytes.
+   */
+  private boolean utf8 = false;
+
+  /**
+   * How the workers keep the original of each file.
+   */
+  private Backup backup = Backup.RENAME;
+
+  /**
+   * If true, the workers only check the files.
+   */
+  private boolean checkOnly = false;
+
+  /**
+   * The workers.
+   */
+  private ArrayList<Worker> workers = new ArrayList<Worker>();
+
+  /**
+   * The shards, one per worker.
+   */
+  private ArrayList<Shard> shards = new ArrayList<Shard>();
+
+  /**
+   * Limits the number of files that have been routed to a shard but not yet
+   * completed.
+   */
+  private Semaphore inFlight;
+
+  /**
+   * The corrections made to all of the files.
+   */
+  private TreeMap<String, String> corrections = new TreeMap<String, String>();
+
+  /**
+   * Constructor.
+   * 
+   * @param batch
+   *          The batch that collects the results.
+   * @param spec
+   *          Either the number of workers to start, or a comma separated list
+   *          of <code>[host:]port</code> addresses of running workers.
+   * @param generateLog
+   *          If true, generate corrections logs.
+   * @param engine
+   *          The engine the workers correct the words with.
+   */
+  public ShardCoordinator(BatchProcessor batch, String spec, boolean generateLog, Engine engine) {
+    this.batch = batch;
+    this.generateLog = generateLog;
+    this.engine = engine;
+    if (isWorkerCount(spec)) {
+      int count = Integer.parseInt(spec);
+      for (int i = 0; i < count; i++) {
+        workers.add(new Worker(null, 0));
+      }
+    } else {
+      for (String address : spec.split(",")) {
+        int inx = address.lastIndexOf(':');
+        String host = inx < 0 ? "localhost" : address.substring(0, inx);
+        workers.add(new Worker(host, Integer.parseInt(address.substring(inx + 1).trim())));
+      }
+    }
+    for (int i = 0; i < workers.size(); i++) {
+      Shard shard = new Shard(i);
+      shards.add(shard);
+      workers.get(i).shards.add(shard);
+    }
+    inFlight = new Semaphore(workers.size() * 4);
+  }
+
+  /**
+   * Sets how long to wait for a worker to connect, and to answer for each
+   * file, before treating it as failed. The timeout must allow for the
+   * largest file, as the worker does not answer until the file is done. A
+   * worker that is not running on this machine is left to finish the file
+   * after the timeout, so it could still replace the file after it has been
+   * restored.
+   * 
+   * @param timeout
+   *          The timeout in milliseconds, or 0 to wait forever.
+   */
+  public void setTimeout(int timeout) {
+    this.timeout = timeout;
+  }
+
+  /**
+   * Sets the word frequency model the workers use. The workers open the
+   * model's file themselves, so it must be readable at the same path on their
+   * machines.
+   * 
+   * @param model
+   *          The model, or null for none.
+   */
+  public void setModel(FrequencyModel model) {
+    this.model = model;
+  }
+
+  /**
+   * Sets the index the workers correct other OCR confusions with. As with
+   * the model, the workers read the word list from the same path.
+   * 
+   * @param confusions
+   *          The index, or null for none.
+   */
+  public void setConfusions(ConfusionIndex confusions) {
+    this.confusions = confusions;
+  }
+
+  /**
+   * Sets whether the workers patch the files in place, see
+   * {@link BatchProcessor#setInPlace(boolean, boolean)}.
+   * 
+   * @param inPlace
+   *          True to patch the files in place.
+   * @param undoLog
+   *          True to keep an undo log for each file patched.
+   */
+  public void setInPlace(boolean inPlace, boolean undoLog) {
+    this.inPlace = inPlace;
+    this.undoLog = undoLog;
+  }
+
+  /**
+   * Sets whether the files are UTF-8, see
+   * {@link BatchProcessor#setUtf8(boolean)}.
+   * 
+   * @param utf8
+   *          True if the files are UTF-8.
+   */
+  public void setUtf8(boolean utf8) {
+    this.utf8 = utf8;
+  }
+
+  /**
+   * Sets how the workers keep the original of each file, see
+   * {@link BatchProcessor#setBackup(Backup)}.
+   * 
+   * @param backup
+   *          The backup strategy.
+   */
+  public void setBackup(Backup backup) {
+    this.backup = backup;
+  }
+
+  /**
+   * Sets whether the workers only check the files, see
+   * {@link BatchProcessor#setCheckOnly(boolean)}.
+   * 
+   * @param checkOnly
+   *          True to only check the files.
+   */
+  public void setCheckOnly(boolean checkOnly) {
+    this.checkOnly = checkOnly;
+  }
+
+  /**
+   * Determines if a worker specification is a number of workers to start,
+   * rather than a list of addresses.
+   * 
+   * @param spec
+   *          The specification.
+   * @return True if <code>spec</code> is a number.
+   */
+  static boolean isWorkerCount(String spec) {
+    return spec.matches("\\d+");
+  }
+
+  /**
+   * Checks that a worker specification is valid.
+   * 
+   * @param spec
+   *          The specification to check.
+   * @return True iff it is a positive number of workers or a list of
+   *         <code>[host:]port</code> addresses.
+   */
+  static boolean isValid(String spec) {
+    return spec != null
+        && (isWorkerCount(spec) ? Integer.parseInt(spec) > 0 : spec.matches("([^,:]+:)?\\d+(,([^,:]+:)?\\d+)*"));
+  }
+
+  /**
+   * Picks the shard for a file by the hash of its path.
+   * 
+   * @param file
+   *          The file.
+   * @param shardCount
+   *          The number of shards.
+   * @return The index of the shard.
+   */
+  static int shardOf(File file, int shardCount) {
+    return (file.getAbsolutePath().hashCode() & Integer.MAX_VALUE) % shardCount;
+  }
+
+  /**
+   * Processes the files, returning once all of them are done.
+   * 
+   * @param files
+   *          The files to process.
+   */
+  public void process(Iterable<File> files) {
+    Reporter.INSTANCE.displayVerboseMessage("Processing files with " + workers.size() + " workers");
+    ArrayList<Thread> threads = new ArrayList<Thread>();
+    for (Worker worker : workers) {
+      Thread thread = new Thread(worker, "shard-" + (threads.size() + 1));
+      thread.start();
+      threads.add(thread);
+    }
+    for (File file : files) {
+      inFlight.acquireUninterruptibly();
+      shards.get(shardOf(file, shards.size())).queue.add(file);
+    }
+    for (Shard shard : shards) {
+      shard.queue.add(END_OF_SHARD);
+    }
+    for (Thread thread : threads) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Reporter.INSTANCE.displayError("Interrupted while waiting for the workers");
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    report();
+  }
+
+  /**
+   * Records the result for a file.
+   * 
+   * @param file
+   *          The file.
+   * @param statistics
+   *          The statistics for the file.
+   * @param fileCorrections
+   *          The corrections made to the file.
+   */
+  private void completed(File file, Statistics statistics, Map<String, String> fileCorrections) {
+    batch.completed(file, statistics);
+    if (!fileCorrections.isEmpty()) {
+      synchronized (corrections) {
+        for (Map.Entry<String, String> entry : fileCorrections.entrySet()) {
+          if (!corrections.containsKey(entry.getKey())) {
+            corrections.put(entry.getKey(), entry.getValue());
+          }
+        }
+      }
+    }
+    inFlight.release();
+  }
+
+  /**
+   * Records a file that could not be processed by any worker.
+   * 
+   * @param file
+   *          The file.
+   * @param reason
+   *          Why the file could not be processed.
+   */
+  private void failed(File file, String reason) {
+    Reporter.INSTANCE.displayError(reason + " " + file.getAbsolutePath());
+    Statistics statistics = new Statistics();
+    statistics.addFile(true);
+    completed(file, statistics, new TreeMap<String, String>());
+  }
+
+  /**
+   * Counts a failed attempt to process a file.
+   * 
+   * @param file
+   *          The file.
+   * @return True if the file may be sent to another worker.
+   */
+  private synchronized boolean retry(File file) {
+    Integer count = attempts.get(file);
+    count = count == null ? 1 : count + 1;
+    attempts.put(file, count);
+    return count < MAX_ATTEMPTS;
+  }
+
+  /**
+   * Hands a shard from a failed worker to the live worker with the fewest
+   * shards.
+   * 
+   * @param shard
+   *          The shard to reassign.
+   * @return The worker now handling the shard, or null if no worker is left.
+   */
+  private synchronized Worker reassign(Shard shard) {
+    Worker result = null;
+    for (Worker worker : workers) {
+      if (worker.active && (result == null || worker.shards.size() < result.shards.size())) {
+        result = worker;
+      }
+    }
+    if (result != null) {
+      result.shards.add(shard);
+      Reporter.INSTANCE.displayMessage("Shard " + shard.id + " reassigned to worker " + result.address);
+    }
+    return result;
+  }
+
+  /**
+   * Called by a worker once all of its shards appear to be done. Checked under
+   * the same lock as {@link #reassign(Shard)} so that a shard is never handed
+   * to a worker that is stopping.
+   * 
+   * @param worker
+   *          The worker.
+   * @return True if the worker may stop.
+   */
+  private synchronized boolean finished(Worker worker) {
+    for (Shard shard : worker.shards) {
+      if (!shard.ended) {
+        return false;
+      }
+    }
+    worker.active = false;
+    return true;
+  }
+
+  /**
+   * Displays what each worker did and writes the merged corrections log.
+   */
+  private void report() {
+    String[] messages = new String[workers.size() + 1];
+    messages[0] = "Workers";
+    for (int i = 0; i < workers.size(); i++) {
+      Worker worker = workers.get(i);
+      messages[i + 1] = "  " + worker.address + ": " + worker.fileCount + " files" + (worker.failed ? " (failed)" : "");
+    }
+    Reporter.INSTANCE.displayMessages(messages);
+    if (generateLog) {
+      File corFile = new File(MERGED_LOG).getAbsoluteFile();
+      PrintStream out = null;
+      try {
+        out = new PrintStream(new FileOutputStream(corFile));
+        for (Map.Entry<String, String> entry : corrections.entrySet()) {
+          out.println(entry.getKey() + "=" + entry.getValue());
+        }
+        Reporter.INSTANCE.displayMessage("Corrections from all files written to " + corFile.getAbsolutePath());
+      } catch (FileNotFoundException e) {
+        Reporter.INSTANCE.displayError("Unable to create corrections log file", e);
+      } finally {
+        if (out != null) {
+          out.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * The files routed to one shard.
+   */
+  private static class Shard {
+
+    /**
+     * The number of the shard.
+     */
+    private int id;
+
+    /**
+     * The files waiting to be processed. The size is limited by
+     * {@link ShardCoordinator#inFlight} so that a file can always be put back
+     * at the front.
+     */
+    private LinkedBlockingDeque<File> queue = new LinkedBlockingDeque<File>();
+
+    /**
+     * Set once the end of the shard has been taken from the queue.
+     */
+    private volatile boolean ended;
+
+    /**
+     * Constructor.
+     * 
+     * @param id
+     *          The number of the shard.
+     */
+    Shard(int id) {
+      this.id = id;
+    }
+  }
+
+  /**
+   * Drives a single worker process.
+   */
+  private class Worker implements Runnable {
+
+    /**
+     * The host the worker runs on, or null to start a new worker.
+     */
+    private String host;
+
+    /**
+     * The port the worker listens on.
+     */
+    private int port;
+
+    /**
+     * The address of the worker, used in messages.
+     */
+    private String address;
+
+    /**
+     * The worker process if it was started by the coordinator.
+     */
+    private Process process;
+
+    /**
+     * The connection to the worker.
+     */
+    private Socket socket;
+
+    /**
+     * The stream to send commands on.
+     */
+    private DataOutputStream out;
+
+    /**
+     * The stream to read results from.
+     */
+    private DataInputStream in;
+
+    /**
+     * The shards this worker handles. Guarded by the coordinator.
+     */
+    private ArrayList<Shard> shards = new ArrayList<Shard>();
+
+    /**
+     * True while the worker can take on more shards. Guarded by the
+     * coordinator.
+     */
+    private boolean active = true;
+
+    /**
+     * Set if the worker failed.
+     */
+    private volatile boolean failed;
+
+    /**
+     * The number of files the worker processed.
+     */
+    private volatile int fileCount;
+
+    /**
+     * Constructor.
+     * 
+     * @param host
+     *          The host the worker runs on, or null to start a new worker.
+     * @param port
+     *          The port the worker listens on. Ignored when starting a new
+     *          worker.
+     */
+    Worker(String host, int port) {
+      this.host = host;
+      this.port = port;
+      this.address = host == null ? "(starting)" : host + ":" + port;
+    }
+
+    /**
+     * Connects to the worker and sends it the files in its shards.
+     */
+    public void run() {
+      File file = null;
+      Shard shard = null;
+      long sent = 0;
+      try {
+        connect();
+        while (true) {
+          synchronized (ShardCoordinator.this) {
+            shard = shards.get(0);
+            for (Shard candidate : shards) {
+              if (!candidate.ended && (shard.ended || candidate.queue.size() > shard.queue.size())) {
+                shard = candidate;
+              }
+            }
+          }
+          file = shard.ended ? null : shard.queue.poll(100, TimeUnit.MILLISECONDS);
+          if (file == END_OF_SHARD) {
+            shard.ended = true;
+            file = null;
+          }
+          if (file == null) {
+            if (finished(this)) {
+              break;
+            }
+            continue;
+          }
+          sent = System.currentTimeMillis() / 1000 * 1000;
+          batch.starting(file);
+          send(file);
+          file = null;
+        }
+        close(process == null ? ShardWorker.CLOSE : ShardWorker.SHUTDOWN, false);
+      } catch (IOException e) {
+        fail(e, file, shard, sent);
+      } catch (InterruptedException e) {
+        log.warn("worker " + address + " interrupted");
+        close(ShardWorker.CLOSE, true);
+      }
+    }
+
+    /**
+     * Starts the worker process if needed, and connects to it.
+     * 
+     * @throws IOException
+     *           The worker could not be started or reached.
+     */
+    private void connect() throws IOException {
+      if (host == null) {
+        start();
+      }
+      socket = new Socket();
+      socket.connect(new InetSocketAddress(host, port), timeout);
+      socket.setSoTimeout(timeout);
+      out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      out.writeBoolean(generateLog);
+      out.writeUTF(engine.name());
+      out.writeUTF(model == null ? "" : model.getFile().getPath());
+      out.writeUTF(confusions == null ? "" : confusions.getFile().getPath());
+      out.writeBoolean(inPlace);
+      out.writeBoolean(undoLog);
+      out.writeBoolean(utf8);
+      out.writeInt(OutputWriter.getFlushSize());
+      out.writeBoolean(OutputWriter.isDirect());
+      out.writeUTF(backup.name());
+      out.writeInt(SyncBatch.getSize());
+      out.writeBoolean(checkOnly);
+      log.info("connected to worker " + address);
+    }
+
+    /**
+     * Starts a worker process using the same Java and class path as this one,
+     * and waits for it to report its port.
+     * 
+     * @throws IOException
+     *           The worker could not be started.
+     */
+    private void start() throws IOException {
+      String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+      ProcessBuilder builder = new ProcessBuilder(java,
+                                                  "-cp",
+                                                  System.getProperty("java.class.path"),
+                                                  ShardWorker.class.getName());
+      builder.redirectErrorStream(true);
+      process = builder.start();
+      final BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()));
+      String line = output.readLine();
+      if (line == null || !line.startsWith(ShardWorker.LISTENING)) {
+        throw new IOException("worker did not start: " + line);
+      }
+      host = "localhost";
+      port = Integer.parseInt(line.substring(ShardWorker.LISTENING.length()).trim());
+      address = host + ":" + port;
+
+      /*
+       * Keep reading the worker's output so that it never blocks on a full
+       * pipe.
+       */
+      Thread drain = new Thread("drain-" + port) {
+        @Override
+        public void run() {
+          try {
+            String text;
+            while ((text = output.readLine()) != null) {
+              log.info("worker " + address + ": " + text);
+            }
+          } catch (IOException e) {
+            log.debug(e.getMessage(), e);
+          }
+        }
+      };
+      drain.setDaemon(true);
+      drain.start();
+    }
+
+    /**
+     * Sends a file to the worker and waits for the result.
+     * 
+     * @param file
+     *          The file to process.
+     * @throws IOException
+     *           The worker could not be reached.
+     */
+    private void send(File file) throws IOException {
+      out.writeByte(ShardWorker.FILE);
+      out.writeUTF(file.getAbsolutePath());
+      out.flush();
+      String path = in.readUTF();
+      Statistics statistics = Statistics.readFrom(in);
+      TreeMap<String, String> fileCorrections = new TreeMap<String, String>();
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        fileCorrections.put(in.readUTF(), in.readUTF());
+      }
+      if (!path.equals(file.getAbsolutePath())) {
+        throw new IOException("worker answered for " + path + " instead of " + file.getAbsolutePath());
+      }
+      fileCount++;
+      completed(file, statistics, fileCorrections);
+    }
+
+    /**
+     * Handles the failure of the worker by handing its shards to another
+     * worker, or failing their files if no worker is left.
+     * 
+     * @param e
+     *          The reason for the failure.
+     * @param file
+     *          The file being processed, or null.
+     * @param shard
+     *          The shard the file came from.
+     * @param sent
+     *          The time the file was sent.
+     */
+    private void fail(IOException e, File file, Shard shard, long sent) {
+      Reporter.INSTANCE.displayError("Worker " + address + " failed", e);
+      failed = true;
+      close(ShardWorker.CLOSE, true);
+      if (file != null) {
+        if (!checkOnly) {
+          FileProcessor.recover(file, sent);
+        }
+        if (retry(file)) {
+          shard.queue.addFirst(file);
+        } else {
+          failed(file, "Gave up after " + MAX_ATTEMPTS + " workers failed on file");
+        }
+      }
+      ArrayList<Shard> orphans;
+      synchronized (ShardCoordinator.this) {
+        active = false;
+        orphans = new ArrayList<Shard>(shards);
+        shards.clear();
+      }
+      ArrayList<Shard> unassigned = new ArrayList<Shard>();
+      for (Shard orphan : orphans) {
+        if (!orphan.ended && reassign(orphan) == null) {
+          unassigned.add(orphan);
+        }
+      }
+      drain(unassigned);
+    }
+
+    /**
+     * Fails every file left in the shards that no worker can take. The shards
+     * are taken from in turn, as the end of one shard is not queued until the
+     * files of the others have made room for it.
+     * 
+     * @param orphans
+     *          The shards.
+     */
+    private void drain(ArrayList<Shard> orphans) {
+      try {
+        while (!orphans.isEmpty()) {
+          for (Iterator<Shard> iter = orphans.iterator(); iter.hasNext();) {
+            Shard shard = iter.next();
+            File file = shard.queue.poll(10, TimeUnit.MILLISECONDS);
+            while (file != null && file != END_OF_SHARD) {
+              failed(file, "No worker left to process file");
+              file = shard.queue.poll();
+            }
+            if (file == END_OF_SHARD) {
+              shard.ended = true;
+              iter.remove();
+            }
+          }
+        }
+      } catch (InterruptedException e) {
+        log.warn("interrupted while failing the files of " + orphans.size() + " shards");
+      }
+    }
+
+    /**
+     * Ends the connection, stopping the worker if the coordinator started it.
+     * 
+     * @param command
+     *          The command to end the connection with.
+     * @param kill
+     *          If true, a worker started by the coordinator is killed rather
+     *          than waited for.
+     */
+    private void close(byte command, boolean kill) {
+      try {
+        if (out != null) {
+          out.writeByte(command);
+          out.flush();
+        }
+      } catch (IOException e) {
+        log.debug(e.getMessage(), e);
+      }
+      try {
+        if (socket != null) {
+          socket.close();
+        }
+      } catch (IOException e) {
+        log.debug(e.getMessage(), e);
+      }
+      if (process != null) {
+        if (kill) {
+          process.destroy();
+        }
+        try {
+          process.waitFor();
+        } catch (InterruptedException e) {
+          process.destroy();
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A worker process that corrects files on behalf of a
+ * {@link ShardCoordinator}. The worker listens on a local socket and runs a
+ * {@link FileProcessor} for each file the coordinator sends it, answering with
+ * the file's statistics and corrections.
+ * <p>
+ * <b>Usage:</b> <code>java org.cafed00d.subtitle.ShardWorker [&lt;port&gt;]</code>
+ * <p>
+ * If no port is given, or the port is 0, a free port is picked. Once the
+ * worker is listening it writes <code>listening on port &lt;port&gt;</code>
+ * to standard output, which is how a coordinator that started the worker
+ * finds out where to connect. The worker only accepts connections from the
+ * local machine.
+ * <p>
+ * The protocol uses {@link DataOutputStream}. Once connected, the coordinator
+ * sends whether corrections logs are wanted, the name of the {@link Engine}
+ * to use, the path of the {@link FrequencyModel} to use and the path of the
+ * word list of the {@link ConfusionIndex} to use (each empty for none), and
+ * whether to patch the files in place, keep undo logs and correct the bytes
+ * of UTF-8 files, how to buffer the output, see
+ * {@link OutputWriter#configure(int, boolean)}, the name of the {@link Backup}
+ * strategy, the number of files to force to disk at once, see
+ * {@link SyncBatch#configure(int)}, and whether to only check the files,
+ * followed by any number of commands:
+ * <ul>
+ * <li>{@link #FILE} followed by the absolute path of a file. The worker
+ * processes the file and answers with the path, the file's
+ * {@link Statistics}, and the number of corrections followed by each
+ * misspelling and its correction.</li>
+ * <li>{@link #CLOSE} ends the connection.</li>
+ * <li>{@link #SHUTDOWN} ends the connection and stops the worker.</li>
+ * </ul>
+ */
+public class ShardWorker implements Runnable {
+
+  /**
+   * Logger for this class.
+   */
+  private static final Log log = LogFactory.getLog(ShardWorker.class);
+
+  /**
+   * The text written to standard output, followed by the port, once the
+   * worker is listening.
+   */
+  static final String LISTENING = "listening on port ";
+
+  /**
+   * Command: process a file.
+   */
+  static final byte FILE = 'F';
+
+  /**
+   * Command: close the connection.
+   */
+  static final byte CLOSE = 'C';
+
+  /**
+   * Command: close the connection and stop the worker.
+   */
+  static final byte SHUTDOWN = 'S';
+
+  /**
+   * The socket the worker listens on.
+   */
+  private ServerSocket server;
+
+  /**
+   * The connection to the coordinator.
+   */
+  private Socket socket;
+
+  /**
+   * Main body of the worker.
+   * 
+   * @param args
+   *          The port to listen on, optional.
+   */
+  public static void main(String[] args) {
+    Reporter.setOptions(false, true);
+    int port = 0;
+    if (args.length > 0) {
+      port = Integer.parseInt(args[0]);
+    }
+    ServerSocket server = null;
+    try {
+      server = new ServerSocket(port, 0, InetAddress.getByName(null));
+      System.out.println(LISTENING + server.getLocalPort());
+      System.out.flush();
+      log.info(LISTENING + server.getLocalPort());
+      while (!server.isClosed()) {
+        Socket socket = server.accept();
+        Thread thread = new Thread(new ShardWorker(server, socket), "connection-" + socket.getPort());
+        thread.start();
+      }
+    } catch (IOException e) {
+      if (server == null || !server.isClosed()) {
+        System.err.println("ERROR: " + e.getLocalizedMessage());
+        log.error(e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param server
+   *          The socket the worker listens on, closed on shutdown.
+   * @param socket
+   *          The connection to the coordinator.
+   */
+  private ShardWorker(ServerSocket server, Socket socket) {
+    this.server = server;
+    this.socket = socket;
+  }
+
+  /**
+   * Handles the commands sent over the connection.
+   */
+  public void run() {
+    log.info("coordinator connected from port " + socket.getPort());
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      boolean generateLog = in.readBoolean();
+      Engine engine = Engine.valueOf(in.readUTF());
+      String modelPath = in.readUTF();
+      FrequencyModel model = modelPath.length() == 0 ? null : FrequencyModel.open(new File(modelPath));
+      String wordsPath = in.readUTF();
+      ConfusionIndex confusions = wordsPath.length() == 0 ? null : ConfusionIndex.open(new File(wordsPath));
+      boolean inPlace = in.readBoolean();
+      boolean undoLog = in.readBoolean();
+      boolean utf8 = in.readBoolean();
+      OutputWriter.configure(in.readInt(), in.readBoolean());
+      Backup backup = Backup.valueOf(in.readUTF());
+      SyncBatch.configure(in.readInt());
+      boolean checkOnly = in.readBoolean();
+      byte command = in.readByte();
+      while (command == FILE) {
+        FileProcessor fp = new FileProcessor(new File(in.readUTF()), generateLog);
+        fp.setEngine(engine);
+        fp.setModel(model);
+        fp.setConfusions(confusions);
+        fp.setInPlace(inPlace);
+        fp.setUndoLog(undoLog);
+        fp.setUtf8(utf8);
+        fp.setBackup(backup);
+        fp.setCheckOnly(checkOnly);
+        processFile(fp, out);
+        command = in.readByte();
+      }
+      if (command == SHUTDOWN) {
+        log.info("shutting down");
+        server.close();
+      }
+    } catch (EOFException e) {
+      log.info("coordinator disconnected");
+    } catch (IOException e) {
+      log.error(e.getMessage(), e);
+    } finally {
+      SyncBatch.flush();
+      try {
+        socket.close();
+      } catch (IOException e) {
+        log.warn(e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * Processes a single file and sends the result back.
+   * 
+   * @param fp
+   *          The processor for the file, set up as the coordinator asked.
+   * @param out
+   *          The stream to answer on.
+   * @throws IOException
+   *           The answer could not be sent.
+   */
+  private void processFile(FileProcessor fp, DataOutputStream out) throws IOException {
+    String path = fp.getFile().getPath();
+    try {
+      fp.process();
+    } catch (RuntimeException e) {
+      log.error("Unexpected error while processing file " + path, e);
+      fp.abandon();
+    }
+    out.writeUTF(path);
+    fp.getStatistics().writeTo(out);
+    Map<String, String> corrections = fp.getCorrections();
+    out.writeInt(corrections.size());
+    for (Map.Entry<String, String> entry : corrections.entrySet()) {
+      out.writeUTF(entry.getKey());
+      out.writeUTF(entry.getValue());
+    }
+    out.flush();
+  }
+}
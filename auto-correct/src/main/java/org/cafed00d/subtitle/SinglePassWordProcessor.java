@@ -0,0 +1,294 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Makes the same corrections as {@link WordProcessor}, but in a single scan of
+ * the word.
+ * <p>
+ * While scanning, the positions of the upper case I's and lower case l's are
+ * recorded as bits in a mask, along with the counts the rules need. The rules
+ * are then decided from the counts alone, each adding the positions it
+ * changes to one of two masks: those to become l's and those to become I's.
+ * Later rules see the effect of earlier ones through these masks, just as the
+ * {@link WordProcessor} rules see the changes already made to the line. Only
+ * a word that needs correcting is written to, and only at the positions that
+ * change.
+ * <p>
+ * The masks hold 64 positions, so the rare longer word is handed to a
+ * {@link WordProcessor}.
+ */
+public class SinglePassWordProcessor implements WordEngine {
+
+  /**
+   * Logger for this class.
+   */
+  private static final Log log = LogFactory.getLog(SinglePassWordProcessor.class);
+
+  /**
+   * The longest word that fits in the masks.
+   */
+  private static final int MAX_LENGTH = 64;
+
+  /**
+   * Upper case I
+   */
+  private static final char UPPER_I = 'I';
+
+  /**
+   * Lower case l
+   */
+  private static final char LOWER_l = 'l';
+
+  /**
+   * Apostrophe
+   */
+  private static final char APOSTROPHE = '\'';
+
+  /**
+   * The line being processed.
+   */
+  private StringBuilder line;
+
+  /**
+   * The index of the first letter of the word to process.
+   */
+  private int first;
+
+  /**
+   * The index after the end of the word, once scanned.
+   */
+  private int current;
+
+  /**
+   * Set to true if a correction was made to the word.
+   */
+  private boolean correctionMade;
+
+  /**
+   * A copy of the original word. Grown as needed and reused for the following
+   * words.
+   */
+  private char[] original = new char[32];
+
+  /**
+   * The original word, created from {@link #original} when first asked for.
+   */
+  private String originalWord;
+
+  /**
+   * The corrected word, created when first asked for.
+   */
+  private String correctedWord;
+
+  /**
+   * Processes the words too long for the masks. Created when first needed.
+   */
+  private WordProcessor longWords;
+
+  /**
+   * The dictionary the words are looked up in.
+   */
+  private DictionarySnapshot dictionary = Dictionary.INSTANCE.getSnapshot();
+
+  /**
+   * @see org.cafed00d.subtitle.WordEngine#reset(java.lang.StringBuilder, int)
+   */
+  public void reset(StringBuilder line, int first) {
+    this.line = line;
+    this.first = first;
+    this.current = first;
+    correctionMade = false;
+    originalWord = null;
+    correctedWord = null;
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.WordEngine#setDictionary(org.cafed00d.subtitle.DictionarySnapshot)
+   */
+  public void setDictionary(DictionarySnapshot dictionary) {
+    this.dictionary = dictionary;
+    if (longWords != null) {
+      longWords.setDictionary(dictionary);
+    }
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.WordEngine#isCorrectionMade()
+   */
+  public final boolean isCorrectionMade() {
+    return correctionMade;
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.WordEngine#getOriginalWord()
+   */
+  public final String getOriginalWord() {
+    if (originalWord == null) {
+      originalWord = new String(original, 0, current - first);
+    }
+    return originalWord;
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.WordEngine#getCorrectedWord()
+   */
+  public final String getCorrectedWord() {
+    if (correctedWord == null && correctionMade) {
+      correctedWord = line.substring(first, current);
+    }
+    return correctedWord;
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.WordEngine#process()
+   */
+  public int process() {
+
+    /*
+     * The scan: count the letters and record where the I's (other than the
+     * first letter) and l's are.
+     */
+    int upperCount = 0;
+    int lowerCount = 0;
+    int apostropheCount = 0;
+    int lCount = 0;
+    int ICount = 0;
+    long IMask = 0;
+    long lMask = 0;
+    int length = 0;
+    int end = line.length();
+    char ch;
+    while (current < end && CharClass.isWord(ch = line.charAt(current))) {
+      if (length == original.length) {
+        char[] larger = new char[length * 2];
+        System.arraycopy(original, 0, larger, 0, length);
+        original = larger;
+      }
+      original[length] = ch;
+      if (CharClass.isUpperCase(ch)) {
+        upperCount++;
+        if (length != 0 && ch == UPPER_I) {
+          ICount++;
+          IMask |= 1L << length;
+        }
+      } else if (ch == APOSTROPHE) {
+        apostropheCount++;
+      } else {
+        lowerCount++;
+        if (ch == LOWER_l) {
+          lCount++;
+          lMask |= 1L << length;
+        }
+      }
+      length++;
+      current++;
+    }
+
+    if (length > MAX_LENGTH) {
+      processLongWord();
+    } else {
+      int entry = dictionary.find(line, first, current);
+      if (!dictionary.isExceptionCase(entry)) {
+
+        /*
+         * The decision: the same rules, in the same order, as WordProcessor.
+         */
+        long toLower = 0;
+        long toUpper = 0;
+        char initialChar = original[0];
+        char secondChar = length > 1 ? original[1] : 0;
+
+        // 'II at the end becomes 'll
+        if (length > 2 && original[length - 3] == APOSTROPHE && original[length - 2] == UPPER_I
+            && original[length - 1] == UPPER_I) {
+          toLower |= 3L << (length - 2);
+        }
+
+        // l' at the start becomes I'
+        if (length > 2 && initialChar == LOWER_l && secondChar == APOSTROPHE) {
+          toUpper |= 1L;
+        }
+
+        // mostly lower case with I's, or upper case with l's
+        if (ICount > 0 && ICount + lowerCount + apostropheCount >= length - 1) {
+          toLower |= IMask;
+        } else if (lCount > 0 && lCount + upperCount == length) {
+          toUpper |= lMask;
+        }
+
+        // the first letter of an otherwise lower case word
+        if (length > 1) {
+          char initialNow = (toUpper & 1L) != 0 ? UPPER_I : initialChar;
+          if (CharClass.isConfusable(initialNow)) {
+            int upperNow = upperCount - (CharClass.isUpperCase(initialChar) ? 1 : 0) - Long.bitCount(toLower)
+                + Long.bitCount(toUpper & ~1L);
+            if (upperNow == 0) {
+              char secondNow = (toUpper & 2L) != 0 ? UPPER_I : (toLower & 2L) != 0 ? LOWER_l : secondChar;
+              if (initialNow == LOWER_l && CharClass.isConsonant(secondNow)) {
+                toUpper |= 1L;
+              } else if (initialNow == UPPER_I && CharClass.isVowel(secondNow)) {
+                toLower |= 1L;
+              }
+            }
+          }
+        }
+
+        if (toLower != 0 || toUpper != 0) {
+          convert(toLower, LOWER_l);
+          convert(toUpper, UPPER_I);
+          correctionMade = true;
+        } else {
+          correctionMade = dictionary.correct(line, first, entry);
+        }
+      }
+    }
+    if (correctionMade && log.isDebugEnabled()) {
+      log.debug("=> fixed: " + getOriginalWord() + " -> " + line.substring(first, current));
+    }
+    return current;
+  }
+
+  /**
+   * Sets the letters at the positions in a mask.
+   * 
+   * @param mask
+   *          The positions within the word, one bit per position.
+   * @param letter
+   *          The letter to set them to.
+   */
+  private void convert(long mask, char letter) {
+    for (long bits = mask; bits != 0; bits &= bits - 1) {
+      line.setCharAt(first + Long.numberOfTrailingZeros(bits), letter);
+    }
+  }
+
+  /**
+   * Processes a word too long for the masks using a {@link WordProcessor}.
+   */
+  private void processLongWord() {
+    if (longWords == null) {
+      longWords = new WordProcessor();
+      longWords.setDictionary(dictionary);
+    }
+    longWords.reset(line, first);
+    longWords.process();
+    correctionMade = longWords.isCorrectionMade();
+  }
+}
@@ -0,0 +1,311 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * The contents of a file held in memory between the stages of a
+ * {@link Pipeline}: either its decoded lines, see {@link Lines}, or, for a
+ * UTF-8 file, its bytes, see {@link Bytes}. A file whose result is cached has
+ * no contents to hold.
+ */
+abstract class StagedContents {
+
+  /**
+   * Reads the contents of a file for its processor, looking up any cached
+   * result for them.
+   * 
+   * @param processor
+   *          The processor of the file.
+   * @return The contents, or null if the file has a cached result.
+   * @throws IOException
+   *           The file could not be read.
+   */
+  static StagedContents read(FileProcessor processor) throws IOException {
+    StagedContents result = null;
+    if (processor.isUtf8()) {
+      byte[] bytes = DedupeCache.readBytes(processor.getFile());
+      processor.lookUp(bytes);
+      if (processor.getCached() == null) {
+        result = new Bytes(bytes);
+      }
+    } else {
+      LineReader in = processor.openInput();
+      if (processor.getCached() != null) {
+        in.close();
+      } else {
+        result = new Lines(processor, in, null);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Wraps contents already read into memory, looking up any cached result
+   * for them.
+   * 
+   * @param processor
+   *          The processor of the file.
+   * @param bytes
+   *          The contents of the file.
+   * @return The contents, or null if the file has a cached result.
+   * @throws IOException
+   *           The contents could not be decoded.
+   */
+  static StagedContents of(FileProcessor processor, byte[] bytes) throws IOException {
+    StagedContents result = null;
+    processor.lookUp(bytes);
+    if (processor.getCached() == null && processor.isUtf8()) {
+      result = new Bytes(bytes);
+    } else if (processor.getCached() == null) {
+      result = new Lines(processor, processor.openContents(bytes), bytes);
+    }
+    return result;
+  }
+
+  /**
+   * Corrects the contents.
+   * 
+   * @param processor
+   *          The processor of the file.
+   */
+  abstract void correct(FileProcessor processor);
+
+  /**
+   * Writes the corrected contents to a file.
+   * 
+   * @param outfile
+   *          The file to write.
+   * @throws IOException
+   *           The file could not be written.
+   */
+  abstract void writeTo(File outfile) throws IOException;
+
+  /**
+   * Gets the corrected contents as they would be written, for patching.
+   * 
+   * @return The corrected contents; the original contents if nothing changed.
+   */
+  abstract byte[] toBytes();
+
+  /**
+   * The decoded lines of a file, each with its terminator so that it is
+   * written back as it was read.
+   */
+  static final class Lines extends StagedContents {
+
+    /**
+     * The lines.
+     */
+    private final ArrayList<String> lines = new ArrayList<String>();
+
+    /**
+     * The terminator of each of the {@link #lines}.
+     */
+    private final ArrayList<String> terminators = new ArrayList<String>();
+
+    /**
+     * The lines changed by {@link #correct(FileProcessor)}.
+     */
+    private final BitSet changed = new BitSet();
+
+    /**
+     * The encoding the lines were read in.
+     */
+    private final Encoding encoding;
+
+    /**
+     * The bytes the lines were decoded from, or null if they were read from
+     * a stream.
+     */
+    private final byte[] bytes;
+
+    /**
+     * Reads the lines.
+     * 
+     * @param processor
+     *          The processor of the file.
+     * @param in
+     *          The reader for the file, closed by this constructor.
+     * @param bytes
+     *          The bytes the reader decodes, or null if it reads a stream.
+     * @throws IOException
+     *           The file could not be read.
+     */
+    Lines(FileProcessor processor, LineReader in, byte[] bytes) throws IOException {
+      this.encoding = processor.getEncoding();
+      this.bytes = bytes;
+      try {
+        String line = null;
+        while ((line = in.readLine()) != null) {
+          lines.add(line);
+          terminators.add(in.getTerminator());
+        }
+      } finally {
+        processor.getStatistics().addDecodeTime(in.getReadNanos());
+        in.close();
+      }
+    }
+
+    /**
+     * @see org.cafed00d.subtitle.StagedContents#correct(org.cafed00d.subtitle.FileProcessor)
+     */
+    @Override
+    void correct(FileProcessor processor) {
+      for (int i = 0; i < lines.size(); i++) {
+        String line = lines.get(i);
+        String corrected = processor.correctLine(line, i + 1);
+        if (corrected != line) {
+          lines.set(i, corrected);
+          changed.set(i);
+        }
+      }
+    }
+
+    /**
+     * @see org.cafed00d.subtitle.StagedContents#writeTo(java.io.File)
+     */
+    @Override
+    void writeTo(File outfile) throws IOException {
+      OutputWriter out = encoding.newWriter(outfile);
+      try {
+        for (int i = 0; i < lines.size(); i++) {
+          out.writeLine(lines.get(i), terminators.get(i));
+        }
+      } finally {
+        out.close();
+      }
+    }
+
+    /**
+     * Builds the corrected contents from the original bytes and the lines
+     * that changed, keeping the original line terminators and encoding. A
+     * UTF-16 file, whose terminators cannot be found byte by byte, is
+     * rebuilt from its lines.
+     * 
+     * @see org.cafed00d.subtitle.StagedContents#toBytes()
+     */
+    @Override
+    byte[] toBytes() {
+      byte[] result = bytes;
+      if (!changed.isEmpty() && !encoding.isAsciiCompatible()) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length);
+        byte[] bom = encoding.getBom();
+        out.write(bom, 0, bom.length);
+        for (int i = 0; i < lines.size(); i++) {
+          byte[] line = (lines.get(i) + terminators.get(i)).getBytes(encoding.getCharset());
+          out.write(line, 0, line.length);
+        }
+        result = out.toByteArray();
+      } else if (!changed.isEmpty()) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length);
+        int start = encoding.getBom().length;
+        out.write(bytes, 0, start);
+        for (int i = 0; i < lines.size(); i++) {
+          int end = start;
+          while (end < bytes.length && bytes[end] != '\n' && bytes[end] != '\r') {
+            end++;
+          }
+          int next = Math.min(end + 1, bytes.length);
+          if (end + 1 < bytes.length && bytes[end] == '\r' && bytes[end + 1] == '\n') {
+            next++;
+          }
+          if (changed.get(i)) {
+            byte[] line = lines.get(i).getBytes(encoding.getCharset());
+            out.write(line, 0, line.length);
+          } else {
+            out.write(bytes, start, end - start);
+          }
+          out.write(bytes, end, next - end);
+          start = next;
+        }
+        out.write(bytes, start, bytes.length - start);
+        result = out.toByteArray();
+      }
+      return result;
+    }
+  }
+
+  /**
+   * The bytes of a UTF-8 file, corrected directly, see
+   * {@link FileProcessor#correctBytes(ByteBuffer, OutputStream)}.
+   */
+  static final class Bytes extends StagedContents {
+
+    /**
+     * The original bytes.
+     */
+    private final byte[] bytes;
+
+    /**
+     * The corrected bytes, once corrected.
+     */
+    private byte[] corrected;
+
+    /**
+     * Constructor.
+     * 
+     * @param bytes
+     *          The contents of the file.
+     */
+    Bytes(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    /**
+     * @see org.cafed00d.subtitle.StagedContents#correct(org.cafed00d.subtitle.FileProcessor)
+     */
+    @Override
+    void correct(FileProcessor processor) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length);
+      try {
+        processor.correctBytes(ByteBuffer.wrap(bytes), out);
+      } catch (IOException e) {
+        throw new IllegalStateException(e); // not thrown by a ByteArrayOutputStream
+      }
+      corrected = out.toByteArray();
+    }
+
+    /**
+     * @see org.cafed00d.subtitle.StagedContents#writeTo(java.io.File)
+     */
+    @Override
+    void writeTo(File outfile) throws IOException {
+      OutputStream out = new FileOutputStream(outfile);
+      try {
+        out.write(corrected);
+      } finally {
+        out.close();
+      }
+    }
+
+    /**
+     * @see org.cafed00d.subtitle.StagedContents#toBytes()
+     */
+    @Override
+    byte[] toBytes() {
+      return corrected;
+    }
+  }
+}
@@ -0,0 +1,393 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Holds the counts gathered while processing one or more SRT files.
+ * <p>
+ * Each {@link FileProcessor} updates its own instance, so the counting methods
+ * are not synchronized. The totals for a batch are accumulated via
+ * {@link #add(Statistics)}, which is synchronized so that several worker
+ * threads can report their files to the same totals.
+ */
+public class Statistics {
+
+  /**
+   * Records the number of files processed.
+   */
+  private int fileCount;
+
+  /**
+   * Records the number of files that could not be processed.
+   */
+  private int failedCount;
+
+  /**
+   * Records the number of files skipped because there was nothing to do.
+   */
+  private int skippedCount;
+
+  /**
+   * Records the number of files found to need corrections, when files are
+   * only checked.
+   */
+  private int needsCorrectionCount;
+
+  /**
+   * Records the number of lines processed.
+   */
+  private long lineCount;
+
+  /**
+   * Records the number of words processed.
+   */
+  private long wordCount;
+
+  /**
+   * Records the number of words corrected.
+   */
+  private long correctedCount;
+
+  /**
+   * Records the number of lines passed unchanged by the {@link LineFilter}.
+   */
+  private long filteredCount;
+
+  /**
+   * Records the number of words found in the {@link WordCache}.
+   */
+  private long cacheHitCount;
+
+  /**
+   * Records the number of words not found in the {@link WordCache}.
+   */
+  private long cacheMissCount;
+
+  /**
+   * Records the time spent reading and decoding files, in nanoseconds.
+   */
+  private long decodeNanos;
+
+  /**
+   * Records the encoding of the file, for the counts of a single file; null
+   * if not known.
+   */
+  private String encoding;
+
+  /**
+   * Constructor.
+   */
+  public Statistics() {
+  }
+
+  /**
+   * Constructor, for counts that were recorded earlier.
+   * 
+   * @param lineCount
+   *          The number of lines processed.
+   * @param wordCount
+   *          The number of words processed.
+   * @param correctedCount
+   *          The number of words corrected.
+   */
+  public Statistics(long lineCount, long wordCount, long correctedCount) {
+    this.lineCount = lineCount;
+    this.wordCount = wordCount;
+    this.correctedCount = correctedCount;
+  }
+
+  /**
+   * Counts a file.
+   * 
+   * @param failed
+   *          True if the file could not be processed.
+   */
+  public final void addFile(boolean failed) {
+    fileCount++;
+    if (failed) {
+      failedCount++;
+    }
+  }
+
+  /**
+   * Counts a file that was skipped.
+   */
+  public final void addSkipped() {
+    skippedCount++;
+  }
+
+  /**
+   * Counts a file found to need corrections.
+   */
+  public final void addNeedsCorrection() {
+    needsCorrectionCount++;
+  }
+
+  /**
+   * Counts a line.
+   */
+  public final void addLine() {
+    lineCount++;
+  }
+
+  /**
+   * Counts a word.
+   */
+  public final void addWord() {
+    wordCount++;
+  }
+
+  /**
+   * Counts several words.
+   * 
+   * @param count
+   *          The number of words.
+   */
+  public final void addWords(int count) {
+    wordCount += count;
+  }
+
+  /**
+   * Counts a line passed unchanged by the {@link LineFilter}.
+   */
+  public final void addFilteredLine() {
+    filteredCount++;
+  }
+
+  /**
+   * Counts a word found in the {@link WordCache}.
+   */
+  public final void addCacheHit() {
+    cacheHitCount++;
+  }
+
+  /**
+   * Counts a word not found in the {@link WordCache}.
+   */
+  public final void addCacheMiss() {
+    cacheMissCount++;
+  }
+
+  /**
+   * Counts a corrected word.
+   */
+  public final void addCorrection() {
+    correctedCount++;
+  }
+
+  /**
+   * Adds time spent reading and decoding a file.
+   * 
+   * @param nanos
+   *          The time in nanoseconds.
+   */
+  public final void addDecodeTime(long nanos) {
+    decodeNanos += nanos;
+  }
+
+  /**
+   * Records the encoding of the file.
+   * 
+   * @param encoding
+   *          The encoding, see {@link Encoding#toString()}.
+   */
+  public final void setEncoding(String encoding) {
+    this.encoding = encoding;
+  }
+
+  /**
+   * Adds the counts from another instance to this one.
+   * 
+   * @param other
+   *          The counts to add.
+   */
+  public synchronized void add(Statistics other) {
+    fileCount += other.fileCount;
+    failedCount += other.failedCount;
+    skippedCount += other.skippedCount;
+    needsCorrectionCount += other.needsCorrectionCount;
+    lineCount += other.lineCount;
+    wordCount += other.wordCount;
+    correctedCount += other.correctedCount;
+    filteredCount += other.filteredCount;
+    cacheHitCount += other.cacheHitCount;
+    cacheMissCount += other.cacheMissCount;
+    decodeNanos += other.decodeNanos;
+  }
+
+  /**
+   * Writes the counts to a stream, for example to send them to another
+   * process.
+   * 
+   * @param out
+   *          The stream to write to.
+   * @throws IOException
+   *           The counts could not be written.
+   */
+  public synchronized void writeTo(DataOutput out) throws IOException {
+    out.writeInt(fileCount);
+    out.writeInt(failedCount);
+    out.writeInt(skippedCount);
+    out.writeInt(needsCorrectionCount);
+    out.writeLong(lineCount);
+    out.writeLong(wordCount);
+    out.writeLong(correctedCount);
+    out.writeLong(filteredCount);
+    out.writeLong(cacheHitCount);
+    out.writeLong(cacheMissCount);
+    out.writeLong(decodeNanos);
+    out.writeUTF(encoding == null ? "" : encoding);
+  }
+
+  /**
+   * Reads counts written by {@link #writeTo(DataOutput)}.
+   * 
+   * @param in
+   *          The stream to read from.
+   * @return The counts read.
+   * @throws IOException
+   *           The counts could not be read.
+   */
+  public static Statistics readFrom(DataInput in) throws IOException {
+    Statistics result = new Statistics();
+    result.fileCount = in.readInt();
+    result.failedCount = in.readInt();
+    result.skippedCount = in.readInt();
+    result.needsCorrectionCount = in.readInt();
+    result.lineCount = in.readLong();
+    result.wordCount = in.readLong();
+    result.correctedCount = in.readLong();
+    result.filteredCount = in.readLong();
+    result.cacheHitCount = in.readLong();
+    result.cacheMissCount = in.readLong();
+    result.decodeNanos = in.readLong();
+    String encoding = in.readUTF();
+    result.encoding = encoding.length() == 0 ? null : encoding;
+    return result;
+  }
+
+  /**
+   * Gets the number of files processed.
+   * 
+   * @return the fileCount
+   */
+  public final synchronized int getFileCount() {
+    return fileCount;
+  }
+
+  /**
+   * Gets the number of files that could not be processed.
+   * 
+   * @return the failedCount
+   */
+  public final synchronized int getFailedCount() {
+    return failedCount;
+  }
+
+  /**
+   * Gets the number of files skipped.
+   * 
+   * @return the skippedCount
+   */
+  public final synchronized int getSkippedCount() {
+    return skippedCount;
+  }
+
+  /**
+   * Gets the number of files found to need corrections.
+   * 
+   * @return the needsCorrectionCount
+   */
+  public final synchronized int getNeedsCorrectionCount() {
+    return needsCorrectionCount;
+  }
+
+  /**
+   * Gets the number of lines processed.
+   * 
+   * @return the lineCount
+   */
+  public final synchronized long getLineCount() {
+    return lineCount;
+  }
+
+  /**
+   * Gets the number of words processed.
+   * 
+   * @return the wordCount
+   */
+  public final synchronized long getWordCount() {
+    return wordCount;
+  }
+
+  /**
+   * Gets the number of words corrected.
+   * 
+   * @return the correctedCount
+   */
+  public final synchronized long getCorrectedCount() {
+    return correctedCount;
+  }
+
+  /**
+   * Gets the number of lines passed unchanged by the {@link LineFilter}.
+   * 
+   * @return the filteredCount
+   */
+  public final synchronized long getFilteredCount() {
+    return filteredCount;
+  }
+
+  /**
+   * Gets the number of words found in the {@link WordCache}.
+   * 
+   * @return the cacheHitCount
+   */
+  public final synchronized long getCacheHitCount() {
+    return cacheHitCount;
+  }
+
+  /**
+   * Gets the number of words not found in the {@link WordCache}.
+   * 
+   * @return the cacheMissCount
+   */
+  public final synchronized long getCacheMissCount() {
+    return cacheMissCount;
+  }
+
+  /**
+   * Gets the time spent reading and decoding files.
+   * 
+   * @return the decodeNanos
+   */
+  public final synchronized long getDecodeNanos() {
+    return decodeNanos;
+  }
+
+  /**
+   * Gets the encoding of the file.
+   * 
+   * @return the encoding, or null if not known
+   */
+  public final synchronized String getEncoding() {
+    return encoding;
+  }
+}
@@ -0,0 +1,354 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Forces corrected files to disk in batches rather than one at a time.
+ * <p>
+ * A corrected file is written to a temporary file and moved into place in one
+ * step, so a crash of the process never leaves a truncated file. Surviving a
+ * crash of the system as well takes two syncs: the temporary file is forced
+ * to disk before it is moved, so that the name can never refer to contents
+ * that were not written, and the directory is synced after the move, so that
+ * the new name itself is not lost.
+ * <p>
+ * Both syncs are batched. A file whose move can wait is handed over as a
+ * {@link Commit}, see {@link #defer(Commit)}: its temporary file stays where
+ * it is until the batch holds the configured number of files, when all of
+ * the temporary files are forced one after the other, while the disk is kept
+ * busy, and only then moved into place. A file is never moved before its own
+ * contents are forced; one whose contents cannot be forced is not moved at
+ * all. The directories of the batch are then synced once each, and last of
+ * all each commit is told it is done, so that nothing recorded about a file
+ * can get ahead of the file itself. A file that has to be in place at once is
+ * forced by {@link #force(File)} and moved by its writer, and only its
+ * directory sync is batched, see {@link #add(File)}. Whatever is left is
+ * committed and synced by {@link #flush()} at the end of the run.
+ * <p>
+ * The batch size is set for the whole process by {@link #configure(int)}; a
+ * size of 0 never forces the files or directories, as before, and commits are
+ * then moved as soon as they are handed over.
+ */
+public final class SyncBatch {
+
+  /**
+   * Logger for this class.
+   */
+  private static final Log log = LogFactory.getLog(SyncBatch.class);
+
+  /**
+   * The default number of files in a batch.
+   */
+  public static final int DEFAULT_SIZE = 64;
+
+  /**
+   * The directories of the files moved into place since the last batch was
+   * synced.
+   */
+  private static final LinkedHashSet<File> pending = new LinkedHashSet<File>();
+
+  /**
+   * The commits waiting for the batch to be forced to disk.
+   */
+  private static final ArrayList<Commit> commits = new ArrayList<Commit>();
+
+  /**
+   * The number of files moved into place since the last batch was synced.
+   */
+  private static int count;
+
+  /**
+   * The number of files in a batch, or 0 to never force them.
+   */
+  private static volatile int size = DEFAULT_SIZE;
+
+  /**
+   * Not instantiated.
+   */
+  private SyncBatch() {
+  }
+
+  /**
+   * Sets the number of files in a batch. Files already added are synced
+   * first.
+   * 
+   * @param size
+   *          The number of files, or 0 to never force them.
+   */
+  public static void configure(int size) {
+    flush();
+    SyncBatch.size = Math.max(size, 0);
+  }
+
+  /**
+   * Gets the number of files in a batch.
+   * 
+   * @return The number of files, or 0 if they are never forced.
+   */
+  public static int getSize() {
+    return size;
+  }
+
+  /**
+   * Forces a file to disk before it is moved into place, unless files are
+   * never forced.
+   * 
+   * @param file
+   *          The file.
+   * @throws IOException
+   *           The file could not be forced.
+   */
+  public static void force(File file) throws IOException {
+    if (size > 0) {
+      RandomAccessFile out = new RandomAccessFile(file, "rw");
+      try {
+        out.getChannel().force(true);
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  /**
+   * Adds a file that was moved into place, syncing the directories of the
+   * batch once it is full.
+   * 
+   * @param file
+   *          The file.
+   */
+  public static void add(File file) {
+    List<Commit> batch = null;
+    List<File> directories = null;
+    synchronized (pending) {
+      if (size > 0) {
+        pending.add(file.getAbsoluteFile().getParentFile());
+        count++;
+        if (count + commits.size() >= size) {
+          batch = takeCommits();
+          directories = take();
+        }
+      }
+    }
+    if (batch != null) {
+      commit(batch, directories);
+    }
+  }
+
+  /**
+   * Hands over a file to be forced to disk and moved into place with the rest
+   * of its batch, committing the batch once it is full. If files are never
+   * forced, it is moved at once.
+   * 
+   * @param commit
+   *          The file to commit.
+   */
+  static void defer(Commit commit) {
+    List<Commit> batch = null;
+    List<File> directories = null;
+    synchronized (pending) {
+      if (size > 0) {
+        commits.add(commit);
+        if (count + commits.size() >= size) {
+          batch = takeCommits();
+          directories = take();
+        }
+      } else {
+        batch = Collections.singletonList(commit);
+        directories = new ArrayList<File>();
+      }
+    }
+    if (batch != null) {
+      commit(batch, directories);
+    }
+  }
+
+  /**
+   * Commits the files handed over and syncs the directories of the files
+   * added since the last batch.
+   */
+  public static void flush() {
+    List<Commit> batch;
+    List<File> directories;
+    synchronized (pending) {
+      batch = takeCommits();
+      directories = take();
+    }
+    commit(batch, directories);
+  }
+
+  /**
+   * Takes the pending directories. Must be called while holding the lock on
+   * {@link #pending}.
+   * 
+   * @return The directories.
+   */
+  private static List<File> take() {
+    List<File> result = new ArrayList<File>(pending);
+    pending.clear();
+    count = 0;
+    return result;
+  }
+
+  /**
+   * Takes the pending commits. Must be called while holding the lock on
+   * {@link #pending}.
+   * 
+   * @return The commits.
+   */
+  private static List<Commit> takeCommits() {
+    List<Commit> result = new ArrayList<Commit>(commits);
+    commits.clear();
+    return result;
+  }
+
+  /**
+   * Commits a batch: forces each of the temporary files to disk, moves those
+   * that were forced into place, syncs the directories and then tells each
+   * commit how it ended.
+   * 
+   * @param batch
+   *          The commits.
+   * @param directories
+   *          The directories of the files already moved into place, to which
+   *          those of the commits are added.
+   */
+  private static void commit(List<Commit> batch, List<File> directories) {
+    if (!batch.isEmpty()) {
+      log.debug("committing " + batch.size() + " files to disk");
+    }
+    IOException[] errors = new IOException[batch.size()];
+    for (int i = 0; i < batch.size(); i++) {
+      try {
+        force(batch.get(i).tempFile);
+      } catch (IOException e) {
+        errors[i] = e;
+      }
+    }
+    LinkedHashSet<File> synced = new LinkedHashSet<File>(directories);
+    for (int i = 0; i < batch.size(); i++) {
+      if (errors[i] == null) {
+        try {
+          batch.get(i).move();
+          if (size > 0) {
+            synced.add(batch.get(i).file.getAbsoluteFile().getParentFile());
+          }
+        } catch (IOException e) {
+          errors[i] = e;
+        }
+      }
+    }
+    sync(new ArrayList<File>(synced));
+    for (int i = 0; i < batch.size(); i++) {
+      batch.get(i).done(errors[i]);
+    }
+  }
+
+  /**
+   * Syncs directories to disk. A directory that cannot be synced is reported,
+   * but does not stop the others. Where directories cannot be opened at all,
+   * as on Windows, whose file systems need no directory sync, nothing is
+   * done.
+   * 
+   * @param batch
+   *          The directories.
+   */
+  private static void sync(List<File> batch) {
+    if (!batch.isEmpty()) {
+      log.debug("syncing " + batch.size() + " directories to disk");
+    }
+    for (File directory : batch) {
+      FileChannel channel = null;
+      try {
+        channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+      } catch (IOException e) {
+        log.debug("unable to open directory " + directory.getAbsolutePath() + ": " + e.getMessage());
+      }
+      if (channel != null) {
+        try {
+          try {
+            channel.force(true);
+          } finally {
+            channel.close();
+          }
+        } catch (IOException e) {
+          Reporter.INSTANCE.displayError("Unable to sync directory " + directory.getAbsolutePath() + " to disk", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * A corrected file written to a temporary file, waiting to be forced to disk
+   * and moved into place with the rest of its batch.
+   */
+  abstract static class Commit {
+
+    /**
+     * The temporary file holding the corrected contents.
+     */
+    private final File tempFile;
+
+    /**
+     * The file the contents are moved to.
+     */
+    private final File file;
+
+    /**
+     * Constructor.
+     * 
+     * @param tempFile
+     *          The temporary file holding the corrected contents.
+     * @param file
+     *          The file the contents are moved to.
+     */
+    Commit(File tempFile, File file) {
+      this.tempFile = tempFile;
+      this.file = file;
+    }
+
+    /**
+     * Moves the temporary file into place, once it has been forced to disk.
+     * 
+     * @throws IOException
+     *           The file could not be moved.
+     */
+    abstract void move() throws IOException;
+
+    /**
+     * Called once the batch is committed, after the directory of the file
+     * has been synced, or once the file could not be forced or moved.
+     * Called on whichever thread committed the batch.
+     * 
+     * @param error
+     *          Null if the file was moved into place, otherwise the error
+     *          that stopped it; the temporary file is then left behind.
+     */
+    abstract void done(IOException error);
+  }
+}
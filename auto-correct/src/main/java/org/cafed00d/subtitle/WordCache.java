@@ -0,0 +1,280 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+/**
+ * Remembers how words were corrected, so that a word seen before is corrected
+ * without running the word rules again. Subtitles use few distinct words, and
+ * use them over and over, so most words are found here.
+ * <p>
+ * The cache holds at most a fixed number of words. It is split into sets of
+ * {@link #WAYS} entries, a word going in the set given by its hash. When a
+ * set is full, a word that has not been used since it was last passed over
+ * is replaced (the clock, or second chance, policy).
+ * <p>
+ * The corrections depend on the dictionary, so each
+ * {@link DictionarySnapshot} has its own cache, shared by every file and
+ * thread that uses the snapshot. The entries are immutable and replaced
+ * whole, so the cache is read and updated without locking; two threads that
+ * add words to the same set at once may lose one of them, which only costs
+ * a later miss.
+ * <p>
+ * Words are looked up and added as a range of the text they are in, so a
+ * string is created for a word only when it is added.
+ */
+public final class WordCache {
+
+  /**
+   * The number of entries in a set.
+   */
+  private static final int WAYS = 4;
+
+  /**
+   * The default number of words held.
+   */
+  public static final int DEFAULT_CAPACITY = 8192;
+
+  /**
+   * The entries, set after set.
+   */
+  private final Entry[] entries;
+
+  /**
+   * The mask giving a set from a hash.
+   */
+  private final int mask;
+
+  /**
+   * Constructor.
+   * 
+   * @param capacity
+   *          The most words to hold, rounded up to a power of two.
+   */
+  public WordCache(int capacity) {
+    int sets = 1;
+    while (sets * WAYS < capacity) {
+      sets <<= 1;
+    }
+    entries = new Entry[sets * WAYS];
+    mask = sets - 1;
+  }
+
+  /**
+   * Finds the end of a word, the same way the {@link WordEngine}s do.
+   * 
+   * @param line
+   *          The line containing the word.
+   * @param first
+   *          The index of the first letter of the word.
+   * @return The index after the last letter of the word.
+   */
+  public static int wordEnd(CharSequence line, int first) {
+    int result = first;
+    int length = line.length();
+    while (result < length && CharClass.isWord(line.charAt(result))) {
+      result++;
+    }
+    return result;
+  }
+
+  /**
+   * Looks up a word.
+   * 
+   * @param text
+   *          The text containing the word.
+   * @param first
+   *          The index of the first letter of the word.
+   * @param after
+   *          The index after the last letter of the word.
+   * @return The entry for the word, or null if it is not cached.
+   */
+  public Entry get(CharSequence text, int first, int after) {
+    return get(text, first, after, WordTable.hash(text, first, after));
+  }
+
+  /**
+   * Looks up a word whose hash is known.
+   * 
+   * @param text
+   *          The text containing the word.
+   * @param first
+   *          The index of the first letter of the word.
+   * @param after
+   *          The index after the last letter of the word.
+   * @param hash
+   *          The hash of the word, see
+   *          {@link WordTable#hash(CharSequence, int, int)}.
+   * @return The entry for the word, or null if it is not cached.
+   */
+  private Entry get(CharSequence text, int first, int after, int hash) {
+    Entry result = null;
+    int base = (hash & mask) * WAYS;
+    for (int way = 0; result == null && way < WAYS; way++) {
+      Entry entry = entries[base + way];
+      if (entry != null && entry.hash == hash && entry.matches(text, first, after)) {
+        entry.referenced = true;
+        result = entry;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Remembers how a word was corrected.
+   * 
+   * @param word
+   *          The word as it was.
+   * @param correction
+   *          The corrected word, or null if the word was left unchanged.
+   */
+  public void put(String word, String correction) {
+    put(word, 0, word.length(), correction);
+  }
+
+  /**
+   * Remembers how a word in some text was corrected. Nothing is created if
+   * the word is already cached, as it may be when another thread has just
+   * added it.
+   * 
+   * @param text
+   *          The text containing the word as it was.
+   * @param first
+   *          The index of the first letter of the word.
+   * @param after
+   *          The index after the last letter of the word.
+   * @param correction
+   *          The corrected word, or null if the word was left unchanged.
+   */
+  public void put(CharSequence text, int first, int after, String correction) {
+    int hash = WordTable.hash(text, first, after);
+    if (get(text, first, after, hash) == null) {
+      Entry entry = new Entry(text.subSequence(first, after).toString(), hash, correction);
+      int base = (hash & mask) * WAYS;
+
+      /*
+       * Take the first way that is empty or not referenced, clearing the
+       * references passed over; after one round all are clear.
+       */
+      int way = -1;
+      for (int i = 0; way < 0 && i < WAYS * 2; i++) {
+        Entry old = entries[base + i % WAYS];
+        if (old == null || !old.referenced) {
+          way = i % WAYS;
+        } else {
+          old.referenced = false;
+        }
+      }
+      entries[base + way] = entry;
+    }
+  }
+
+  /**
+   * How a word was corrected.
+   */
+  public static final class Entry {
+
+    /**
+     * The word as it was.
+     */
+    private final String word;
+
+    /**
+     * The corrected word, or null if the word was left unchanged.
+     */
+    private final String correction;
+
+    /**
+     * The hash of the word, see {@link WordTable#hash(CharSequence, int, int)}.
+     */
+    private final int hash;
+
+    /**
+     * Whether the entry has been used since the clock last passed over it.
+     */
+    private boolean referenced;
+
+    /**
+     * Constructor.
+     * 
+     * @param word
+     *          The word as it was.
+     * @param hash
+     *          The hash of the word.
+     * @param correction
+     *          The corrected word, or null if the word was left unchanged.
+     */
+    Entry(String word, int hash, String correction) {
+      this.word = word;
+      this.hash = hash;
+      this.correction = correction;
+    }
+
+    /**
+     * Compares the word with a word in some text.
+     * 
+     * @param text
+     *          The text containing the word.
+     * @param first
+     *          The index of the first letter of the word.
+     * @param after
+     *          The index after the last letter of the word.
+     * @return True iff they are the same.
+     */
+    private boolean matches(CharSequence text, int first, int after) {
+      boolean result = word.length() == after - first;
+      for (int i = 0; result && i < word.length(); i++) {
+        result = word.charAt(i) == text.charAt(first + i);
+      }
+      return result;
+    }
+
+    /**
+     * Gets the word as it was.
+     * 
+     * @return The word.
+     */
+    public String getWord() {
+      return word;
+    }
+
+    /**
+     * Gets the corrected word.
+     * 
+     * @return The corrected word, or null if the word is left unchanged.
+     */
+    public String getCorrection() {
+      return correction;
+    }
+
+    /**
+     * Corrects the word in place in a line.
+     * 
+     * @param line
+     *          The line containing the word.
+     * @param first
+     *          The index of the first letter of the word.
+     * @return True if the word was changed.
+     */
+    public boolean apply(StringBuilder line, int first) {
+      if (correction != null) {
+        for (int i = 0; i < correction.length(); i++) {
+          line.setCharAt(first + i, correction.charAt(i));
+        }
+      }
+      return correction != null;
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+/**
+ * Corrects one word at a time within a line. There is one implementation for
+ * each {@link Engine}; all of them must make exactly the same corrections.
+ * <p>
+ * An instance is reused for word after word, see
+ * {@link #reset(StringBuilder, int)}, and must be used by one thread at a
+ * time.
+ */
+public interface WordEngine {
+
+  /**
+   * Prepares to process another word, forgetting all about the previous one.
+   * 
+   * @param line
+   *          The line of text containing the word to process.
+   * @param first
+   *          The index of the fist letter in the word.
+   */
+  void reset(StringBuilder line, int first);
+
+  /**
+   * Sets the dictionary to look the words up in, kept until set again.
+   * Defaults to the snapshot current when the engine was created.
+   * 
+   * @param dictionary
+   *          The dictionary.
+   */
+  void setDictionary(DictionarySnapshot dictionary);
+
+  /**
+   * Processes the word, correcting it in place in the line if needed.
+   * 
+   * @return The index after the last letter in the word.
+   */
+  int process();
+
+  /**
+   * Gets the flag as to whether a correction was made.
+   * 
+   * @return the correctionMade flag
+   */
+  boolean isCorrectionMade();
+
+  /**
+   * Gets the original word. Valid only after {@link #process()} has been
+   * called, and until the line is changed.
+   * 
+   * @return the original word
+   */
+  String getOriginalWord();
+
+  /**
+   * Gets the corrected word. Valid only after {@link #process()} has been
+   * called, and until the line is changed.
+   * 
+   * @return the corrected word or null is the original word was not corrected
+   */
+  String getCorrectedWord();
+}
@@ -0,0 +1,83 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.util.SortedMap;
+
+/**
+ * A read-only index of the dictionary entries, looked up directly on a range
+ * of characters within a line so that no string needs to be created for the
+ * word. Implementations must allow any number of threads to read them without
+ * locking.
+ */
+public interface WordIndex {
+
+  /**
+   * Finds a word in the index.
+   * 
+   * @param text
+   *          The text containing the word.
+   * @param first
+   *          The index of the first letter of the word.
+   * @param after
+   *          The index after the last letter of the word.
+   * @return The entry for the word, or -1 if it is not in the index.
+   */
+  int find(CharSequence text, int first, int after);
+
+  /**
+   * Gets the key of an entry.
+   * 
+   * @param entry
+   *          An entry returned by {@link #find(CharSequence, int, int)}.
+   * @return The key.
+   */
+  String getKey(int entry);
+
+  /**
+   * Gets the value of an entry.
+   * 
+   * @param entry
+   *          An entry returned by {@link #find(CharSequence, int, int)}.
+   * @return The value.
+   */
+  String getValue(int entry);
+
+  /**
+   * Gets the length of the value of an entry, without creating a string for
+   * it.
+   * 
+   * @param entry
+   *          An entry returned by {@link #find(CharSequence, int, int)}.
+   * @return The length of the value.
+   */
+  int getValueLength(int entry);
+
+  /**
+   * Gets the number of entries in the index.
+   * 
+   * @return The number of entries.
+   */
+  int size();
+
+  /**
+   * Gets all of the entries. Creates a string for every key and value, so
+   * only for when the entries are to be merged with others.
+   * 
+   * @return The keys and their values.
+   */
+  SortedMap<String, String> getEntries();
+}
@@ -25,8 +25,16 @@ import org.apache.commons.logging.LogFactory;
  * <p>
  * Note that this class processes the word in the context of the line being
  * processed.
+ * <p>
+ * An instance can be reused for any number of words via
+ * {@link #reset(StringBuilder, int)}, and processing a word that needs no
+ * correction allocates nothing: the original word is kept in a reusable
+ * buffer, and strings are created only when asked for.
+ * <p>
+ * This is the {@link Engine#LEGACY} engine: it applies the rules one after
+ * the other, each examining the word again.
  */
-public class WordProcessor {
+public class WordProcessor implements WordEngine {
 
   /**
    * Logger for this class.
@@ -48,16 +56,6 @@ public class WordProcessor {
    */
   private static final char APOSTROPHE = '\'';
 
-  /**
-   * The English vowels.
-   */
-  private static final String VOWELS = "aeiouAEIOU";
-
-  /**
-   * The English consonants.
-   */
-  private static final String CONSONANTS = "bcdfghjklmnpqrstvwxyzBCDFGHJKLMNPQRSTVWXYZ";
-
   /**
    * The line being processed.
    */
@@ -107,15 +105,31 @@ public class WordProcessor {
   private boolean correctionMade;
 
   /**
-   * The original word.
+   * The dictionary entry for the word, or -1 if it has none.
+   */
+  private int entry;
+
+  /**
+   * A copy of the original word, in the first {@link #getLength()} characters.
+   * Grown as needed and reused for the following words.
+   */
+  private char[] original = new char[32];
+
+  /**
+   * The original word, created from {@link #original} when first asked for.
    */
   private String originalWord;
 
   /**
-   * The corrected word. Is null if the word was not corrected.
+   * The corrected word, created when first asked for.
    */
   private String correctedWord;
 
+  /**
+   * The dictionary the words are looked up in.
+   */
+  private DictionarySnapshot dictionary = Dictionary.INSTANCE.getSnapshot();
+
   /**
    * Gets the flag as to whether a correction was made.
    * 
@@ -126,20 +140,28 @@ public class WordProcessor {
   }
 
   /**
-   * Gets the original word.
+   * Gets the original word. Valid only after {@link #process()} has been
+   * called, and until the line is changed.
    * 
    * @return the original word
    */
   public final String getOriginalWord() {
+    if (originalWord == null) {
+      originalWord = new String(original, 0, getLength());
+    }
     return originalWord;
   }
 
   /**
-   * Gets the corrected word
+   * Gets the corrected word. Valid only after {@link #process()} has been
+   * called, and until the line is changed.
    * 
    * @return the corrected word or null is the original word was not corrected
    */
   public final String getCorrectedWord() {
+    if (correctedWord == null && correctionMade) {
+      correctedWord = line.substring(first, current);
+    }
     return correctedWord;
   }
 
@@ -153,6 +175,13 @@ public class WordProcessor {
     return current - first;
   }
 
+  /**
+   * Constructor, for an instance to be given its first word by
+   * {@link #reset(StringBuilder, int)}.
+   */
+  public WordProcessor() {
+  }
+
   /**
    * Constructor.
    * 
@@ -162,9 +191,37 @@ public class WordProcessor {
    *          The index of the fist letter in the word.
    */
   public WordProcessor(StringBuilder line, int first) {
+    reset(line, first);
+  }
+
+  /**
+   * Prepares this instance to process another word, forgetting all about the
+   * previous one.
+   * 
+   * @param line
+   *          The line of text containing the word to process.
+   * @param first
+   *          The index of the fist letter in the word.
+   */
+  public void reset(StringBuilder line, int first) {
     this.line = line;
     this.first = first;
     this.current = first;
+    upperCount = 0;
+    lowerCount = 0;
+    apostropheCount = 0;
+    lCount = 0;
+    ICount = 0;
+    correctionMade = false;
+    originalWord = null;
+    correctedWord = null;
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.WordEngine#setDictionary(org.cafed00d.subtitle.DictionarySnapshot)
+   */
+  public void setDictionary(DictionarySnapshot dictionary) {
+    this.dictionary = dictionary;
   }
 
   /**
@@ -174,14 +231,20 @@ public class WordProcessor {
    */
   public int process() {
     gatherStatistics();
-    log.debug("=> " + this);
-    originalWord = line.substring(first, current);
+    if (log.isDebugEnabled()) {
+      log.debug("=> " + this);
+    }
+    if (original.length < getLength()) {
+      original = new char[Math.max(getLength(), original.length * 2)];
+    }
+    line.getChars(first, current, original, 0);
 
     /*
      * There are some words that are exceptions to the general algorithms, so
      * first check is we have one of those words and ignore it if we do.
      */
-    if (!Dictionary.INSTANCE.exceptionCase(originalWord)) {
+    entry = dictionary.find(line, first, current);
+    if (!dictionary.isExceptionCase(entry)) {
       fixApostropheII();
       fixlApostrophe();
       fixMismatch();
@@ -190,8 +253,7 @@ public class WordProcessor {
         fixMisspelling();
       }
     }
-    if (correctionMade) {
-      correctedWord = line.substring(first, current);
+    if (correctionMade && log.isDebugEnabled()) {
       log.debug("=> fixed: " + line.substring(first, current));
     }
     return current;
@@ -201,10 +263,13 @@ public class WordProcessor {
    * Examines the word and gather various statistics.
    */
   private void gatherStatistics() {
-    while (current < line.length() && (Character.isLetter(line.charAt(current)) || line.charAt(current) == '\'')) {
+    boolean trace = log.isTraceEnabled();
+    while (current < line.length() && CharClass.isWord(line.charAt(current))) {
       char ch = line.charAt(current);
-      log.trace("@" + current + ":" + ch);
-      if (Character.isUpperCase(ch)) {
+      if (trace) {
+        log.trace("@" + current + ":" + ch);
+      }
+      if (CharClass.isUpperCase(ch)) {
         upperCount++;
 
         /*
@@ -331,12 +396,14 @@ public class WordProcessor {
      * first character which is either an 'I' or an 'l'.
      */
     char initialChar = line.charAt(first);
-    if (getLength() > 1 && (initialChar == LOWER_l || initialChar == UPPER_I)) {
+    if (getLength() > 1 && CharClass.isConfusable(initialChar)) {
       boolean foundUpper = false;
       for (int inx = first + 1; inx < current; inx++) {
         char ch = line.charAt(inx);
-        if (Character.isUpperCase(ch)) {
-          log.trace("found upper " + ch + "@" + inx);
+        if (CharClass.isUpperCase(ch)) {
+          if (log.isTraceEnabled()) {
+            log.trace("found upper " + ch + "@" + inx);
+          }
           foundUpper = true;
           break;
         }
@@ -349,8 +416,10 @@ public class WordProcessor {
          * letter.
          */
         char secondChar = line.charAt(first + 1);
-        log.trace("initialChar=" + initialChar);
-        log.trace("secondChar=" + secondChar);
+        if (log.isTraceEnabled()) {
+          log.trace("initialChar=" + initialChar);
+          log.trace("secondChar=" + secondChar);
+        }
         if (initialChar == LOWER_l && isConsonant(secondChar)) {
           log.trace("fixing initial l");
           convertToUpperI(first);
@@ -370,7 +439,7 @@ public class WordProcessor {
    * @return True iff consonant
    */
   private boolean isConsonant(char ch) {
-    return CONSONANTS.indexOf(ch) > -1;
+    return CharClass.isConsonant(ch);
   }
 
   /**
@@ -381,7 +450,7 @@ public class WordProcessor {
    * @return True iff vowel
    */
   private boolean isVowel(char ch) {
-    return VOWELS.indexOf(ch) > -1;
+    return CharClass.isVowel(ch);
   }
 
   /**
@@ -415,7 +484,9 @@ public class WordProcessor {
   private void convertLetter(int i, char after) {
     char before = line.charAt(i);
     line.setCharAt(i, after);
-    log.trace(before + "->" + after + " @ " + i);
+    if (log.isTraceEnabled()) {
+      log.trace(before + "->" + after + " @ " + i);
+    }
     correctionMade = true;
   }
 
@@ -424,7 +495,7 @@ public class WordProcessor {
    * appears, corrects it.
    */
   private void fixMisspelling() {
-    correctionMade = Dictionary.INSTANCE.spellcheck(line, first, current);
+    correctionMade = dictionary.correct(line, first, entry);
   }
 
   /**
@@ -0,0 +1,183 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * An immutable hash table of words, looked up directly on a range of
+ * characters within a line so that no string needs to be created for the
+ * word. Uses open addressing with linear probing, keeping the table at most
+ * half full so that probes are short.
+ * <p>
+ * Since it is never changed once built, any number of threads can read it
+ * without locking.
+ * <p>
+ * The entries are identified by their slot in the table.
+ */
+public final class WordTable implements WordIndex {
+
+  /**
+   * The keys, by slot. Null for an empty slot.
+   */
+  private final String[] keys;
+
+  /**
+   * The value for each key, by slot.
+   */
+  private final String[] values;
+
+  /**
+   * The hash of each key, by slot, to skip comparing most keys that do not
+   * match.
+   */
+  private final int[] hashes;
+
+  /**
+   * The mask giving a slot from a hash.
+   */
+  private final int mask;
+
+  /**
+   * The number of keys.
+   */
+  private final int size;
+
+  /**
+   * Constructor.
+   * 
+   * @param entries
+   *          The keys and their values.
+   */
+  public WordTable(Map<String, String> entries) {
+    int capacity = 16;
+    while (capacity < entries.size() * 2) {
+      capacity <<= 1;
+    }
+    keys = new String[capacity];
+    values = new String[capacity];
+    hashes = new int[capacity];
+    mask = capacity - 1;
+    size = entries.size();
+    for (Map.Entry<String, String> entry : entries.entrySet()) {
+      String key = entry.getKey();
+      int hash = hash(key, 0, key.length());
+      int slot = hash & mask;
+      while (keys[slot] != null) {
+        slot = (slot + 1) & mask;
+      }
+      keys[slot] = key;
+      values[slot] = entry.getValue();
+      hashes[slot] = hash;
+    }
+  }
+
+  /**
+   * Computes the hash of a word. The same as {@link String#hashCode()}, spread
+   * so that the low bits vary.
+   * 
+   * @param text
+   *          The text containing the word.
+   * @param first
+   *          The index of the first letter of the word.
+   * @param after
+   *          The index after the last letter of the word.
+   * @return The hash.
+   */
+  static int hash(CharSequence text, int first, int after) {
+    int hash = 0;
+    for (int i = first; i < after; i++) {
+      hash = 31 * hash + text.charAt(i);
+    }
+    return hash ^ (hash >>> 16);
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.WordIndex#find(java.lang.CharSequence, int, int)
+   */
+  public int find(CharSequence text, int first, int after) {
+    int hash = hash(text, first, after);
+    int slot = hash & mask;
+    while (keys[slot] != null && (hashes[slot] != hash || !matches(keys[slot], text, first, after))) {
+      slot = (slot + 1) & mask;
+    }
+    return keys[slot] == null ? -1 : slot;
+  }
+
+  /**
+   * Compares a key with a word.
+   * 
+   * @param key
+   *          The key.
+   * @param text
+   *          The text containing the word.
+   * @param first
+   *          The index of the first letter of the word.
+   * @param after
+   *          The index after the last letter of the word.
+   * @return True iff the key is the word.
+   */
+  private static boolean matches(String key, CharSequence text, int first, int after) {
+    boolean result = key.length() == after - first;
+    for (int i = 0; result && i < key.length(); i++) {
+      result = key.charAt(i) == text.charAt(first + i);
+    }
+    return result;
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.WordIndex#getKey(int)
+   */
+  public String getKey(int slot) {
+    return keys[slot];
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.WordIndex#getValue(int)
+   */
+  public String getValue(int slot) {
+    return values[slot];
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.WordIndex#getValueLength(int)
+   */
+  public int getValueLength(int slot) {
+    return values[slot].length();
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.WordIndex#size()
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @see org.cafed00d.subtitle.WordIndex#getEntries()
+   */
+  public SortedMap<String, String> getEntries() {
+    SortedMap<String, String> result = new TreeMap<String, String>();
+    for (int slot = 0; slot < keys.length; slot++) {
+      if (keys[slot] != null) {
+        result.put(keys[slot], values[slot]);
+      }
+    }
+    return result;
+  }
+}
@@ -11,7 +11,37 @@ rem     <options> is one or more of the following:
 rem       a - generate log file showing words auto corrected
 rem       v - generate additional console output
 rem       q - generate no console output
-rem     <srt-file(s)> is one or more SRT files to process
+rem       j <n> - process n files at once
+rem       p <n> - pipeline with n read and n write threads (j sets correct threads)
+rem       w <workers> - start n worker processes, or use running workers at
+rem           [host:]port,... (started with the ShardWorker class)
+rem       r <journal> - keep a journal so that a stopped batch can be resumed
+rem       i - skip files unchanged since the last run (manifest per directory)
+rem       g <manifest> - same as i but with a single global manifest file
+rem       d - correct files with identical contents only once
+rem       k <dir> - same as d but also keep the results in dir for later runs
+rem       e <engine> - word engine: legacy (default) or single (one pass)
+rem       m <model> - choose between I/l spellings with a word frequency model
+rem           (built from clean SRT files with the FrequencyModel class)
+rem       o <words> - correct rn/m, 0/O and 1/l misreadings using a word list
+rem           (one word per line)
+rem       u - patch files in place, keeping a .undo log instead of a .bak copy
+rem           (the Patcher class undoes the changes)
+rem       n - same as u but keep no backup at all
+rem       b - the files are UTF-8: correct their bytes, decoding only the
+rem           lines that may change
+rem       f <n> - write the output in blocks of n KB (default 256)
+rem       x - collect the output in direct buffers
+rem       c <backup> - keep the originals: rename (default), link, gzip or none
+rem       s <n> - force the files to disk n at a time (default 64, 0 for never)
+rem       t - only check the files: list those that need corrections and write
+rem           nothing (exit code 1 if any do, 2 if any could not be read)
+rem     <srt-file(s)> is one or more SRT files to process, directories to
+rem       search for SRT files, globs such as *.srt, @<listfile> to read the
+rem       files from a list, or - to read the list from standard input
+rem
+rem  An autocorrect.properties file in the directory of an SRT file, or in any
+rem  of its parents, adds to or overrides the dictionary for that file.
 rem
 rem ===========================================================================
 setlocal
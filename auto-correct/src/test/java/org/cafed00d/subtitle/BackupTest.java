@@ -0,0 +1,230 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import static org.cafed00d.subtitle.SrtFiles.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that each {@link Backup} strategy keeps the original of a corrected
+ * file, and that an interrupted file is restored from it.
+ */
+public class BackupTest {
+
+  /**
+   * The file to correct.
+   */
+  private File file;
+
+  /**
+   * Creates the file.
+   * 
+   * @throws IOException
+   *           The file could not be written.
+   */
+  @Before
+  public void setUp() throws IOException {
+    Reporter.setOptions(false, true);
+    file = File.createTempFile("backup", ".srt");
+    write(file, ORIGINAL);
+  }
+
+  /**
+   * Removes the file and its backups.
+   */
+  @After
+  public void tearDown() {
+    Reporter.setOptions(false, false);
+    clean();
+  }
+
+  /**
+   * Removes the file and its backups.
+   */
+  private void clean() {
+    file.delete();
+    FileProcessor.backupFileFor(file, Backup.RENAME).delete();
+    FileProcessor.backupFileFor(file, Backup.GZIP).delete();
+    FileProcessor.tempFileFor(file).delete();
+  }
+
+  /**
+   * Checks that each strategy keeps the original, both when the file is
+   * processed in one go and in stages, and that the temporary file is gone.
+   * 
+   * @throws IOException
+   *           A file could not be read.
+   */
+  @Test
+  public void testStrategies() throws IOException {
+    for (Backup backup : Backup.values()) {
+      for (int mode = 0; mode < 2; mode++) {
+        clean();
+        write(file, ORIGINAL);
+        FileProcessor fp = new FileProcessor(file, false);
+        fp.setBackup(backup);
+        if (mode == 0) {
+          assertTrue(fp.process());
+        } else {
+          assertTrue(fp.read());
+          fp.correct();
+          assertTrue(fp.write());
+        }
+        assertArrayEquals(CORRECTED, DedupeCache.readBytes(file));
+        assertFalse(FileProcessor.tempFileFor(file).exists());
+        File backupFile = FileProcessor.backupFileFor(file, backup);
+        if (backupFile == null) {
+          assertFalse(FileProcessor.backupFileFor(file, Backup.RENAME).exists());
+        } else if (backup == Backup.GZIP) {
+          File restored = File.createTempFile("restored", ".srt");
+          Backup.uncompress(backupFile, restored);
+          assertArrayEquals(ORIGINAL, DedupeCache.readBytes(restored));
+          restored.delete();
+        } else {
+          assertArrayEquals(ORIGINAL, DedupeCache.readBytes(backupFile));
+        }
+      }
+    }
+  }
+
+  /**
+   * Checks that an interrupted file, missing while its corrected contents are
+   * still in the temporary file, is restored from each kind of backup, that
+   * the temporary file left behind is deleted, and that a complete file is
+   * kept.
+   * 
+   * @throws IOException
+   *           A file could not be read or written.
+   */
+  @Test
+  public void testRecover() throws IOException {
+    for (Backup backup : new Backup[] { Backup.RENAME, Backup.LINK, Backup.GZIP }) {
+      clean();
+      write(file, ORIGINAL);
+      long since = System.currentTimeMillis() - 2000;
+      FileProcessor fp = new FileProcessor(file, false);
+      fp.setBackup(backup);
+      assertTrue(fp.process());
+      assertFalse(FileProcessor.recover(file, since));
+      assertArrayEquals(CORRECTED, DedupeCache.readBytes(file));
+      write(FileProcessor.tempFileFor(file), CORRECTED);
+      file.delete();
+      assertTrue(FileProcessor.recover(file, since));
+      assertArrayEquals(ORIGINAL, DedupeCache.readBytes(file));
+      assertFalse(FileProcessor.tempFileFor(file).exists());
+    }
+  }
+
+  /**
+   * Checks that files are corrected whether they are forced to disk with
+   * their directories synced after every file, in batches, or never.
+   * 
+   * @throws IOException
+   *           A file could not be read or written.
+   */
+  @Test
+  public void testSync() throws IOException {
+    try {
+      for (int size : new int[] { 1, 2, 0 }) {
+        SyncBatch.configure(size);
+        for (int i = 0; i < 3; i++) {
+          clean();
+          write(file, ORIGINAL);
+          assertTrue(new FileProcessor(file, false).process());
+          assertArrayEquals(CORRECTED, DedupeCache.readBytes(file));
+        }
+        SyncBatch.flush();
+      }
+    } finally {
+      SyncBatch.configure(SyncBatch.DEFAULT_SIZE);
+    }
+  }
+
+  /**
+   * Checks that in a batch the temporary files wait for the rest of their
+   * sync batch before they are moved into place, and that each file is only
+   * completed once it is in place.
+   * 
+   * @throws IOException
+   *           A file could not be read or written.
+   */
+  @Test
+  public void testDeferredSync() throws IOException {
+    File[] files = new File[3];
+    final List<File> completed = new ArrayList<File>();
+    BatchProcessor batch = new BatchProcessor(1, false) {
+      @Override
+      void completed(File done, Statistics statistics) {
+        assertFalse(FileProcessor.tempFileFor(done).exists());
+        assertEquals(0, statistics.getFailedCount());
+        completed.add(done);
+        super.completed(done, statistics);
+      }
+    };
+    try {
+      SyncBatch.configure(files.length);
+      for (int i = 0; i < files.length; i++) {
+        files[i] = File.createTempFile("deferred", ".srt");
+        write(files[i], ORIGINAL);
+      }
+      for (int i = 0; i < files.length; i++) {
+        assertTrue(batch.processorFor(files[i]).process());
+        if (i < files.length - 1) {
+          assertTrue(FileProcessor.tempFileFor(files[i]).exists());
+          assertArrayEquals(ORIGINAL, DedupeCache.readBytes(files[i]));
+          assertTrue(completed.isEmpty());
+        }
+      }
+      assertEquals(Arrays.asList(files), completed);
+      for (File done : files) {
+        assertArrayEquals(CORRECTED, DedupeCache.readBytes(done));
+      }
+    } finally {
+      SyncBatch.configure(SyncBatch.DEFAULT_SIZE);
+      for (File done : files) {
+        if (done != null) {
+          done.delete();
+          FileProcessor.backupFileFor(done, Backup.RENAME).delete();
+          FileProcessor.tempFileFor(done).delete();
+        }
+      }
+    }
+  }
+
+  /**
+   * Checks that a file that could not be read is left as it was, with no
+   * backup or temporary file.
+   */
+  @Test
+  public void testMissingFile() {
+    file.delete();
+    FileProcessor fp = new FileProcessor(file, false);
+    assertFalse(fp.process());
+    assertFalse(file.exists());
+    assertFalse(FileProcessor.backupFileFor(file, Backup.RENAME).exists());
+    assertFalse(FileProcessor.tempFileFor(file).exists());
+  }
+}
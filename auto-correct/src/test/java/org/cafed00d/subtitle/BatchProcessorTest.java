@@ -0,0 +1,197 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import static org.cafed00d.subtitle.SrtFiles.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that {@link BatchProcessor} corrects every file it is given, and
+ * totals them, however the work is spread out.
+ */
+public class BatchProcessorTest {
+
+  /**
+   * The number of files in the batch.
+   */
+  private static final int FILE_COUNT = 20;
+
+  /**
+   * The directory holding the files.
+   */
+  private File dir;
+
+  /**
+   * The files to correct.
+   */
+  private List<File> files;
+
+  /**
+   * Creates the files.
+   * 
+   * @throws IOException
+   *           The files could not be created.
+   */
+  @Before
+  public void setUp() throws IOException {
+    Reporter.setOptions(false, true);
+    dir = File.createTempFile("batch", "");
+    dir.delete();
+    dir.mkdirs();
+    files = new ArrayList<File>();
+    for (int i = 0; i < FILE_COUNT; i++) {
+      File file = new File(dir, "movie" + i + ".srt");
+      write(file, TWO_ERRORS);
+      files.add(file);
+    }
+  }
+
+  /**
+   * Removes the files.
+   */
+  @After
+  public void tearDown() {
+    Reporter.setOptions(false, false);
+    delete(dir);
+  }
+
+  /**
+   * Checks that a batch corrected by several threads is corrected and counted
+   * exactly as one corrected by a single thread.
+   * 
+   * @throws IOException
+   *           A file could not be read or written.
+   */
+  @Test
+  public void testParallel() throws IOException {
+    check(new BatchProcessor(4, false).process(files));
+    for (File file : files) {
+      write(file, TWO_ERRORS);
+    }
+    check(new BatchProcessor(1, false).process(files));
+  }
+
+  /**
+   * Checks that a batch run through the read, correct and write stages of a
+   * pipeline is corrected and counted in full, whether the files are replaced
+   * or rewritten in place.
+   * 
+   * @throws IOException
+   *           A file could not be read or written.
+   */
+  @Test
+  public void testPipeline() throws IOException {
+    BatchProcessor batch = new BatchProcessor(3, false);
+    batch.setPipeline(2);
+    check(batch.process(files));
+    for (File file : files) {
+      write(file, TWO_ERRORS);
+    }
+    batch = new BatchProcessor(3, false);
+    batch.setPipeline(2);
+    batch.setInPlace(true, false);
+    check(batch.process(files));
+  }
+
+  /**
+   * Checks that a file whose stage throws is counted as failed and left as it
+   * was, while the rest of the batch goes on.
+   * 
+   * @throws IOException
+   *           A file could not be read or written.
+   */
+  @Test
+  public void testPipelineFailure() throws IOException {
+    final File broken = files.get(0);
+    BatchProcessor batch = new BatchProcessor(3, false) {
+      @Override
+      FileProcessor createProcessor(File file) {
+        if (!file.equals(broken)) {
+          return super.createProcessor(file);
+        }
+        return new FileProcessor(file, false) {
+          @Override
+          public void correct() {
+            throw new IllegalStateException("broken");
+          }
+        };
+      }
+    };
+    batch.setPipeline(2);
+    Statistics totals = batch.process(files);
+    assertEquals(FILE_COUNT, totals.getFileCount());
+    assertEquals(1, totals.getFailedCount());
+    assertEquals(2 * (FILE_COUNT - 1), totals.getCorrectedCount());
+    assertArrayEquals(TWO_ERRORS, DedupeCache.readBytes(broken));
+    assertEquals("backups and no temporary files", 2 * FILE_COUNT - 1, dir.list().length);
+  }
+
+  /**
+   * Checks that a batch spread across worker processes is corrected and
+   * counted in full.
+   * 
+   * @throws IOException
+   *           A file could not be read or written.
+   */
+  @Test
+  public void testShards() throws IOException {
+    BatchProcessor batch = new BatchProcessor(1, false);
+    batch.setWorkers("2");
+    check(batch.process(files));
+  }
+
+  /**
+   * Checks that every file was corrected and counted once.
+   * 
+   * @param totals
+   *          The totals for the batch.
+   * @throws IOException
+   *           A file could not be read.
+   */
+  private void check(Statistics totals) throws IOException {
+    assertEquals(FILE_COUNT, totals.getFileCount());
+    assertEquals(0, totals.getFailedCount());
+    assertEquals(2 * FILE_COUNT, totals.getCorrectedCount());
+    for (File file : files) {
+      assertEquals(file.getName(), new String(TWO_ERRORS_CORRECTED), new String(DedupeCache.readBytes(file)));
+    }
+  }
+
+  /**
+   * Deletes a file, or a directory and everything in it.
+   * 
+   * @param file
+   *          The file or directory to delete.
+   */
+  private static void delete(File file) {
+    File[] entries = file.listFiles();
+    if (entries != null) {
+      for (File entry : entries) {
+        delete(entry);
+      }
+    }
+    file.delete();
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import static org.cafed00d.subtitle.SrtFiles.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that a file that is only checked is counted but left as it was.
+ */
+public class CheckOnlyTest {
+
+  /**
+   * The file to check.
+   */
+  private File file;
+
+  /**
+   * Creates the file.
+   * 
+   * @throws IOException
+   *           The file could not be created.
+   */
+  @Before
+  public void setUp() throws IOException {
+    Reporter.setOptions(false, true);
+    file = File.createTempFile("check", ".srt");
+  }
+
+  /**
+   * Removes the file.
+   */
+  @After
+  public void tearDown() {
+    Reporter.setOptions(false, false);
+    file.delete();
+  }
+
+  /**
+   * Checks a file in each of the ways a file can be processed.
+   * 
+   * @throws IOException
+   *           The file could not be read or written.
+   */
+  @Test
+  public void testCheck() throws IOException {
+    for (int mode = 0; mode < 4; mode++) {
+      write(file, TWO_ERRORS);
+      long modified = file.lastModified();
+      FileProcessor fp = new FileProcessor(file, true);
+      fp.setCheckOnly(true);
+      fp.setUtf8(mode >= 2);
+      fp.setInPlace(mode == 3);
+      if (mode % 2 == 0) {
+        assertTrue(fp.process());
+      } else {
+        assertTrue(fp.read());
+        fp.correct();
+        assertTrue(fp.write());
+      }
+      assertArrayEquals(TWO_ERRORS, DedupeCache.readBytes(file));
+      assertEquals(modified, file.lastModified());
+      assertEquals(2, fp.getStatistics().getCorrectedCount());
+      assertEquals(1, fp.getStatistics().getNeedsCorrectionCount());
+      assertEquals(2, fp.getCorrections().size());
+      assertFalse(FileProcessor.backupFileFor(file, Backup.RENAME).exists());
+      assertFalse(FileProcessor.tempFileFor(file).exists());
+      assertFalse(new File(file.getPath().replace(".srt", ".log")).exists());
+    }
+  }
+
+  /**
+   * Checks that a clean file is not counted as needing corrections, and the
+   * exit codes.
+   * 
+   * @throws IOException
+   *           The file could not be written.
+   */
+  @Test
+  public void testClean() throws IOException {
+    write(file, CORRECTED);
+    FileProcessor fp = new FileProcessor(file, false);
+    fp.setCheckOnly(true);
+    assertTrue(fp.process());
+    Statistics totals = new Statistics();
+    totals.add(fp.getStatistics());
+    assertEquals(0, totals.getNeedsCorrectionCount());
+    assertEquals(0, AutoCorrect.exitCode(totals));
+    write(file, TWO_ERRORS);
+    fp = new FileProcessor(file, false);
+    fp.setCheckOnly(true);
+    assertTrue(fp.process());
+    totals.add(fp.getStatistics());
+    assertEquals(1, AutoCorrect.exitCode(totals));
+    file.delete();
+    fp = new FileProcessor(file, false);
+    fp.setCheckOnly(true);
+    assertFalse(fp.process());
+    totals.add(fp.getStatistics());
+    assertEquals(2, AutoCorrect.exitCode(totals));
+    assertEquals(2, AutoCorrect.exitCode(null));
+  }
+
+  /**
+   * Checks that a check run leaves no trace in the journal, so that a later
+   * run with the same journal still corrects the file.
+   * 
+   * @throws IOException
+   *           The file or journal could not be read or written.
+   */
+  @Test
+  public void testJournal() throws IOException {
+    File journalFile = File.createTempFile("check", ".journal");
+    try {
+      write(file, TWO_ERRORS);
+      Journal journal = new Journal(journalFile);
+      BatchProcessor batch = new BatchProcessor(1, false);
+      batch.setJournal(journal);
+      batch.setCheckOnly(true);
+      assertEquals(1, batch.process(Arrays.asList(file)).getNeedsCorrectionCount());
+      journal.close();
+      assertEquals(0, journalFile.length());
+      assertArrayEquals(TWO_ERRORS, DedupeCache.readBytes(file));
+      journal = new Journal(journalFile);
+      batch = new BatchProcessor(1, false);
+      batch.setJournal(journal);
+      batch.process(Arrays.asList(file));
+      journal.close();
+      journal = new Journal(journalFile);
+      journal.close();
+      assertTrue(journal.isCompleted(file));
+      assertArrayEquals(TWO_ERRORS_CORRECTED, DedupeCache.readBytes(file));
+    } finally {
+      journalFile.delete();
+      FileProcessor.backupFileFor(file, Backup.RENAME).delete();
+    }
+  }
+}
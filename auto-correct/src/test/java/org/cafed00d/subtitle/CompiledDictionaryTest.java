@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+/**
+ * Checks that a {@link CompiledDictionary} holds the same entries as the
+ * properties file it was compiled from.
+ */
+public class CompiledDictionaryTest {
+
+  /**
+   * Compiles autocorrect.properties and looks up every entry, and some words
+   * that are not entries, in the result.
+   * 
+   * @throws IOException
+   *           The dictionary could not be compiled.
+   */
+  @Test
+  public void testCompile() throws IOException {
+    SortedMap<String, String> entries = CompiledDictionary.readProperties(getClass().getClassLoader()
+        .getResourceAsStream("autocorrect.properties"));
+    File file = File.createTempFile("autocorrect", ".dict");
+    try {
+      CompiledDictionary.write(entries, file);
+      CompiledDictionary dictionary = CompiledDictionary.open(file.toURI().toURL());
+      assertEquals(entries.size(), dictionary.size());
+      assertEquals(ContentHash.of(entries), dictionary.getVersion());
+      ArrayList<String> misspellings = new ArrayList<String>();
+      for (Map.Entry<String, String> entry : entries.entrySet()) {
+        if (!entry.getValue().isEmpty()) {
+          misspellings.add(entry.getKey());
+        }
+      }
+      assertEquals(LineFilter.triggersFor(misspellings), dictionary.getTriggers());
+      for (Map.Entry<String, String> entry : entries.entrySet()) {
+        String line = " " + entry.getKey() + ".";
+        int found = dictionary.find(line, 1, line.length() - 1);
+        assertTrue("Not found: " + entry.getKey(), found >= 0);
+        assertEquals(entry.getKey(), dictionary.getKey(found));
+        assertEquals(entry.getValue(), dictionary.getValue(found));
+        assertEquals(entry.getValue().length(), dictionary.getValueLength(found));
+        assertEquals(-1, dictionary.find(line, 0, line.length()));
+      }
+      assertEquals(-1, dictionary.find("", 0, 0));
+    } finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * Compiles a dictionary over one that is open, which keeps reading what it
+   * was opened with, and leaves no temporary file behind.
+   * 
+   * @throws IOException
+   *           The dictionary could not be compiled.
+   */
+  @Test
+  public void testReplace() throws IOException {
+    File directory = File.createTempFile("autocorrect", "");
+    directory.delete();
+    directory.mkdir();
+    File file = new File(directory, "autocorrect.dict");
+    try {
+      SortedMap<String, String> entries = new TreeMap<String, String>();
+      entries.put("Iet", "let");
+      CompiledDictionary.write(entries, file);
+      CompiledDictionary old = CompiledDictionary.open(file.toURI().toURL());
+      entries.clear();
+      entries.put("Iook", "look");
+      entries.put("Iast", "last");
+      CompiledDictionary.write(entries, file);
+      assertEquals(1, old.size());
+      assertEquals("let", old.getValue(old.find("Iet", 0, 3)));
+      CompiledDictionary replaced = CompiledDictionary.open(file.toURI().toURL());
+      assertEquals(2, replaced.size());
+      assertEquals(-1, replaced.find("Iet", 0, 3));
+      assertEquals(1, directory.list().length);
+    } finally {
+      file.delete();
+      directory.delete();
+    }
+  }
+}
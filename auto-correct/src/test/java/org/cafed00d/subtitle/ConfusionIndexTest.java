@@ -0,0 +1,216 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Checks that a {@link ConfusionIndex} finds the known word a token was
+ * misread from.
+ */
+public class ConfusionIndexTest {
+
+  /**
+   * The index under test.
+   */
+  private ConfusionIndex index = new ConfusionIndex(new File("words.txt"), "0", Arrays.asList("turn", "modern",
+      "over", "OK", "all", "hello", "couldn't"));
+
+  /**
+   * Checks the keys of words and their misreadings.
+   */
+  @Test
+  public void testKeys() {
+    assertEquals("tum", ConfusionIndex.keyOf("turn", 0, 4));
+    assertEquals("tum", ConfusionIndex.keyOf("tum", 0, 3));
+    assertEquals("modem", ConfusionIndex.keyOf("rnodern", 0, 7));
+    assertEquals("over", ConfusionIndex.keyOf("0ver", 0, 4));
+    assertEquals("all", ConfusionIndex.keyOf("a1|", 0, 3));
+    assertEquals("hello", ConfusionIndex.keyOf("HeIIo", 0, 5));
+    assertEquals("in", ConfusionIndex.keyOf("in", 0, 2));
+  }
+
+  /**
+   * Checks the corrections made.
+   */
+  @Test
+  public void testCorrect() {
+    assertEquals(7, index.size());
+    assertEquals("turn", index.correct("tum", null));
+    assertEquals("Modern", index.correct("Modem", null));
+    assertEquals("modern", index.correct("rnodern", null));
+    assertEquals("over", index.correct("0ver", null));
+    assertEquals("OK", index.correct("0K", null));
+    assertEquals("all", index.correct("a11", null));
+    assertEquals("Hello", index.correct("HeIIo", null));
+    assertEquals("couldn't", index.correct("c0uldn't", null));
+
+    // known words, numbers and unknown words
+    assertNull(index.correct("turn", null));
+    assertNull(index.correct("Over", null));
+    assertNull(index.correct("101", null));
+    assertNull(index.correct("Malcolm", null));
+
+    // a token within a line
+    assertEquals("over", index.correct("come 0ver here", 5, 9, null));
+    assertNull(index.correct("come 0ver here", 0, 4, null));
+  }
+
+  /**
+   * Checks that a token whose upper case I makes its key differ from that of
+   * its lower case is still found to be a known word.
+   */
+  @Test
+  public void testKnownWithI() {
+    index = new ConfusionIndex(new File("words.txt"), "0", Arrays.asList("ill", "lll"));
+    assertNull(index.correct("Ill", null));
+    assertEquals("lll", index.correct("l1l", null));
+  }
+
+  /**
+   * Checks that the word list is read in UTF-8.
+   * 
+   * @throws IOException
+   *           The word list could not be written.
+   */
+  @Test
+  public void testOpen() throws IOException {
+    File file = File.createTempFile("words", ".txt");
+    try {
+      OutputStream out = new FileOutputStream(file);
+      try {
+        out.write("# words\nm\u00f3vil 12\n".getBytes("UTF-8"));
+      } finally {
+        out.close();
+      }
+      index = ConfusionIndex.open(file);
+      assertEquals(1, index.size());
+      assertEquals("m\u00f3vil", index.correct("m\u00f3vi1", null));
+    } finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * Checks that several known words with the same key are left to the
+   * frequency model.
+   * 
+   * @throws IOException
+   *           The model could not be written.
+   */
+  @Test
+  public void testAmbiguous() throws IOException {
+    index = new ConfusionIndex(new File("words.txt"), "0", Arrays.asList("modern", "modem"));
+    assertNull(index.correct("modem", null));
+    assertNull(index.correct("rnodern", null));
+    Map<String, long[]> words = new HashMap<String, long[]>();
+    words.put("modern", new long[] { 10 });
+    words.put("modem", new long[] { 1 });
+    File file = File.createTempFile("words", ".model");
+    try {
+      FrequencyModel.write(words, file);
+      FrequencyModel model = FrequencyModel.open(file);
+      assertNull(index.correct("modem", model));
+      assertEquals("modern", index.correct("rnodern", model));
+    } finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * Checks which tokens are worth looking up.
+   */
+  @Test
+  public void testSuspicious() {
+    String line = "the c0uldn't burn, a1l.";
+    assertEquals(3, ConfusionIndex.tokenEnd(line, 0));
+    assertEquals(12, ConfusionIndex.tokenEnd(line, 4));
+    assertEquals(12, ConfusionIndex.tokenEnd(line, 12));
+    assertFalse(ConfusionIndex.isSuspicious(line, 0, 3));
+    assertTrue(ConfusionIndex.isSuspicious(line, 4, 12));
+    assertTrue(ConfusionIndex.isSuspicious(line, 13, 17));
+    assertTrue(ConfusionIndex.isSuspicious(line, 19, 22));
+    assertFalse(ConfusionIndex.isSuspicious(line, 19, 19));
+
+    // an I or l is only suspicious among letters of the other case
+    assertFalse(suspicious("Hello"));
+    assertFalse(suspicious("I"));
+    assertFalse(suspicious("If"));
+    assertFalse(suspicious("ILL"));
+    assertTrue(suspicious("HeIIo"));
+    assertTrue(suspicious("HELlO"));
+    assertTrue(suspicious("tum"));
+    assertTrue(suspicious("burn"));
+    assertFalse(suspicious("bun"));
+
+    // lines of UTF-8 bytes
+    assertFalse(suspicious(bytes("I tell you, caf\u00e9 Hello!")));
+    assertTrue(suspicious(bytes("I tell you, caf\u00e9 HeIIo!")));
+    assertTrue(suspicious(bytes("a1l")));
+    assertFalse(suspicious(bytes("")));
+  }
+
+  /**
+   * Determines if a token is suspicious.
+   * 
+   * @param token
+   *          The token.
+   * @return True if it is.
+   */
+  private static boolean suspicious(String token) {
+    return ConfusionIndex.isSuspicious(token, 0, token.length());
+  }
+
+  /**
+   * Determines if a line of bytes holds a suspicious token.
+   * 
+   * @param line
+   *          The line.
+   * @return True if it does.
+   */
+  private static boolean suspicious(ByteBuffer line) {
+    return ConfusionIndex.isSuspicious(line, line.position(), line.limit());
+  }
+
+  /**
+   * Encodes a line in UTF-8.
+   * 
+   * @param line
+   *          The line.
+   * @return The bytes of the line.
+   * @throws IllegalStateException
+   *           UTF-8 is not supported.
+   */
+  private static ByteBuffer bytes(String line) {
+    try {
+      return ByteBuffer.wrap(line.getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
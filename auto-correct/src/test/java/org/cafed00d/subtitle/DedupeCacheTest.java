@@ -0,0 +1,138 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that {@link DedupeCache} keys results by contents and dictionary,
+ * keeps the most recently used ones in memory and stores them whole.
+ */
+public class DedupeCacheTest {
+
+  /**
+   * The cache directory.
+   */
+  private File directory;
+
+  /**
+   * Picks the cache directory.
+   * 
+   * @throws IOException
+   *           The directory could not be picked.
+   */
+  @Before
+  public void setUp() throws IOException {
+    Reporter.setOptions(false, true);
+    directory = File.createTempFile("dedupe", "");
+    directory.delete();
+  }
+
+  /**
+   * Removes the cache directory.
+   */
+  @After
+  public void tearDown() {
+    Reporter.setOptions(false, false);
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  /**
+   * Checks that the key changes with the contents and the dictionary.
+   */
+  @Test
+  public void testKey() {
+    DedupeCache cache = new DedupeCache(null);
+    String key = cache.keyFor("0123abcd", "fedcba9876543210");
+    assertEquals("0123abcd-fedcba98", key);
+    assertFalse(key.equals(cache.keyFor("0123abce", "fedcba9876543210")));
+    assertFalse(key.equals(cache.keyFor("0123abcd", "fedcba9976543210")));
+  }
+
+  /**
+   * Checks that the least recently used results are dropped once the memory
+   * limit is reached.
+   */
+  @Test
+  public void testLeastRecentlyUsed() {
+    DedupeCache cache = new DedupeCache(null);
+    byte[] content = new byte[(int) (DedupeCache.MEMORY_LIMIT / 4)];
+    for (int i = 0; i < 4; i++) {
+      cache.put("key" + i, entry(content));
+    }
+    for (int i = 0; i < 4; i++) {
+      assertNotNull(cache.get("key" + i));
+    }
+    assertNotNull(cache.get("key0"));
+    cache.put("key4", entry(content));
+    assertNull(cache.get("key1"));
+    assertNotNull(cache.get("key0"));
+    assertNotNull(cache.get("key4"));
+    cache.put("key5", entry(new byte[0]));
+    assertNotNull(cache.get("key2"));
+  }
+
+  /**
+   * Checks that a result stored in the directory is read back by another
+   * cache, and that no temporary file is left behind.
+   */
+  @Test
+  public void testStore() {
+    DedupeCache cache = new DedupeCache(directory);
+    assertTrue(directory.isDirectory());
+    Map<String, String> corrections = new TreeMap<String, String>();
+    corrections.put("Iet", "let");
+    cache.put("key", new DedupeCache.Entry("let me go".getBytes(), new Statistics(3, 5, 1), corrections));
+    String[] names = directory.list();
+    Arrays.sort(names);
+    assertEquals(Arrays.asList("key.log", "key.srt"), Arrays.asList(names));
+    DedupeCache.Entry entry = new DedupeCache(directory).get("key");
+    assertNotNull(entry);
+    assertArrayEquals("let me go".getBytes(), entry.getContent());
+    assertEquals(3, entry.getStatistics().getLineCount());
+    assertEquals(5, entry.getStatistics().getWordCount());
+    assertEquals(1, entry.getStatistics().getCorrectedCount());
+    assertEquals(corrections, entry.getCorrections());
+    assertNull(new DedupeCache(directory).get("other"));
+  }
+
+  /**
+   * Makes a result.
+   * 
+   * @param content
+   *          The corrected content.
+   * @return The result.
+   */
+  private static DedupeCache.Entry entry(byte[] content) {
+    return new DedupeCache.Entry(content, new Statistics(), new TreeMap<String, String>());
+  }
+}
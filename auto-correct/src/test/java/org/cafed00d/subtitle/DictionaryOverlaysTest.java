@@ -0,0 +1,136 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that {@link DictionaryOverlays} merges the overlays of a directory
+ * and its parents with the global dictionary.
+ */
+public class DictionaryOverlaysTest {
+
+  /**
+   * The parent directory, holding an overlay.
+   */
+  private File parent;
+
+  /**
+   * The series directory, holding an overlay that overrides the parent's.
+   */
+  private File series;
+
+  /**
+   * Creates the directories and their overlays.
+   * 
+   * @throws IOException
+   *           The overlays could not be written.
+   */
+  @Before
+  public void setUp() throws IOException {
+    parent = File.createTempFile("overlays", "");
+    parent.delete();
+    series = new File(parent, "series");
+    series.mkdirs();
+    writeOverlay(parent, "Ilsa=", "Iuke=Luke");
+    writeOverlay(series, "Iuke=", "Qlt=Alt");
+  }
+
+  /**
+   * Removes the directories.
+   */
+  @After
+  public void tearDown() {
+    new File(series, DictionaryOverlays.FILE_NAME).delete();
+    series.delete();
+    new File(parent, DictionaryOverlays.FILE_NAME).delete();
+    parent.delete();
+  }
+
+  /**
+   * Writes an overlay.
+   * 
+   * @param directory
+   *          The directory to write it in.
+   * @param lines
+   *          The lines of the overlay.
+   * @throws IOException
+   *           The overlay could not be written.
+   */
+  private static void writeOverlay(File directory, String... lines) throws IOException {
+    PrintStream out = new PrintStream(new FileOutputStream(new File(directory, DictionaryOverlays.FILE_NAME)));
+    for (String line : lines) {
+      out.println(line);
+    }
+    out.close();
+  }
+
+  /**
+   * Nearer overlays override farther ones, and all of them add to the global
+   * dictionary.
+   */
+  @Test
+  public void testMerge() {
+    DictionaryOverlays overlays = new DictionaryOverlays();
+    DictionarySnapshot global = Dictionary.INSTANCE.getSnapshot();
+    DictionarySnapshot merged = overlays.get(series, global);
+    assertEquals(global.size() + 3, merged.size());
+    assertTrue(merged.exceptionCase("Ilsa"));
+    assertTrue(merged.exceptionCase("Iuke"));
+    assertTrue(merged.exceptionCase("All"));
+    StringBuilder line = new StringBuilder("Qlt");
+    assertTrue(merged.spellcheck(line, 0, line.length()));
+    assertEquals("Alt", line.toString());
+    assertFalse(merged.getVersion().equals(global.getVersion()));
+
+    DictionarySnapshot outer = overlays.get(parent, global);
+    assertFalse(outer.exceptionCase("Iuke"));
+    line = new StringBuilder("Iuke");
+    assertTrue(outer.spellcheck(line, 0, line.length()));
+    assertEquals("Luke", line.toString());
+  }
+
+  /**
+   * The merged dictionary is kept for the directory and shared with those
+   * that have the same overlays, and a directory with no overlays uses the
+   * global dictionary.
+   */
+  @Test
+  public void testCache() {
+    DictionaryOverlays overlays = new DictionaryOverlays();
+    DictionarySnapshot global = Dictionary.INSTANCE.getSnapshot();
+    assertSame(overlays.get(series, global), overlays.get(series, global));
+    File season = new File(series, "season");
+    season.mkdir();
+    try {
+      assertSame(overlays.get(series, global), overlays.get(season, global));
+    } finally {
+      season.delete();
+    }
+    new File(series, DictionaryOverlays.FILE_NAME).delete();
+    new File(parent, DictionaryOverlays.FILE_NAME).delete();
+    assertSame(global, new DictionaryOverlays().get(series, global));
+  }
+}
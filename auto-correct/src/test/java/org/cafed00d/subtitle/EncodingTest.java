@@ -0,0 +1,240 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the detection of {@link Encoding}s, and that corrected files keep
+ * theirs.
+ */
+public class EncodingTest {
+
+  /**
+   * The text of the file to correct.
+   */
+  private static final String ORIGINAL = "1\r\n00:00:01,000 --> 00:00:02,000\r\nIet me go\r\ncaf\u00e9 \u2013 Iook\r\n";
+
+  /**
+   * The corrected text.
+   */
+  private static final String CORRECTED = "1\r\n00:00:01,000 --> 00:00:02,000\r\nlet me go\r\ncaf\u00e9 \u2013 look\r\n";
+
+  /**
+   * The file to correct.
+   */
+  private File file;
+
+  /**
+   * Creates the file.
+   * 
+   * @throws IOException
+   *           The file could not be created.
+   */
+  @Before
+  public void setUp() throws IOException {
+    Reporter.setOptions(false, true);
+    file = File.createTempFile("encoding", ".srt");
+  }
+
+  /**
+   * Removes the file and its backups.
+   */
+  @After
+  public void tearDown() {
+    Reporter.setOptions(false, false);
+    file.delete();
+    new File(file.getPath().replace(".srt", ".bak")).delete();
+    FileProcessor.undoFileFor(file).delete();
+  }
+
+  /**
+   * Checks that a byte order mark settles the encoding.
+   */
+  @Test
+  public void testBom() {
+    assertEquals("UTF-8 with BOM", detect(ORIGINAL, "UTF-8", 0xEF, 0xBB, 0xBF).toString());
+    assertEquals("UTF-16LE with BOM", detect(ORIGINAL, "UTF-16LE", 0xFF, 0xFE).toString());
+    assertEquals("UTF-16BE with BOM", detect(ORIGINAL, "UTF-16BE", 0xFE, 0xFF).toString());
+  }
+
+  /**
+   * Checks the encodings guessed without a byte order mark.
+   */
+  @Test
+  public void testGuess() {
+    assertEquals("UTF-16LE", detect(ORIGINAL, "UTF-16LE").toString());
+    assertEquals("UTF-16BE", detect(ORIGINAL, "UTF-16BE").toString());
+    assertEquals("UTF-8", detect(ORIGINAL, "UTF-8").toString());
+    assertEquals("windows-1252", detect(ORIGINAL, "windows-1252").toString());
+    assertEquals("ISO-8859-1", detect(ORIGINAL + "\u0081", "ISO-8859-1").toString());
+    assertEquals("ISO-8859-1", detect("Iet me go\r\n", "US-ASCII").toString());
+    assertFalse(detect(ORIGINAL, "UTF-16LE").isAsciiCompatible());
+    assertTrue(detect(ORIGINAL, "windows-1252").isAsciiCompatible());
+  }
+
+  /**
+   * Checks that the byte order mark is skipped and the text decoded, by the
+   * table for a single byte encoding as well.
+   * 
+   * @throws IOException
+   *           Not thrown by an array.
+   */
+  @Test
+  public void testNewReader() throws IOException {
+    assertEquals(ORIGINAL, read(ORIGINAL, "UTF-16LE", 0xFF, 0xFE));
+    assertEquals(ORIGINAL, read(ORIGINAL, "UTF-8", 0xEF, 0xBB, 0xBF));
+    assertEquals(ORIGINAL, read(ORIGINAL, "windows-1252"));
+  }
+
+  /**
+   * Checks that a file is corrected in its own encoding, in each of the ways
+   * a file can be processed.
+   * 
+   * @throws IOException
+   *           The file could not be read or written.
+   */
+  @Test
+  public void testProcess() throws IOException {
+    String[][] encodings = { { "UTF-16LE", "FFFE" }, { "UTF-16BE", "" }, { "UTF-8", "EFBBBF" }, { "windows-1252", "" } };
+    for (String[] encoding : encodings) {
+      int[] bom = new int[encoding[1].length() / 2];
+      for (int i = 0; i < bom.length; i++) {
+        bom[i] = Integer.parseInt(encoding[1].substring(i * 2, i * 2 + 2), 16);
+      }
+      for (int mode = 0; mode < 3; mode++) {
+        SrtFiles.write(file, bytes(ORIGINAL, encoding[0], bom));
+        FileProcessor fp = new FileProcessor(file, false);
+        if (mode == 0) {
+          assertTrue(fp.process());
+        } else {
+          fp.setInPlace(mode == 2);
+          assertTrue(fp.read());
+          fp.correct();
+          assertTrue(fp.write());
+        }
+        assertArrayEquals(bytes(CORRECTED, encoding[0], bom), DedupeCache.readBytes(file));
+        assertEquals(2, fp.getStatistics().getCorrectedCount());
+        assertEquals(detect(ORIGINAL, encoding[0], bom).toString(), fp.getStatistics().getEncoding());
+      }
+    }
+  }
+
+  /**
+   * Checks that bytes beyond the first {@link Encoding#BLOCK_SIZE} bytes are
+   * kept as they are when the block is plain ASCII, in each of the ways a file
+   * can be processed.
+   * 
+   * @throws IOException
+   *           The file could not be read or written.
+   */
+  @Test
+  public void testLateNonAscii() throws IOException {
+    StringBuilder prefix = new StringBuilder();
+    for (int i = 1; prefix.length() <= 5 * 1024; i++) {
+      prefix.append(i).append("\r\n00:00:01,000 --> 00:00:02,000\r\nok\r\n\r\n");
+    }
+    String original = prefix + "caf\u00e9 is cIosed \u0093now\u0094\r\n";
+    String corrected = prefix + "caf\u00e9 is closed \u0093now\u0094\r\n";
+    for (int mode = 0; mode < 3; mode++) {
+      SrtFiles.write(file, bytes(original, "ISO-8859-1"));
+      FileProcessor fp = new FileProcessor(file, false);
+      if (mode == 0) {
+        assertTrue(fp.process());
+      } else {
+        fp.setInPlace(mode == 2);
+        assertTrue(fp.read());
+        fp.correct();
+        assertTrue(fp.write());
+      }
+      assertArrayEquals(bytes(corrected, "ISO-8859-1"), DedupeCache.readBytes(file));
+      assertEquals(1, fp.getStatistics().getCorrectedCount());
+    }
+  }
+
+  /**
+   * Detects the encoding of text.
+   * 
+   * @param text
+   *          The text.
+   * @param charset
+   *          The encoding of the text.
+   * @param bom
+   *          The byte order mark to put before the text.
+   * @return The encoding detected.
+   */
+  private static Encoding detect(String text, String charset, int... bom) {
+    byte[] bytes = bytes(text, charset, bom);
+    return Encoding.detect(bytes, bytes.length);
+  }
+
+  /**
+   * Reads encoded text back with the encoding detected.
+   * 
+   * @param text
+   *          The text.
+   * @param charset
+   *          The encoding of the text.
+   * @param bom
+   *          The byte order mark to put before the text.
+   * @return The text read.
+   * @throws IOException
+   *           Not thrown by an array.
+   */
+  private static String read(String text, String charset, int... bom) throws IOException {
+    byte[] bytes = bytes(text, charset, bom);
+    Reader in = Encoding.detect(bytes, bytes.length).newReader(new ByteArrayInputStream(bytes));
+    StringBuilder result = new StringBuilder();
+    char[] chars = new char[3];
+    int count;
+    while ((count = in.read(chars, 0, chars.length)) > 0) {
+      result.append(chars, 0, count);
+    }
+    in.close();
+    return result.toString();
+  }
+
+  /**
+   * Encodes text after a byte order mark.
+   * 
+   * @param text
+   *          The text.
+   * @param charset
+   *          The encoding of the text.
+   * @param bom
+   *          The byte order mark.
+   * @return The bytes.
+   */
+  private static byte[] bytes(String text, String charset, int... bom) {
+    byte[] encoded = text.getBytes(Charset.forName(charset));
+    byte[] result = new byte[bom.length + encoded.length];
+    for (int i = 0; i < bom.length; i++) {
+      result[i] = (byte) bom[i];
+    }
+    System.arraycopy(encoded, 0, result, bom.length, encoded.length);
+    return result;
+  }
+}
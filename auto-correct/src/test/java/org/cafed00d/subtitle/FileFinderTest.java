@@ -0,0 +1,221 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that {@link FileFinder} expands directories, globs and list files
+ * into the SRT files to process, lazily and in name order.
+ */
+public class FileFinderTest {
+
+  /**
+   * The directory holding the files.
+   */
+  private File dir;
+
+  /**
+   * Creates <code>a.srt</code>, <code>c.txt</code>, <code>z.SRT</code> and
+   * <code>sub/b.srt</code>.
+   * 
+   * @throws IOException
+   *           The files could not be created.
+   */
+  @Before
+  public void setUp() throws IOException {
+    Reporter.setOptions(false, true);
+    dir = File.createTempFile("finder", "");
+    dir.delete();
+    new File(dir, "sub").mkdirs();
+    for (String name : new String[] { "a.srt", "c.txt", "z.SRT", "sub/b.srt" }) {
+      new File(dir, name).createNewFile();
+    }
+  }
+
+  /**
+   * Removes the files.
+   */
+  @After
+  public void tearDown() {
+    Reporter.setOptions(false, false);
+    delete(dir);
+  }
+
+  /**
+   * Checks which arguments are globs, and what they match.
+   */
+  @Test
+  public void testGlobPattern() {
+    assertTrue(FileFinder.isGlob("*.srt"));
+    assertTrue(FileFinder.isGlob("part?.srt"));
+    assertFalse(FileFinder.isGlob("movie.srt"));
+    assertTrue(FileFinder.globToPattern("*.srt").matcher("movie.srt").matches());
+    assertFalse(FileFinder.globToPattern("*.srt").matcher("movie.srt.bak").matches());
+    assertTrue(FileFinder.globToPattern("part?.srt").matcher("part1.srt").matches());
+    assertFalse(FileFinder.globToPattern("part?.srt").matcher("part10.srt").matches());
+    assertTrue(FileFinder.globToPattern("[x]*.srt").matcher("[x] movie.srt").matches());
+    assertFalse(FileFinder.globToPattern("[x]*.srt").matcher("x movie.srt").matches());
+  }
+
+  /**
+   * Checks that a directory is searched recursively for SRT files, in name
+   * order.
+   */
+  @Test
+  public void testDirectory() {
+    assertEquals(Arrays.asList("a.srt", "sub/b.srt", "z.SRT"), find(dir.getPath()));
+  }
+
+  /**
+   * Checks that a glob matches the names in its directory, searching the
+   * directories it matches.
+   */
+  @Test
+  public void testGlob() {
+    assertEquals(Arrays.asList("a.srt"), find(new File(dir, "?.srt").getPath()));
+    assertEquals(Arrays.asList("sub/b.srt"), find(new File(dir, "s*").getPath()));
+    assertEquals(Arrays.asList(), find(new File(dir, "*.none").getPath()));
+  }
+
+  /**
+   * Checks that a list file is read, skipping blank lines, comments and
+   * missing files, and that its relative paths, including those of the list
+   * files it names, are relative to its own directory.
+   * 
+   * @throws IOException
+   *           The lists could not be written.
+   */
+  @Test
+  public void testListFile() throws IOException {
+    writeList(new File(dir, "sub/more.lst"), "b.srt");
+    File list = new File(dir, "files.lst");
+    writeList(list, "# files", "", "  a.srt  ", "missing.srt", "@sub/more.lst", new File(dir, "z.SRT").getPath());
+    assertEquals(Arrays.asList("a.srt", "sub/b.srt", "z.SRT"), find("@" + list.getPath()));
+  }
+
+  /**
+   * Checks that a list file is only read as far as needed to return the next
+   * file.
+   * 
+   * @throws IOException
+   *           The list could not be written.
+   */
+  @Test
+  public void testLazy() throws IOException {
+    File list = new File(dir, "files.lst");
+    writeList(list, "a.srt", "late.srt");
+    Iterator<File> files = new FileFinder(Arrays.asList("@" + list.getPath())).iterator();
+    assertEquals(new File(dir, "a.srt").getAbsoluteFile(), files.next());
+    assertTrue(new File(dir, "late.srt").createNewFile());
+    assertEquals(new File(dir, "late.srt").getAbsoluteFile(), files.next());
+    assertFalse(files.hasNext());
+  }
+
+  /**
+   * Checks that missing files and globs that match nothing are counted as
+   * rejected, and that a file that cannot be written is rejected unless the
+   * files are only checked.
+   */
+  @Test
+  public void testRejected() {
+    FileFinder finder = new FileFinder(Arrays.asList(new File(dir, "missing.srt").getPath(),
+        new File(dir, "*.none").getPath(), new File(dir, "a.srt").getPath()));
+    List<File> files = new ArrayList<File>();
+    for (File file : finder) {
+      files.add(file);
+    }
+    assertEquals(Arrays.asList(new File(dir, "a.srt").getAbsoluteFile()), files);
+    assertEquals(2, finder.getRejectedCount());
+
+    File file = new File(dir, "a.srt");
+    assertTrue(file.setWritable(false));
+    finder = new FileFinder(Arrays.asList(file.getPath()));
+    finder.setCheckOnly(true);
+    assertTrue(finder.iterator().hasNext());
+    assertEquals(0, finder.getRejectedCount());
+    if (!file.canWrite()) {
+      // root can write any file
+      finder = new FileFinder(Arrays.asList(file.getPath()));
+      assertFalse(finder.iterator().hasNext());
+      assertEquals(1, finder.getRejectedCount());
+    }
+  }
+
+  /**
+   * Finds the files for an argument.
+   * 
+   * @param argument
+   *          The argument.
+   * @return The paths of the files found, relative to {@link #dir}.
+   */
+  private List<String> find(String argument) {
+    List<String> result = new ArrayList<String>();
+    String prefix = dir.getAbsolutePath() + File.separator;
+    for (File file : new FileFinder(Arrays.asList(argument))) {
+      assertTrue(file.getPath(), file.getPath().startsWith(prefix));
+      result.add(file.getPath().substring(prefix.length()).replace(File.separatorChar, '/'));
+    }
+    return result;
+  }
+
+  /**
+   * Writes a list file.
+   * 
+   * @param list
+   *          The list file.
+   * @param lines
+   *          The lines of the list.
+   * @throws IOException
+   *           The list could not be written.
+   */
+  private static void writeList(File list, String... lines) throws IOException {
+    PrintStream out = new PrintStream(new FileOutputStream(list));
+    for (String line : lines) {
+      out.println(line);
+    }
+    out.close();
+  }
+
+  /**
+   * Deletes a file, or a directory and everything in it.
+   * 
+   * @param file
+   *          The file or directory.
+   */
+  private static void delete(File file) {
+    File[] entries = file.listFiles();
+    if (entries != null) {
+      for (File entry : entries) {
+        delete(entry);
+      }
+    }
+    file.delete();
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that correcting the bytes of a UTF-8 file gives the same result as
+ * correcting its lines.
+ */
+public class FileProcessorTest {
+
+  /**
+   * The contents of the file: an unchanged line, lines to correct with and
+   * without other characters, and a line that is not valid UTF-8.
+   */
+  private static final byte[] ORIGINAL = bytes("1\r\n00:00:01,000 --> 00:00:02,000\r\nIet me go\r\n"
+      + "caf\u00e9 Iook\nnothing here\r\n\r\n", "UTF-8", "na\u00efve Iook\r", "ISO-8859-1");
+
+  /**
+   * The corrected contents.
+   */
+  private static final byte[] CORRECTED = bytes("1\r\n00:00:01,000 --> 00:00:02,000\r\nlet me go\r\n"
+      + "caf\u00e9 look\nnothing here\r\n\r\n", "UTF-8", "na\u00efve look\r", "ISO-8859-1");
+
+  /**
+   * The file to correct.
+   */
+  private File file;
+
+  /**
+   * Creates the file.
+   * 
+   * @throws IOException
+   *           The file could not be written.
+   */
+  @Before
+  public void setUp() throws IOException {
+    Reporter.setOptions(false, true);
+    file = File.createTempFile("bytes", ".srt");
+    SrtFiles.write(file, ORIGINAL);
+  }
+
+  /**
+   * Removes the file and its backups.
+   */
+  @After
+  public void tearDown() {
+    Reporter.setOptions(false, false);
+    file.delete();
+    new File(file.getPath().replace(".srt", ".bak")).delete();
+    FileProcessor.undoFileFor(file).delete();
+  }
+
+  /**
+   * Corrects the bytes in one go.
+   * 
+   * @throws IOException
+   *           The file could not be read.
+   */
+  @Test
+  public void testProcess() throws IOException {
+    FileProcessor fp = new FileProcessor(file, false);
+    fp.setUtf8(true);
+    assertTrue(fp.process());
+    check(fp);
+  }
+
+  /**
+   * Corrects the bytes in stages.
+   * 
+   * @throws IOException
+   *           The file could not be read.
+   */
+  @Test
+  public void testStages() throws IOException {
+    FileProcessor fp = new FileProcessor(file, false);
+    fp.setUtf8(true);
+    assertTrue(fp.read());
+    fp.correct();
+    assertTrue(fp.write());
+    check(fp);
+  }
+
+  /**
+   * Corrects the bytes in place.
+   * 
+   * @throws IOException
+   *           The file could not be read.
+   */
+  @Test
+  public void testInPlace() throws IOException {
+    FileProcessor fp = new FileProcessor(file, false);
+    fp.setUtf8(true);
+    fp.setInPlace(true);
+    assertTrue(fp.process());
+    check(fp);
+    assertTrue(FileProcessor.undoFileFor(file).exists());
+  }
+
+  /**
+   * Checks the corrected file and the statistics.
+   * 
+   * @param fp
+   *          The processor that corrected the file.
+   * @throws IOException
+   *           The file could not be read.
+   */
+  private void check(FileProcessor fp) throws IOException {
+    assertArrayEquals(CORRECTED, DedupeCache.readBytes(file));
+    assertEquals(7, fp.getStatistics().getLineCount());
+    assertEquals(3, fp.getStatistics().getCorrectedCount());
+  }
+
+  /**
+   * Encodes text, each part in its own encoding.
+   * 
+   * @param parts
+   *          The text and encoding of each part.
+   * @return The bytes.
+   */
+  private static byte[] bytes(String... parts) {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      for (int i = 0; i < parts.length; i += 2) {
+        out.write(parts[i].getBytes(parts[i + 1]));
+      }
+      return out.toByteArray();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that a {@link FrequencyModel} chooses the most frequent spelling.
+ */
+public class FrequencyModelTest {
+
+  /**
+   * The model file.
+   */
+  private File file;
+
+  /**
+   * The model read from the file.
+   */
+  private FrequencyModel model;
+
+  /**
+   * Writes a small model and opens it.
+   * 
+   * @throws IOException
+   *           The model could not be written.
+   */
+  @Before
+  public void setUp() throws IOException {
+    Map<String, long[]> words = new HashMap<String, long[]>();
+    words.put("Ill", new long[] { 20 });
+    words.put("lll", new long[] { 1 });
+    words.put("Iike", new long[] { 2 });
+    words.put("like", new long[] { 5000 });
+    words.put("I", new long[] { 100000 });
+    file = File.createTempFile("words", ".model");
+    FrequencyModel.write(words, file);
+    model = FrequencyModel.open(file);
+  }
+
+  /**
+   * Removes the model file.
+   */
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  /**
+   * Checks the counts of the words.
+   */
+  @Test
+  public void testFrequency() {
+    assertEquals(5, model.size());
+    assertTrue(model.frequency("like", 0, 4) > model.frequency("Iike", 0, 4));
+    assertTrue(model.frequency("Ill", 0, 3) > model.frequency("lll", 0, 3));
+    assertTrue(model.frequency(" I ", 1, 2) > model.frequency("like", 0, 4));
+    assertEquals(0, model.frequency("lIl", 0, 3));
+    assertEquals(0, model.frequency("", 0, 0));
+    assertEquals(1, FrequencyModel.quantize(1));
+    assertEquals(255, FrequencyModel.quantize(Long.MAX_VALUE));
+  }
+
+  /**
+   * Checks that the words of a corpus file are counted in its own encoding.
+   * 
+   * @throws IOException
+   *           The corpus file could not be written or read.
+   */
+  @Test
+  public void testCount() throws IOException {
+    File srt = File.createTempFile("corpus", ".srt");
+    try {
+      OutputStream out = new FileOutputStream(srt);
+      try {
+        out.write(new byte[] { (byte) 0xFF, (byte) 0xFE });
+        out.write("1\r\n00:00:01,000 --> 00:00:02,000\r\ncaf\u00e9 or caf\u00e9\r\n".getBytes("UTF-16LE"));
+      } finally {
+        out.close();
+      }
+      Map<String, long[]> words = new HashMap<String, long[]>();
+      FrequencyModel.count(srt, words);
+      assertEquals(2, words.size());
+      assertEquals(2, words.get("caf\u00e9")[0]);
+      assertEquals(1, words.get("or")[0]);
+    } finally {
+      srt.delete();
+    }
+  }
+
+  /**
+   * Checks which spellings are chosen.
+   */
+  @Test
+  public void testChoose() {
+    StringBuilder line = new StringBuilder("lll go now");
+    assertTrue(model.choose(line, 0, 3, "Ill"));
+    assertEquals("Ill go now", line.toString());
+
+    line = new StringBuilder("so Iike me");
+    assertTrue(model.choose(line, 3, 7, "Iike"));
+    assertEquals("so like me", line.toString());
+
+    // already the most frequent spelling
+    line = new StringBuilder("like");
+    assertFalse(model.choose(line, 0, 4, "Iike"));
+    assertEquals("like", line.toString());
+
+    // no spelling in the model
+    line = new StringBuilder("lIlI");
+    assertFalse(model.choose(line, 0, 4, "IIII"));
+    assertEquals("lIlI", line.toString());
+
+    // changed by the dictionary
+    line = new StringBuilder("lll");
+    assertFalse(model.choose(line, 0, 3, "lil"));
+    assertEquals("lll", line.toString());
+    line = new StringBuilder("I");
+    assertFalse(model.choose(line, 0, 1, "Il"));
+    assertEquals("I", line.toString());
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import static org.cafed00d.subtitle.SrtFiles.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the journal resumes a batch, and only puts back the original of
+ * a file that was left incomplete.
+ */
+public class JournalTest {
+
+  /**
+   * The journal file.
+   */
+  private File journalFile;
+
+  /**
+   * The SRT file.
+   */
+  private File file;
+
+  /**
+   * Creates the journal and SRT files.
+   * 
+   * @throws IOException
+   *           The files could not be created.
+   */
+  @Before
+  public void setUp() throws IOException {
+    Reporter.setOptions(false, true);
+    journalFile = File.createTempFile("journal", ".txt");
+    journalFile.delete();
+    file = File.createTempFile("journal", ".srt");
+  }
+
+  /**
+   * Removes the files.
+   */
+  @After
+  public void tearDown() {
+    Reporter.setOptions(false, false);
+    journalFile.delete();
+    file.delete();
+    FileProcessor.backupFileFor(file, Backup.RENAME).delete();
+    FileProcessor.tempFileFor(file).delete();
+    FileProcessor.undoFileFor(file).delete();
+  }
+
+  /**
+   * Checks that completed files are remembered and interrupted ones are not.
+   * 
+   * @throws IOException
+   *           The journal could not be read or written.
+   */
+  @Test
+  public void testCompleted() throws IOException {
+    File other = new File(file.getPath() + "2");
+    Journal journal = new Journal(journalFile);
+    journal.started(file);
+    journal.completed(file);
+    journal.started(other);
+    journal.close();
+    journal = new Journal(journalFile);
+    journal.close();
+    assertTrue(journal.isCompleted(file));
+    assertFalse(journal.isCompleted(other));
+  }
+
+  /**
+   * Checks that a file renamed to its backup but not yet replaced by the
+   * corrected contents is put back.
+   * 
+   * @throws IOException
+   *           The files could not be read or written.
+   */
+  @Test
+  public void testRecoverMissing() throws IOException {
+    Journal journal = new Journal(journalFile);
+    journal.started(file);
+    journal.close();
+    File backupFile = FileProcessor.backupFileFor(file, Backup.RENAME);
+    write(backupFile, ORIGINAL);
+    write(FileProcessor.tempFileFor(file), CORRECTED);
+    file.delete();
+    journal = new Journal(journalFile);
+    assertTrue(journal.recover(file));
+    journal.close();
+    assertArrayEquals(ORIGINAL, DedupeCache.readBytes(file));
+    assertFalse(backupFile.exists());
+    assertFalse(FileProcessor.tempFileFor(file).exists());
+  }
+
+  /**
+   * Checks that a file whose corrected contents were only partly written to
+   * the temporary file is left as it was, along with a backup left by an
+   * earlier run.
+   * 
+   * @throws IOException
+   *           The files could not be read or written.
+   */
+  @Test
+  public void testKeepIntact() throws IOException {
+    File backupFile = FileProcessor.backupFileFor(file, Backup.RENAME);
+    write(backupFile, ORIGINAL);
+    write(file, CORRECTED);
+    Journal journal = new Journal(journalFile);
+    journal.started(file);
+    journal.close();
+    write(FileProcessor.tempFileFor(file), ORIGINAL);
+    journal = new Journal(journalFile);
+    assertFalse(journal.recover(file));
+    journal.close();
+    assertArrayEquals(CORRECTED, DedupeCache.readBytes(file));
+    assertTrue(backupFile.exists());
+    assertFalse(FileProcessor.tempFileFor(file).exists());
+  }
+
+  /**
+   * Checks that a file missing with a stale temporary file, from before the
+   * file was started, is not restored.
+   * 
+   * @throws IOException
+   *           The files could not be read or written.
+   */
+  @Test
+  public void testStaleTemp() throws IOException {
+    File tempFile = FileProcessor.tempFileFor(file);
+    write(tempFile, CORRECTED);
+    File backupFile = FileProcessor.backupFileFor(file, Backup.RENAME);
+    write(backupFile, ORIGINAL);
+    file.delete();
+    assertFalse(FileProcessor.recover(file, System.currentTimeMillis() + 60000));
+    assertFalse(file.exists());
+    assertTrue(backupFile.exists());
+  }
+
+  /**
+   * Checks that a start record cut short, as by a crash, is ignored.
+   * 
+   * @throws IOException
+   *           The files could not be read or written.
+   */
+  @Test
+  public void testTornRecord() throws IOException {
+    write(journalFile, ("S " + file.getAbsolutePath()).getBytes("UTF-8"));
+    File backupFile = FileProcessor.backupFileFor(file, Backup.RENAME);
+    write(backupFile, ORIGINAL);
+    write(FileProcessor.tempFileFor(file), CORRECTED);
+    file.delete();
+    Journal journal = new Journal(journalFile);
+    assertFalse(journal.isCompleted(file));
+    assertFalse(journal.recover(file));
+    journal.close();
+    assertFalse(file.exists());
+    assertTrue(backupFile.exists());
+  }
+}
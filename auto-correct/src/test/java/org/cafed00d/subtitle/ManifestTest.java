@@ -0,0 +1,189 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the manifest skips only the files that are unchanged and were
+ * corrected with the same dictionary, frequency model and word list, and that
+ * it writes the manifests as it goes.
+ */
+public class ManifestTest {
+
+  /**
+   * The global manifest file.
+   */
+  private File manifestFile;
+
+  /**
+   * The SRT file.
+   */
+  private File file;
+
+  /**
+   * Creates the SRT file.
+   * 
+   * @throws IOException
+   *           The file could not be created.
+   */
+  @Before
+  public void setUp() throws IOException {
+    Reporter.setOptions(false, true);
+    manifestFile = File.createTempFile("manifest", ".txt");
+    manifestFile.delete();
+    file = File.createTempFile("manifest", ".srt");
+    SrtFiles.write(file, SrtFiles.CORRECTED);
+  }
+
+  /**
+   * Removes the files.
+   */
+  @After
+  public void tearDown() {
+    Reporter.setOptions(false, false);
+    manifestFile.delete();
+    file.delete();
+  }
+
+  /**
+   * Checks that a recorded file is skipped while unchanged, also when only
+   * its time changed, but not once its contents change, and that a file
+   * never recorded is not skipped.
+   * 
+   * @throws IOException
+   *           The file could not be written.
+   */
+  @Test
+  public void testUnchanged() throws IOException {
+    Manifest manifest = new Manifest(manifestFile);
+    assertFalse(manifest.isUnchanged(file));
+    manifest.record(file);
+    assertTrue(manifest.isUnchanged(file));
+    assertTrue(file.setLastModified(file.lastModified() - 10000));
+    assertTrue(manifest.isUnchanged(file));
+    manifest.save();
+    assertTrue(new Manifest(manifestFile).isUnchanged(file));
+    SrtFiles.write(file, "1\r\n00:00:01,000 --> 00:00:02,000\r\nlet me see\r\n".getBytes("UTF-8"));
+    assertFalse(manifest.isUnchanged(file));
+    assertFalse(new File(manifestFile.getPath() + ".tmp").exists());
+  }
+
+  /**
+   * Checks that the manifest of a directory is written as soon as the batch
+   * moves on to another directory, but not while a file of it is still being
+   * processed.
+   * 
+   * @throws IOException
+   *           The files could not be written.
+   */
+  @Test
+  public void testSavePerDirectory() throws IOException {
+    File first = new File(file.getPath() + ".d");
+    File second = new File(first, "second");
+    second.mkdirs();
+    File a = new File(first, "a.srt");
+    File b = new File(second, "b.srt");
+    File c = new File(first, "c.srt");
+    try {
+      for (File srt : new File[] { a, b, c }) {
+        srt.createNewFile();
+      }
+      Manifest manifest = new Manifest(null);
+      assertFalse(manifest.isUnchanged(a));
+      manifest.record(a);
+      manifest.finished(a);
+      assertFalse(new File(first, Manifest.FILE_NAME).exists());
+      assertFalse(manifest.isUnchanged(b));
+      assertTrue(new File(first, Manifest.FILE_NAME).exists());
+      assertTrue(new Manifest(null).isUnchanged(a));
+      assertFalse(manifest.isUnchanged(c));
+      manifest.record(b);
+      manifest.finished(b);
+      assertTrue(new File(second, Manifest.FILE_NAME).exists());
+      manifest.record(c);
+      manifest.finished(c);
+      assertFalse(new Manifest(null).isUnchanged(c));
+      manifest.save();
+      assertTrue(new Manifest(null).isUnchanged(c));
+      assertTrue(manifest.isUnchanged(a));
+      assertTrue(manifest.isUnchanged(b));
+    } finally {
+      for (File srt : new File[] { a, b, c }) {
+        srt.delete();
+      }
+      new File(second, Manifest.FILE_NAME).delete();
+      second.delete();
+      new File(first, Manifest.FILE_NAME).delete();
+      first.delete();
+    }
+  }
+
+  /**
+   * Checks that a file corrected without a word list is corrected again with
+   * one, and the other way round.
+   */
+  @Test
+  public void testConfusions() {
+    Manifest manifest = new Manifest(manifestFile);
+    manifest.record(file);
+    assertTrue(manifest.isUnchanged(file));
+    manifest.setConfusions(new ConfusionIndex(new File("words.txt"), "0", Arrays.asList("modern", "modem")));
+    assertFalse(manifest.isUnchanged(file));
+    manifest.record(file);
+    assertTrue(manifest.isUnchanged(file));
+    manifest.setConfusions(new ConfusionIndex(new File("words.txt"), "1", Arrays.asList("modern", "modem")));
+    assertFalse(manifest.isUnchanged(file));
+    manifest.setConfusions(null);
+    assertFalse(manifest.isUnchanged(file));
+  }
+
+  /**
+   * Checks that a file corrected without a frequency model is corrected again
+   * with one.
+   * 
+   * @throws IOException
+   *           The model could not be written or opened.
+   */
+  @Test
+  public void testModel() throws IOException {
+    Map<String, long[]> words = new HashMap<String, long[]>();
+    words.put("modern", new long[] { 10 });
+    File modelFile = File.createTempFile("manifest", ".model");
+    try {
+      FrequencyModel.write(words, modelFile);
+      Manifest manifest = new Manifest(manifestFile);
+      manifest.record(file);
+      assertTrue(manifest.isUnchanged(file));
+      manifest.setModel(FrequencyModel.open(modelFile));
+      assertFalse(manifest.isUnchanged(file));
+      manifest.record(file);
+      assertTrue(manifest.isUnchanged(file));
+    } finally {
+      modelFile.delete();
+    }
+  }
+}
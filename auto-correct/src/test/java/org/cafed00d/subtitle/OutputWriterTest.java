@@ -0,0 +1,149 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that lines read by a {@link LineReader} and written by an
+ * {@link OutputWriter} come out as they went in.
+ */
+public class OutputWriterTest {
+
+  /**
+   * The file to write.
+   */
+  private File file;
+
+  /**
+   * Creates the file.
+   * 
+   * @throws IOException
+   *           The file could not be created.
+   */
+  @Before
+  public void setUp() throws IOException {
+    file = File.createTempFile("output", ".srt");
+  }
+
+  /**
+   * Removes the file and puts back the default buffering.
+   */
+  @After
+  public void tearDown() {
+    file.delete();
+    OutputWriter.configure(OutputWriter.DEFAULT_FLUSH_SIZE, false);
+  }
+
+  /**
+   * Checks the lines and terminators read.
+   * 
+   * @throws IOException
+   *           Not thrown by a string.
+   */
+  @Test
+  public void testReadLine() throws IOException {
+    LineReader in = new LineReader(new StringReader("one\r\ntwo\nthree\r\rfive"));
+    assertEquals("one", in.readLine());
+    assertEquals("\r\n", in.getTerminator());
+    assertEquals("two", in.readLine());
+    assertEquals("\n", in.getTerminator());
+    assertEquals("three", in.readLine());
+    assertEquals("\r", in.getTerminator());
+    assertEquals("", in.readLine());
+    assertEquals("\r", in.getTerminator());
+    assertEquals("five", in.readLine());
+    assertEquals("", in.getTerminator());
+    assertNull(in.readLine());
+    assertNull(new LineReader(new StringReader("")).readLine());
+  }
+
+  /**
+   * Copies a large file with mixed line terminators through heap buffers.
+   * 
+   * @throws IOException
+   *           The file could not be written.
+   */
+  @Test
+  public void testCopy() throws IOException {
+    OutputWriter.configure(OutputWriter.CHUNK_SIZE, false);
+    copy(text(20000));
+  }
+
+  /**
+   * Copies a large file through direct buffers.
+   * 
+   * @throws IOException
+   *           The file could not be written.
+   */
+  @Test
+  public void testDirect() throws IOException {
+    OutputWriter.configure(4 * OutputWriter.CHUNK_SIZE, true);
+    copy(text(20000));
+    copy(text(1));
+    copy("");
+  }
+
+  /**
+   * Builds the text of a file.
+   * 
+   * @param lineCount
+   *          The number of lines.
+   * @return The text, with lines ending in each of the terminators in turn
+   *         and the last with none.
+   */
+  private static String text(int lineCount) {
+    String[] terminators = { "\r\n", "\n", "\r" };
+    StringBuilder result = new StringBuilder();
+    for (int i = 0; i < lineCount; i++) {
+      if (i > 0) {
+        result.append(terminators[i % 3]);
+      }
+      result.append("Line ").append(i).append(" of the text");
+    }
+    return result.toString();
+  }
+
+  /**
+   * Copies text to the file a line at a time, and checks the file.
+   * 
+   * @param text
+   *          The text.
+   * @throws IOException
+   *           The file could not be written.
+   */
+  private void copy(String text) throws IOException {
+    LineReader in = new LineReader(new StringReader(text));
+    OutputWriter out = new OutputWriter(file);
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        out.writeLine(line, in.getTerminator());
+      }
+    } finally {
+      out.close();
+    }
+    assertEquals(text, new String(DedupeCache.readBytes(file)));
+  }
+}
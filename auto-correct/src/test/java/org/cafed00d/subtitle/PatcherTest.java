@@ -0,0 +1,172 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that a {@link Patcher} writes only what changed, and that its undo
+ * log puts the file back.
+ */
+public class PatcherTest {
+
+  /**
+   * The file to patch.
+   */
+  private File file;
+
+  /**
+   * The undo log.
+   */
+  private File undoFile;
+
+  /**
+   * Creates the files.
+   * 
+   * @throws IOException
+   *           The files could not be created.
+   */
+  @Before
+  public void setUp() throws IOException {
+    file = File.createTempFile("patch", ".srt");
+    undoFile = FileProcessor.undoFileFor(file);
+  }
+
+  /**
+   * Removes the files.
+   */
+  @After
+  public void tearDown() {
+    file.delete();
+    undoFile.delete();
+  }
+
+  /**
+   * Checks which bytes are patched.
+   */
+  @Test
+  public void testPatches() {
+    String text = "1\r\n00:00:01,000 --> 00:00:02,000\r\nI said Iet me go, IIl be fine.\r\n";
+    assertTrue(new Patcher(bytes(text), bytes(text)).isEmpty());
+    Patcher patcher = new Patcher(bytes(text), bytes(text.replace("Iet", "let")));
+    assertEquals(1, patcher.getPatchCount());
+    assertEquals(1, patcher.getByteCount());
+    patcher = new Patcher(bytes(text), bytes(text.replace("Iet", "let").replace("IIl", "I'l")));
+    assertEquals(1, patcher.getPatchCount());
+    assertEquals(13, patcher.getByteCount());
+    patcher = new Patcher(bytes(text), bytes(text.replace("1\r", "9\r").replace("IIl", "I'l")));
+    assertEquals(2, patcher.getPatchCount());
+    assertEquals(2, patcher.getByteCount());
+    patcher = new Patcher(bytes(text), bytes(text.replace("IIl", "I'll")));
+    assertEquals(1, patcher.getPatchCount());
+    assertEquals(14, patcher.getByteCount());
+  }
+
+  /**
+   * Patches a file and undoes the patches, keeping the length.
+   * 
+   * @throws IOException
+   *           The file could not be patched.
+   */
+  @Test
+  public void testSameLength() throws IOException {
+    check("Iet me go\nIIl be fine\n", "let me go\nI'l be fine\n");
+  }
+
+  /**
+   * Patches a file and undoes the patches, changing the length, which
+   * replaces the file through a temporary file.
+   * 
+   * @throws IOException
+   *           The file could not be patched.
+   */
+  @Test
+  public void testLength() throws IOException {
+    check("I 'm here\nIet me go\n", "I'm here\nlet me go\n");
+    check("I said IIl go\n", "I said I'll go\n");
+    assertFalse(FileProcessor.tempFileFor(file).exists());
+  }
+
+  /**
+   * Checks that an undo log cut short by an interruption can still be
+   * applied.
+   * 
+   * @throws IOException
+   *           The file could not be patched.
+   */
+  @Test
+  public void testInterrupted() throws IOException {
+    String original = "Iet me go\nIIl be fine\n";
+    SrtFiles.write(file, bytes(original));
+    Patcher patcher = new Patcher(bytes(original), bytes("let me go\nI'l be fine\n"));
+    patcher.writeUndo(undoFile);
+    byte[] log = DedupeCache.readBytes(undoFile);
+    OutputStream out = new FileOutputStream(undoFile);
+    try {
+      out.write(log, 0, log.length - 3);
+    } finally {
+      out.close();
+    }
+    Patcher.undo(file, undoFile);
+    assertEquals(original, new String(DedupeCache.readBytes(file), "US-ASCII"));
+    assertFalse(undoFile.exists());
+  }
+
+  /**
+   * Patches a file, checks the result, and undoes the patches.
+   * 
+   * @param original
+   *          The original contents.
+   * @param patched
+   *          The patched contents.
+   * @throws IOException
+   *           The file could not be patched.
+   */
+  private void check(String original, String patched) throws IOException {
+    SrtFiles.write(file, bytes(original));
+    Patcher patcher = new Patcher(bytes(original), bytes(patched));
+    patcher.writeUndo(undoFile);
+    patcher.apply(file);
+    assertEquals(patched, new String(DedupeCache.readBytes(file), "US-ASCII"));
+    Patcher.undo(file, undoFile);
+    assertEquals(original, new String(DedupeCache.readBytes(file), "US-ASCII"));
+    assertFalse(undoFile.exists());
+  }
+
+  /**
+   * Gets the bytes of some text.
+   * 
+   * @param text
+   *          The text.
+   * @return The bytes.
+   */
+  private static byte[] bytes(String text) {
+    try {
+      return text.getBytes("US-ASCII");
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
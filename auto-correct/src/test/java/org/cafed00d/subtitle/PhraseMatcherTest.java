@@ -0,0 +1,112 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+/**
+ * Checks the corrections made by a {@link PhraseMatcher}.
+ */
+public class PhraseMatcherTest {
+
+  /**
+   * The matcher used by the tests.
+   */
+  private final PhraseMatcher matcher;
+
+  /**
+   * Constructor.
+   */
+  public PhraseMatcherTest() {
+    Map<String, String> phrases = new TreeMap<String, String>();
+    phrases.put("I 'm", "I'm ");
+    phrases.put("I 'll", "I'll ");
+    phrases.put("a lot", "A LOT");
+    phrases.put("a lot of", "A_LOT_OF");
+    phrases.put("lot of", "LOT OF");
+    phrases.put("of it", "of It");
+    phrases.put("too long", "too");
+    phrases.put("word", "WORD");
+    matcher = new PhraseMatcher(phrases);
+  }
+
+  /**
+   * Corrects a line and checks the result.
+   * 
+   * @param line
+   *          The line to correct.
+   * @param expected
+   *          The expected result.
+   * @param count
+   *          The expected number of corrections.
+   */
+  private void check(String line, String expected, int count) {
+    StringBuilder buf = new StringBuilder(line);
+    assertEquals(count, matcher.correct(buf, null));
+    assertEquals(expected, buf.toString());
+  }
+
+  /**
+   * Only phrases of the same length as their corrections are kept.
+   */
+  @Test
+  public void testSize() {
+    assertEquals(6, matcher.size());
+  }
+
+  /**
+   * Phrases are corrected wherever they are on word boundaries.
+   */
+  @Test
+  public void testBoundaries() {
+    check("I 'm here", "I'm  here", 1);
+    check("I 'm", "I'm ", 1);
+    check("HI 'm", "HI 'm", 0);
+    check("I 'ma", "I 'ma", 0);
+    check("- I 'm sure I 'll go.", "- I'm  sure I'll  go.", 2);
+    check("no phrases here", "no phrases here", 0);
+    check("", "", 0);
+  }
+
+  /**
+   * Overlapping matches are resolved leftmost first, then longest.
+   */
+  @Test
+  public void testOverlaps() {
+    check("a lot of it", "A_LOT_OF it", 1);
+    check("a lot", "A LOT", 1);
+    check("a lot of", "A_LOT_OF", 1);
+    check("the lot of it", "the LOT OF it", 1);
+    check("one of it", "one of It", 1);
+    check("a lot, a lot of", "A LOT, A_LOT_OF", 2);
+  }
+
+  /**
+   * The corrections are recorded once each.
+   */
+  @Test
+  public void testCorrections() {
+    Map<String, String> corrections = new TreeMap<String, String>();
+    assertEquals(2, matcher.correct(new StringBuilder("I 'm, I 'm"), corrections));
+    assertEquals(1, corrections.size());
+    assertEquals("I'm ", corrections.get("I 'm"));
+  }
+}
@@ -0,0 +1,242 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that {@link ShardCoordinator} gives up on workers that hang and on
+ * files that crash the workers, using workers that only speak the protocol.
+ */
+public class ShardCoordinatorTest {
+
+  /**
+   * The directory the files would be in. It is never created, as the workers
+   * do not open the files.
+   */
+  private File dir;
+
+  /**
+   * Names a directory for the files.
+   * 
+   * @throws IOException
+   *           The name could not be created.
+   */
+  @Before
+  public void setUp() throws IOException {
+    Reporter.setOptions(false, true);
+    dir = File.createTempFile("shard", "");
+    dir.delete();
+  }
+
+  /**
+   * Restores the reporter.
+   */
+  @After
+  public void tearDown() {
+    Reporter.setOptions(false, false);
+  }
+
+  /**
+   * Checks that a worker that never answers for a file is given up on once the
+   * timeout passes.
+   * 
+   * @throws IOException
+   *           The worker could not be started.
+   */
+  @Test(timeout = 30000)
+  public void testTimeout() throws IOException {
+    File file = new File(dir, "movie.srt");
+    FakeWorker worker = new FakeWorker(file, true);
+    ShardCoordinator coordinator = new ShardCoordinator(new BatchProcessor(1, false), worker.getAddress(), false, Engine.LEGACY);
+    coordinator.setTimeout(200);
+    List<File> files = new ArrayList<File>();
+    files.add(file);
+    coordinator.process(files);
+    assertEquals(1, worker.fileCount);
+  }
+
+  /**
+   * Checks that a file that crashes every worker it is sent to is only sent
+   * to {@link ShardCoordinator#MAX_ATTEMPTS} of them.
+   * 
+   * @throws IOException
+   *           The workers could not be started.
+   */
+  @Test(timeout = 30000)
+  public void testAttempts() throws IOException {
+    List<File> files = new ArrayList<File>();
+    for (int i = 0; i < 30; i++) {
+      files.add(new File(dir, "movie" + i + ".srt"));
+    }
+    StringBuilder spec = new StringBuilder();
+    List<FakeWorker> workers = new ArrayList<FakeWorker>();
+    for (int i = 0; i < 3; i++) {
+      FakeWorker worker = new FakeWorker(files.get(0), false);
+      workers.add(worker);
+      spec.append(i == 0 ? "" : ",").append(worker.getAddress());
+    }
+    new ShardCoordinator(new BatchProcessor(1, false), spec.toString(), false, Engine.LEGACY).process(files);
+    int attempts = 0;
+    for (FakeWorker worker : workers) {
+      attempts += worker.poisonCount;
+    }
+    assertEquals(ShardCoordinator.MAX_ATTEMPTS, attempts);
+  }
+
+  /**
+   * A worker that answers for every file after a short delay, except for one
+   * file on which it either crashes or hangs.
+   */
+  private static class FakeWorker implements Runnable {
+
+    /**
+     * The time taken to answer for a file, in milliseconds. Long enough that
+     * the other workers are still busy when one of them crashes.
+     */
+    private static final int DELAY = 50;
+
+    /**
+     * The socket the worker listens on.
+     */
+    private ServerSocket server;
+
+    /**
+     * The file the worker fails on.
+     */
+    private File poison;
+
+    /**
+     * If true, the worker hangs on the file rather than crashing.
+     */
+    private boolean hang;
+
+    /**
+     * The number of files the worker was sent.
+     */
+    private volatile int fileCount;
+
+    /**
+     * The number of times the worker was sent the file it fails on.
+     */
+    private volatile int poisonCount;
+
+    /**
+     * Constructor. Starts listening for the coordinator.
+     * 
+     * @param poison
+     *          The file to fail on.
+     * @param hang
+     *          True to hang on the file, false to crash.
+     * @throws IOException
+     *           The socket could not be opened.
+     */
+    FakeWorker(File poison, boolean hang) throws IOException {
+      this.poison = poison;
+      this.hang = hang;
+      server = new ServerSocket(0);
+      Thread thread = new Thread(this, "fake-worker-" + server.getLocalPort());
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    /**
+     * Gets the address to give the coordinator.
+     * 
+     * @return The address.
+     */
+    String getAddress() {
+      return "localhost:" + server.getLocalPort();
+    }
+
+    /**
+     * Reads the settings, then answers for the files until told to stop or
+     * sent the file to fail on.
+     */
+    public void run() {
+      try {
+        Socket socket = server.accept();
+        try {
+          DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+          DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+          readSettings(in);
+          while (in.readByte() == ShardWorker.FILE) {
+            String path = in.readUTF();
+            fileCount++;
+            if (path.equals(poison.getAbsolutePath())) {
+              poisonCount++;
+              if (hang) {
+                in.readByte();
+              }
+              return;
+            }
+            Thread.sleep(DELAY);
+            out.writeUTF(path);
+            new Statistics().writeTo(out);
+            out.writeInt(0);
+            out.flush();
+          }
+        } finally {
+          socket.close();
+          server.close();
+        }
+      } catch (IOException e) {
+        // The coordinator went away
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    /**
+     * Reads the settings the coordinator sends when it connects, as
+     * {@link ShardWorker} does.
+     * 
+     * @param in
+     *          The stream from the coordinator.
+     * @throws IOException
+     *           The settings could not be read.
+     */
+    private static void readSettings(DataInputStream in) throws IOException {
+      in.readBoolean();
+      in.readUTF();
+      in.readUTF();
+      in.readUTF();
+      in.readBoolean();
+      in.readBoolean();
+      in.readBoolean();
+      in.readInt();
+      in.readBoolean();
+      in.readUTF();
+      in.readInt();
+      in.readBoolean();
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The SRT files the tests correct, and a way to write them.
+ */
+final class SrtFiles {
+
+  /**
+   * The contents of a file that needs one correction.
+   */
+  static final byte[] ORIGINAL = "1\r\n00:00:01,000 --> 00:00:02,000\r\nIet me go\r\n".getBytes();
+
+  /**
+   * The contents of {@link #ORIGINAL} once corrected, which need no
+   * corrections.
+   */
+  static final byte[] CORRECTED = "1\r\n00:00:01,000 --> 00:00:02,000\r\nlet me go\r\n".getBytes();
+
+  /**
+   * The contents of a file that needs two corrections.
+   */
+  static final byte[] TWO_ERRORS = "1\r\n00:00:01,000 --> 00:00:02,000\r\nIet me go\r\nIook\r\n".getBytes();
+
+  /**
+   * The contents of {@link #TWO_ERRORS} once corrected.
+   */
+  static final byte[] TWO_ERRORS_CORRECTED = "1\r\n00:00:01,000 --> 00:00:02,000\r\nlet me go\r\nlook\r\n".getBytes();
+
+  /**
+   * Not instantiated.
+   */
+  private SrtFiles() {
+  }
+
+  /**
+   * Writes a file.
+   * 
+   * @param file
+   *          The file.
+   * @param bytes
+   *          The contents of the file.
+   * @throws IOException
+   *           The file could not be written.
+   */
+  static void write(File file, byte[] bytes) throws IOException {
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+  }
+}
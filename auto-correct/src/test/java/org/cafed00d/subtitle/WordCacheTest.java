@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Checks the {@link WordCache}.
+ */
+public class WordCacheTest {
+
+  /**
+   * A word is found with its correction, or as unchanged, within a line.
+   */
+  @Test
+  public void testGet() {
+    WordCache cache = new WordCache(16);
+    cache.put("lsn't", "Isn't");
+    cache.put("rain", null);
+    StringBuilder line = new StringBuilder("lsn't it rain.");
+    WordCache.Entry entry = cache.get(line, 0, WordCache.wordEnd(line, 0));
+    assertNotNull(entry);
+    assertTrue(entry.apply(line, 0));
+    assertEquals("Isn't it rain.", line.toString());
+    entry = cache.get(line, 9, WordCache.wordEnd(line, 9));
+    assertNotNull(entry);
+    assertNull(entry.getCorrection());
+    assertFalse(entry.apply(line, 9));
+    assertNull(cache.get(line, 6, WordCache.wordEnd(line, 6)));
+    assertNull(cache.get(line, 9, 12));
+  }
+
+  /**
+   * A word is added from a range of a line, however long it is, and keeps its
+   * spelling when the line changes. Adding a word already cached keeps the
+   * entry there.
+   */
+  @Test
+  public void testPutRange() {
+    WordCache cache = new WordCache(16);
+    StringBuilder line = new StringBuilder("It's lsn't a IoveIyseIectionIoveIyseIectionIoveIy day.");
+    int first = line.indexOf("Iove");
+    int after = WordCache.wordEnd(line, first);
+    assertTrue(after - first > 32);
+    cache.put(line, 5, 10, "Isn't");
+    cache.put(line, first, after, null);
+    WordCache.Entry entry = cache.get(line, 5, 10);
+    assertEquals("lsn't", entry.getWord());
+    assertTrue(entry.apply(line, 5));
+    assertNull(cache.get(line, 5, 10));
+    assertSame(entry, cache.get("lsn't", 0, 5));
+    cache.put("lsn't", null);
+    assertSame(entry, cache.get("lsn't", 0, 5));
+    entry = cache.get(line, first, after);
+    assertNotNull(entry);
+    assertEquals(line.substring(first, after), entry.getWord());
+  }
+
+  /**
+   * The cache holds no more than its capacity, and keeps the words in use.
+   */
+  @Test
+  public void testEviction() {
+    WordCache cache = new WordCache(64);
+    cache.put("keep", null);
+    int found = 0;
+    for (int i = 0; i < 1000; i++) {
+      cache.put("w" + i, null);
+      assertNotNull("Lost a word in use", cache.get("keep", 0, 4));
+    }
+    for (int i = 0; i < 1000; i++) {
+      String word = "w" + i;
+      if (cache.get(word, 0, word.length()) != null) {
+        found++;
+      }
+    }
+    assertTrue("Too many words: " + found, found < 64);
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Checks that every {@link Engine} makes the same corrections as the
+ * {@link Engine#LEGACY} engine.
+ */
+public class WordEngineTest {
+
+  /**
+   * The letters the generated words are made of: the letters the rules look
+   * for, plus a vowel, a consonant, other upper case letters and Latin-1
+   * letters.
+   */
+  private static final String LETTERS = "Il'aebTL\u00c9\u00df";
+
+  /**
+   * The longest generated word.
+   */
+  private static final int MAX_LENGTH = 5;
+
+  /**
+   * A phrase that includes numerous OCR misspellings, as used by
+   * {@link WordProcesorTest}.
+   */
+  private static final String PHRASE = "[SlNGlNG] lsn't it a IoveIy day to get caught in the rain. "
+      + "NeaI's l'm l'II lt'II Well All Ioad lnitially This'II seIection Iast lf I'lI I'Il";
+
+  /**
+   * Compares the engines on {@link #PHRASE}.
+   */
+  @Test
+  public void testPhrase() {
+    for (Engine engine : Engine.values()) {
+      compareLine(engine, PHRASE);
+    }
+  }
+
+  /**
+   * Compares the engines on every word of up to {@link #MAX_LENGTH} of the
+   * {@link #LETTERS}.
+   */
+  @Test
+  public void testAllWords() {
+    char[] word = new char[MAX_LENGTH];
+    for (Engine engine : Engine.values()) {
+      for (int length = 1; length <= MAX_LENGTH; length++) {
+        generate(engine, word, 0, length);
+      }
+    }
+  }
+
+  /**
+   * Checks that the character table used by the engines gives the same
+   * answers as {@link Character}.
+   */
+  @Test
+  public void testCharClass() {
+    for (char ch = 0; ch < Character.MAX_VALUE; ch++) {
+      assertEquals("Wrong letter flag for " + (int) ch, Character.isLetter(ch), CharClass.isLetter(ch));
+      assertEquals("Wrong upper flag for " + (int) ch, Character.isUpperCase(ch), CharClass.isUpperCase(ch));
+      assertEquals("Wrong word flag for " + (int) ch, Character.isLetter(ch) || ch == '\'', CharClass.isWord(ch));
+    }
+  }
+
+  /**
+   * Compares the engines on words too long for the single pass engine's
+   * masks.
+   */
+  @Test
+  public void testLongWords() {
+    StringBuilder word = new StringBuilder("lT");
+    while (word.length() < 70) {
+      word.append("lT");
+      for (Engine engine : Engine.values()) {
+        compareLine(engine, word + "'II " + word.toString().toLowerCase().replace('l', 'I'));
+      }
+    }
+  }
+
+  /**
+   * Generates the words of a given length and compares the engines on each.
+   * Words start with a letter, as in {@link FileProcessor}.
+   * 
+   * @param engine
+   *          The engine to compare with the legacy engine.
+   * @param word
+   *          The word being generated.
+   * @param position
+   *          The position to fill in next.
+   * @param length
+   *          The length of the words.
+   */
+  private void generate(Engine engine, char[] word, int position, int length) {
+    if (position == length) {
+      compareLine(engine, new String(word, 0, length) + " ");
+    } else {
+      for (int i = 0; i < LETTERS.length(); i++) {
+        word[position] = LETTERS.charAt(i);
+        if (position > 0 || word[0] != '\'') {
+          generate(engine, word, position + 1, length);
+        }
+      }
+    }
+  }
+
+  /**
+   * Corrects a line the way {@link FileProcessor} does with the legacy engine
+   * and another engine, and checks that the results are the same. Also checks
+   * that a line passed by the {@link LineFilter} is indeed left unchanged.
+   * 
+   * @param engine
+   *          The engine to compare with the legacy engine.
+   * @param text
+   *          The line of text.
+   */
+  private void compareLine(Engine engine, String text) {
+    StringBuilder expected = new StringBuilder(text);
+    StringBuilder actual = new StringBuilder(text);
+    WordEngine legacy = Engine.LEGACY.get();
+    WordEngine other = engine == Engine.LEGACY ? null : engine.get();
+    int words = 0;
+    for (int i = 0; i < expected.length(); i++) {
+      if (Character.isLetter(expected.charAt(i))) {
+        legacy.reset(expected, i);
+        int after = legacy.process();
+        words++;
+        if (other != null) {
+          other.reset(actual, i);
+          assertEquals("Wrong end of word in " + text, after, other.process());
+          assertEquals("Wrong correction flag in " + text, legacy.isCorrectionMade(), other.isCorrectionMade());
+          if (legacy.isCorrectionMade()) {
+            assertEquals("Wrong original word in " + text, legacy.getOriginalWord(), other.getOriginalWord());
+            assertEquals("Wrong corrected word in " + text, legacy.getCorrectedWord(), other.getCorrectedWord());
+          }
+        }
+        i = after;
+      }
+    }
+    if (other != null) {
+      assertEquals("Wrong correction of " + text, expected.toString(), actual.toString());
+    }
+    int filtered = Dictionary.INSTANCE.getSnapshot().getLineFilter().unchangedWordCount(text);
+    if (filtered >= 0) {
+      assertEquals("Filter passed a changed line", text, expected.toString());
+      assertEquals("Wrong filter word count for " + text, words, filtered);
+    }
+  }
+}
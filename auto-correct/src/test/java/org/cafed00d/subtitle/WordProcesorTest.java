@@ -185,6 +185,45 @@ public class WordProcesorTest {
     testProcess("All", "All", 2, 1, 2, 0, 0, false);
   }
 
+  /**
+   * Checks that a word processor reused for every word of a line, as
+   * {@link FileProcessor} does, gives the same results as a new one for each
+   * word. The line ends with a word longer than the buffer the original word
+   * is first copied into.
+   * <p>
+   * Test method for {@link org.cafed00d.subtitle.WordProcessor#reset(StringBuilder, int)}.
+   */
+  @Test
+  public void testReset() {
+    String text = PHRASE + " IoveIyseIectionIoveIyseIectionIoveIyseIection";
+    StringBuilder expected = new StringBuilder(text);
+    StringBuilder actual = new StringBuilder(text);
+    WordProcessor reused = new WordProcessor();
+    for (int i = 0; i < expected.length(); i++) {
+      if (Character.isLetter(expected.charAt(i))) {
+        WordProcessor fresh = new WordProcessor(expected, i);
+        int after = fresh.process();
+        reused.reset(actual, i);
+        String word = text.substring(i, after);
+        assertEquals("Wrong after index for " + word, after, reused.process());
+        assertEquals("Wrong lower count for " + word, fresh.getLowerCount(), reused.getLowerCount());
+        assertEquals("Wrong upper count for " + word, fresh.getUpperCount(), reused.getUpperCount());
+        assertEquals("Wrong l count for " + word, fresh.getlCount(), reused.getlCount());
+        assertEquals("Wrong I count for " + word, fresh.getICount(), reused.getICount());
+        assertEquals("Wrong ' count for " + word, fresh.getApostropheCount(), reused.getApostropheCount());
+        assertEquals("Wrong correction flag for " + word, fresh.isCorrectionMade(), reused.isCorrectionMade());
+        assertEquals("Wrong original word for " + word, word, reused.getOriginalWord());
+        assertEquals("Wrong corrected word for " + word, fresh.getCorrectedWord(), reused.getCorrectedWord());
+        if (!reused.isCorrectionMade()) {
+          assertNull("Corrected word for uncorrected " + word, reused.getCorrectedWord());
+        }
+        i = after;
+      }
+    }
+    assertEquals(expected.toString(), actual.toString());
+    assertFalse(text.equals(actual.toString()));
+  }
+
   /**
    * Helper method used to perform the test and validate the results.
    * 
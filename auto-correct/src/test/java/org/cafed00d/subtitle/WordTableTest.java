@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2013, Peter Johnson
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ *  use this file except in compliance with the License. You may obtain a copy
+ *  of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.cafed00d.subtitle;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+/**
+ * Checks that the {@link WordTable} finds every key, however many there are
+ * and however their hashes collide.
+ */
+public class WordTableTest {
+
+  /**
+   * A word is found within a line, with its value, and words that are not
+   * keys are not.
+   */
+  @Test
+  public void testFind() {
+    SortedMap<String, String> entries = new TreeMap<String, String>();
+    entries.put("Iet", "let");
+    entries.put("Ilsa", "");
+    WordTable table = new WordTable(entries);
+    assertEquals(2, table.size());
+    String line = "Iet Ilsa go.";
+    int entry = table.find(line, 0, 3);
+    assertTrue(entry >= 0);
+    assertEquals("Iet", table.getKey(entry));
+    assertEquals("let", table.getValue(entry));
+    assertEquals(3, table.getValueLength(entry));
+    entry = table.find(line, 4, 8);
+    assertEquals("Ilsa", table.getKey(entry));
+    assertEquals(0, table.getValueLength(entry));
+    assertEquals(-1, table.find(line, 9, 11));
+    assertEquals(-1, table.find(line, 0, 2));
+    assertEquals(-1, table.find(line, 0, 0));
+    assertEquals(entries, table.getEntries());
+    assertEquals(-1, new WordTable(new TreeMap<String, String>()).find("Iet", 0, 3));
+  }
+
+  /**
+   * Keys whose hashes are all the same are each found by probing past the
+   * others, and a word with the same hash that is not a key is not found.
+   */
+  @Test
+  public void testCollisions() {
+    String[] halves = { "Aa", "BB" };
+    assertEquals(halves[0].hashCode(), halves[1].hashCode());
+    SortedMap<String, String> entries = new TreeMap<String, String>();
+    for (String first : halves) {
+      for (String second : halves) {
+        for (String third : halves) {
+          entries.put(first + second + third, third + second + first);
+        }
+      }
+    }
+    String missing = entries.firstKey();
+    entries.remove(missing);
+    WordTable table = new WordTable(entries);
+    for (Map.Entry<String, String> e : entries.entrySet()) {
+      int entry = table.find(e.getKey(), 0, e.getKey().length());
+      assertTrue("Not found: " + e.getKey(), entry >= 0);
+      assertEquals(e.getValue(), table.getValue(entry));
+    }
+    assertEquals(-1, table.find(missing, 0, missing.length()));
+  }
+
+  /**
+   * The table is sized for many keys, all of which are found, while words
+   * that are not keys still end their probe at an empty slot.
+   */
+  @Test
+  public void testMany() {
+    SortedMap<String, String> entries = new TreeMap<String, String>();
+    for (int i = 0; i < 10000; i++) {
+      entries.put("w" + i, "v" + i);
+    }
+    WordTable table = new WordTable(entries);
+    assertEquals(10000, table.size());
+    for (int i = 0; i < 10000; i++) {
+      String line = " w" + i + " ";
+      int entry = table.find(line, 1, line.length() - 1);
+      assertTrue(entry >= 0);
+      assertEquals("v" + i, table.getValue(entry));
+      assertEquals(-1, table.find("x" + i, 0, line.length() - 2));
+    }
+    assertEquals(entries, table.getEntries());
+  }
+}